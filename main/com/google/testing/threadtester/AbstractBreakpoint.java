@@ -178,13 +178,36 @@ public abstract class AbstractBreakpoint implements Breakpoint {
     return blocked;
   }
 
+  /**
+   * Gets the key used to record the time taken to reach this breakpoint. See
+   * {@link AdaptiveTimeouts}. Breakpoints with the same key are expected to
+   * take a similar time to reach.
+   */
+  String getTimeoutKey() {
+    return getClass().getName();
+  }
+
   @Override
   public void await() throws TestTimeoutException {
     Options.debugPrint("Breakpoint.await %s\n" , this);
     try {
-      if (!stopLatch.await(Options.timeout(), TimeUnit.MILLISECONDS)) {
-        throw new TestTimeoutException("Did not reach " + this, getThread());
+      String key = getTimeoutKey();
+      long start = System.currentTimeMillis();
+      long endTime = start + AdaptiveTimeouts.timeout(TimeoutPhase.REACH_BREAKPOINT, key);
+      long remaining = endTime - start;
+      while (!stopLatch.await(Math.min(remaining, TestThread.DEADLOCK_CHECK_TIME),
+          TimeUnit.MILLISECONDS)) {
+        Thread breakpointThread = getThread();
+        if (breakpointThread != null) {
+          DeadlockDetector.checkIfBlocked(breakpointThread);
+        }
+        remaining = endTime - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new TestTimeoutException("Did not reach " + this, getThread());
+        }
       }
+      AdaptiveTimeouts.record(TimeoutPhase.REACH_BREAKPOINT, key,
+          System.currentTimeMillis() - start);
     } catch (InterruptedException e) {
       throw new IllegalThreadStateException("Interrupted");
     }
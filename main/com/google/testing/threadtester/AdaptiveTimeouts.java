@@ -0,0 +1,140 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes the timeouts used when waiting for test threads. By default, every
+ * wait uses {@link Options#timeout}. A fixed timeout may be set for each
+ * {@link TimeoutPhase}, which is used instead. If adaptive timeouts are
+ * enabled, then the latency of each successful wait is recorded, keyed by the
+ * phase and by the position or thread being waited for, and the timeout for
+ * later waits with the same key is derived from the recorded latencies. This
+ * lets a wait that will never finish, such as a thread that has hung, fail
+ * quickly without lowering the timeout for tests that are genuinely slow.
+ * <p>
+ * The adaptive timeout is {@link #FACTOR} times the {@link #QUANTILE} of the
+ * last {@link #MAX_SAMPLES} latencies, but never less than {@link #FLOOR}, and
+ * never more than {@link Options#timeout}. The global timeout is used until
+ * {@link #MIN_SAMPLES} latencies have been recorded. Like {@link Options},
+ * this class is static, and is private to the class loader of a single test
+ * class, so the latencies of one test class do not affect another.
+ */
+class AdaptiveTimeouts {
+
+  /** The quantile of the recorded latencies used to compute a timeout. */
+  static final double QUANTILE = 0.999;
+
+  /** The multiple of the quantile used as the timeout. */
+  static final long FACTOR = 10;
+
+  /** The minimum adaptive timeout, in milliseconds. */
+  static final long FLOOR = 100;
+
+  /** The number of latencies that must be recorded before the timeout adapts. */
+  static final int MIN_SAMPLES = 20;
+
+  /** The maximum number of latencies kept for each key. */
+  static final int MAX_SAMPLES = 1000;
+
+  /** The latencies of the waits with a given phase and key. */
+  private static class Samples {
+    final long[] latencies = new long[MAX_SAMPLES];
+    int count;
+    long timeout = -1;
+
+    void add(long latency) {
+      latencies[count % MAX_SAMPLES] = latency;
+      count++;
+      timeout = -1;
+    }
+
+    /** Gets the adaptive timeout, computing it if a latency has been added. */
+    long getTimeout(long ceiling) {
+      if (timeout < 0) {
+        long[] sorted = Arrays.copyOf(latencies, Math.min(count, MAX_SAMPLES));
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(QUANTILE * sorted.length) - 1;
+        timeout = sorted[Math.max(index, 0)] * FACTOR;
+      }
+      return Math.min(Math.max(timeout, FLOOR), ceiling);
+    }
+  }
+
+  private static final Map<String, Samples> samples = new HashMap<String, Samples>();
+
+  private AdaptiveTimeouts() {
+    // Only static methods
+  }
+
+  /**
+   * Gets the timeout, in milliseconds, for a wait in the given phase.
+   *
+   * @param key identifies the position or thread being waited for
+   */
+  static long timeout(TimeoutPhase phase, String key) {
+    Long fixed = Options.phaseTimeout(phase);
+    if (fixed != null) {
+      return fixed;
+    }
+    long ceiling = Options.timeout();
+    if (!Options.adaptiveTimeouts()) {
+      return ceiling;
+    }
+    synchronized (samples) {
+      Samples forKey = samples.get(getName(phase, key));
+      if (forKey == null || forKey.count < MIN_SAMPLES) {
+        return ceiling;
+      }
+      return forKey.getTimeout(ceiling);
+    }
+  }
+
+  /**
+   * Records the latency of a wait that finished successfully. Does nothing
+   * unless adaptive timeouts are enabled.
+   */
+  static void record(TimeoutPhase phase, String key, long latency) {
+    if (!Options.adaptiveTimeouts()) {
+      return;
+    }
+    String name = getName(phase, key);
+    synchronized (samples) {
+      Samples forKey = samples.get(name);
+      if (forKey == null) {
+        forKey = new Samples();
+        samples.put(name, forKey);
+      }
+      forKey.add(latency);
+    }
+    Options.debugPrint("Latency %s = %d\n", name, latency);
+  }
+
+  /** Discards all of the recorded latencies. */
+  static void clear() {
+    synchronized (samples) {
+      samples.clear();
+    }
+  }
+
+  private static String getName(TimeoutPhase phase, String key) {
+    return phase + ":" + key;
+  }
+}
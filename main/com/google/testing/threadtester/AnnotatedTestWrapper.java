@@ -20,18 +20,22 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * Implementation of BaseTestWrapper designed for use with {@link
- * AnnotatedTestRunner}.
+ * AnnotatedTestRunner}. When the tests are sharded, each line of the method
+ * under test in each test case is a separate task.
  *
  * @author alasdair.mackintosh@gmail.com (Alasdair Mackintosh)
  */
-public class AnnotatedTestWrapper implements BaseTestWrapper {
+public class AnnotatedTestWrapper implements ShardedTestWrapper {
 
   /**
    * Represents a single test case. Contains the various methods that define the
@@ -43,17 +47,17 @@ public class AnnotatedTestWrapper implements BaseTestWrapper {
     final String name;
     final Method before;
     final Method main;
-    final Method secondary;
+    final List<Method> secondaries;
     final Method verification;
     final Method after;
     final Method target;
 
-    TestCase(String name, Method before, Method main, Method secondary, Method verification,
-        Method after, Method target) {
+    TestCase(String name, Method before, Method main, List<Method> secondaries,
+        Method verification, Method after, Method target) {
       this.name = name;
       this.before = before;
       this.main = main;
-      this.secondary = secondary;
+      this.secondaries = secondaries;
       this.verification = verification;
       this.after = after;
       this.target = target;
@@ -75,6 +79,26 @@ public class AnnotatedTestWrapper implements BaseTestWrapper {
     }
   }
 
+  /** A task that runs a single test case, stopping the main thread at a single line. */
+  private static class LineTask {
+    final TestCase testCase;
+    final int line;
+
+    LineTask(TestCase testCase, int line) {
+      this.testCase = testCase;
+      this.line = line;
+    }
+  }
+
+  /** The test class, when running tasks. */
+  private Class<?> taskTestClass;
+
+  /** The test cases, when running tasks. */
+  private TestCases taskTestCases;
+
+  /** Maps the name of each task onto the task, when running tasks. */
+  private Map<String, LineTask> tasks;
+
   /**
    * Gets an annotation from a method, and verifies that if the given annotation
    * type is non-null, then all of the other given annotation objects are null
@@ -115,7 +139,7 @@ public class AnnotatedTestWrapper implements BaseTestWrapper {
   // Visible for testing
   TestCases getTestCases(Class<?> testClass, List<Class <?>> instrumentedClasses) {
     Map<String, Method> mainMethods = new HashMap<String,Method>();
-    Map<String, Method> secondaryMethods = new HashMap<String,Method>();
+    Map<String, List<Method>> secondaryMethods = new HashMap<String, List<Method>>();
     Map<String, Method> verifyMethods = new HashMap<String,Method>();
     Method beforeMethod = null;
     Method beforeAllMethod = null;
@@ -168,7 +192,14 @@ public class AnnotatedTestWrapper implements BaseTestWrapper {
 
       ThreadedSecondary secondary = getUniqueAnnotation(ThreadedSecondary.class, method, main);
       if (secondary != null) {
-        addUniqueMethod(secondaryMethods, secondary.name(), method, secondary);
+        // A test case may have several secondary methods, which are run
+        // concurrently.
+        List<Method> secondariesForTest = secondaryMethods.get(secondary.name());
+        if (secondariesForTest == null) {
+          secondariesForTest = new ArrayList<Method>();
+          secondaryMethods.put(secondary.name(), secondariesForTest);
+        }
+        secondariesForTest.add(method);
       }
 
       ThreadedVerification verification =
@@ -223,11 +254,19 @@ public class AnnotatedTestWrapper implements BaseTestWrapper {
     //
     TestCases testCases = new TestCases(mainMethods.size(), beforeAllMethod, afterAllMethod);
     for (String name : mainMethods.keySet()) {
-      Method secondaryMethod = secondaryMethods.get(name);
-      if (secondaryMethod == null) {
+      List<Method> secondariesForTest = secondaryMethods.get(name);
+      if (secondariesForTest == null) {
         throw new IllegalArgumentException("No secondary method for test \"" + name + "\"");
       }
       secondaryMethods.remove(name);
+      // Class.getMethods() does not return the methods in any particular
+      // order, so sort the secondaries to make the tests repeatable.
+      Collections.sort(secondariesForTest, new Comparator<Method>() {
+        @Override
+        public int compare(Method m1, Method m2) {
+          return m1.getName().compareTo(m2.getName());
+        }
+      });
 
       // If we have a methodMap, use that to generate the set of methods for this
       // test. Otherwise use the explicit list. See comments above.
@@ -247,7 +286,7 @@ public class AnnotatedTestWrapper implements BaseTestWrapper {
       for (Method targetMethod : targetMethodsForTest) {
         // Create a new test case. The verification method is optional, so we
         // don't test for it.
-        testCases.add(new TestCase(name, beforeMethod, mainMethods.get(name), secondaryMethod,
+        testCases.add(new TestCase(name, beforeMethod, mainMethods.get(name), secondariesForTest,
                                    verifyMethods.get(name), afterMethod, targetMethod));
       }
     }
@@ -267,10 +306,7 @@ public class AnnotatedTestWrapper implements BaseTestWrapper {
   public void runTests(Class<?> testClass, List<String> instrumentedClassNames) throws Exception {
     Object mainObject = null;
 
-    List<Class<?>> instrumentedClasses = new ArrayList<Class<?>>(instrumentedClassNames.size());
-    for (String name : instrumentedClassNames) {
-      instrumentedClasses.add(Class.forName(name));
-    }
+    List<Class<?>> instrumentedClasses = loadClasses(instrumentedClassNames);
 
     // Get the test cases defined by the annotations
     TestCases testCases = getTestCases(testClass, instrumentedClasses);
@@ -287,16 +323,90 @@ public class AnnotatedTestWrapper implements BaseTestWrapper {
     }
   }
 
+  @Override
+  public List<String> getTasks(Class<?> testClass, List<String> instrumentedClassNames)
+      throws Exception {
+    TestCases testCases = getTestCases(testClass, loadClasses(instrumentedClassNames));
+    return new ArrayList<String>(getLineTasks(testCases).keySet());
+  }
+
+  @Override
+  public void startTasks(Class<?> testClass, List<String> instrumentedClassNames)
+      throws Exception {
+    taskTestClass = testClass;
+    taskTestCases = getTestCases(testClass, loadClasses(instrumentedClassNames));
+    tasks = getLineTasks(taskTestCases);
+    if (taskTestCases.beforeAllMethod != null) {
+      MethodCaller.invoke(taskTestCases.beforeAllMethod, null);
+    }
+  }
+
+  @Override
+  public void runTask(String task) {
+    LineTask lineTask = tasks.get(task);
+    if (lineTask == null) {
+      throw new IllegalArgumentException("Unknown task " + task);
+    }
+    MainTestCaseRunner main = new MainTestCaseRunner(taskTestClass, lineTask.testCase);
+    RunResult result =
+        InterleavedRunner.interleaveAtLine(main, createSecondaries(lineTask.testCase),
+            lineTask.line);
+    result.throwExceptionsIfAny();
+  }
+
+  @Override
+  public void finishTasks() {
+    if (taskTestCases.afterAllMethod != null) {
+      MethodCaller.invoke(taskTestCases.afterAllMethod, null);
+    }
+  }
+
+  private static List<Class<?>> loadClasses(List<String> names) throws ClassNotFoundException {
+    List<Class<?>> classes = new ArrayList<Class<?>>(names.size());
+    for (String name : names) {
+      classes.add(Class.forName(name));
+    }
+    return classes;
+  }
+
+  /**
+   * Creates a task for each line of the target method of each test case. The
+   * task names are built from the test case name, the target method and the
+   * line index, so that they are the same in every process.
+   */
+  private Map<String, LineTask> getLineTasks(TestCases testCases) {
+    Map<String, LineTask> lineTasks = new LinkedHashMap<String, LineTask>();
+    CallLoggerFactory factory = CallLoggerFactory.getFactory();
+    for (TestCase testCase : testCases) {
+      Method target = testCase.target;
+      int numLines =
+          factory.getClassInstrumentation(target.getDeclaringClass()).getMethod(target)
+              .getNumLines();
+      for (int line = 0; line < numLines; line++) {
+        lineTasks.put(testCase.name + " " + target + " " + line, new LineTask(testCase, line));
+      }
+    }
+    return lineTasks;
+  }
+
+  private List<SecondaryTestCaseRunner> createSecondaries(TestCase testCase) {
+    List<SecondaryTestCaseRunner> secondaries =
+        new ArrayList<SecondaryTestCaseRunner>(testCase.secondaries.size());
+    for (Method secondaryMethod : testCase.secondaries) {
+      secondaries.add(new SecondaryTestCaseRunner(secondaryMethod));
+    }
+    return secondaries;
+  }
+
   private void runTestCases(Class<?> testClass, List<TestCase> testCases) {
     Options.debugPrint("Running tests for class %s\n", testClass);
     for (TestCase testCase : testCases) {
-      Options.debugPrint("  test case %s has %s, %s, %s\n", testCase.name, testCase.main.getName(),
-          testCase.secondary.getName(),
+      Options.debugPrint("  test case %s has %s, %d secondaries, %s\n", testCase.name,
+          testCase.main.getName(), testCase.secondaries.size(),
           testCase.verification == null ? "null" : testCase.verification.getName());
       MainTestCaseRunner main =
         new MainTestCaseRunner(testClass, testCase);
-      SecondaryTestCaseRunner secondary = new SecondaryTestCaseRunner();
-      RunResult result = InterleavedRunner.interleave(main, secondary);
+      RunResult result = InterleavedRunner.interleave(main, createSecondaries(testCase));
       result.throwExceptionsIfAny();
     }
   }
@@ -331,6 +441,15 @@ public class AnnotatedTestWrapper implements BaseTestWrapper {
     /** The thread in which the initialize() method is called. */
     volatile Thread executionThread;
 
+    /**
+     * If the ThreadedBefore method takes a snapshot, the original test runner
+     * instance, which is copied for each interleaved test run.
+     */
+    private Object snapshotRunner;
+
+    /** The original object-under-test, if the ThreadedBefore method takes a snapshot. */
+    private Object snapshotTarget;
+
     MainTestCaseRunner(Class<?> testClass, TestCase testCase) {
       this.testRunnerClass = testClass;
       this.testCase = testCase;
@@ -338,6 +457,10 @@ public class AnnotatedTestWrapper implements BaseTestWrapper {
 
     @Override
     public void initialize() {
+      if (snapshotRunner != null) {
+        copySnapshot();
+        return;
+      }
 
       // This method is invoked at the beginning of every test case. Create a
       // new instance of the test runner, and invoke its 'before' method. We
@@ -361,6 +484,22 @@ public class AnnotatedTestWrapper implements BaseTestWrapper {
             "Neither @ThreadedBefore nor @ThreadedPrepare created a new test object of class "
             + getClassUnderTest().getName());
       }
+      if (testCase.before.getAnnotation(ThreadedBefore.class).snapshot()) {
+        snapshotRunner = testRunner;
+        snapshotTarget = targetObject;
+        copySnapshot();
+      }
+    }
+
+    /**
+     * Copies the original test runner and object-under-test. They are copied
+     * with the same copier, so that the copied runner refers to the copied
+     * object.
+     */
+    private void copySnapshot() {
+      ObjectCopier copier = new ObjectCopier();
+      testRunner = copier.copy(snapshotRunner);
+      targetObject = copier.copy(snapshotTarget);
     }
 
     @Override
@@ -419,18 +558,21 @@ public class AnnotatedTestWrapper implements BaseTestWrapper {
   }
 
   private class SecondaryTestCaseRunner extends SecondaryRunnableImpl<Object, MainTestCaseRunner> {
-    TestCase testCase;
+    final Method method;
     Object testRunner;
 
+    SecondaryTestCaseRunner(Method method) {
+      this.method = method;
+    }
+
     @Override
     public void initialize(MainTestCaseRunner main) {
-      this.testCase = main.testCase;
       this.testRunner = main.testRunner;
     }
 
     @Override
     public void run() {
-      MethodCaller.invoke(testCase.secondary, testRunner);
+      MethodCaller.invoke(method, testRunner);
     }
   }
 }
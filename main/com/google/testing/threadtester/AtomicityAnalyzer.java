@@ -0,0 +1,419 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds atomicity violations in a set of threads. An atomicity violation
+ * occurs when a thread makes two consecutive accesses to a shared location,
+ * such as reading a field and then writing it, and another thread's access to
+ * the same location is interleaved between them in a way that could not
+ * happen if the two accesses were atomic. Of the eight combinations of reads
+ * and writes, four are unserializable: read-write-read, write-write-read,
+ * read-write-write and write-read-write, where the middle access is the
+ * interleaved one. See Lu, Tucek, Qin and Zhou, "AVIO: Detecting Atomicity
+ * Violations via Access Interleaving Invariants" (ASPLOS 2006).
+ * <p>
+ * The analyzer runs the main and secondary runnables one after the other,
+ * and records every access that they make to a field, or to a collection or
+ * map in java.util or java.util.concurrent. (The whole of a collection is
+ * treated as a single location, and each method call either reads or writes
+ * it.) It then reports each pair of consecutive accesses by one thread, and
+ * access by another thread, that would form an unserializable pattern if they
+ * were interleaved. An interleaving is not possible if the two consecutive
+ * accesses are made while continuously holding a monitor or lock that is also
+ * held by the other thread's access, so these are not reported.
+ * <p>
+ * A thread may take a different path depending on whether the other threads
+ * have already run. (For example, only the first thread to call a
+ * check-then-act method will perform the act.) The runnables are therefore run
+ * twice, once with the main runnable first, and once with the main runnable
+ * last, and the accesses made in one run are also compared with the accesses
+ * made by the other threads in the other run. Different runs use different
+ * objects, so accesses from different runs are matched by the path of fields
+ * that leads to the location from the runnables and the main object at the end
+ * of each run, such as "mainObject.users" for a collection, or
+ * "mainObject.count" for a field. (See {@link ObjectPaths}.) A location that
+ * is not reachable at the end of its run is only matched within that run.
+ * Static fields are matched by name. Monitors and locks are matched by class.
+ * <p>
+ * The violations found in the main runnable can be explored using {@link
+ * InterleavedRunner#interleaveAtAtomicityViolations}, which stops the main
+ * runnable between the two consecutive accesses.
+ */
+public class AtomicityAnalyzer {
+
+  /** A single access to a shared location. */
+  private static class Access {
+    final int thread;
+    final boolean write;
+    final String position;
+    final int line;
+
+    /** The monitors and locks that were held, mapped onto their acquisition ids. */
+    final Map<Object, Integer> held;
+
+    Access(int thread, boolean write, String position, int line, Map<Object, Integer> held) {
+      this.thread = thread;
+      this.write = write;
+      this.position = position;
+      this.line = line;
+      this.held = held;
+    }
+  }
+
+  /** The accesses made to a single location. */
+  private static class Location {
+    final String description;
+
+    /** The collection, or the owner of the field, or null for a static field. */
+    final Object target;
+
+    final List<Access> accesses = new ArrayList<Access>();
+
+    /**
+     * Identifies the location in other runs, or null if it can only be matched
+     * within its own run. Set by {@link Run#setKeys} at the end of the run.
+     */
+    String key;
+
+    Location(String description, Object target) {
+      this.description = description;
+      this.target = target;
+    }
+  }
+
+  /** The accesses made in one run of the runnables. */
+  private static class Run {
+    /** The threads, indexed by the index of their runnable. */
+    final Map<Integer, Thread> threads = new HashMap<Integer, Thread>();
+
+    /** The fields that have been accessed, indexed by owner and then by name. */
+    final Map<Object, Map<String, Location>> fields =
+        new IdentityHashMap<Object, Map<String, Location>>();
+
+    /** The static fields that have been accessed, indexed by name. */
+    final Map<String, Location> staticFields = new HashMap<String, Location>();
+
+    /** The collections and maps that have been accessed. */
+    final Map<Object, Location> collections = new IdentityHashMap<Object, Location>();
+
+    /** All of the locations, in the order in which they were first accessed. */
+    final List<Location> locations = new ArrayList<Location>();
+
+    /** The id of the next acquisition of a monitor or lock. */
+    int nextAcquisition = 1;
+
+    Location getFieldLocation(Object owner, String field) {
+      Map<String, Location> ownerFields;
+      if (owner == null) {
+        ownerFields = staticFields;
+      } else {
+        ownerFields = fields.get(owner);
+        if (ownerFields == null) {
+          ownerFields = new HashMap<String, Location>();
+          fields.put(owner, ownerFields);
+        }
+      }
+      Location location = ownerFields.get(field);
+      if (location == null) {
+        location = new Location(field, owner);
+        ownerFields.put(field, location);
+        locations.add(location);
+      }
+      return location;
+    }
+
+    Location getCollectionLocation(Object collection) {
+      Location location = collections.get(collection);
+      if (location == null) {
+        location = new Location(collection.getClass().getName(), collection);
+        collections.put(collection, location);
+        locations.add(location);
+      }
+      return location;
+    }
+
+    /**
+     * Sets the key of each location, using the paths to the locations from the
+     * given roots.
+     */
+    void setKeys(Map<String, ?> roots) {
+      ObjectPaths paths = new ObjectPaths(roots);
+      for (Location location : locations) {
+        if (location.target == null) {
+          location.key = "static " + location.description;
+        } else {
+          String path = paths.getPath(location.target);
+          if (path != null) {
+            location.key = collections.get(location.target) == location ?
+                path + " " + location.description : path + "." + location.description;
+          }
+        }
+      }
+    }
+  }
+
+  /** Records the accesses made by a single thread. */
+  private static class AccessRecorder extends ProbeListenerImpl {
+    private final Run run;
+    private final int thread;
+
+    /**
+     * The monitors and locks held by the thread, mapped onto an id that
+     * identifies the acquisition. A reentrant acquisition keeps the same id.
+     */
+    private final Map<Object, Integer> held = new IdentityHashMap<Object, Integer>();
+
+    /** The number of times that each held monitor or lock has been acquired. */
+    private final Map<Object, Integer> counts = new IdentityHashMap<Object, Integer>();
+
+    AccessRecorder(Run run, int thread) {
+      this.run = run;
+      this.thread = thread;
+    }
+
+    @Override
+    public void fieldRead(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      record(run.getFieldLocation(owner, field), false, object, line);
+    }
+
+    @Override
+    public void fieldWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      record(run.getFieldLocation(owner, field), true, object, line);
+    }
+
+    @Override
+    public void collectionAccess(ObjectInstrumentationImpl<?> object, Object collection,
+        boolean write, int line) {
+      record(run.getCollectionLocation(collection), write, object, line);
+    }
+
+    @Override
+    public void monitorAcquired(ObjectInstrumentationImpl<?> object, Object monitor) {
+      acquire(monitor);
+    }
+
+    @Override
+    public void monitorExit(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      release(monitor);
+    }
+
+    @Override
+    public void lockAcquired(ObjectInstrumentationImpl<?> object, Object lock) {
+      acquire(lock);
+    }
+
+    @Override
+    public void lockExit(ObjectInstrumentationImpl<?> object, Object lock, int line) {
+      release(lock);
+    }
+
+    private void acquire(Object lock) {
+      Integer count = counts.get(lock);
+      if (count == null) {
+        held.put(lock, run.nextAcquisition++);
+        counts.put(lock, 1);
+      } else {
+        counts.put(lock, count + 1);
+      }
+    }
+
+    private void release(Object lock) {
+      Integer count = counts.get(lock);
+      if (count == null) {
+        return;
+      } else if (count == 1) {
+        counts.remove(lock);
+        held.remove(lock);
+      } else {
+        counts.put(lock, count - 1);
+      }
+    }
+
+    private void record(Location location, boolean write, ObjectInstrumentationImpl<?> object,
+        int line) {
+      Map<Object, Integer> heldCopy = held.isEmpty() ? Collections.<Object, Integer>emptyMap() :
+          new IdentityHashMap<Object, Integer>(held);
+      location.accesses.add(
+          new Access(thread, write, Operation.getLocation(object, line), line, heldCopy));
+    }
+  }
+
+  /**
+   * Runs the given main and secondary runnables, and analyses their accesses
+   * to shared locations.
+   *
+   * @return an AtomicityResult containing any exceptions thrown by the
+   *         runnables, and the atomicity violations
+   */
+  public <M extends MainRunnable<T>, T> AtomicityResult analyze(
+      M main, SecondaryRunnable<T, M> secondary) {
+    return analyze(main, Collections.singletonList(secondary));
+  }
+
+  /**
+   * Runs the given main runnable and any number of secondary runnables, and
+   * analyses their accesses to shared locations. The runnables are run twice.
+   * Each time, they are initialized, then run one after the other, each in its
+   * own thread. If none of them throws an exception, they are then terminated.
+   * Only the accesses made by the runnables' own threads are analysed.
+   *
+   * @return an AtomicityResult containing any exceptions thrown by the
+   *         runnables, and the atomicity violations. If more than one
+   *         secondary runnable throws an exception, the result contains the
+   *         first one. If the first run fails, the second one is not
+   *         performed.
+   */
+  public <M extends MainRunnable<T>, T> AtomicityResult analyze(
+      M main, List<? extends SecondaryRunnable<T, M>> secondaries) {
+    List<Run> runs = new ArrayList<Run>();
+    RunResult result = null;
+    for (boolean mainFirst : new boolean[] {true, false}) {
+      final Run run = new Run();
+      runs.add(run);
+      result = SequentialRunner.run(main, secondaries, "AtomicityAnalyzer",
+          new SequentialRunner.ListenerFactory() {
+            @Override
+            public ProbeListener createListener(Thread thread, int index) {
+              run.threads.put(index, thread);
+              return new AccessRecorder(run, index);
+            }
+          }, mainFirst);
+      if (result.hadException()) {
+        break;
+      }
+      Map<String, Object> roots = new LinkedHashMap<String, Object>();
+      roots.put("mainObject", main.getMainObject());
+      roots.put("main", main);
+      for (int i = 0; i < secondaries.size(); i++) {
+        roots.put("secondary" + i, secondaries.get(i));
+      }
+      run.setKeys(roots);
+    }
+    return new AtomicityResult(result.getMainException(), result.getSecondaryException(),
+        findViolations(runs));
+  }
+
+  /**
+   * Finds the unserializable patterns. For each location, each pair of
+   * consecutive accesses by one thread is checked against each access made by
+   * the other threads, both in the same run, and in the other runs.
+   */
+  private static List<AtomicityViolation> findViolations(List<Run> runs) {
+    List<AtomicityViolation> result = new ArrayList<AtomicityViolation>();
+    Set<String> reported = new HashSet<String>();
+    for (Run run : runs) {
+      for (Location location : run.locations) {
+        List<Access> accesses = location.accesses;
+        for (int i = 0; i < accesses.size(); i++) {
+          Access first = accesses.get(i);
+          Access second = null;
+          for (int j = i + 1; j < accesses.size() && second == null; j++) {
+            if (accesses.get(j).thread == first.thread) {
+              second = accesses.get(j);
+            }
+          }
+          if (second == null) {
+            continue;
+          }
+          for (Run remoteRun : runs) {
+            for (Location remoteLocation : remoteRun.locations) {
+              if (remoteRun == run ? remoteLocation != location :
+                  location.key == null || !location.key.equals(remoteLocation.key)) {
+                continue;
+              }
+              for (Access remote : remoteLocation.accesses) {
+                if (remote.thread == first.thread || !isUnserializable(first, remote, second) ||
+                    isProtected(first, second, remote, remoteRun == run)) {
+                  continue;
+                }
+                String pattern = getPattern(first, remote, second);
+                String key = location.description + " " + pattern + " " + first.position + " " +
+                    second.position + " " + remote.position;
+                if (reported.add(key)) {
+                  AtomicityViolation violation = new AtomicityViolation(location.description,
+                      pattern, run.threads.get(first.thread), first.thread, first.position,
+                      first.line, second.position, second.line,
+                      remoteRun.threads.get(remote.thread), remote.position);
+                  Options.debugPrint("%s\n", violation);
+                  result.add(violation);
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if interleaving the remote access between the two local
+   * accesses gives a result that is not equivalent to any serial order.
+   */
+  private static boolean isUnserializable(Access first, Access remote, Access second) {
+    if (remote.write) {
+      return !(first.write && second.write);
+    } else {
+      return first.write && second.write;
+    }
+  }
+
+  /**
+   * Returns true if the two local accesses were made while continuously holding
+   * a monitor or lock that is also held by the remote access. If the remote
+   * access was made in a different run, then the monitors and locks are
+   * compared by class.
+   */
+  private static boolean isProtected(Access first, Access second, Access remote,
+      boolean sameRun) {
+    for (Map.Entry<Object, Integer> entry : first.held.entrySet()) {
+      Object lock = entry.getKey();
+      if (!entry.getValue().equals(second.held.get(lock))) {
+        continue;
+      }
+      if (sameRun) {
+        if (remote.held.containsKey(lock)) {
+          return true;
+        }
+      } else {
+        for (Object remoteLock : remote.held.keySet()) {
+          if (remoteLock.getClass() == lock.getClass()) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static String getPattern(Access first, Access remote, Access second) {
+    return (first.write ? "W" : "R") + (remote.write ? "W" : "R") + (second.write ? "W" : "R");
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents the result of running an {@link AtomicityAnalyzer}. As well as
+ * any exceptions thrown by the runnables, the result contains the atomicity
+ * violations found by the analysis.
+ */
+public class AtomicityResult extends RunResult {
+  private final List<AtomicityViolation> violations;
+
+  AtomicityResult(Throwable main, Throwable secondary, List<AtomicityViolation> violations) {
+    super(main, secondary);
+    this.violations = Collections.unmodifiableList(new ArrayList<AtomicityViolation>(violations));
+  }
+
+  /** Returns true if the analysis found any atomicity violations. */
+  public boolean hadViolation() {
+    return !violations.isEmpty();
+  }
+
+  /**
+   * Gets the atomicity violations. Each combination of pattern and positions is
+   * only reported once.
+   */
+  public List<AtomicityViolation> getViolations() {
+    return violations;
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + ", violations=" + violations;
+  }
+}
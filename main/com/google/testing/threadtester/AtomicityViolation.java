@@ -0,0 +1,107 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+/**
+ * Describes an atomicity violation found by an {@link AtomicityAnalyzer}. A
+ * thread makes two consecutive accesses to a shared location, and an access
+ * made by another thread could be interleaved between them, with a result
+ * that could not be produced by running the accesses in either serial order.
+ * For example, a thread reads a field, and then writes it, and another thread
+ * writes the field in between. The positions are given as "ClassName:line".
+ */
+public class AtomicityViolation {
+  private final String location;
+  private final String pattern;
+  private final Thread thread;
+  private final String firstPosition;
+  private final String secondPosition;
+  private final Thread remoteThread;
+  private final String remotePosition;
+
+  /** The index of the thread making the local accesses. The main thread is 0. */
+  final int threadIndex;
+
+  /** The lines of the local accesses. */
+  final int firstLine;
+  final int secondLine;
+
+  AtomicityViolation(String location, String pattern, Thread thread, int threadIndex,
+      String firstPosition, int firstLine, String secondPosition, int secondLine,
+      Thread remoteThread, String remotePosition) {
+    this.location = location;
+    this.pattern = pattern;
+    this.thread = thread;
+    this.threadIndex = threadIndex;
+    this.firstPosition = firstPosition;
+    this.firstLine = firstLine;
+    this.secondPosition = secondPosition;
+    this.secondLine = secondLine;
+    this.remoteThread = remoteThread;
+    this.remotePosition = remotePosition;
+  }
+
+  /**
+   * Gets a description of the shared location. For a field, this is the name
+   * of the field, qualified with the name of its declaring class. For a
+   * collection or map, this is the name of its class.
+   */
+  public String getLocation() {
+    return location;
+  }
+
+  /**
+   * Gets the kinds of the three accesses, in the order in which they would be
+   * interleaved, as a string of 'R' and 'W' characters. The unserializable
+   * patterns are "RWR", "WWR", "RWW" and "WRW".
+   */
+  public String getPattern() {
+    return pattern;
+  }
+
+  /** Gets the thread that made the two consecutive accesses. */
+  public Thread getThread() {
+    return thread;
+  }
+
+  /** Gets the position of the first of the consecutive accesses. */
+  public String getFirstPosition() {
+    return firstPosition;
+  }
+
+  /** Gets the position of the second of the consecutive accesses. */
+  public String getSecondPosition() {
+    return secondPosition;
+  }
+
+  /** Gets the thread that made the interleaved access. */
+  public Thread getRemoteThread() {
+    return remoteThread;
+  }
+
+  /** Gets the position of the interleaved access. */
+  public String getRemotePosition() {
+    return remotePosition;
+  }
+
+  @Override
+  public String toString() {
+    return pattern + " on " + location + ": " + firstPosition + " and " + secondPosition +
+        " in " + thread.getName() + ", interleaved with " + remotePosition + " in " +
+        remoteThread.getName();
+  }
+}
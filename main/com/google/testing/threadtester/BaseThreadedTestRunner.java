@@ -20,8 +20,11 @@ import com.google.testing.instrumentation.InstrumentedClassLoader;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -77,10 +80,25 @@ public abstract class BaseThreadedTestRunner {
   /** The name of the setMethodOption method in Options */
   private static final String SET_METHOD_OPTION = "setMethodOption";
 
+  /** The name of the setPhaseTimeout method in Options */
+  private static final String SET_PHASE_TIMEOUT = "setPhaseTimeout";
+
+  /** The name of the setAdaptiveTimeouts method in Options */
+  private static final String SET_ADAPTIVE_TIMEOUTS = "setAdaptiveTimeouts";
+
+  /** The names of the methods in ShardedTestWrapper that are invoked when sharding. */
+  private static final String GET_TASKS = "getTasks";
+  private static final String START_TASKS = "startTasks";
+
   private boolean debug = Options.DEFAULT_DEBUG;
   private long timeout = Options.DEFAULT_TIMEOUT;
   private MethodOption methodOption = Options.DEFAULT_METHOD_OPTION;
   private Set<String> methodNames;
+  private boolean adaptiveTimeouts;
+  private Map<TimeoutPhase, Long> phaseTimeouts =
+      new EnumMap<TimeoutPhase, Long>(TimeoutPhase.class);
+  private int numShards = 1;
+  private boolean storeBuffers;
 
   public BaseThreadedTestRunner() {
     // Nothing
@@ -104,6 +122,33 @@ public abstract class BaseThreadedTestRunner {
     this.timeout = newTimeout;
   }
 
+  /**
+   * Sets a fixed timeout (in milliseconds) for one phase of each test, such
+   * as waiting for a thread to reach a break point. This timeout is used
+   * instead of the value set by {@link #setTimeout(long)}, and is not adapted.
+   * (See {@link #setAdaptiveTimeouts}.)
+   */
+  public void setTimeout(TimeoutPhase phase, long newTimeout) {
+    if (newTimeout <= 0) {
+      throw new IllegalArgumentException("Timeout must be positive");
+    }
+    phaseTimeouts.put(phase, newTimeout);
+  }
+
+  /**
+   * Sets the adaptive timeouts mode. (The default is false.) If true, then the
+   * time taken by each wait is recorded, for each break point position and
+   * each thread, and later waits for the same position or thread time out
+   * once they have taken much longer than any recorded wait. This lets a test
+   * that has hung fail quickly, without lowering the timeout for slow tests.
+   * The adaptive timeout is never longer than the value set by {@link
+   * #setTimeout(long)}, which is used until enough waits have been recorded.
+   * Phases that have their own timeout are not adapted.
+   */
+  public void setAdaptiveTimeouts(boolean newAdaptiveTimeouts) {
+    this.adaptiveTimeouts = newAdaptiveTimeouts;
+  }
+
   /**
    * Sets the option that determine which methods are run. Iff the option is {@link
    * MethodOption#LISTED_METHODS}, newMethodNames must be a non-null non-empty set.
@@ -128,6 +173,43 @@ public abstract class BaseThreadedTestRunner {
     methodOption = option;
   }
 
+  /**
+   * Sets whether the instrumented classes can simulate a weak {@link
+   * MemoryModel}. (The default is false.) If true, then the classes are
+   * instrumented so that a {@link ScheduleExplorer} can hold their writes to
+   * non-volatile fields in store buffers. This slows down every field access,
+   * so it should only be set by tests that call {@link
+   * ScheduleExplorer#setMemoryModel}. See {@link
+   * TestInstrumenter#setStoreBuffers}.
+   */
+  public void setStoreBuffers(boolean newStoreBuffers) {
+    this.storeBuffers = newStoreBuffers;
+  }
+
+  /**
+   * Sets the number of worker processes used to run the tests. (The default is
+   * 1.) If greater than 1, the tests are split into independent tasks, such as
+   * a single test method, or a single interleaving of an annotated test case.
+   * {@link #runTests} then starts the given number of new JVMs, using the
+   * class path of the current JVM, and hands the tasks out to them one at a
+   * time as they become free. Output from the workers is copied to this
+   * process. If a task fails, the remaining workers are stopped, and the
+   * failure is thrown by {@link #runTests}.
+   * <p>
+   * Each worker process has its own instrumented classes, and its own static
+   * state, so the workers do not interfere with each other. Static methods
+   * that are run before and after all of the tests, such as those tagged with
+   * {@link ThreadedBeforeAll}, are run once in each worker, and only see the
+   * tasks run by that worker. The runner class must have a public no-arg
+   * constructor, so that the workers can create an instance of it.
+   */
+  public void setShards(int newNumShards) {
+    if (newNumShards <= 0) {
+      throw new IllegalArgumentException("Number of shards must be positive");
+    }
+    this.numShards = newNumShards;
+  }
+
   /**
    * Returns true when called within a multithreaded test that has been executed
    * via a subclass of this class. Returns false otherwise.
@@ -196,18 +278,108 @@ public abstract class BaseThreadedTestRunner {
     runTests(tester.getName(), targetNames);
   }
 
-  @SuppressWarnings("unchecked")
   private void runTests(String mainName, List<String> targets) {
+    if (numShards > 1) {
+      new ShardCoordinator(this, numShards).runTests(mainName, targets);
+      return;
+    }
+    loadWrapper(mainName, targets).invoke(RUN_TESTS, targets);
+  }
+
+  /**
+   * Gets the names of the tasks that make up the given tests, when they are
+   * sharded. See {@link ShardedTestWrapper#getTasks}.
+   */
+  @SuppressWarnings("unchecked")
+  List<String> getTasks(String mainName, List<String> targets) {
+    return (List<String>) loadWrapper(mainName, targets).invoke(GET_TASKS, targets);
+  }
+
+  /**
+   * Loads a new wrapper, and prepares it to run the tasks of the given tests.
+   * Returns the wrapper, which implements {@link ShardedTestWrapper} in the
+   * test class loader.
+   */
+  Object startTasks(String mainName, List<String> targets) {
+    LoadedWrapper loaded = loadWrapper(mainName, targets);
+    loaded.invoke(START_TASKS, targets);
+    return loaded.wrapper;
+  }
+
+  /**
+   * Creates a new instrumenting class loader, and uses it to load the test
+   * class, and to create a new instance of the wrapper class.
+   */
+  private LoadedWrapper loadWrapper(String mainName, List<String> targets) {
     TestInstrumenter instrumenter = new TestInstrumenter(targets);
+    instrumenter.setStoreBuffers(storeBuffers);
     InstrumentedClassLoader loader = new InstrumentedClassLoader(instrumenter);
     setOptions(loader);
     String wrapperName = getWrapperName();
     Class<?> wrapperClass = loader.getExpectedClass(wrapperName);
     Class<?> testClass = loader.getExpectedClass(mainName);
-    Object wrapper = MethodCaller.newInstance(wrapperClass);
-    Method runTests = MethodCaller.getDeclaredMethod(wrapperClass, RUN_TESTS,
-        Class.class, List.class);
-    MethodCaller.invoke(runTests, wrapper, testClass, targets);
+    return new LoadedWrapper(MethodCaller.newInstance(wrapperClass), testClass);
+  }
+
+  /** A wrapper and a test class, loaded by an instrumenting class loader. */
+  private static class LoadedWrapper {
+    final Object wrapper;
+    final Class<?> testClass;
+
+    LoadedWrapper(Object wrapper, Class<?> testClass) {
+      this.wrapper = wrapper;
+      this.testClass = testClass;
+    }
+
+    /** Invokes the named wrapper method with the test class and the targets. */
+    Object invoke(String methodName, List<String> targets) {
+      Method method = MethodCaller.getDeclaredMethod(wrapper.getClass(), methodName,
+          Class.class, List.class);
+      return MethodCaller.invoke(method, wrapper, testClass, targets);
+    }
+  }
+
+  /**
+   * Gets the arguments that a worker process passes to {@link
+   * #setWorkerOptions} in order to use the same options as this runner.
+   */
+  List<String> getWorkerOptions() {
+    StringBuilder names = new StringBuilder();
+    if (methodNames != null) {
+      for (String name : methodNames) {
+        names.append(names.length() == 0 ? "" : ",").append(name);
+      }
+    }
+    StringBuilder timeouts = new StringBuilder();
+    for (Map.Entry<TimeoutPhase, Long> entry : phaseTimeouts.entrySet()) {
+      timeouts.append(timeouts.length() == 0 ? "" : ",").append(entry.getKey().value)
+          .append("=").append(entry.getValue());
+    }
+    return Arrays.asList(String.valueOf(debug), String.valueOf(timeout),
+        String.valueOf(methodOption.value), names.toString(), String.valueOf(adaptiveTimeouts),
+        timeouts.toString(), String.valueOf(storeBuffers));
+  }
+
+  /**
+   * Sets the options of a runner in a worker process. See {@link
+   * #getWorkerOptions}.
+   */
+  void setWorkerOptions(List<String> options) {
+    setDebug(Boolean.parseBoolean(options.get(0)));
+    setTimeout(Long.parseLong(options.get(1)));
+    Set<String> names = null;
+    if (options.get(3).length() > 0) {
+      names = new HashSet<String>(Arrays.asList(options.get(3).split(",")));
+    }
+    setMethodOption(MethodOption.fromInt(Integer.parseInt(options.get(2))), names);
+    setAdaptiveTimeouts(Boolean.parseBoolean(options.get(4)));
+    if (options.get(5).length() > 0) {
+      for (String phaseTimeout : options.get(5).split(",")) {
+        String[] parts = phaseTimeout.split("=");
+        setTimeout(TimeoutPhase.fromInt(Integer.parseInt(parts[0])), Long.parseLong(parts[1]));
+      }
+    }
+    setStoreBuffers(Boolean.parseBoolean(options.get(6)));
   }
 
   /**
@@ -215,13 +387,18 @@ public abstract class BaseThreadedTestRunner {
    * loader.
    */
   private void setOptions(InstrumentedClassLoader loader) {
-    if (debug != Options.DEFAULT_DEBUG || timeout != Options.DEFAULT_TIMEOUT) {
+    boolean setTimeouts = adaptiveTimeouts || !phaseTimeouts.isEmpty();
+    if (debug != Options.DEFAULT_DEBUG || timeout != Options.DEFAULT_TIMEOUT || setTimeouts) {
       Class<?> optionsClass = loader.getExpectedClass(Options.class.getName());
       Class<?> methodOptionClass = loader.getExpectedClass(MethodOption.class.getName());
       Method setDebug = MethodCaller.getDeclaredMethod(optionsClass, SET_DEBUG, Boolean.TYPE);
       Method setTimeout = MethodCaller.getDeclaredMethod(optionsClass, SET_TIMEOUT, Long.TYPE);
       Method setMethodOption = MethodCaller.getDeclaredMethod(
           optionsClass, SET_METHOD_OPTION, Integer.TYPE, Set.class);
+      Method setAdaptiveTimeouts =
+          MethodCaller.getDeclaredMethod(optionsClass, SET_ADAPTIVE_TIMEOUTS, Boolean.TYPE);
+      Method setPhaseTimeout = MethodCaller.getDeclaredMethod(
+          optionsClass, SET_PHASE_TIMEOUT, Integer.TYPE, Long.TYPE);
 
       // Need to make the methods accessible. Although Options is in our
       // package, this is an instance of the Options class in a different
@@ -229,9 +406,15 @@ public abstract class BaseThreadedTestRunner {
       setDebug.setAccessible(true);
       setTimeout.setAccessible(true);
       setMethodOption.setAccessible(true);
+      setAdaptiveTimeouts.setAccessible(true);
+      setPhaseTimeout.setAccessible(true);
       MethodCaller.invoke(setDebug, null, Boolean.valueOf(debug));
       MethodCaller.invoke(setTimeout, null, Long.valueOf(timeout));
       MethodCaller.invoke(setMethodOption, null, methodOption.value, methodNames);
+      MethodCaller.invoke(setAdaptiveTimeouts, null, Boolean.valueOf(adaptiveTimeouts));
+      for (Map.Entry<TimeoutPhase, Long> entry : phaseTimeouts.entrySet()) {
+        MethodCaller.invoke(setPhaseTimeout, null, entry.getKey().value, entry.getValue());
+      }
     }
   }
 
@@ -35,6 +35,12 @@ import java.lang.reflect.Method;
  */
 public interface CallLogger {
 
+  /**
+   * Returned by {@link #loadField} when the current thread has no buffered
+   * value for the field.
+   */
+  public static final Object NOT_BUFFERED = new Object();
+
   public void start(Method method);
 
   public void end(Method method);
@@ -44,4 +50,137 @@ public interface CallLogger {
   public void endCall(Method source, int line, Method target);
 
   public void atLine(int line);
+
+  /**
+   * Invoked immediately before the current thread attempts to acquire the
+   * monitor of the given object. This is called both for synchronized blocks
+   * and for synchronized methods. Note that the thread may block after this
+   * call, if the monitor is held by another thread.
+   */
+  public void monitorEnter(Object monitor, int line);
+
+  /**
+   * Invoked immediately after the current thread has acquired the monitor
+   * passed to the most recent call to {@link #monitorEnter}.
+   */
+  public void monitorAcquired();
+
+  /**
+   * Invoked immediately before the current thread releases the monitor of the
+   * given object.
+   */
+  public void monitorExit(Object monitor, int line);
+
+  /**
+   * Invoked immediately before the current thread reads the named field. The
+   * field name is qualified with the name of the declaring class. The owner is
+   * the object containing the field, or null if the field is static.
+   */
+  public void fieldRead(Object owner, String field, int line);
+
+  /**
+   * Invoked immediately before the current thread writes to the named
+   * field. The arguments are the same as for {@link #fieldRead}.
+   */
+  public void fieldWrite(Object owner, String field, int line);
+
+  /**
+   * Invoked immediately before the current thread reads the named volatile
+   * field. This is called instead of {@link #fieldRead}. The arguments are the
+   * same as for {@link #fieldRead}.
+   */
+  public void volatileRead(Object owner, String field, int line);
+
+  /**
+   * Invoked immediately after the current thread has read the named volatile
+   * field. The arguments are the same as for {@link #fieldRead}.
+   */
+  public void volatileReadDone(Object owner, String field, int line);
+
+  /**
+   * Invoked immediately before the current thread writes to the named
+   * volatile field. This is called instead of {@link #fieldWrite}. The
+   * arguments are the same as for {@link #fieldRead}.
+   */
+  public void volatileWrite(Object owner, String field, int line);
+
+  /**
+   * Invoked instead of {@link Object#wait(long, int)}. Waits on the given
+   * monitor, which must be held by the current thread. The arguments are the
+   * same as for {@link Object#wait(long, int)}, with a timeout of zero for
+   * {@link Object#wait()}.
+   */
+  public void monitorWait(Object monitor, long timeout, int nanos, int line)
+      throws InterruptedException;
+
+  /**
+   * Invoked immediately before the current thread calls {@link Object#notify}
+   * or {@link Object#notifyAll} on the given monitor.
+   */
+  public void monitorNotify(Object monitor, boolean all, int line);
+
+  /**
+   * Invoked immediately before the current thread calls {@link
+   * java.util.concurrent.locks.Lock#lock}, {@link
+   * java.util.concurrent.locks.Lock#lockInterruptibly} or {@link
+   * java.util.concurrent.locks.Lock#tryLock} on the given lock.
+   */
+  public void lockEnter(Object lock, boolean tryLock, int line);
+
+  /**
+   * Invoked immediately after the current thread has acquired the lock
+   * passed to the most recent call to {@link #lockEnter}. The line is the
+   * same as the line passed to lockEnter.
+   */
+  public void lockAcquired(Object lock, int line);
+
+  /**
+   * Invoked immediately before the current thread calls {@link
+   * java.util.concurrent.locks.Lock#unlock} on the given lock.
+   */
+  public void lockExit(Object lock, int line);
+
+  /**
+   * Invoked immediately before the current thread calls a method that makes
+   * its earlier actions visible to other threads that later call {@link
+   * #syncAcquire} on the same target. This is called before {@link
+   * Thread#start}, with the thread being started as the target, and before
+   * calls to instance methods of classes in java.util.concurrent and its
+   * subpackages.
+   */
+  public void syncRelease(Object target, int line);
+
+  /**
+   * Invoked immediately after the current thread has called a method that
+   * makes the actions of other threads visible to it. This is called after
+   * {@link Thread#join}, with the joined thread as the target, and after calls
+   * to instance methods of classes in java.util.concurrent and its
+   * subpackages.
+   */
+  public void syncAcquire(Object target, int line);
+
+  /**
+   * Invoked immediately before the current thread calls an instance method of
+   * a {@link java.util.Collection} or {@link java.util.Map} class in java.util
+   * or java.util.concurrent. The call is a write if the method may modify the
+   * collection, and a read otherwise.
+   */
+  public void collectionAccess(Object collection, boolean write, int line);
+
+  /**
+   * Invoked after {@link #fieldWrite} for a non-volatile field, in place of
+   * the write itself. If this returns true, the value has been placed in the
+   * current thread's store buffer, and the field is not written. Otherwise the
+   * field is written as normal. Primitive values are boxed. The other
+   * arguments are the same as for {@link #fieldRead}.
+   */
+  public boolean storeField(Object owner, String field, Object value, int line);
+
+  /**
+   * Invoked after {@link #fieldRead} for a non-volatile field, in place of the
+   * read itself. Returns the value of the field in the current thread's store
+   * buffer, or {@link #NOT_BUFFERED} if there is none, in which case the field
+   * is read as normal. The arguments are the same as for {@link #fieldRead}.
+   */
+  public Object loadField(Object owner, String field, int line);
 }
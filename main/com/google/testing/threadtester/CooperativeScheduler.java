@@ -0,0 +1,1032 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a set of threads one at a time, switching between them at the
+ * operations reported by the probes in instrumented code. (See {@link
+ * Operation}.) Each thread first runs until it reaches its first operation, in
+ * the order in which the threads were supplied. After that, every time that a
+ * thread reaches an operation, it stops, and the scheduler's {@link
+ * SchedulingStrategy} chooses the thread to run next. Control is passed
+ * directly from one thread to the next, so only one thread is ever running, and
+ * the sequence of operations is determined entirely by the strategy.
+ * <p>
+ * If a weak {@link MemoryModel} is simulated, then each thread's writes to
+ * non-volatile fields are held in a {@link StoreBuffer}. Each queue of each
+ * store buffer is flushed by a pseudo-thread. The pseudo-threads are numbered
+ * after the real threads. A pseudo-thread is enabled when it has a write to
+ * flush, and its pending operation is that write. When the strategy chooses a
+ * pseudo-thread, the write is flushed by the thread that reached the scheduling
+ * point, and the strategy then chooses again.
+ * <p>
+ * The scheduler tracks the monitors and {@link
+ * java.util.concurrent.locks.Lock Locks} acquired in instrumented code. A
+ * thread that is about to acquire a monitor or a Lock held by another thread is
+ * not enabled, and will not be chosen until it is released. Locks are treated
+ * as exclusive, even if they are the read locks of a {@link
+ * java.util.concurrent.locks.ReadWriteLock}. Calls to {@link Object#wait} are
+ * performed by the scheduler. A waiting thread releases the monitor, and is not
+ * enabled until it has been notified and the monitor is free again. A thread
+ * that waits with a timeout is enabled as soon as the monitor is free, as the
+ * timeout may expire at any point. {@link Object#notify} wakes the thread that
+ * has been waiting longest. If no thread is enabled, then the threads are
+ * deadlocked, and the run fails with a {@link DeadlockException}.
+ * <p>
+ * Blocking operations in non-instrumented code, and operations such as {@link
+ * java.util.concurrent.locks.Condition#await} that are not reported by the
+ * probes, are not seen by the scheduler. A thread that blocks in such an
+ * operation will stop the run, which then fails with a {@link
+ * TestTimeoutException}.
+ * <p>
+ * A CooperativeScheduler can only be run once.
+ */
+class CooperativeScheduler {
+
+  /**
+   * Records a single step of execution. At each step, the strategy chooses a
+   * thread from the enabled threads, and the chosen thread executes its
+   * pending operation.
+   */
+  static class Step {
+    /** The thread that reached the scheduling point, or -1 at the start. */
+    final int current;
+
+    /** The thread chosen to run. */
+    final int thread;
+
+    /** The operation executed by the chosen thread. */
+    final Operation operation;
+
+    /** The threads that were enabled, in ascending order. */
+    final List<Integer> enabled;
+
+    /**
+     * If the operation acquires a monitor, the step during which the monitor
+     * was last released, or -1 if it has not been released.
+     */
+    final int releaseStep;
+
+    Step(int current, int thread, Operation operation, List<Integer> enabled, int releaseStep) {
+      this.current = current;
+      this.thread = thread;
+      this.operation = operation;
+      this.enabled = enabled;
+      this.releaseStep = releaseStep;
+    }
+
+    @Override
+    public String toString() {
+      return "thread " + thread + ": " + operation;
+    }
+  }
+
+  /**
+   * Thrown in a scheduled thread when the run is aborted. This is an Error
+   * rather than an Exception, so that it is not caught by the code under test.
+   */
+  private static class AbortedError extends Error {
+    AbortedError() {
+      super("Scheduled run aborted");
+    }
+  }
+
+  /**
+   * Tracks the threads that hold a set of monitors or locks. Each monitor or
+   * lock is identified by the object that implements it.
+   */
+  private static class Ownership {
+    /** Maps a monitor or lock onto the thread that holds it. */
+    private final Map<Object, Integer> owners = new IdentityHashMap<Object, Integer>();
+
+    /** The number of times that each monitor or lock in {@link #owners} is held. */
+    private final Map<Object, Integer> counts = new IdentityHashMap<Object, Integer>();
+
+    /** Maps a monitor or lock onto the step during which it was last released. */
+    private final Map<Object, Integer> lastReleases = new IdentityHashMap<Object, Integer>();
+
+    /** The position at which each monitor or lock in {@link #owners} was acquired. */
+    private final Map<Object, String> positions = new IdentityHashMap<Object, String>();
+
+    /** Gets the thread that holds the target, or null if it is free. */
+    Integer getOwner(Object target) {
+      return owners.get(target);
+    }
+
+    /** Gets the position at which the target was acquired, or null if it is free. */
+    String getPosition(Object target) {
+      return positions.get(target);
+    }
+
+    /** Returns true if the target is free, or is held by the given thread. */
+    boolean canAcquire(Object target, int thread) {
+      Integer owner = owners.get(target);
+      return owner == null || owner == thread;
+    }
+
+    /** Gets the step during which the target was last released, or -1. */
+    int getLastRelease(Object target) {
+      Integer release = lastReleases.get(target);
+      return release == null ? -1 : release;
+    }
+
+    /**
+     * Records that the given thread has acquired the target the given number
+     * of times, at the given position.
+     */
+    void acquire(Object target, int thread, int times, String position) {
+      Integer count = counts.get(target);
+      if (count == null) {
+        positions.put(target, position);
+      }
+      owners.put(target, thread);
+      counts.put(target, count == null ? times : count + times);
+    }
+
+    /**
+     * Records that the target has been released once during the given step.
+     */
+    void release(Object target, int step) {
+      Integer count = counts.get(target);
+      if (count == null || count == 1) {
+        releaseAll(target, step);
+      } else {
+        counts.put(target, count - 1);
+      }
+    }
+
+    /**
+     * Records that the target has been completely released during the given
+     * step. Returns the number of times that it was held.
+     */
+    int releaseAll(Object target, int step) {
+      Integer count = counts.remove(target);
+      owners.remove(target);
+      positions.remove(target);
+      lastReleases.put(target, step);
+      return count == null ? 0 : count;
+    }
+  }
+
+  /** Receives the probes from one of the scheduled threads. */
+  private class ThreadListener extends ProbeListenerImpl {
+    private final int id;
+
+    ThreadListener(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public void monitorEnter(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      schedulingPoint(id, Operation.lock(object, monitor, line));
+    }
+
+    @Override
+    public void monitorAcquired(ObjectInstrumentationImpl<?> object, Object monitor) {
+      flushBuffer(id);
+      monitors.acquire(monitor, id, 1, pending[id].getLocation());
+    }
+
+    @Override
+    public void monitorExit(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      flushBuffer(id);
+      // The running thread is always the thread chosen in the last step.
+      monitors.release(monitor, trace.size() - 1);
+    }
+
+    @Override
+    public boolean monitorWait(ObjectInstrumentationImpl<?> object, Object monitor, long timeout,
+        int nanos, int line) {
+      flushBuffer(id);
+      waitForNotify(id, Operation.wait(object, monitor, line), timeout > 0 || nanos > 0);
+      return true;
+    }
+
+    @Override
+    public void monitorNotify(ObjectInstrumentationImpl<?> object, Object monitor, boolean all,
+        int line) {
+      // If the monitor is not held, then the call to notify will throw an
+      // IllegalMonitorStateException.
+      if (Thread.holdsLock(monitor)) {
+        notifyWaiters(monitor, all);
+      }
+    }
+
+    @Override
+    public void lockEnter(ObjectInstrumentationImpl<?> object, Object lock, boolean tryLock,
+        int line) {
+      schedulingPoint(id, Operation.acquire(object, lock, tryLock, line));
+    }
+
+    @Override
+    public void lockAcquired(ObjectInstrumentationImpl<?> object, Object lock) {
+      flushBuffer(id);
+      locks.acquire(lock, id, 1, pending[id].getLocation());
+    }
+
+    @Override
+    public void lockExit(ObjectInstrumentationImpl<?> object, Object lock, int line) {
+      Integer owner = locks.getOwner(lock);
+      if (owner != null && owner == id) {
+        flushBuffer(id);
+        // Releasing the lock may change the result of another thread's call to
+        // tryLock, so it is a scheduling point.
+        schedulingPoint(id, Operation.release(object, lock, line));
+        locks.release(lock, trace.size() - 1);
+      }
+    }
+
+    @Override
+    public void fieldRead(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      schedulingPoint(id, Operation.fieldAccess(false, object, owner, field, line));
+    }
+
+    @Override
+    public void fieldWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      schedulingPoint(id, Operation.fieldAccess(true, object, owner, field, line));
+    }
+
+    @Override
+    public void volatileWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      flushBuffer(id);
+      fieldWrite(object, owner, field, line);
+    }
+
+    @Override
+    public void syncRelease(ObjectInstrumentationImpl<?> object, Object target, int line) {
+      flushBuffer(id);
+    }
+
+    @Override
+    public void syncAcquire(ObjectInstrumentationImpl<?> object, Object target, int line) {
+      flushBuffer(id);
+    }
+
+    @Override
+    public boolean storeField(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        Object value, int line) {
+      if (buffers == null || owner == null) {
+        return false;
+      }
+      Field resolved = findField(owner, field);
+      if (resolved == null) {
+        return false;
+      }
+      Operation operation = Operation.fieldAccess(true, object, owner, field, line);
+      buffers[id].add(owner, resolved, value, operation);
+      updateFlushers(id);
+      return true;
+    }
+
+    @Override
+    public Object loadField(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      if (buffers == null || owner == null || buffers[id].isEmpty()) {
+        return CallLogger.NOT_BUFFERED;
+      }
+      Field resolved = findField(owner, field);
+      return resolved == null ? CallLogger.NOT_BUFFERED : buffers[id].load(owner, resolved);
+    }
+  }
+
+  /**
+   * Passes each probe to an observer, and then to the scheduler's listener.
+   * The values returned by the observer are ignored.
+   */
+  private static class ObservedListener implements ProbeListener {
+    private final ProbeListener listener;
+    private final ProbeListener observer;
+
+    ObservedListener(ProbeListener listener, ProbeListener observer) {
+      this.listener = listener;
+      this.observer = observer;
+    }
+
+    @Override
+    public void monitorEnter(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      observer.monitorEnter(object, monitor, line);
+      listener.monitorEnter(object, monitor, line);
+    }
+
+    @Override
+    public void monitorAcquired(ObjectInstrumentationImpl<?> object, Object monitor) {
+      observer.monitorAcquired(object, monitor);
+      listener.monitorAcquired(object, monitor);
+    }
+
+    @Override
+    public void monitorExit(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      observer.monitorExit(object, monitor, line);
+      listener.monitorExit(object, monitor, line);
+    }
+
+    @Override
+    public void fieldRead(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      observer.fieldRead(object, owner, field, line);
+      listener.fieldRead(object, owner, field, line);
+    }
+
+    @Override
+    public void fieldWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      observer.fieldWrite(object, owner, field, line);
+      listener.fieldWrite(object, owner, field, line);
+    }
+
+    @Override
+    public void volatileRead(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      observer.volatileRead(object, owner, field, line);
+      listener.volatileRead(object, owner, field, line);
+    }
+
+    @Override
+    public void volatileReadDone(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      observer.volatileReadDone(object, owner, field, line);
+      listener.volatileReadDone(object, owner, field, line);
+    }
+
+    @Override
+    public void volatileWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      observer.volatileWrite(object, owner, field, line);
+      listener.volatileWrite(object, owner, field, line);
+    }
+
+    @Override
+    public boolean monitorWait(ObjectInstrumentationImpl<?> object, Object monitor, long timeout,
+        int nanos, int line) throws InterruptedException {
+      observer.monitorWait(object, monitor, timeout, nanos, line);
+      return listener.monitorWait(object, monitor, timeout, nanos, line);
+    }
+
+    @Override
+    public void monitorNotify(ObjectInstrumentationImpl<?> object, Object monitor, boolean all,
+        int line) {
+      observer.monitorNotify(object, monitor, all, line);
+      listener.monitorNotify(object, monitor, all, line);
+    }
+
+    @Override
+    public void lockEnter(ObjectInstrumentationImpl<?> object, Object lock, boolean tryLock,
+        int line) {
+      observer.lockEnter(object, lock, tryLock, line);
+      listener.lockEnter(object, lock, tryLock, line);
+    }
+
+    @Override
+    public void lockAcquired(ObjectInstrumentationImpl<?> object, Object lock) {
+      observer.lockAcquired(object, lock);
+      listener.lockAcquired(object, lock);
+    }
+
+    @Override
+    public void lockExit(ObjectInstrumentationImpl<?> object, Object lock, int line) {
+      observer.lockExit(object, lock, line);
+      listener.lockExit(object, lock, line);
+    }
+
+    @Override
+    public void syncRelease(ObjectInstrumentationImpl<?> object, Object target, int line) {
+      observer.syncRelease(object, target, line);
+      listener.syncRelease(object, target, line);
+    }
+
+    @Override
+    public void syncAcquire(ObjectInstrumentationImpl<?> object, Object target, int line) {
+      observer.syncAcquire(object, target, line);
+      listener.syncAcquire(object, target, line);
+    }
+
+    @Override
+    public void collectionAccess(ObjectInstrumentationImpl<?> object, Object collection,
+        boolean write, int line) {
+      observer.collectionAccess(object, collection, write, line);
+      listener.collectionAccess(object, collection, write, line);
+    }
+
+    @Override
+    public boolean storeField(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        Object value, int line) {
+      observer.storeField(object, owner, field, value, line);
+      return listener.storeField(object, owner, field, value, line);
+    }
+
+    @Override
+    public Object loadField(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      return listener.loadField(object, owner, field, line);
+    }
+  }
+
+  private final SchedulingStrategy strategy;
+  private final List<TestThread> threads = new ArrayList<TestThread>();
+
+  /** The memory model being simulated. */
+  private MemoryModel memoryModel = MemoryModel.SEQUENTIAL_CONSISTENCY;
+
+  /** Creates the listeners that observe the threads, or null. */
+  private SequentialRunner.ListenerFactory observers;
+
+  /*
+   * The following state is only accessed by the running thread, or by the
+   * thread that calls run() before the first thread starts and after the last
+   * thread finishes. Control is always passed by writing the volatile field
+   * 'running', so each thread sees the changes made by the previous one.
+   */
+
+  /**
+   * The pending operation for each thread. The real threads are followed by
+   * the pseudo-threads that flush the store buffers.
+   */
+  private Operation[] pending;
+
+  /**
+   * The store buffer of each real thread, or null if the memory model is
+   * sequentially consistent.
+   */
+  private StoreBuffer[] buffers;
+
+  /**
+   * The write that each pseudo-thread will flush, or null. Indexed in the same
+   * way as {@link #pending}.
+   */
+  private StoreBuffer.Store[] flushing;
+
+  /** The fields written by the threads, keyed by class and field name. */
+  private final Map<String, Field> fields = new HashMap<String, Field>();
+
+  /** The number of times each thread has reached each probe. */
+  private List<Map<String, Integer>> hitCounts;
+
+  /** The monitors held by the threads. */
+  private final Ownership monitors = new Ownership();
+
+  /** The Locks held by the threads. */
+  private final Ownership locks = new Ownership();
+
+  /**
+   * Maps a monitor onto the threads that are waiting on it, and have not been
+   * notified, in the order in which they started waiting.
+   */
+  private final Map<Object, List<Integer>> waitSets = new IdentityHashMap<Object, List<Integer>>();
+
+  /** True for each thread that has been notified since it started waiting. */
+  private boolean[] notified;
+
+  /** True for each thread that is waiting with a timeout. */
+  private boolean[] timedWait;
+
+  /** The steps executed so far. */
+  private final List<Step> trace = new ArrayList<Step>();
+
+  /** The context switches made so far. */
+  private final Schedule schedule = new Schedule();
+
+  /** The thread that is allowed to run. */
+  private volatile int running = -1;
+
+  /** The number of steps executed. Used to check that the threads are making progress. */
+  private volatile int numSteps;
+
+  /** Set to true when every thread has reached its first operation. */
+  private boolean started;
+
+  /** Set to true if the run has been aborted. */
+  private volatile boolean aborted;
+
+  /** The reason that the run failed, if it was aborted by the scheduler. */
+  private volatile Throwable failure;
+
+  /** The thread responsible for the failure. */
+  private volatile int failedThread = -1;
+
+  /** Counted down when all threads have finished, or the run is aborted. */
+  private final CountDownLatch finished = new CountDownLatch(1);
+
+  CooperativeScheduler(SchedulingStrategy strategy) {
+    this.strategy = strategy;
+  }
+
+  /**
+   * Sets the memory model to be simulated. Must be called before {@link #run}.
+   * The default is {@link MemoryModel#SEQUENTIAL_CONSISTENCY}.
+   */
+  void setMemoryModel(MemoryModel memoryModel) {
+    if (!threads.isEmpty()) {
+      throw new IllegalStateException("Already running");
+    }
+    this.memoryModel = memoryModel;
+  }
+
+  /**
+   * Sets the factory that creates a listener to observe each of the threads.
+   * Each observer receives the probes of its thread before the scheduler does,
+   * apart from {@link ProbeListener#loadField}. The values returned by the
+   * observers are ignored, so they cannot perform waits or buffer writes.
+   */
+  void setObservers(SequentialRunner.ListenerFactory observers) {
+    if (!threads.isEmpty()) {
+      throw new IllegalStateException("Already running");
+    }
+    this.observers = observers;
+  }
+
+  /**
+   * Runs the given runnables, each in its own thread. Returns when all of the
+   * threads have finished, or when the run fails. Any exceptions thrown by the
+   * runnables can be retrieved via {@link #getException}.
+   */
+  void run(List<? extends ThrowingRunnable> runnables, String name) throws InterruptedException {
+    if (!threads.isEmpty()) {
+      throw new IllegalStateException("Can only run once");
+    }
+    int numThreads = runnables.size();
+    int numQueues = 0;
+    if (memoryModel == MemoryModel.TOTAL_STORE_ORDER) {
+      numQueues = 1;
+    } else if (memoryModel == MemoryModel.PARTIAL_STORE_ORDER) {
+      numQueues = MemoryModel.PSO_QUEUES;
+    }
+    int total = numThreads * (1 + numQueues);
+    pending = new Operation[total];
+    notified = new boolean[total];
+    timedWait = new boolean[total];
+    hitCounts = new ArrayList<Map<String, Integer>>(total);
+    if (numQueues > 0) {
+      buffers = new StoreBuffer[numThreads];
+      flushing = new StoreBuffer.Store[total];
+      for (int i = 0; i < numThreads; i++) {
+        buffers[i] = new StoreBuffer(numQueues);
+      }
+    }
+    for (int i = 0; i < numThreads; i++) {
+      final int id = i;
+      final ThrowingRunnable target = runnables.get(i);
+      ThrowingRunnable runnable = new ThrowingRunnable() {
+        @Override
+        public void run() throws Exception {
+          waitForTurn(id);
+          try {
+            target.run();
+          } finally {
+            threadFinished(id);
+          }
+        }
+      };
+      TestThread thread = new TestThread(runnable, name + " thread " + i);
+      // If the run is aborted, we may not be able to stop the threads.
+      thread.setDaemon(true);
+      threads.add(thread);
+      pending[i] = Operation.START;
+      hitCounts.add(new HashMap<String, Integer>());
+      ProbeListener listener = new ThreadListener(i);
+      if (observers != null) {
+        listener = new ObservedListener(listener, observers.createListener(thread, i));
+      }
+      ObjectInstrumentationImpl.setProbeListener(thread, listener);
+    }
+    for (int i = numThreads; i < total; i++) {
+      pending[i] = Operation.END;
+      hitCounts.add(new HashMap<String, Integer>());
+    }
+    for (TestThread thread : threads) {
+      thread.start();
+    }
+    try {
+      choose(-1);
+      int lastStep = -1;
+      while (!finished.await(Options.timeout(), TimeUnit.MILLISECONDS)) {
+        int step = numSteps;
+        if (step == lastStep) {
+          int stuck = running;
+          fail(new TestTimeoutException("No progress after " + step + " steps",
+              threads.get(stuck)), stuck);
+          break;
+        }
+        lastStep = step;
+      }
+      for (TestThread thread : threads) {
+        thread.join(Options.timeout());
+      }
+    } finally {
+      for (TestThread thread : threads) {
+        ObjectInstrumentationImpl.setProbeListener(thread, null);
+      }
+    }
+  }
+
+  /**
+   * Gets the exception thrown by the given thread, or null if there was no
+   * exception. If the run failed because of a deadlock or a timeout, then the
+   * failure is returned as the exception of the thread that caused it.
+   */
+  Throwable getException(int thread) {
+    if (thread == failedThread) {
+      return failure;
+    }
+    Throwable exception = threads.get(thread).getException();
+    if (exception instanceof AbortedError) {
+      return null;
+    }
+    return exception;
+  }
+
+  /** Returns true if any of the threads threw an exception, or the run failed. */
+  boolean hadException() {
+    for (int i = 0; i < threads.size(); i++) {
+      if (getException(i) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the number of threads being scheduled, including the pseudo-threads
+   * that flush the store buffers.
+   */
+  int getNumThreads() {
+    return pending.length;
+  }
+
+  /** Gets the steps executed in this run. */
+  List<Step> getTrace() {
+    return Collections.unmodifiableList(trace);
+  }
+
+  /** Gets the schedule followed by this run. */
+  Schedule getSchedule() {
+    return schedule;
+  }
+
+  /**
+   * Gets the operation that the given thread will execute next, or {@link
+   * Operation#END} if it has finished.
+   */
+  Operation getPendingOperation(int thread) {
+    return pending[thread];
+  }
+
+  /**
+   * Gets the number of times the given thread has reached the probe of its
+   * pending operation, including the current time.
+   */
+  int getHitCount(int thread) {
+    Integer count = hitCounts.get(thread).get(pending[thread].getProbe());
+    return count == null ? 0 : count;
+  }
+
+  /** Gets the number of steps executed so far. */
+  int getNumSteps() {
+    return trace.size();
+  }
+
+  /**
+   * Invoked by a scheduled thread when it reaches an operation. Lets the
+   * strategy choose the next thread, and waits until this thread is chosen
+   * again.
+   */
+  private void schedulingPoint(int id, Operation operation) {
+    checkAborted();
+    setPending(id, operation);
+    choose(id);
+    waitForTurn(id);
+  }
+
+  /**
+   * Invoked by a scheduled thread instead of {@link Object#wait}. Releases the
+   * monitor, and waits until this thread is chosen to reacquire it. The wait is
+   * performed by invoking {@link Object#wait} on the monitor, so that the
+   * monitor is released; the thread that chooses this thread wakes it with
+   * {@link Object#notifyAll}. (See {@link #passControl}.) The monitor is then
+   * reacquired as many times as it was held before the wait.
+   * <p>
+   * Interrupting the waiting thread does not end the wait. The thread's
+   * interrupted status is restored when it resumes.
+   */
+  private void waitForNotify(int id, Operation operation, boolean timed) {
+    Object monitor = operation.getTarget();
+    if (!Thread.holdsLock(monitor)) {
+      throw new IllegalMonitorStateException("Current thread does not hold monitor");
+    }
+    checkAborted();
+    int count = monitors.releaseAll(monitor, trace.size() - 1);
+    List<Integer> waiting = waitSets.get(monitor);
+    if (waiting == null) {
+      waiting = new ArrayList<Integer>();
+      waitSets.put(monitor, waiting);
+    }
+    waiting.add(id);
+    notified[id] = false;
+    timedWait[id] = timed;
+    setPending(id, operation);
+    choose(id);
+    boolean interrupted = false;
+    while (running != id) {
+      checkAborted();
+      try {
+        monitor.wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    checkAborted();
+    waiting.remove(Integer.valueOf(id));
+    monitors.acquire(monitor, id, count, operation.getLocation());
+  }
+
+  /**
+   * Notifies the threads waiting on the given monitor. If all is false, only
+   * the thread that has been waiting longest is notified.
+   */
+  private void notifyWaiters(Object monitor, boolean all) {
+    List<Integer> waiting = waitSets.get(monitor);
+    while (waiting != null && !waiting.isEmpty()) {
+      notified[waiting.remove(0)] = true;
+      if (!all) {
+        break;
+      }
+    }
+  }
+
+  /** Invoked by a scheduled thread when it has finished. */
+  private void threadFinished(int id) {
+    if (!aborted) {
+      setPending(id, Operation.END);
+      choose(id);
+    }
+  }
+
+  private void setPending(int id, Operation operation) {
+    pending[id] = operation;
+    Map<String, Integer> counts = hitCounts.get(id);
+    Integer count = counts.get(operation.getProbe());
+    counts.put(operation.getProbe(), count == null ? 1 : count + 1);
+  }
+
+  /** Returns true if the given thread can execute its pending operation. */
+  private boolean isEnabled(int thread) {
+    Operation operation = pending[thread];
+    if (operation.getKind() == Operation.Kind.END) {
+      return false;
+    } else if (operation.getKind() == Operation.Kind.LOCK) {
+      return monitors.canAcquire(operation.getTarget(), thread);
+    } else if (operation.getKind() == Operation.Kind.WAIT) {
+      return (notified[thread] || timedWait[thread]) &&
+          monitors.canAcquire(operation.getTarget(), thread);
+    } else if (operation.getKind() == Operation.Kind.ACQUIRE) {
+      return locks.canAcquire(operation.getTarget(), thread);
+    }
+    return true;
+  }
+
+  /**
+   * Chooses the next thread to run, and passes control to it. If the chosen
+   * thread is not the current thread, then the current thread must wait for
+   * its turn after calling this method. If a pseudo-thread is chosen, its
+   * write is flushed, and the next thread is chosen with the pseudo-thread as
+   * the current thread.
+   */
+  private void choose(int current) {
+    while (!chooseOnce(current)) {
+      current = trace.get(trace.size() - 1).thread;
+    }
+  }
+
+  /**
+   * Makes a single choice. Returns false if a pseudo-thread was chosen, and
+   * another choice must be made.
+   */
+  private boolean chooseOnce(int current) {
+    List<Integer> enabled = new ArrayList<Integer>();
+    boolean allFinished = true;
+    for (int i = 0; i < pending.length; i++) {
+      if (pending[i] == Operation.START) {
+        // Run each thread to its first operation before the strategy makes any
+        // choices. The code before the first operation has no visible effect,
+        // so there is no need to interleave it.
+        passControl(current, i);
+        return true;
+      }
+      if (isEnabled(i)) {
+        enabled.add(i);
+      }
+      if (pending[i].getKind() != Operation.Kind.END) {
+        allFinished = false;
+      }
+    }
+    if (!started) {
+      // All of the threads have reached their first operation. The first
+      // choice is made as if no thread was running.
+      started = true;
+      current = -1;
+    }
+    if (allFinished) {
+      finished.countDown();
+      return true;
+    }
+    if (enabled.isEmpty()) {
+      fail(new DeadlockException("Deadlock - no thread can run", getBlockedThreads()), current);
+      return true;
+    }
+    int next;
+    try {
+      next = strategy.chooseThread(this, current, enabled);
+      if (!enabled.contains(next)) {
+        throw new IllegalStateException("Strategy chose thread " + next + ", enabled = " +
+            enabled);
+      }
+    } catch (RuntimeException e) {
+      fail(e, -1);
+      return true;
+    }
+    int releaseStep = -1;
+    if (pending[next].isMonitorAcquisition()) {
+      releaseStep = monitors.getLastRelease(pending[next].getTarget());
+    } else if (pending[next].isLockAcquisition()) {
+      releaseStep = locks.getLastRelease(pending[next].getTarget());
+    }
+    trace.add(new Step(current, next, pending[next], enabled, releaseStep));
+    if (next != current) {
+      if (current < 0) {
+        schedule.addSwitch(-1, null, 0, next);
+      } else {
+        schedule.addSwitch(current, pending[current].getProbe(), getHitCount(current), next);
+      }
+    }
+    Options.debugPrint("Step %d: thread %d, %s\n", trace.size(), next, pending[next]);
+    if (buffers != null && next >= buffers.length) {
+      numSteps++;
+      int thread = (next - buffers.length) / buffers[0].getNumQueues();
+      buffers[thread].flush(flushing[next]);
+      updateFlushers(thread);
+      return false;
+    }
+    passControl(current, next);
+    return true;
+  }
+
+  /**
+   * Sets the writes to be flushed by the pseudo-threads of the given thread.
+   * Each pseudo-thread flushes the oldest write in one of the queues of the
+   * thread's store buffer.
+   */
+  private void updateFlushers(int thread) {
+    StoreBuffer buffer = buffers[thread];
+    int numQueues = buffer.getNumQueues();
+    for (int queue = 0; queue < numQueues; queue++) {
+      setFlushing(buffers.length + thread * numQueues + queue, buffer.getOldest(queue));
+    }
+  }
+
+  private void setFlushing(int flusher, StoreBuffer.Store store) {
+    if (flushing[flusher] != store) {
+      flushing[flusher] = store;
+      setPending(flusher, store == null ? Operation.END : store.operation);
+    }
+  }
+
+  /** Flushes all of the writes in the given thread's store buffer. */
+  private void flushBuffer(int thread) {
+    if (buffers != null && !buffers[thread].isEmpty()) {
+      buffers[thread].flushAll();
+      updateFlushers(thread);
+    }
+  }
+
+  /**
+   * Finds the field with the given name in the given object, or returns null
+   * if it cannot be found.
+   */
+  private Field findField(Object owner, String name) {
+    String key = owner.getClass().getName() + " " + name;
+    if (!fields.containsKey(key)) {
+      fields.put(key, FieldLayout.findField(owner.getClass(), name));
+    }
+    return fields.get(key);
+  }
+
+  /**
+   * Allows the next thread to run. If the next thread is waiting on a monitor,
+   * then the monitor is free, so we can acquire it in order to wake the thread.
+   */
+  private void passControl(int current, int next) {
+    numSteps++;
+    running = next;
+    if (next != current) {
+      if (pending[next].getKind() == Operation.Kind.WAIT) {
+        Object monitor = pending[next].getTarget();
+        synchronized (monitor) {
+          monitor.notifyAll();
+        }
+      } else {
+        LockSupport.unpark(threads.get(next));
+      }
+    }
+  }
+
+  /** Returns the blocked threads, for reporting deadlocks. */
+  private List<DeadlockException.BlockedThread> getBlockedThreads() {
+    List<DeadlockException.BlockedThread> result =
+        new ArrayList<DeadlockException.BlockedThread>();
+    for (int i = 0; i < pending.length; i++) {
+      Operation operation = pending[i];
+      Operation.Kind kind = operation.getKind();
+      Object target = operation.getTarget();
+      if (kind == Operation.Kind.LOCK || kind == Operation.Kind.ACQUIRE) {
+        Ownership ownership = kind == Operation.Kind.LOCK ? monitors : locks;
+        Integer owner = ownership.getOwner(target);
+        result.add(new DeadlockException.BlockedThread(threads.get(i),
+            DeadlockDetector.describe(target), operation.getLocation(),
+            owner == null ? null : threads.get(owner), ownership.getPosition(target)));
+      } else if (kind == Operation.Kind.WAIT) {
+        result.add(new DeadlockException.BlockedThread(threads.get(i),
+            "notification of " + DeadlockDetector.describe(target), operation.getLocation(),
+            null, null));
+      }
+    }
+    return result;
+  }
+
+  /** Waits until the given thread is chosen to run. */
+  private void waitForTurn(int id) {
+    while (running != id) {
+      checkAborted();
+      LockSupport.park(this);
+    }
+    checkAborted();
+  }
+
+  private void checkAborted() {
+    if (aborted) {
+      throw new AbortedError();
+    }
+  }
+
+  /**
+   * Aborts the run. Records the reason for the failure, and wakes all of the
+   * threads so that they can terminate.
+   *
+   * @param reason the reason for the failure
+   * @param thread the thread that caused the failure, or -1 if the failure was
+   *        not caused by a scheduled thread.
+   */
+  private void fail(Throwable reason, int thread) {
+    failure = reason;
+    failedThread = thread;
+    aborted = true;
+    for (int i = 0; i < threads.size(); i++) {
+      // Threads waiting on a monitor cannot be unparked. Interrupting them ends
+      // the wait, once the monitor is free.
+      if (pending[i].getKind() == Operation.Kind.WAIT) {
+        threads.get(i).interrupt();
+      } else {
+        LockSupport.unpark(threads.get(i));
+      }
+    }
+    finished.countDown();
+  }
+
+  /**
+   * Returns the failure recorded by the scheduler if it was not caused by any
+   * of the scheduled threads, or null if there is none. This happens if the
+   * strategy cannot be followed.
+   */
+  Throwable getSchedulerFailure() {
+    return failedThread < 0 ? failure : null;
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+/**
+ * A {@link MainRunnable} whose main object can be replaced by a copy. Used by
+ * {@link InterleavedRunner#interleaveWithSnapshots}, which calls {@link
+ * #initialize} once, and then gives the runnable a new copy of the original
+ * main object before each interleaving.
+ *
+ * @param <T> the type under test.
+ */
+public interface CopyableMainRunnable<T> extends MainRunnable<T> {
+
+  /**
+   * Sets the main object being tested. After this method has been called,
+   * {@link #getMainObject} should return the given object, and the runnable
+   * should invoke the test method on it.
+   */
+  public void setMainObject(T mainObject);
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+/**
+ * Describes a data race found by a {@link RaceDetector}. A data race consists
+ * of two accesses to the same field, made by different threads, where at
+ * least one of the accesses is a write, and neither access happens-before the
+ * other. The first access is the one that was executed first in the run that
+ * found the race. The positions are given as "ClassName:line".
+ */
+public class DataRace {
+  private final String field;
+  private final Thread firstThread;
+  private final String firstPosition;
+  private final boolean firstWrite;
+  private final Thread secondThread;
+  private final String secondPosition;
+  private final boolean secondWrite;
+
+  DataRace(String field, Thread firstThread, String firstPosition, boolean firstWrite,
+      Thread secondThread, String secondPosition, boolean secondWrite) {
+    this.field = field;
+    this.firstThread = firstThread;
+    this.firstPosition = firstPosition;
+    this.firstWrite = firstWrite;
+    this.secondThread = secondThread;
+    this.secondPosition = secondPosition;
+    this.secondWrite = secondWrite;
+  }
+
+  /** Gets the name of the field, qualified with the name of its declaring class. */
+  public String getField() {
+    return field;
+  }
+
+  /** Gets the thread that made the first access. */
+  public Thread getFirstThread() {
+    return firstThread;
+  }
+
+  /** Gets the position of the first access. */
+  public String getFirstPosition() {
+    return firstPosition;
+  }
+
+  /** Returns true if the first access was a write. */
+  public boolean isFirstWrite() {
+    return firstWrite;
+  }
+
+  /** Gets the thread that made the second access. */
+  public Thread getSecondThread() {
+    return secondThread;
+  }
+
+  /** Gets the position of the second access. */
+  public String getSecondPosition() {
+    return secondPosition;
+  }
+
+  /** Returns true if the second access was a write. */
+  public boolean isSecondWrite() {
+    return secondWrite;
+  }
+
+  @Override
+  public String toString() {
+    return "Race on " + field + ": " + (firstWrite ? "write" : "read") + " at " + firstPosition +
+        " in " + firstThread.getName() + ", " + (secondWrite ? "write" : "read") + " at " +
+        secondPosition + " in " + secondThread.getName();
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects deadlocks between threads. The wait-for graph is obtained from the
+ * {@link ThreadMXBean}, which reports cycles of threads waiting for monitors
+ * and for {@link java.util.concurrent.locks.Lock Locks}. The positions at
+ * which the locks were acquired are taken from the probes in instrumented
+ * code. (See {@link ObjectInstrumentationImpl#getHeldLocks}.)
+ * <p>
+ * Finding deadlocked threads is relatively expensive, so the detector is only
+ * invoked when a thread that the framework is waiting for is blocked.
+ */
+class DeadlockDetector {
+
+  private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+  private DeadlockDetector() {
+    // All methods are static
+  }
+
+  /**
+   * Checks whether the given thread is deadlocked, if it is blocked or
+   * waiting. Does nothing if the thread is running.
+   *
+   * @throws DeadlockException if the thread is deadlocked
+   */
+  static void checkIfBlocked(Thread thread) throws DeadlockException {
+    Thread.State state = thread.getState();
+    if (state == Thread.State.BLOCKED || state == Thread.State.WAITING) {
+      check(Collections.singletonList(thread));
+    }
+  }
+
+  /**
+   * Checks whether any of the given threads are deadlocked.
+   *
+   * @throws DeadlockException if one or more of the threads is deadlocked
+   */
+  static void check(Collection<? extends Thread> threads) throws DeadlockException {
+    long[] deadlocked = threadBean.isSynchronizerUsageSupported() ?
+        threadBean.findDeadlockedThreads() : threadBean.findMonitorDeadlockedThreads();
+    if (deadlocked == null) {
+      return;
+    }
+    Set<Long> deadlockedIds = new HashSet<Long>();
+    for (long id : deadlocked) {
+      deadlockedIds.add(id);
+    }
+    for (Thread thread : threads) {
+      if (deadlockedIds.contains(thread.getId())) {
+        List<DeadlockException.BlockedThread> cycle = getCycle(thread, deadlockedIds);
+        if (!cycle.isEmpty()) {
+          throw new DeadlockException("Deadlock", cycle);
+        }
+      }
+    }
+  }
+
+  /**
+   * Follows the chain of lock owners from the given thread, and returns the
+   * blocked threads in the order in which they wait for each other. The chain
+   * ends when it reaches a thread that is already in it.
+   */
+  private static List<DeadlockException.BlockedThread> getCycle(Thread start,
+      Set<Long> deadlockedIds) {
+    Map<Long, Thread> threadsById = getThreadsById(start, deadlockedIds);
+    List<DeadlockException.BlockedThread> result =
+        new ArrayList<DeadlockException.BlockedThread>();
+    Set<Long> visited = new HashSet<Long>();
+    Thread thread = start;
+    while (thread != null && visited.add(thread.getId())) {
+      ThreadInfo info = threadBean.getThreadInfo(thread.getId());
+      if (info == null || info.getLockOwnerId() == -1) {
+        // The thread is no longer blocked, so the threads are not deadlocked
+        // after all.
+        return Collections.emptyList();
+      }
+      Thread owner = threadsById.get(info.getLockOwnerId());
+      result.add(describe(thread, info, owner));
+      thread = owner;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the given thread, and all of the other threads with the given
+   * ids, indexed by id.
+   */
+  private static Map<Long, Thread> getThreadsById(Thread start, Set<Long> ids) {
+    Map<Long, Thread> result = new HashMap<Long, Thread>();
+    result.put(start.getId(), start);
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (ids.contains(thread.getId())) {
+        result.put(thread.getId(), thread);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Describes the lock that the given thread is waiting for. If the thread is
+   * blocked in instrumented code, then we know which lock it is trying to
+   * acquire, and can find the position at which the owner acquired it.
+   * Otherwise we use the lock reported by the ThreadMXBean. Note that for a
+   * Lock, this is an internal object, not the Lock itself, so the owner's
+   * position can only be found if the thread is blocked in instrumented code.
+   */
+  private static DeadlockException.BlockedThread describe(Thread thread, ThreadInfo info,
+      Thread owner) {
+    ObjectInstrumentationImpl.LockRecord pending = null;
+    for (ObjectInstrumentationImpl.LockRecord record :
+        ObjectInstrumentationImpl.getPendingLocks(thread)) {
+      if (matches(record.lock, info)) {
+        pending = record;
+      }
+    }
+    String lock = info.getLockName();
+    String position = null;
+    if (pending != null) {
+      lock = describe(pending.lock);
+      position = pending.getPosition();
+    }
+    String ownerPosition = null;
+    if (owner != null) {
+      for (ObjectInstrumentationImpl.LockRecord held :
+          ObjectInstrumentationImpl.getHeldLocks(owner)) {
+        if (pending == null ? matches(held.lock, info) : held.lock == pending.lock) {
+          ownerPosition = held.getPosition();
+          break;
+        }
+      }
+    }
+    return new DeadlockException.BlockedThread(thread, lock, position, owner, ownerPosition);
+  }
+
+  /**
+   * Returns true if the given monitor or lock may be the one that the
+   * ThreadMXBean reports the thread as waiting for. A monitor must match
+   * exactly. A Lock is implemented by an internal object, so we can only check
+   * that the thread is waiting rather than blocked on a monitor.
+   */
+  private static boolean matches(Object lock, ThreadInfo info) {
+    LockInfo lockInfo = info.getLockInfo();
+    if (lockInfo == null) {
+      return false;
+    } else if (lock instanceof java.util.concurrent.locks.Lock) {
+      return info.getThreadState() == Thread.State.WAITING;
+    }
+    return info.getThreadState() == Thread.State.BLOCKED &&
+        lockInfo.getIdentityHashCode() == System.identityHashCode(lock) &&
+        lockInfo.getClassName().equals(lock.getClass().getName());
+  }
+
+  /** Returns a description of a monitor or lock, without calling its toString(). */
+  static String describe(Object lock) {
+    return lock.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(lock));
+  }
+}
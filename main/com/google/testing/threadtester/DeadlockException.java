@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Exception thrown by the test framework if a set of threads is deadlocked.
+ * Each of the threads is waiting for a monitor or {@link
+ * java.util.concurrent.locks.Lock} held by another thread in the set, or, when
+ * the threads are being run by a {@link ScheduleExplorer}, is waiting to be
+ * notified by a thread that cannot run. The exception is thrown as soon as the
+ * deadlock is detected, rather than after {@link Options#timeout}.
+ * <p>
+ * A DeadlockException is a {@link TestTimeoutException}, so code that handles
+ * threads that fail to finish will also handle deadlocked threads. The thread
+ * associated with the exception is the first of the deadlocked threads.
+ */
+public class DeadlockException extends TestTimeoutException {
+
+  /**
+   * Describes one of the deadlocked threads, and the monitor or lock that it
+   * is waiting for.
+   */
+  public static class BlockedThread {
+    private final Thread thread;
+    private final String lock;
+    private final String position;
+    private final Thread owner;
+    private final String ownerPosition;
+
+    /**
+     * Creates a new BlockedThread.
+     *
+     * @param thread the blocked thread
+     * @param lock a description of the monitor or lock that the thread is
+     *        waiting for
+     * @param position the position at which the thread is trying to acquire
+     *        the lock, or null if it is unknown
+     * @param owner the thread that holds the lock, or null if there is none
+     * @param ownerPosition the position at which the owner acquired the lock,
+     *        or null if it is unknown
+     */
+    BlockedThread(Thread thread, String lock, String position, Thread owner,
+        String ownerPosition) {
+      this.thread = thread;
+      this.lock = lock;
+      this.position = position;
+      this.owner = owner;
+      this.ownerPosition = ownerPosition;
+    }
+
+    /** Gets the blocked thread. */
+    public Thread getThread() {
+      return thread;
+    }
+
+    /** Gets a description of the monitor or lock that the thread is waiting for. */
+    public String getLock() {
+      return lock;
+    }
+
+    /**
+     * Gets the position in the code at which the thread is trying to acquire
+     * the lock, or null if it is not known. Positions are only known for
+     * instrumented code.
+     */
+    public String getPosition() {
+      return position;
+    }
+
+    /**
+     * Gets the thread that holds the lock, or null if the thread is waiting to
+     * be notified.
+     */
+    public Thread getOwner() {
+      return owner;
+    }
+
+    /**
+     * Gets the position in the code at which the owner acquired the lock, or
+     * null if it is not known.
+     */
+    public String getOwnerPosition() {
+      return ownerPosition;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder result = new StringBuilder();
+      result.append(thread.getName()).append(" waiting for ").append(lock);
+      if (position != null) {
+        result.append(" at ").append(position);
+      }
+      if (owner != null) {
+        result.append(", held by ").append(owner.getName());
+        if (ownerPosition != null) {
+          result.append(" (acquired at ").append(ownerPosition).append(")");
+        }
+      }
+      return result.toString();
+    }
+  }
+
+  private final List<BlockedThread> blockedThreads;
+
+  /**
+   * Creates a new DeadlockException for the given blocked threads, which must
+   * not be empty.
+   */
+  DeadlockException(String message, List<BlockedThread> blockedThreads) {
+    super(message + ": " + describe(blockedThreads), blockedThreads.get(0).getThread());
+    this.blockedThreads =
+        Collections.unmodifiableList(new ArrayList<BlockedThread>(blockedThreads));
+  }
+
+  private static String describe(List<BlockedThread> blockedThreads) {
+    StringBuilder result = new StringBuilder();
+    for (BlockedThread blocked : blockedThreads) {
+      if (result.length() > 0) {
+        result.append("; ");
+      }
+      result.append(blocked);
+    }
+    return result.toString();
+  }
+
+  /** Gets the deadlocked threads, in the order in which they wait for each other. */
+  public List<BlockedThread> getBlockedThreads() {
+    return blockedThreads;
+  }
+
+  /** Gets the deadlocked threads. */
+  public List<Thread> getThreads() {
+    List<Thread> threads = new ArrayList<Thread>();
+    for (BlockedThread blocked : blockedThreads) {
+      threads.add(blocked.getThread());
+    }
+    return threads;
+  }
+}
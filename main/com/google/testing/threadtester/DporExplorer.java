@@ -0,0 +1,212 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A {@link ScheduleExplorer} that uses dynamic partial-order reduction to
+ * explore the schedules of a set of threads. Two schedules are equivalent if
+ * they only differ in the order of independent operations, such as reads of
+ * the same field, or accesses to different fields. Equivalent schedules always
+ * produce the same result, so only one schedule from each set of equivalent
+ * schedules needs to be run.
+ * <p>
+ * The explorer starts by running the threads without any preemption. After each
+ * run, it looks for pairs of dependent operations in different threads that
+ * could have been executed in the opposite order, and adds the alternative
+ * schedules to a search tree. It continues until there are no more schedules
+ * to run, or until it reaches the maximum number of schedules. See Flanagan and
+ * Godefroid, "Dynamic Partial-Order Reduction for Model Checking Software"
+ * (POPL 2005).
+ * <p>
+ * Note that the threads must behave deterministically. Given the same
+ * schedule, they must execute the same operations. Each run depends on the
+ * results of the previous runs, so the runs are always performed one after the
+ * other, even if the runnables are created by a {@link RunnableFactory}.
+ */
+public class DporExplorer extends ScheduleExplorer {
+
+  /** The default maximum number of schedules to explore. */
+  public static final int DEFAULT_MAX_SCHEDULES = 1000;
+
+  private int maxSchedules = DEFAULT_MAX_SCHEDULES;
+
+  /**
+   * A node in the search tree. Each node represents the state before a step,
+   * and records the threads that may run next.
+   */
+  private static class Node {
+    /** The threads that were enabled. */
+    final List<Integer> enabled;
+
+    /** The threads that need to be run from this node. */
+    final TreeSet<Integer> backtrack = new TreeSet<Integer>();
+
+    /** The threads that have been run from this node. */
+    final TreeSet<Integer> done = new TreeSet<Integer>();
+
+    /** The thread being run in the current schedule. */
+    int chosen;
+
+    Node(List<Integer> enabled, int chosen) {
+      this.enabled = enabled;
+      this.chosen = chosen;
+      backtrack.add(chosen);
+      done.add(chosen);
+    }
+
+    /** Returns the next thread to be run from this node, or -1 if there is none. */
+    int nextThread() {
+      for (Integer thread : backtrack) {
+        if (!done.contains(thread)) {
+          return thread;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Sets the maximum number of schedules that will be explored. If the limit is
+   * reached, then the exploration stops, and the result will not be complete.
+   */
+  public void setMaxSchedules(int maxSchedules) {
+    if (maxSchedules <= 0) {
+      throw new IllegalArgumentException("maxSchedules must be positive");
+    }
+    this.maxSchedules = maxSchedules;
+  }
+
+  /** Gets the maximum number of schedules that will be explored. */
+  public int getMaxSchedules() {
+    return maxSchedules;
+  }
+
+  @Override
+  <M extends MainRunnable<T>, T> ExplorationResult doExplore(
+      RunnableFactory<M, T> factory, boolean concurrent) {
+    List<Node> stack = new ArrayList<Node>();
+    int numSchedules = 0;
+    int numPruned = 0;
+    while (true) {
+      List<Integer> prefix = new ArrayList<Integer>(stack.size());
+      for (Node node : stack) {
+        prefix.add(node.chosen);
+      }
+      CooperativeScheduler scheduler = new CooperativeScheduler(new PrefixStrategy(prefix));
+      RunResult result = runSchedule(factory, scheduler);
+      numSchedules++;
+      List<CooperativeScheduler.Step> trace = scheduler.getTrace();
+      for (int i = stack.size(); i < trace.size(); i++) {
+        CooperativeScheduler.Step step = trace.get(i);
+        stack.add(new Node(step.enabled, step.thread));
+      }
+      if (result.hadException()) {
+        return new ExplorationResult(result, numSchedules, numPruned, false);
+      }
+      addBacktrackPoints(stack, trace, scheduler.getNumThreads());
+
+      // Find the deepest node that has another thread to run, and discard the
+      // nodes below it.
+      int thread = -1;
+      while (!stack.isEmpty()) {
+        Node node = stack.get(stack.size() - 1);
+        thread = node.nextThread();
+        if (thread >= 0) {
+          node.done.add(thread);
+          node.chosen = thread;
+          break;
+        }
+        numPruned += node.enabled.size() - node.done.size();
+        stack.remove(stack.size() - 1);
+      }
+      Options.debugPrint("DPOR: schedule %d, backtracking to step %d\n", numSchedules,
+          stack.size());
+      if (stack.isEmpty()) {
+        return new ExplorationResult(result, numSchedules, numPruned, true);
+      }
+      if (numSchedules >= maxSchedules) {
+        return new ExplorationResult(result, numSchedules, numPruned, false);
+      }
+    }
+  }
+
+  /**
+   * Analyses a completed run, and adds alternative schedules to the nodes of
+   * the search tree. For each step, we find the last earlier step in another
+   * thread that is dependent on it, but does not happen-before it. The two
+   * steps could have been executed in the opposite order, so we need to explore
+   * the schedule in which the second step's thread runs first.
+   * <p>
+   * The happens-before relation is tracked using vector clocks. The clock of a
+   * step records, for each thread, the index (plus one) of the last step of
+   * that thread that happens-before it. A step happens-after the earlier steps
+   * of the same thread, the earlier steps that it is dependent on, and, if it
+   * acquires a monitor, the step in which the monitor was last released.
+   */
+  private void addBacktrackPoints(List<Node> stack, List<CooperativeScheduler.Step> trace,
+      int numThreads) {
+    int[][] clocks = new int[trace.size()][];
+    int[] lastStep = new int[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      lastStep[i] = -1;
+    }
+    for (int i = 0; i < trace.size(); i++) {
+      CooperativeScheduler.Step step = trace.get(i);
+      int thread = step.thread;
+      int[] threadClock = lastStep[thread] < 0 ? new int[numThreads] : clocks[lastStep[thread]];
+
+      for (int j = i - 1; j >= 0; j--) {
+        CooperativeScheduler.Step other = trace.get(j);
+        if (other.thread == thread || !step.operation.isDependent(other.operation)) {
+          continue;
+        }
+        if (threadClock[other.thread] > j) {
+          // The other step happens-before this thread's current step.
+          continue;
+        }
+        Node node = stack.get(j);
+        if (node.enabled.contains(thread)) {
+          node.backtrack.add(thread);
+        } else {
+          node.backtrack.addAll(node.enabled);
+        }
+        break;
+      }
+
+      int[] clock = threadClock.clone();
+      for (int j = 0; j < i; j++) {
+        if (j == step.releaseStep || step.operation.isDependent(trace.get(j).operation)) {
+          join(clock, clocks[j]);
+        }
+      }
+      clock[thread] = i + 1;
+      clocks[i] = clock;
+      lastStep[thread] = i;
+    }
+  }
+
+  /** Sets each element of the clock to the maximum of itself and the other clock. */
+  private static void join(int[] clock, int[] other) {
+    for (int i = 0; i < clock.length; i++) {
+      clock[i] = Math.max(clock[i], other[i]);
+    }
+  }
+}
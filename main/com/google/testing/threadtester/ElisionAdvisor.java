@@ -0,0 +1,493 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Finds synchronization that costs throughput without protecting anything.
+ * The advisor explores the schedules of a set of threads with a {@link
+ * ScheduleExplorer}, and observes every field access, monitor and {@link
+ * java.util.concurrent.locks.Lock} in every run. It then reports three kinds
+ * of {@link ElisionCandidate}:
+ * <ul>
+ * <li>Volatile fields that were only ever accessed by one thread. A field is
+ * shared if, in any run, the same field of the same object (or the same static
+ * field) was accessed by more than one thread.
+ * <li>Positions at which a monitor or lock was acquired, where the monitor or
+ * lock was never contended. A monitor or lock is contended in a run if it is
+ * acquired by more than one thread. Explorers such as the {@link DporExplorer}
+ * skip schedules that are equivalent to ones already run, so the explored
+ * schedules may not include one in which a thread actually waits. Waiting on
+ * a monitor, or notifying it, also counts as contention, as the monitor is
+ * being used to coordinate threads.
+ * <li>Critical sections that never touched shared state. A critical section
+ * runs from the outermost acquisition of a monitor or lock to its release, and
+ * includes any instrumented code that it calls. It touches shared state if it
+ * accesses a field, or a standard collection, that was also accessed by
+ * another thread in the same run, either inside or outside a critical section.
+ * </ul>
+ * Accesses, acquisitions and executions are counted over all of the explored
+ * schedules. Only instrumented code is observed, so synchronization that
+ * protects state used by non-instrumented code may be reported. The advice is
+ * only as good as the exploration: if the exploration is not complete, or the
+ * runnables do not use the code in the same way as the application, then the
+ * synchronization may still be needed.
+ */
+public class ElisionAdvisor {
+
+  /**
+   * The default maximum number of schedules explored by the default
+   * explorer.
+   */
+  public static final int DEFAULT_MAX_SCHEDULES = 100;
+
+  private ScheduleExplorer explorer;
+
+  /** Records the uses of a field, a monitor or a lock position. */
+  private static class Site {
+    final String name;
+    int count;
+    final Set<String> positions = new LinkedHashSet<String>();
+
+    /** True if the site was shared, contended, or touched shared state. */
+    boolean used;
+
+    Site(String name) {
+      this.name = name;
+    }
+
+    void merge(Site other) {
+      count += other.count;
+      positions.addAll(other.positions);
+      used |= other.used;
+    }
+  }
+
+  /** Records which threads accessed a field or collection in one run. */
+  private static class Use {
+    final String name;
+    final boolean isVolatile;
+    int thread = -1;
+    boolean shared;
+
+    Use(String name, boolean isVolatile) {
+      this.name = name;
+      this.isVolatile = isVolatile;
+    }
+
+    void access(int accessor) {
+      if (thread < 0) {
+        thread = accessor;
+      } else if (thread != accessor) {
+        shared = true;
+      }
+    }
+  }
+
+  /** The state of a monitor or lock in one run. */
+  private static class Holder {
+    int owner = -1;
+    int count;
+    int firstOwner = -1;
+    boolean contended;
+    final Set<String> positions = new HashSet<String>();
+
+    void acquire(int thread) {
+      owner = thread;
+      if (firstOwner < 0) {
+        firstOwner = thread;
+      } else if (firstOwner != thread) {
+        contended = true;
+      }
+    }
+  }
+
+  /** A critical section that a thread has entered. */
+  private static class Section {
+    final Object lock;
+    final String position;
+    final Set<Use> touched = new HashSet<Use>();
+
+    Section(Object lock, String position) {
+      this.lock = lock;
+      this.position = position;
+    }
+  }
+
+  /**
+   * Records one run. The listeners for the run's threads are invoked one at a
+   * time by the {@link CooperativeScheduler}, so they do not need to be
+   * synchronized.
+   */
+  private static class Run implements SequentialRunner.ListenerFactory {
+    final Map<Object, Map<String, Use>> fields = new IdentityHashMap<Object, Map<String, Use>>();
+    final Map<Object, Use> collections = new IdentityHashMap<Object, Use>();
+    final Map<Object, Holder> monitors = new IdentityHashMap<Object, Holder>();
+    final Map<Object, Holder> locks = new IdentityHashMap<Object, Holder>();
+    final List<Section> sections = new ArrayList<Section>();
+    final Map<String, Site> volatileSites = new TreeMap<String, Site>();
+    final Map<String, Site> lockSites = new TreeMap<String, Site>();
+    final Map<String, Site> sectionSites = new TreeMap<String, Site>();
+
+    @Override
+    public ProbeListener createListener(Thread thread, int index) {
+      return new Observer(this, index);
+    }
+
+    Use getField(Object owner, String field, boolean isVolatile) {
+      Map<String, Use> uses = fields.get(owner);
+      if (uses == null) {
+        uses = new HashMap<String, Use>();
+        fields.put(owner, uses);
+      }
+      Use use = uses.get(field);
+      if (use == null) {
+        use = new Use(field, isVolatile);
+        uses.put(field, use);
+      }
+      return use;
+    }
+
+    Use getCollection(Object collection) {
+      Use use = collections.get(collection);
+      if (use == null) {
+        use = new Use(collection.getClass().getName(), false);
+        collections.put(collection, use);
+      }
+      return use;
+    }
+
+    static Holder getHolder(Map<Object, Holder> holders, Object target) {
+      Holder holder = holders.get(target);
+      if (holder == null) {
+        holder = new Holder();
+        holders.put(target, holder);
+      }
+      return holder;
+    }
+
+    static Site getSite(Map<String, Site> sites, String key, String name) {
+      Site site = sites.get(key);
+      if (site == null) {
+        site = new Site(name);
+        sites.put(key, site);
+      }
+      return site;
+    }
+
+    /**
+     * Marks the sites that were used in this run. Called once all of the
+     * threads have finished, when it is known which fields were shared.
+     */
+    void finish() {
+      for (Map<String, Use> uses : fields.values()) {
+        for (Use use : uses.values()) {
+          if (use.isVolatile && use.shared) {
+            volatileSites.get(use.name).used = true;
+          }
+        }
+      }
+      markContended(monitors);
+      markContended(locks);
+      for (Section section : sections) {
+        for (Use use : section.touched) {
+          if (use.shared) {
+            sectionSites.get(section.position).used = true;
+            break;
+          }
+        }
+      }
+    }
+
+    private void markContended(Map<Object, Holder> holders) {
+      for (Holder holder : holders.values()) {
+        if (holder.contended) {
+          for (String position : holder.positions) {
+            lockSites.get(position).used = true;
+          }
+        }
+      }
+    }
+  }
+
+  /** Observes one of the threads in a run. */
+  private static class Observer extends ProbeListenerImpl {
+    private final Run run;
+    private final int index;
+    private final List<Section> open = new ArrayList<Section>();
+    private String enterPosition;
+
+    Observer(Run run, int index) {
+      this.run = run;
+      this.index = index;
+    }
+
+    private void access(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line, boolean isVolatile) {
+      Use use = run.getField(owner, field, isVolatile);
+      touch(use);
+      if (isVolatile) {
+        Site site = Run.getSite(run.volatileSites, field, field);
+        site.count++;
+        site.positions.add(Operation.getLocation(object, line));
+      }
+    }
+
+    private void touch(Use use) {
+      use.access(index);
+      for (Section section : open) {
+        section.touched.add(use);
+      }
+    }
+
+    private void enter(ObjectInstrumentationImpl<?> object, int line) {
+      enterPosition = Operation.getLocation(object, line);
+    }
+
+    private void acquired(Map<Object, Holder> holders, Object target) {
+      Holder holder = Run.getHolder(holders, target);
+      if (holder.count == 0) {
+        holder.acquire(index);
+        open.add(new Section(target, enterPosition));
+        Site section = Run.getSite(run.sectionSites, enterPosition, target.getClass().getName());
+        section.count++;
+        section.positions.add(enterPosition);
+      }
+      holder.count++;
+      holder.positions.add(enterPosition);
+      Site site = Run.getSite(run.lockSites, enterPosition, target.getClass().getName());
+      site.count++;
+      site.positions.add(enterPosition);
+    }
+
+    private void released(Map<Object, Holder> holders, Object target) {
+      Holder holder = Run.getHolder(holders, target);
+      if (holder.owner != index) {
+        return;
+      }
+      holder.count--;
+      if (holder.count > 0) {
+        return;
+      }
+      holder.owner = -1;
+      for (int i = open.size() - 1; i >= 0; i--) {
+        if (open.get(i).lock == target) {
+          run.sections.add(open.remove(i));
+          return;
+        }
+      }
+    }
+
+    @Override
+    public void monitorEnter(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      enter(object, line);
+    }
+
+    @Override
+    public void monitorAcquired(ObjectInstrumentationImpl<?> object, Object monitor) {
+      acquired(run.monitors, monitor);
+    }
+
+    @Override
+    public void monitorExit(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      released(run.monitors, monitor);
+    }
+
+    @Override
+    public boolean monitorWait(ObjectInstrumentationImpl<?> object, Object monitor, long timeout,
+        int nanos, int line) {
+      Run.getHolder(run.monitors, monitor).contended = true;
+      return false;
+    }
+
+    @Override
+    public void monitorNotify(ObjectInstrumentationImpl<?> object, Object monitor, boolean all,
+        int line) {
+      Run.getHolder(run.monitors, monitor).contended = true;
+    }
+
+    @Override
+    public void lockEnter(ObjectInstrumentationImpl<?> object, Object lock, boolean tryLock,
+        int line) {
+      enter(object, line);
+    }
+
+    @Override
+    public void lockAcquired(ObjectInstrumentationImpl<?> object, Object lock) {
+      acquired(run.locks, lock);
+    }
+
+    @Override
+    public void lockExit(ObjectInstrumentationImpl<?> object, Object lock, int line) {
+      released(run.locks, lock);
+    }
+
+    @Override
+    public void fieldRead(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      access(object, owner, field, line, false);
+    }
+
+    @Override
+    public void fieldWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      access(object, owner, field, line, false);
+    }
+
+    @Override
+    public void volatileRead(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      access(object, owner, field, line, true);
+    }
+
+    @Override
+    public void volatileWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      access(object, owner, field, line, true);
+    }
+
+    @Override
+    public void collectionAccess(ObjectInstrumentationImpl<?> object, Object collection,
+        boolean write, int line) {
+      touch(run.getCollection(collection));
+    }
+  }
+
+  /** Combines the runs performed during one exploration. */
+  private static class Report implements ScheduleExplorer.RunObserver {
+    final Map<String, Site> volatileSites = new TreeMap<String, Site>();
+    final Map<String, Site> lockSites = new TreeMap<String, Site>();
+    final Map<String, Site> sectionSites = new TreeMap<String, Site>();
+
+    @Override
+    public SequentialRunner.ListenerFactory startRun() {
+      return new Run();
+    }
+
+    @Override
+    public synchronized void finishRun(SequentialRunner.ListenerFactory observers) {
+      Run run = (Run) observers;
+      run.finish();
+      merge(volatileSites, run.volatileSites);
+      merge(lockSites, run.lockSites);
+      merge(sectionSites, run.sectionSites);
+    }
+
+    private static void merge(Map<String, Site> sites, Map<String, Site> runSites) {
+      for (Map.Entry<String, Site> entry : runSites.entrySet()) {
+        Site site = sites.get(entry.getKey());
+        if (site == null) {
+          site = new Site(entry.getValue().name);
+          sites.put(entry.getKey(), site);
+        }
+        site.merge(entry.getValue());
+      }
+    }
+
+    synchronized List<ElisionCandidate> getCandidates() {
+      List<ElisionCandidate> candidates = new ArrayList<ElisionCandidate>();
+      addCandidates(candidates, ElisionCandidate.Kind.UNSHARED_VOLATILE, volatileSites);
+      addCandidates(candidates, ElisionCandidate.Kind.UNCONTENDED_LOCK, lockSites);
+      addCandidates(candidates, ElisionCandidate.Kind.UNSHARED_CRITICAL_SECTION, sectionSites);
+      return candidates;
+    }
+
+    private static void addCandidates(List<ElisionCandidate> candidates,
+        ElisionCandidate.Kind kind, Map<String, Site> sites) {
+      for (Site site : sites.values()) {
+        if (!site.used) {
+          candidates.add(new ElisionCandidate(kind, site.name, site.count,
+              new ArrayList<String>(site.positions)));
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates an ElisionAdvisor that uses a {@link DporExplorer} to explore at
+   * most {@link #DEFAULT_MAX_SCHEDULES} schedules.
+   */
+  public ElisionAdvisor() {
+    DporExplorer dpor = new DporExplorer();
+    dpor.setMaxSchedules(DEFAULT_MAX_SCHEDULES);
+    this.explorer = dpor;
+  }
+
+  /**
+   * Sets the explorer used to run the threads. The explorer must not be used
+   * by anything else while the advisor is running.
+   */
+  public void setExplorer(ScheduleExplorer explorer) {
+    this.explorer = explorer;
+  }
+
+  /** Gets the explorer used to run the threads. */
+  public ScheduleExplorer getExplorer() {
+    return explorer;
+  }
+
+  /**
+   * Explores the schedules of the given main and secondary runnables, and
+   * reports the synchronization that did not protect anything.
+   */
+  public <M extends MainRunnable<T>, T> ElisionResult advise(
+      M main, SecondaryRunnable<T, M> secondary) {
+    List<SecondaryRunnable<T, M>> secondaries = new ArrayList<SecondaryRunnable<T, M>>();
+    secondaries.add(secondary);
+    return advise(main, secondaries);
+  }
+
+  /**
+   * Explores the schedules of the given main runnable and any number of
+   * secondary runnables, and reports the synchronization that did not protect
+   * anything. See {@link ScheduleExplorer#explore(MainRunnable, List)}.
+   */
+  public <M extends MainRunnable<T>, T> ElisionResult advise(
+      M main, List<? extends SecondaryRunnable<T, M>> secondaries) {
+    Report report = new Report();
+    explorer.setRunObserver(report);
+    try {
+      return new ElisionResult(explorer.explore(main, secondaries), report.getCandidates());
+    } finally {
+      explorer.setRunObserver(null);
+    }
+  }
+
+  /**
+   * Explores the schedules of the runnables created by the given factory, and
+   * reports the synchronization that did not protect anything. See {@link
+   * ScheduleExplorer#explore(RunnableFactory)}.
+   */
+  public <M extends MainRunnable<T>, T> ElisionResult advise(RunnableFactory<M, T> factory) {
+    Report report = new Report();
+    explorer.setRunObserver(report);
+    try {
+      return new ElisionResult(explorer.explore(factory), report.getCandidates());
+    } finally {
+      explorer.setRunObserver(null);
+    }
+  }
+}
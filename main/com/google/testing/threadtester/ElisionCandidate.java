@@ -0,0 +1,107 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes synchronization, found by an {@link ElisionAdvisor}, that did not
+ * protect anything in any of the explored schedules. Removing it may improve
+ * throughput, but only if the schedules cover all of the ways in which the
+ * code is used.
+ */
+public class ElisionCandidate {
+
+  /** The different kinds of candidate. */
+  public enum Kind {
+    /**
+     * A volatile field that was only ever accessed by one thread. The name is
+     * the qualified name of the field, and the count is the number of reads and
+     * writes.
+     */
+    UNSHARED_VOLATILE,
+    /**
+     * A position at which a monitor or a {@link
+     * java.util.concurrent.locks.Lock} was acquired, where the monitor or lock
+     * was only ever acquired by one thread. The name is the class of the monitor or lock, and the
+     * count is the number of acquisitions.
+     */
+    UNCONTENDED_LOCK,
+    /**
+     * A synchronized method, synchronized block or locked region, identified by
+     * the position at which it acquires its monitor or lock, that never
+     * accessed a field or collection that was also accessed by another thread.
+     * The name is the class of the monitor or lock, and the count is the number
+     * of times that the critical section was executed.
+     */
+    UNSHARED_CRITICAL_SECTION
+  }
+
+  private final Kind kind;
+  private final String name;
+  private final int count;
+  private final List<String> positions;
+
+  ElisionCandidate(Kind kind, String name, int count, List<String> positions) {
+    this.kind = kind;
+    this.name = name;
+    this.count = count;
+    this.positions = Collections.unmodifiableList(new ArrayList<String>(positions));
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  /** Gets the name of the field, or the class of the monitor or lock. */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the number of accesses, acquisitions or executions, summed over all
+   * of the explored schedules.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Gets the positions in the code, in the form "class:line". For a volatile
+   * field, these are the positions at which it was accessed. Otherwise there
+   * is a single position, at which the monitor or lock was acquired.
+   */
+  public List<String> getPositions() {
+    return positions;
+  }
+
+  @Override
+  public String toString() {
+    switch (kind) {
+      case UNSHARED_VOLATILE:
+        return "volatile " + name + " only accessed by one thread (" + count + " accesses at " +
+            positions + ")";
+      case UNCONTENDED_LOCK:
+        return name + " never contended (" + count + " acquisitions at " + positions + ")";
+      default:
+        return name + " critical section touched no shared state (" + count +
+            " executions at " + positions + ")";
+    }
+  }
+}
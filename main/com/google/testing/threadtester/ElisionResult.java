@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents the result of running an {@link ElisionAdvisor}. As well as the
+ * exceptions and schedule of any failing run, the result contains the
+ * synchronization that did not protect anything in the explored schedules.
+ */
+public class ElisionResult extends RunResult {
+  private final ExplorationResult explorationResult;
+  private final List<ElisionCandidate> candidates;
+
+  ElisionResult(ExplorationResult explorationResult, List<ElisionCandidate> candidates) {
+    super(explorationResult.getMainException(), explorationResult.getSecondaryException());
+    setSchedule(explorationResult.getSchedule());
+    this.explorationResult = explorationResult;
+    this.candidates = Collections.unmodifiableList(new ArrayList<ElisionCandidate>(candidates));
+  }
+
+  /**
+   * Gets the result of the exploration. The advice is only reliable if the
+   * exploration was complete.
+   */
+  public ExplorationResult getExplorationResult() {
+    return explorationResult;
+  }
+
+  /** Returns true if any synchronization could be removed. */
+  public boolean hadCandidates() {
+    return !candidates.isEmpty();
+  }
+
+  /**
+   * Gets the synchronization that could be removed, ordered by kind, and then
+   * by name and position.
+   */
+  public List<ElisionCandidate> getCandidates() {
+    return candidates;
+  }
+
+  /** Gets the candidates of the given kind. */
+  public List<ElisionCandidate> getCandidates(ElisionCandidate.Kind kind) {
+    List<ElisionCandidate> result = new ArrayList<ElisionCandidate>();
+    for (ElisionCandidate candidate : candidates) {
+      if (candidate.getKind() == kind) {
+        result.add(candidate);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + ", candidates=" + candidates;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents the result of running a {@link ScheduleExplorer}. If one of the
+ * explored schedules failed, then the exceptions and the schedule are those of
+ * the failing run. Otherwise the result has no exceptions, and no schedule.
+ */
+public class ExplorationResult extends RunResult {
+  private final int numSchedules;
+  private final int numPruned;
+  private final boolean complete;
+  private Long seed;
+  private List<Integer> schedulesPerBound = Collections.emptyList();
+  private int totalSchedules = -1;
+
+  ExplorationResult(RunResult result, int numSchedules, int numPruned, boolean complete) {
+    super(result.getMainException(), result.getSecondaryException());
+    setSchedule(result.hadException() ? result.getSchedule() : null);
+    this.numSchedules = numSchedules;
+    this.numPruned = numPruned;
+    this.complete = complete;
+  }
+
+  /** Gets the number of schedules that were executed. */
+  public int getNumSchedules() {
+    return numSchedules;
+  }
+
+  /**
+   * Gets the number of schedules that were not executed because they were
+   * known to be equivalent to a schedule that was executed. This counts the
+   * choices of thread at each scheduling point that were skipped.
+   */
+  public int getNumPruned() {
+    return numPruned;
+  }
+
+  /**
+   * Returns true if the exploration covered all of the schedules that it
+   * needed to. Will be false if the exploration stopped because of a failure,
+   * or because it reached a limit.
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Gets the random seed that produced the failing schedule, or null if there
+   * was no failure, or the explorer does not choose schedules at random. See
+   * {@link PctExplorer#setSeed}.
+   */
+  public Long getSeed() {
+    return seed;
+  }
+
+  void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Gets the number of schedules that were executed with each number of
+   * preemptions. Element i of the list is the number of schedules with exactly
+   * i preemptions. The list is only filled in by explorers that bound the
+   * number of preemptions (see {@link PreemptionBoundedExplorer}), and will be
+   * empty for other explorers.
+   */
+  public List<Integer> getSchedulesPerBound() {
+    return schedulesPerBound;
+  }
+
+  void setSchedulesPerBound(List<Integer> schedulesPerBound) {
+    this.schedulesPerBound = Collections.unmodifiableList(schedulesPerBound);
+  }
+
+  /**
+   * Gets the total number of schedules in the space being explored, or -1 if
+   * the size of the space is not known. Only filled in by explorers that
+   * can stop before covering the whole space. See {@link
+   * InterleavedRunner#interleaveWithinBudget}.
+   */
+  public int getTotalSchedules() {
+    return totalSchedules;
+  }
+
+  void setTotalSchedules(int totalSchedules) {
+    this.totalSchedules = totalSchedules;
+  }
+
+  /**
+   * Gets the fraction of the total number of schedules that were either
+   * executed, or pruned because they were equivalent to an executed schedule.
+   * Returns -1 if the total number of schedules is not known.
+   */
+  public double getCoverage() {
+    if (totalSchedules < 0) {
+      return -1;
+    }
+    if (totalSchedules == 0) {
+      return 1;
+    }
+    return Math.min(1.0, (double) (numSchedules + numPruned) / totalSchedules);
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + ", schedules=" + numSchedules + ", pruned=" + numPruned +
+        ", complete=" + complete + (seed == null ? "" : ", seed=" + seed) +
+        (schedulesPerBound.isEmpty() ? "" : ", schedulesPerBound=" + schedulesPerBound) +
+        (totalSchedules < 0 ? "" : ", total=" + totalSchedules);
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.lang.reflect.Field;
+
+/**
+ * Describes a pair of fields, found by a {@link FalseSharingDetector}, that
+ * are written by different threads and that are close enough to share a cache
+ * line. Writing to one field invalidates the cache line in the other thread's
+ * cache, even though the threads do not share any data. The fields belong to
+ * the same object, and the first field has the lower offset.
+ */
+public class FalseSharing {
+  private final Field firstField;
+  private final long firstOffset;
+  private final int firstWrites;
+  private final Field secondField;
+  private final long secondOffset;
+  private final int secondWrites;
+  private final double probability;
+
+  FalseSharing(Field firstField, long firstOffset, int firstWrites, Field secondField,
+      long secondOffset, int secondWrites, double probability) {
+    this.firstField = firstField;
+    this.firstOffset = firstOffset;
+    this.firstWrites = firstWrites;
+    this.secondField = secondField;
+    this.secondOffset = secondOffset;
+    this.secondWrites = secondWrites;
+    this.probability = probability;
+  }
+
+  /** Gets the field with the lower offset. */
+  public Field getFirstField() {
+    return firstField;
+  }
+
+  /** Gets the offset of the first field within its object, in bytes. */
+  public long getFirstOffset() {
+    return firstOffset;
+  }
+
+  /** Gets the number of times that the first field was written. */
+  public int getFirstWrites() {
+    return firstWrites;
+  }
+
+  /** Gets the field with the higher offset. */
+  public Field getSecondField() {
+    return secondField;
+  }
+
+  /** Gets the offset of the second field within its object, in bytes. */
+  public long getSecondOffset() {
+    return secondOffset;
+  }
+
+  /** Gets the number of times that the second field was written. */
+  public int getSecondWrites() {
+    return secondWrites;
+  }
+
+  /**
+   * Gets the probability that the fields are in the same cache line, given
+   * the possible alignments of their object.
+   */
+  public double getProbability() {
+    return probability;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s.%s@%d (%d writes) and %s@%d (%d writes): %.0f%%",
+        firstField.getDeclaringClass().getName(), firstField.getName(), firstOffset, firstWrites,
+        secondField.getName(), secondOffset, secondWrites, probability * 100);
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds fields that are written by different threads and that probably share
+ * a cache line. The main and secondary runnables are run one at a time, and
+ * the probes that the {@link TestInstrumenter} adds to instrumented classes
+ * record the number of times that each thread writes each field of each
+ * object. Fields that are not written in instrumented code, and static fields,
+ * are not seen.
+ * <p>
+ * For each object, every pair of fields written by different threads is
+ * compared using the fields' offsets within the object, as reported by the JVM
+ * (see {@code sun.misc.Unsafe.objectFieldOffset}). The address of the object
+ * is not known, and may change during garbage collection, so the detector
+ * assumes that it is equally likely to be at any multiple of {@link
+ * #OBJECT_ALIGNMENT} within a cache line. A pair is reported if the
+ * probability that the fields share a cache line is at least the minimum
+ * probability. Fields that have been padded, or annotated with {@code
+ * @Contended} on a JVM that honours the annotation, will be far enough apart
+ * not to be reported.
+ * <p>
+ * Reports for the same pair of fields in different objects are combined, and
+ * their write counts added together.
+ */
+public class FalseSharingDetector {
+
+  /** The default size of a cache line, in bytes. */
+  public static final int DEFAULT_CACHE_LINE_SIZE = 64;
+
+  /** The default minimum probability of sharing a cache line. */
+  public static final double DEFAULT_MIN_PROBABILITY = 0.5;
+
+  /** The alignment of objects in memory, in bytes. */
+  public static final int OBJECT_ALIGNMENT = 8;
+
+  private int cacheLineSize = DEFAULT_CACHE_LINE_SIZE;
+  private double minProbability = DEFAULT_MIN_PROBABILITY;
+
+  /**
+   * The number of writes to each field of each object, indexed by thread.
+   * Fields are identified by the names used by the probes.
+   */
+  private final Map<Object, Map<String, int[]>> writes =
+      new IdentityHashMap<Object, Map<String, int[]>>();
+
+  private int numThreads;
+
+  /** Records the writes made by one thread. */
+  private class WriteRecorder extends ProbeListenerImpl {
+    private final int index;
+
+    WriteRecorder(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public void fieldWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      if (owner == null) {
+        return;
+      }
+      synchronized (FalseSharingDetector.this) {
+        Map<String, int[]> fields = writes.get(owner);
+        if (fields == null) {
+          fields = new LinkedHashMap<String, int[]>();
+          writes.put(owner, fields);
+        }
+        int[] counts = fields.get(field);
+        if (counts == null) {
+          counts = new int[numThreads];
+          fields.put(field, counts);
+        }
+        counts[index]++;
+      }
+    }
+  }
+
+  /**
+   * Sets the size of a cache line, in bytes. Must be a multiple of {@link
+   * #OBJECT_ALIGNMENT}.
+   */
+  public void setCacheLineSize(int cacheLineSize) {
+    if (cacheLineSize <= 0 || cacheLineSize % OBJECT_ALIGNMENT != 0) {
+      throw new IllegalArgumentException("Invalid cache line size: " + cacheLineSize);
+    }
+    this.cacheLineSize = cacheLineSize;
+  }
+
+  /** Gets the size of a cache line, in bytes. */
+  public int getCacheLineSize() {
+    return cacheLineSize;
+  }
+
+  /**
+   * Sets the minimum probability of sharing a cache line for a pair of fields
+   * to be reported. Must be greater than 0, and no more than 1.
+   */
+  public void setMinProbability(double minProbability) {
+    if (minProbability <= 0 || minProbability > 1) {
+      throw new IllegalArgumentException("Invalid probability: " + minProbability);
+    }
+    this.minProbability = minProbability;
+  }
+
+  /** Gets the minimum probability of sharing a cache line. */
+  public double getMinProbability() {
+    return minProbability;
+  }
+
+  /** Runs the given main and secondary runnables, and reports any false sharing. */
+  public <M extends MainRunnable<T>, T> FalseSharingResult detect(
+      M main, SecondaryRunnable<T, M> secondary) {
+    return detect(main, Collections.singletonList(secondary));
+  }
+
+  /**
+   * Runs the given main runnable and any number of secondary runnables, and
+   * reports any false sharing between them. The runnables are initialized, run
+   * one at a time, and then terminated if none of them threw an exception.
+   *
+   * @return a FalseSharingResult containing any exceptions thrown by the
+   *         runnables, and the pairs of fields that probably share a cache
+   *         line.
+   */
+  public <M extends MainRunnable<T>, T> FalseSharingResult detect(
+      M main, List<? extends SecondaryRunnable<T, M>> secondaries) {
+    synchronized (this) {
+      writes.clear();
+      numThreads = secondaries.size() + 1;
+    }
+    RunResult result = SequentialRunner.run(main, secondaries, "FalseSharingDetector",
+        new SequentialRunner.ListenerFactory() {
+          @Override
+          public ProbeListener createListener(Thread thread, int index) {
+            return new WriteRecorder(index);
+          }
+        });
+    synchronized (this) {
+      List<FalseSharing> falseSharing = findFalseSharing();
+      writes.clear();
+      return new FalseSharingResult(result.getMainException(), result.getSecondaryException(),
+          falseSharing);
+    }
+  }
+
+  /**
+   * Compares the fields written in each object, and combines the pairs that
+   * probably share a cache line.
+   */
+  private List<FalseSharing> findFalseSharing() {
+    Map<List<Field>, FalseSharing> found = new LinkedHashMap<List<Field>, FalseSharing>();
+    Map<String, Field> resolved = new HashMap<String, Field>();
+    for (Map.Entry<Object, Map<String, int[]>> object : writes.entrySet()) {
+      List<Field> fields = new ArrayList<Field>();
+      List<int[]> counts = new ArrayList<int[]>();
+      for (Map.Entry<String, int[]> entry : object.getValue().entrySet()) {
+        Class<?> clss = object.getKey().getClass();
+        String key = clss.getName() + " " + entry.getKey();
+        if (!resolved.containsKey(key)) {
+          resolved.put(key, FieldLayout.findField(clss, entry.getKey()));
+        }
+        Field field = resolved.get(key);
+        if (field != null) {
+          fields.add(field);
+          counts.add(entry.getValue());
+        }
+      }
+      for (int i = 0; i < fields.size(); i++) {
+        for (int j = i + 1; j < fields.size(); j++) {
+          if (!writtenByDifferentThreads(counts.get(i), counts.get(j))) {
+            continue;
+          }
+          FalseSharing pair = compare(fields.get(i), sum(counts.get(i)), fields.get(j),
+              sum(counts.get(j)));
+          if (pair == null) {
+            continue;
+          }
+          List<Field> key = new ArrayList<Field>();
+          key.add(pair.getFirstField());
+          key.add(pair.getSecondField());
+          FalseSharing previous = found.get(key);
+          if (previous != null) {
+            pair = new FalseSharing(pair.getFirstField(), pair.getFirstOffset(),
+                pair.getFirstWrites() + previous.getFirstWrites(), pair.getSecondField(),
+                pair.getSecondOffset(), pair.getSecondWrites() + previous.getSecondWrites(),
+                pair.getProbability());
+          }
+          found.put(key, pair);
+        }
+      }
+    }
+    List<FalseSharing> result = new ArrayList<FalseSharing>(found.values());
+    Collections.sort(result, new Comparator<FalseSharing>() {
+      @Override
+      public int compare(FalseSharing first, FalseSharing second) {
+        return Double.compare(second.getProbability(), first.getProbability());
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Returns a FalseSharing for the given fields, or null if the probability
+   * that they share a cache line is less than the minimum.
+   */
+  private FalseSharing compare(Field first, int firstWrites, Field second, int secondWrites) {
+    long firstOffset = FieldLayout.getOffset(first);
+    long secondOffset = FieldLayout.getOffset(second);
+    if (firstOffset > secondOffset) {
+      return compare(second, secondWrites, first, firstWrites);
+    }
+    long firstEnd = firstOffset + FieldLayout.getSize(first) - 1;
+    long secondEnd = secondOffset + FieldLayout.getSize(second) - 1;
+    int shared = 0;
+    int alignments = cacheLineSize / OBJECT_ALIGNMENT;
+    for (int base = 0; base < cacheLineSize; base += OBJECT_ALIGNMENT) {
+      // The fields share a line if the last line of the first field is the
+      // first line of the second field.
+      if ((base + firstEnd) / cacheLineSize >= (base + secondOffset) / cacheLineSize) {
+        shared++;
+      }
+    }
+    double probability = (double) shared / alignments;
+    if (probability < minProbability) {
+      return null;
+    }
+    return new FalseSharing(first, firstOffset, firstWrites, second, secondOffset, secondWrites,
+        probability);
+  }
+
+  /**
+   * Returns true if there is a thread that wrote the first field, and a
+   * different thread that wrote the second field.
+   */
+  private static boolean writtenByDifferentThreads(int[] first, int[] second) {
+    for (int i = 0; i < first.length; i++) {
+      for (int j = 0; j < second.length; j++) {
+        if (i != j && first[i] > 0 && second[j] > 0) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static int sum(int[] counts) {
+    int total = 0;
+    for (int count : counts) {
+      total += count;
+    }
+    return total;
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents the result of running a {@link FalseSharingDetector}. As well as
+ * any exceptions thrown by the runnables, the result contains the pairs of
+ * fields that probably share a cache line.
+ */
+public class FalseSharingResult extends RunResult {
+  private final List<FalseSharing> falseSharing;
+
+  FalseSharingResult(Throwable main, Throwable secondary, List<FalseSharing> falseSharing) {
+    super(main, secondary);
+    this.falseSharing = Collections.unmodifiableList(new ArrayList<FalseSharing>(falseSharing));
+  }
+
+  /** Returns true if any pairs of fields probably share a cache line. */
+  public boolean hadFalseSharing() {
+    return !falseSharing.isEmpty();
+  }
+
+  /**
+   * Gets the pairs of fields that probably share a cache line, with the most
+   * likely pairs first.
+   */
+  public List<FalseSharing> getFalseSharing() {
+    return falseSharing;
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + ", falseSharing=" + falseSharing;
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the offsets of the instance fields of a class within its objects. The
+ * offsets are obtained from {@code sun.misc.Unsafe.objectFieldOffset} if it
+ * is available, so they take account of the JVM's field reordering and of any
+ * padding added for {@code @Contended} fields. Otherwise, they are estimated
+ * using the HotSpot layout rules: a 12-byte header, followed by the fields of
+ * each class, starting with the superclasses, with each class's fields in
+ * order of decreasing size, and references last.
+ */
+class FieldLayout {
+
+  /** The size of an object header, used when estimating offsets. */
+  private static final int HEADER_SIZE = 12;
+
+  /** The objectFieldOffset method of the Unsafe object, or null if not available. */
+  private static final Method OBJECT_FIELD_OFFSET;
+
+  /** The Unsafe object, or null if not available. */
+  private static final Object UNSAFE;
+
+  /** The size of a reference, in bytes. */
+  private static final int REFERENCE_SIZE;
+
+  static {
+    Method objectFieldOffset = null;
+    Object unsafe = null;
+    int referenceSize = 4;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe = theUnsafe.get(null);
+      objectFieldOffset = unsafeClass.getMethod("objectFieldOffset", Field.class);
+      Method arrayIndexScale = unsafeClass.getMethod("arrayIndexScale", Class.class);
+      referenceSize = (Integer) arrayIndexScale.invoke(unsafe, Object[].class);
+    } catch (Exception e) {
+      Options.debugPrint("Unsafe not available, estimating field offsets: %s\n", e);
+      objectFieldOffset = null;
+      unsafe = null;
+    }
+    OBJECT_FIELD_OFFSET = objectFieldOffset;
+    UNSAFE = unsafe;
+    REFERENCE_SIZE = referenceSize;
+  }
+
+  private static final Map<Class<?>, Map<Field, Long>> estimates =
+      new HashMap<Class<?>, Map<Field, Long>>();
+
+  private FieldLayout() {
+    // All methods are static
+  }
+
+  /** Returns true if the offsets are obtained from the JVM, and not estimated. */
+  static boolean isExact() {
+    return OBJECT_FIELD_OFFSET != null;
+  }
+
+  /** Gets the offset of the given instance field, in bytes. */
+  static long getOffset(Field field) {
+    if (OBJECT_FIELD_OFFSET != null) {
+      try {
+        return (Long) OBJECT_FIELD_OFFSET.invoke(UNSAFE, field);
+      } catch (Exception e) {
+        Options.debugPrint("Cannot get offset of %s: %s\n", field, e);
+      }
+    }
+    synchronized (estimates) {
+      return estimate(field.getDeclaringClass()).get(field);
+    }
+  }
+
+  /**
+   * Finds the field with the given name, qualified with the name of its
+   * declaring class, in the given class or its superclasses. This is the form
+   * of name passed to the probes. Returns null if the field cannot be found.
+   */
+  static Field findField(Class<?> clss, String name) {
+    int dot = name.lastIndexOf('.');
+    String className = name.substring(0, dot);
+    for (Class<?> c = clss; c != null; c = c.getSuperclass()) {
+      if (c.getName().equals(className)) {
+        try {
+          return c.getDeclaredField(name.substring(dot + 1));
+        } catch (NoSuchFieldException e) {
+          Options.debugPrint("Cannot find field %s\n", name);
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Gets the size of the given field, in bytes. */
+  static int getSize(Field field) {
+    Class<?> type = field.getType();
+    if (type == long.class || type == double.class) {
+      return 8;
+    } else if (type == int.class || type == float.class) {
+      return 4;
+    } else if (type == short.class || type == char.class) {
+      return 2;
+    } else if (type == byte.class || type == boolean.class) {
+      return 1;
+    }
+    return REFERENCE_SIZE;
+  }
+
+  /**
+   * Estimates the offsets of the instance fields of the given class and its
+   * superclasses.
+   */
+  private static Map<Field, Long> estimate(Class<?> clss) {
+    Map<Field, Long> offsets = estimates.get(clss);
+    if (offsets != null) {
+      return offsets;
+    }
+    offsets = new HashMap<Field, Long>();
+    long end = HEADER_SIZE;
+    if (clss.getSuperclass() != null) {
+      Map<Field, Long> inherited = estimate(clss.getSuperclass());
+      offsets.putAll(inherited);
+      for (Map.Entry<Field, Long> entry : inherited.entrySet()) {
+        end = Math.max(end, entry.getValue() + getSize(entry.getKey()));
+      }
+    }
+    List<Field> fields = new ArrayList<Field>();
+    for (Field field : clss.getDeclaredFields()) {
+      if (!Modifier.isStatic(field.getModifiers())) {
+        fields.add(field);
+      }
+    }
+    // Primitives by decreasing size, then references.
+    int[] sizes = {8, 4, 2, 1, 0};
+    for (int size : sizes) {
+      for (Field field : fields) {
+        boolean isReference = !field.getType().isPrimitive();
+        if (size == 0 ? isReference : (!isReference && getSize(field) == size)) {
+          int fieldSize = getSize(field);
+          end = (end + fieldSize - 1) / fieldSize * fieldSize;
+          offsets.put(field, end);
+          end += fieldSize;
+        }
+      }
+    }
+    estimates.put(clss, offsets);
+    return offsets;
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records the history of the calls made to an object under test by several
+ * threads, so that it can be checked by a {@link LinearizabilityChecker}. For
+ * each call, the history records the invocation of the method, and the
+ * response, which is either a result or an exception. Each invocation and
+ * response is given a timestamp from a single counter, so that the history
+ * shows which calls overlapped. A History may be used from any number of
+ * threads at once.
+ * <p>
+ * Calls can be recorded explicitly:
+ * <pre>
+ *   History.Call call = history.invoke("offer", value);
+ *   boolean result = queue.offer(value);
+ *   history.respond(call, result);
+ * </pre>
+ * or, if the object under test implements an interface, by calling it through
+ * a proxy returned by {@link #record}.
+ * <p>
+ * A new History should be created for each run of a test, for example in
+ * {@link MainRunnable#initialize} or in a {@link ThreadedBefore} method.
+ */
+public class History {
+
+  /** A call recorded in a History. */
+  public static class Call {
+    private final Thread thread;
+    private final String method;
+    private final Object[] arguments;
+    private final long invocationTime;
+    private long responseTime = -1;
+    private Object result;
+    private Throwable exception;
+
+    Call(Thread thread, String method, Object[] arguments, long invocationTime) {
+      this.thread = thread;
+      this.method = method;
+      this.arguments = arguments;
+      this.invocationTime = invocationTime;
+    }
+
+    /** Gets the thread that made the call. */
+    public Thread getThread() {
+      return thread;
+    }
+
+    /** Gets the name of the method that was called. */
+    public String getMethod() {
+      return method;
+    }
+
+    /** Gets the arguments passed to the method. */
+    public Object[] getArguments() {
+      return arguments.clone();
+    }
+
+    /** Gets the argument with the given index. */
+    public Object getArgument(int index) {
+      return arguments[index];
+    }
+
+    /** Gets the timestamp of the invocation. */
+    public long getInvocationTime() {
+      return invocationTime;
+    }
+
+    /**
+     * Gets the timestamp of the response, or -1 if the call has not
+     * responded.
+     */
+    public synchronized long getResponseTime() {
+      return responseTime;
+    }
+
+    /**
+     * Returns true if the call has responded. A call that has not responded
+     * may or may not have taken effect.
+     */
+    public synchronized boolean isComplete() {
+      return responseTime >= 0;
+    }
+
+    /** Gets the result of the call, or null if it did not return normally. */
+    public synchronized Object getResult() {
+      return result;
+    }
+
+    /** Gets the exception thrown by the call, or null if there was none. */
+    public synchronized Throwable getException() {
+      return exception;
+    }
+
+    /** Returns true if this call responded before the other call was invoked. */
+    public boolean precedes(Call other) {
+      long response = getResponseTime();
+      return response >= 0 && response < other.invocationTime;
+    }
+
+    synchronized void setResponse(long time, Object result, Throwable exception) {
+      if (responseTime >= 0) {
+        throw new IllegalStateException("Call has already responded: " + this);
+      }
+      this.responseTime = time;
+      this.result = result;
+      this.exception = exception;
+    }
+
+    @Override
+    public synchronized String toString() {
+      String args = Arrays.toString(arguments);
+      String call = thread.getName() + ": " + method + "(" + args.substring(1, args.length() - 1) +
+          ") [" + invocationTime + ", ";
+      if (responseTime < 0) {
+        return call + "pending]";
+      } else if (exception != null) {
+        return call + responseTime + "] threw " + exception;
+      }
+      return call + responseTime + "] returned " + result;
+    }
+  }
+
+  private final List<Call> calls = new ArrayList<Call>();
+
+  private long time;
+
+  /**
+   * Records the invocation of the given method, with the given arguments, in
+   * the current thread.
+   *
+   * @return the call, which must be passed to {@link #respond} or {@link
+   *         #respondWithException} when the method completes
+   */
+  public synchronized Call invoke(String method, Object... arguments) {
+    Call call = new Call(Thread.currentThread(), method,
+        arguments == null ? new Object[0] : arguments.clone(), ++time);
+    calls.add(call);
+    return call;
+  }
+
+  /** Records that the given call returned the given result. */
+  public synchronized void respond(Call call, Object result) {
+    call.setResponse(++time, result, null);
+  }
+
+  /** Records that the given call threw the given exception. */
+  public synchronized void respondWithException(Call call, Throwable exception) {
+    call.setResponse(++time, null, exception);
+  }
+
+  /** Gets the calls in the order in which they were invoked. */
+  public synchronized List<Call> getCalls() {
+    return new ArrayList<Call>(calls);
+  }
+
+  /** Removes all of the calls. */
+  public synchronized void clear() {
+    calls.clear();
+  }
+
+  /**
+   * Returns a proxy for the given target that records every call made through
+   * it. The methods of {@link Object} are not recorded. The name of the
+   * method is used as the name of the call.
+   *
+   * @param type the interface implemented by the target
+   */
+  public <I> I record(Class<I> type, final I target) {
+    InvocationHandler handler = new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+          return method.invoke(target, args);
+        }
+        Call call = History.this.invoke(method.getName(), args);
+        try {
+          Object result = method.invoke(target, args);
+          respond(call, result);
+          return result;
+        } catch (InvocationTargetException e) {
+          respondWithException(call, e.getCause());
+          throw e.getCause();
+        }
+      }
+    };
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+        handler));
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder result = new StringBuilder();
+    for (Call call : calls) {
+      result.append(call).append("\n");
+    }
+    return result.toString();
+  }
+}
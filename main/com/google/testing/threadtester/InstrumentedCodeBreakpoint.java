@@ -96,6 +96,11 @@ abstract class InstrumentedCodeBreakpoint extends AbstractBreakpoint {
     return owner;
   }
 
+  @Override
+  String getTimeoutKey() {
+    return getPositionDescription();
+  }
+
   @Override
   public String toString() {
     return "Breakpoint(" + getId() + ") @ " + getPositionDescription();
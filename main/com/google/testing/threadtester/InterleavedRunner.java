@@ -18,10 +18,12 @@ package com.google.testing.threadtester;
 
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Utility class that tests two interleaved threads. The majority of methods in
+ * Utility class that tests interleaved threads. The majority of methods in
  * this class are designed to be used with {@link ClassInstrumentation instrumented
  * classes}, although there is one version of the {@link
  * #interleave(MainRunnable, SecondaryRunnable, List)} method that can be used
@@ -41,6 +43,9 @@ import java.util.List;
  */
 public class InterleavedRunner {
 
+  /** The prefix of the probe that records the line where the main runnable stopped. */
+  private static final String LINE_PROBE = "line ";
+
   private InterleavedRunner() {
     // All methods are static, so no public constructor
   }
@@ -77,7 +82,267 @@ public class InterleavedRunner {
    */
   public static <M extends MainRunnable<T>, T> RunResult interleave(
       M main, SecondaryRunnable<T, M> secondary) {
-    return doInterleave(main, secondary, null, 0);
+    return doInterleave(main, Collections.singletonList(secondary), null, 0,
+        new InterleaveOptions(), new Counts());
+  }
+
+  /**
+   * Invokes a main runnable and any number of secondary runnables,
+   * interleaving the execution. This is identical to {@link
+   * #interleave(MainRunnable, SecondaryRunnable)}, except that each time the
+   * main runnable stops, all of the secondary runnables are started at the same
+   * time, and run concurrently until they complete. This allows a test to
+   * verify that the main method behaves correctly when several other threads
+   * call the object under test part way through its execution. (E.g. two
+   * writers and a reader.)
+   * <p>
+   * A secondary runnable that is blocked by another secondary runnable is
+   * allowed to continue once the lock is released. If a secondary runnable is
+   * blocked by the main runnable, then it is handled as described in {@link
+   * #interleave(MainRunnable, SecondaryRunnable)}. Blocking is only allowed if
+   * every secondary runnable {@link SecondaryRunnable#canBlock can block}.
+   *
+   * @param main the main runnable
+   * @param secondaries the secondary runnables
+   *
+   * @return a RunResult indicating any exceptions thrown by the runnables. If
+   * more than one secondary runnable throws an exception, the result contains
+   * the first one.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method, or if there are no secondary runnables.
+   */
+  public static <M extends MainRunnable<T>, T> RunResult interleave(
+      M main, List<? extends SecondaryRunnable<T, M>> secondaries) {
+    if (secondaries.isEmpty()) {
+      throw new IllegalArgumentException("Must specify secondary runnable(s)");
+    }
+    return doInterleave(main, secondaries, null, 0, new InterleaveOptions(), new Counts());
+  }
+
+  /**
+   * Invokes two runnable instances, interleaving the execution. This is
+   * identical to {@link #interleave(MainRunnable, SecondaryRunnable)}, except
+   * that interleavings that are known to produce the same result as an earlier
+   * interleaving are skipped.
+   * <p>
+   * Each time that the main runnable stops, the runner computes a hash of the
+   * state of the main object, and of the objects reachable from it. It also
+   * counts the number of field accesses and monitor operations that the main
+   * runnable has executed. If an earlier interleaving stopped with the same
+   * count and the same state, then the lines executed in between only affected
+   * local variables, and running the secondary runnable again would have the
+   * same result. In this case the main runnable is allowed to complete, but the
+   * secondary runnable is not run, and neither runnable is terminated. Note
+   * that shared state that is only read by non-instrumented code is not seen,
+   * so interleavings that depend on such reads may be skipped.
+   *
+   * @param main the main runnable
+   * @param secondary the secondary runnable
+   *
+   * @return an ExplorationResult indicating any exceptions thrown by the two
+   * runnables, and the number of interleavings that were run and skipped.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method.
+   */
+  public static <M extends MainRunnable<T>, T> ExplorationResult interleaveDistinctStates(
+      M main, SecondaryRunnable<T, M> secondary) {
+    InterleaveOptions options = new InterleaveOptions();
+    options.deduplicator = new StateDeduplicator();
+    Counts counts = new Counts();
+    RunResult result =
+        doInterleave(main, Collections.singletonList(secondary), null, 0, options, counts);
+    return new ExplorationResult(result, counts.run, counts.pruned, !result.hadException());
+  }
+
+  /**
+   * Invokes two runnable instances, interleaving the execution. This is
+   * identical to {@link #interleave(MainRunnable, SecondaryRunnable)}, except
+   * that the main runnable only stops at lines where stopping may make a
+   * difference.
+   * <p>
+   * Before running the test, the bytecode of the main method is analysed to
+   * find the lines that access fields or array elements, call other methods,
+   * or acquire or release monitors. A line that does none of these only
+   * affects local variables, so stopping before it is equivalent to stopping
+   * before the next line. The main runnable does not stop at the next line
+   * unless it can be reached in some other way, such as a jump.
+   *
+   * @param main the main runnable
+   * @param secondary the secondary runnable
+   *
+   * @return an ExplorationResult indicating any exceptions thrown by the two
+   * runnables, the number of lines where the main runnable stopped, and the
+   * number of lines that were skipped.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method.
+   */
+  public static <M extends MainRunnable<T>, T> ExplorationResult interleaveAtSharedAccesses(
+      M main, SecondaryRunnable<T, M> secondary) {
+    InterleaveOptions options = new InterleaveOptions();
+    options.sharedLinesOnly = true;
+    Counts counts = new Counts();
+    RunResult result =
+        doInterleave(main, Collections.singletonList(secondary), null, 0, options, counts);
+    return new ExplorationResult(result, counts.run, counts.pruned, !result.hadException());
+  }
+
+  /**
+   * Invokes two runnable instances, interleaving the execution at the
+   * atomicity violations found in the main runnable. See {@link
+   * #interleaveAtAtomicityViolations(MainRunnable, List)}.
+   *
+   * @param main the main runnable
+   * @param secondary the secondary runnable
+   *
+   * @return an ExplorationResult indicating any exceptions thrown by the two
+   * runnables, the number of lines where the main runnable stopped, and the
+   * number of lines that were skipped.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method.
+   */
+  public static <M extends MainRunnable<T>, T> ExplorationResult interleaveAtAtomicityViolations(
+      M main, SecondaryRunnable<T, M> secondary) {
+    return interleaveAtAtomicityViolations(main, Collections.singletonList(secondary));
+  }
+
+  /**
+   * Invokes a main runnable and any number of secondary runnables,
+   * interleaving the execution. This is identical to {@link
+   * #interleave(MainRunnable, List)}, except that the main runnable only stops
+   * between pairs of accesses that an {@link AtomicityAnalyzer} has flagged as
+   * atomicity violations.
+   * <p>
+   * The runnables are first run once by the analyzer. For each violation in
+   * which the main runnable makes the two consecutive accesses, the main
+   * runnable is stopped before each line of the main method after the first
+   * access, up to and including the line of the second access. Violations in
+   * which the two accesses are on the same line, or in a different class, are
+   * not targeted, as the main runnable cannot stop between them. If the
+   * analyzer finds no violations, or if one of the runnables throws an
+   * exception during the analysis, then no interleavings are run.
+   *
+   * @param main the main runnable
+   * @param secondaries the secondary runnables
+   *
+   * @return an ExplorationResult indicating any exceptions thrown by the
+   * runnables, the number of lines where the main runnable stopped, and the
+   * number of lines that were skipped.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method, or if there are no secondary runnables.
+   */
+  public static <M extends MainRunnable<T>, T> ExplorationResult interleaveAtAtomicityViolations(
+      M main, List<? extends SecondaryRunnable<T, M>> secondaries) {
+    AtomicityResult analysis = new AtomicityAnalyzer().analyze(main, secondaries);
+    if (analysis.hadException()) {
+      return new ExplorationResult(analysis, 0, 0, false);
+    }
+    CallLoggerFactory logger = CallLoggerFactory.getFactory();
+    ClassInstrumentation instrClss = logger.getClassInstrumentation(main.getClassUnderTest());
+    MethodInstrumentation method = getMainMethod(instrClss, main);
+    InterleaveOptions options = new InterleaveOptions();
+    options.lineIndices = getViolationLines(method, main.getClassUnderTest().getName(),
+        analysis.getViolations());
+    Counts counts = new Counts();
+    RunResult result = doInterleave(main, secondaries, null, 0, options, counts);
+    return new ExplorationResult(result, counts.run, counts.pruned, !result.hadException());
+  }
+
+  /**
+   * Returns the indices of the lines of the given method that lie between the
+   * two accesses of an atomicity violation in the main runnable.
+   */
+  private static List<Integer> getViolationLines(MethodInstrumentation method, String className,
+      List<AtomicityViolation> violations) {
+    List<LineInstrumentation> lines = method.getLines();
+    List<Integer> result = new ArrayList<Integer>();
+    for (int i = 0; i < lines.size(); i++) {
+      int line = lines.get(i).getLineNumber();
+      for (AtomicityViolation violation : violations) {
+        if (violation.threadIndex == 0 &&
+            violation.getFirstPosition().equals(className + ":" + violation.firstLine) &&
+            violation.getSecondPosition().equals(className + ":" + violation.secondLine) &&
+            line > violation.firstLine && line <= violation.secondLine) {
+          result.add(i);
+          break;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Invokes two runnable instances, interleaving the execution, for at most the
+   * given length of time. See {@link #interleaveWithinBudget(MainRunnable,
+   * List, long)}.
+   *
+   * @param main the main runnable
+   * @param secondary the secondary runnable
+   * @param timeBudget the time in milliseconds after which no more
+   * interleavings will be started
+   *
+   * @return an ExplorationResult indicating any exceptions thrown by the two
+   * runnables, the number of lines where the main runnable stopped, and the
+   * total number of lines.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method.
+   */
+  public static <M extends MainRunnable<T>, T> ExplorationResult interleaveWithinBudget(
+      M main, SecondaryRunnable<T, M> secondary, long timeBudget) {
+    return interleaveWithinBudget(main, Collections.singletonList(secondary), timeBudget);
+  }
+
+  /**
+   * Invokes a main runnable and any number of secondary runnables,
+   * interleaving the execution, for at most the given length of time. This is
+   * identical to {@link #interleave(MainRunnable, List)}, except that the
+   * lines of the main method are tried in order of priority, and no more
+   * lines are tried once the time budget has been used up. The interleaving
+   * that is running when the budget runs out is allowed to complete, and at
+   * least one interleaving is always run.
+   * <p>
+   * Lines that read or write fields or array elements are tried first, followed
+   * by lines that are in or next to synchronized regions, followed by the
+   * remaining lines. (See {@link SharedAccessChecker#getPrioritizedLines}.) The
+   * returned result reports the total number of lines, so that the caller can
+   * see how much of the method was covered. See {@link
+   * ExplorationResult#getCoverage}.
+   *
+   * @param main the main runnable
+   * @param secondaries the secondary runnables
+   * @param timeBudget the time in milliseconds after which no more
+   * interleavings will be started
+   *
+   * @return an ExplorationResult indicating any exceptions thrown by the
+   * runnables, the number of lines where the main runnable stopped, and the
+   * total number of lines.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method, or if the time budget is not positive.
+   */
+  public static <M extends MainRunnable<T>, T> ExplorationResult interleaveWithinBudget(
+      M main, List<? extends SecondaryRunnable<T, M>> secondaries, long timeBudget) {
+    if (timeBudget <= 0) {
+      throw new IllegalArgumentException("timeBudget must be positive");
+    }
+    if (secondaries.isEmpty()) {
+      throw new IllegalArgumentException("Must specify secondary runnable(s)");
+    }
+    InterleaveOptions options = new InterleaveOptions();
+    options.prioritized = true;
+    options.timeBudget = timeBudget;
+    Counts counts = new Counts();
+    RunResult result = doInterleave(main, secondaries, null, 0, options, counts);
+    boolean complete = !result.hadException() && counts.run + counts.pruned == counts.total;
+    ExplorationResult exploration =
+        new ExplorationResult(result, counts.run, counts.pruned, complete);
+    exploration.setTotalSchedules(counts.total);
+    return exploration;
   }
 
   /**
@@ -106,7 +371,86 @@ public class InterleavedRunner {
    */
   public static <M extends MainRunnable<T>, T> RunResult interleaveAfter(
       M main, SecondaryRunnable<T, M> secondary, CodePosition position, int posCount) {
-    return doInterleave(main, secondary, position, posCount);
+    return doInterleave(main, Collections.singletonList(secondary), position, posCount,
+        new InterleaveOptions(), new Counts());
+  }
+
+  /**
+   * Invokes two runnable instances, interleaving the execution. This is
+   * identical to {@link #interleave(MainRunnable, SecondaryRunnable)}, except
+   * that the main runnable is only initialized once. See {@link
+   * #interleaveWithSnapshots(CopyableMainRunnable, List)}.
+   *
+   * @param main the main runnable
+   * @param secondary the secondary runnable
+   *
+   * @return a RunResult indicating any exceptions thrown by the two runnables.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method.
+   */
+  public static <M extends CopyableMainRunnable<T>, T> RunResult interleaveWithSnapshots(
+      M main, SecondaryRunnable<T, M> secondary) {
+    return interleaveWithSnapshots(main, Collections.singletonList(secondary));
+  }
+
+  /**
+   * Invokes a main runnable and any number of secondary runnables,
+   * interleaving the execution. This is identical to {@link
+   * #interleave(MainRunnable, List)}, except that {@link
+   * MainRunnable#initialize} is only called once, before the first
+   * interleaving. This is useful when the main object is expensive to create.
+   * <p>
+   * The object returned by {@link MainRunnable#getMainObject} after
+   * initialization is used as a snapshot. Before each interleaving, the
+   * snapshot and the objects reachable from it are copied, and the copy is
+   * passed to {@link CopyableMainRunnable#setMainObject}. The snapshot itself
+   * is never run, so each interleaving starts from the same state. The
+   * secondary runnables are initialized before each interleaving, as usual,
+   * and the main and secondary runnables are terminated after each one.
+   * <p>
+   * Objects are copied without calling their constructors, and immutable
+   * values, threads and class loaders are shared rather than copied. Copies
+   * of instrumented objects are registered as new instrumented objects. Copied
+   * HashMaps, Hashtables, IdentityHashMaps and ConcurrentHashMaps, and the sets
+   * backed by them, are rehashed, so that they can find copied keys that use
+   * the default {@link Object#hashCode}. Other hash-based collections should
+   * not hold such keys, and a WeakHashMap cannot be copied.
+   *
+   * @param main the main runnable
+   * @param secondaries the secondary runnables
+   *
+   * @return a RunResult indicating any exceptions thrown by the runnables. If
+   * the main object cannot be copied, the result contains an
+   * IllegalArgumentException as the main exception.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method, or if there are no secondary runnables.
+   */
+  public static <M extends CopyableMainRunnable<T>, T> RunResult interleaveWithSnapshots(
+      M main, List<? extends SecondaryRunnable<T, M>> secondaries) {
+    if (secondaries.isEmpty()) {
+      throw new IllegalArgumentException("Must specify secondary runnable(s)");
+    }
+    InterleaveOptions options = new InterleaveOptions();
+    options.snapshot = true;
+    return doInterleave(main, secondaries, null, 0, options, new Counts());
+  }
+
+  /**
+   * Invokes a main runnable and any number of secondary runnables, stopping
+   * the main runnable at a single line. This runs one of the interleavings run
+   * by {@link #interleave(MainRunnable, List)}, and is used to split the
+   * interleavings between several processes.
+   *
+   * @param lineIndex the index of the line in the main method. If the method
+   * has fewer lines, nothing is run.
+   */
+  static <M extends MainRunnable<T>, T> RunResult interleaveAtLine(
+      M main, List<? extends SecondaryRunnable<T, M>> secondaries, int lineIndex) {
+    InterleaveOptions options = new InterleaveOptions();
+    options.lineIndex = lineIndex;
+    return doInterleave(main, secondaries, null, 0, options, new Counts());
   }
 
   private static MethodInstrumentation getMainMethod(ClassInstrumentation clss,
@@ -124,49 +468,465 @@ public class InterleavedRunner {
     }
   }
 
+  /** Options that determine which interleavings are run by {@link #doInterleave}. */
+  private static class InterleaveOptions {
+    /** If non-null, used to skip interleavings with an explored state. */
+    StateDeduplicator deduplicator;
+
+    /** If true, only stop at lines found by the {@link SharedAccessChecker}. */
+    boolean sharedLinesOnly;
+
+    /** If true, stop at the lines in the order given by the {@link SharedAccessChecker}. */
+    boolean prioritized;
+
+    /** If positive, the time in milliseconds after which no more lines are tried. */
+    long timeBudget;
+
+    /**
+     * If true, the main runnable is a {@link CopyableMainRunnable} that is
+     * initialized once, and is given a copy of its main object for each line.
+     */
+    boolean snapshot;
+
+    /** If not negative, the only line at which the main runnable stops. */
+    int lineIndex = -1;
+
+    /** If non-null, the indices of the only lines at which the main runnable stops. */
+    List<Integer> lineIndices;
+  }
+
+  /** Counts the interleavings that were run and skipped by {@link #doInterleave}. */
+  private static class Counts {
+    int run;
+    int pruned;
+    int total;
+  }
+
   private static  <M extends MainRunnable<T>, T> RunResult doInterleave(
-      M main, SecondaryRunnable<T, M> secondary, CodePosition startPosition, int posCount) {
+      M main, List<? extends SecondaryRunnable<T, M>> secondaries, CodePosition startPosition,
+      int posCount, InterleaveOptions options, Counts counts) {
     CallLoggerFactory logger = CallLoggerFactory.getFactory();
     ClassInstrumentation instrClss = logger.getClassInstrumentation(main.getClassUnderTest());
     MethodInstrumentation method = getMainMethod(instrClss, main);
     int numLines = method.getNumLines();
-    for (int i = 0; i < numLines; i++) {
-      Throwable mainException = null;
-      Throwable secondaryException = null;
+    counts.total += numLines;
+    List<Integer> lineIndices = new ArrayList<Integer>(numLines);
+    if (options.lineIndices != null) {
+      lineIndices.addAll(options.lineIndices);
+      counts.pruned += numLines - lineIndices.size();
+    } else if (options.sharedLinesOnly) {
+      lineIndices.addAll(new SharedAccessChecker().getDistinctLines(method));
+      counts.pruned += numLines - lineIndices.size();
+    } else if (options.prioritized) {
+      lineIndices.addAll(new SharedAccessChecker().getPrioritizedLines(method));
+    } else if (options.lineIndex >= 0) {
+      if (options.lineIndex < numLines) {
+        lineIndices.add(options.lineIndex);
+      }
+    } else {
+      for (int i = 0; i < numLines; i++) {
+        lineIndices.add(i);
+      }
+    }
+    boolean canBlock = true;
+    for (SecondaryRunnable<T, M> secondary : secondaries) {
+      canBlock &= secondary.canBlock();
+    }
+    T snapshot = null;
+    if (options.snapshot) {
       try {
         main.initialize();
       } catch (Throwable e) {
         return new RunResult(e, null);
       }
+      snapshot = main.getMainObject();
+    }
+    long endTime = options.timeBudget > 0 ? System.currentTimeMillis() + options.timeBudget : 0;
+    for (int i : lineIndices) {
+      if (endTime != 0 && counts.run > 0 && System.currentTimeMillis() >= endTime) {
+        Options.debugPrint("Time budget used after %d of %d lines\n", counts.run, numLines);
+        break;
+      }
+      Throwable mainException = null;
+      Throwable secondaryException = null;
       try {
-        secondary.initialize(main);
+        if (options.snapshot) {
+          ((CopyableMainRunnable<T>) main).setMainObject(new ObjectCopier().copy(snapshot));
+        } else {
+          main.initialize();
+        }
       } catch (Throwable e) {
-        return new RunResult(null, e);
+        return new RunResult(e, null);
+      }
+      for (SecondaryRunnable<T, M> secondary : secondaries) {
+        try {
+          secondary.initialize(main);
+        } catch (Throwable e) {
+          return new RunResult(null, e);
+        }
       }
       ObjectInstrumentationImpl<T> instr =
           ObjectInstrumentationImpl.getObject(main.getMainObject());
-      SteppedRunResult result = instr.interleave(main, method, i, secondary, secondary.canBlock(),
-          startPosition, posCount);
+      SteppedRunResult result = instr.interleave(main, method, i, secondaries, canBlock,
+          startPosition, posCount, options.deduplicator);
+      if (result.wasPruned()) {
+        counts.pruned++;
+      } else {
+        counts.run++;
+      }
       if (result.hadException()) {
-        return result;
+        return recordSchedule(result, main, method, i, secondaries.size(), startPosition);
+      }
+      if (result.wasPruned()) {
+        continue;
       }
       try {
         main.terminate();
       } catch (Throwable e) {
         mainException = e;
       }
-      try {
-        secondary.terminate();
-      } catch (Throwable e) {
-        secondaryException = e;
+      for (SecondaryRunnable<T, M> secondary : secondaries) {
+        try {
+          secondary.terminate();
+        } catch (Throwable e) {
+          if (secondaryException == null) {
+            secondaryException = e;
+          }
+        }
       }
       if (mainException != null || secondaryException != null) {
-        return new RunResult(mainException, secondaryException);
+        return recordSchedule(new RunResult(mainException, secondaryException), main, method, i,
+            secondaries.size(), startPosition);
       }
     }
     return new RunResult();
   }
 
+  /**
+   * Records the schedule of the interleaving in which the main runnable
+   * stopped at the given line, and the secondary runnables then ran to
+   * completion. Interleavings that start at a code position are not recorded,
+   * as the position cannot be replayed. Returns the result.
+   */
+  private static RunResult recordSchedule(RunResult result, MainRunnable<?> main,
+      MethodInstrumentation method, int lineIndex, int numSecondaries,
+      CodePosition startPosition) {
+    if (startPosition == null) {
+      int line = method.getLines().get(lineIndex).getLineNumber();
+      Schedule schedule = new Schedule();
+      schedule.addSwitch(-1, null, 0, 0);
+      schedule.addSwitch(0, getLineProbe(main.getClassUnderTest(), line), 1, 1);
+      // The secondary runnables run concurrently, so they are listed in order
+      for (int i = 1; i < numSecondaries; i++) {
+        schedule.addSwitch(i, Operation.END.getProbe(), 1, i + 1);
+      }
+      schedule.addSwitch(numSecondaries, Operation.END.getProbe(), 1, 0);
+      result.setSchedule(schedule);
+    }
+    return result;
+  }
+
+  /** Gets the probe that describes stopping the main runnable at the given line. */
+  private static String getLineProbe(Class<?> clss, int line) {
+    return LINE_PROBE + clss.getName() + ":" + line;
+  }
+
+  /**
+   * Replays a schedule recorded by {@link #interleave(MainRunnable,
+   * SecondaryRunnable)}. See {@link #replay(MainRunnable, List, Schedule)}.
+   *
+   * @param main the main runnable
+   * @param secondary the secondary runnable
+   * @param schedule the schedule to replay
+   *
+   * @return a RunResult indicating any exceptions thrown by the two runnables.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method, or if the schedule was not recorded by an
+   * InterleavedRunner.
+   * @throws IllegalStateException if the schedule stops the main runnable at a
+   * line that is not in the main method.
+   */
+  public static <M extends MainRunnable<T>, T> RunResult replay(
+      M main, SecondaryRunnable<T, M> secondary, Schedule schedule) {
+    return replay(main, Collections.singletonList(secondary), schedule);
+  }
+
+  /**
+   * Replays a schedule recorded by one of the interleave methods of this
+   * class. When an interleaving fails, the {@link RunResult} contains a {@link
+   * Schedule} that records the line at which the main runnable stopped. The
+   * schedule can be saved, and replayed later using this method. Only the
+   * recorded interleaving is run, so replaying a schedule costs the same as a
+   * single interleaving.
+   * <p>
+   * The main runnable is stopped at the recorded line using a breakpoint, and
+   * the secondary runnables are then run as described in {@link
+   * #interleave(MainRunnable, List)}. The runnables must be the same as those
+   * used to record the schedule, and must behave deterministically. Schedules
+   * are not recorded by {@link #interleaveAfter}, {@link #interleaveBothSides}
+   * or the methods that take breakpoints or code positions.
+   *
+   * @param main the main runnable
+   * @param secondaries the secondary runnables
+   * @param schedule the schedule to replay
+   *
+   * @return a RunResult indicating any exceptions thrown by the runnables.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method, if there are no secondary runnables, or
+   * if the schedule was not recorded by an InterleavedRunner.
+   * @throws IllegalStateException if the schedule stops the main runnable at a
+   * line that is not in the main method.
+   */
+  public static <M extends MainRunnable<T>, T> RunResult replay(
+      M main, List<? extends SecondaryRunnable<T, M>> secondaries, Schedule schedule) {
+    if (secondaries.isEmpty()) {
+      throw new IllegalArgumentException("Must specify secondary runnable(s)");
+    }
+    CallLoggerFactory logger = CallLoggerFactory.getFactory();
+    ClassInstrumentation instrClss = logger.getClassInstrumentation(main.getClassUnderTest());
+    MethodInstrumentation method = getMainMethod(instrClss, main);
+    InterleaveOptions options = new InterleaveOptions();
+    options.lineIndex = getScheduledLine(schedule, main.getClassUnderTest(), method);
+    return doInterleave(main, secondaries, null, 0, options, new Counts());
+  }
+
+  /**
+   * Returns the index of the line of the given method at which the given
+   * schedule stops the main runnable.
+   */
+  private static int getScheduledLine(Schedule schedule, Class<?> clss,
+      MethodInstrumentation method) {
+    for (Schedule.ContextSwitch contextSwitch : schedule.getSwitches()) {
+      if (contextSwitch.getThread() != 0) {
+        continue;
+      }
+      String probe = schedule.getProbe(contextSwitch.getProbe());
+      if (!probe.startsWith(LINE_PROBE) || contextSwitch.getHitCount() != 1) {
+        throw new IllegalArgumentException("Not an InterleavedRunner schedule: " + probe);
+      }
+      String prefix = LINE_PROBE + clss.getName() + ":";
+      if (!probe.startsWith(prefix)) {
+        throw new IllegalStateException("Schedule stops the main runnable at " + probe);
+      }
+      int line;
+      try {
+        line = Integer.parseInt(probe.substring(prefix.length()));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid line in " + probe, e);
+      }
+      List<LineInstrumentation> lines = method.getLines();
+      for (int i = 0; i < lines.size(); i++) {
+        if (lines.get(i).getLineNumber() == line) {
+          return i;
+        }
+      }
+      throw new IllegalStateException("Line " + line + " is not in " + method);
+    }
+    throw new IllegalArgumentException("Schedule does not stop the main runnable");
+  }
+
+  /**
+   * Invokes two runnable instances, stopping both of them part way through.
+   * The secondary runnable is assumed to call the given instrumented method,
+   * which must be a method of the main runnable's class under test. If the main
+   * method has N executable lines, and the secondary method has M, then there
+   * are N * M pairs of lines. For each pair, the main runnable is run until it
+   * reaches its line, and is stopped. The secondary runnable is then run until
+   * it reaches its line, and is stopped. The main runnable then continues to
+   * completion, followed by the secondary runnable. This finds errors that
+   * only occur if the secondary runnable is part way through its method when
+   * the main runnable continues. If a runnable is blocked by a monitor that the
+   * other runnable holds before it reaches its line, then it continues once the
+   * monitor is released.
+   * <p>
+   * If there are more than maxPairs pairs, then only maxPairs of them are run,
+   * spread evenly over the main and secondary lines. The pairs are run one at a
+   * time, because the same runnables are used for every pair. See {@link
+   * #interleaveBothSides(RunnableFactory, MethodInstrumentation, int, int)}.
+   *
+   * @param main the main runnable
+   * @param secondary the secondary runnable
+   * @param secondaryMethod the method called by the secondary runnable
+   * @param maxPairs the maximum number of pairs of lines to run
+   *
+   * @return an ExplorationResult indicating any exceptions thrown by the two
+   * runnables, the number of pairs that were run, and the number of pairs that
+   * were skipped because of the limit.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method, or if the secondary method is not a method
+   * of the same class.
+   */
+  public static <M extends MainRunnable<T>, T> ExplorationResult interleaveBothSides(
+      final M main, final SecondaryRunnable<T, M> secondary,
+      MethodInstrumentation secondaryMethod, int maxPairs) {
+    RunnableFactory<M, T> factory = new RunnableFactory<M, T>() {
+      @Override
+      public M createMain() {
+        return main;
+      }
+
+      @Override
+      public List<? extends SecondaryRunnable<T, M>> createSecondaries(M ignored) {
+        return Collections.singletonList(secondary);
+      }
+    };
+    return doInterleaveBothSides(factory, secondaryMethod, maxPairs, 1);
+  }
+
+  /**
+   * Invokes runnable instances created by the given factory, stopping both of
+   * them part way through. This is identical to {@link
+   * #interleaveBothSides(MainRunnable, SecondaryRunnable, MethodInstrumentation,
+   * int)}, except that a new pair of runnables is created for each pair of
+   * lines. The pairs are independent, so they are run concurrently, in the
+   * given number of threads. The factory must create exactly one secondary
+   * runnable. If several pairs fail, then the result contains the exceptions
+   * from the first of them.
+   *
+   * @param factory creates the main and secondary runnables
+   * @param secondaryMethod the method called by the secondary runnable
+   * @param maxPairs the maximum number of pairs of lines to run
+   * @param parallelism the number of pairs that may be run at the same time
+   *
+   * @return an ExplorationResult indicating any exceptions thrown by the two
+   * runnables, the number of pairs that were run, and the number of pairs that
+   * were skipped because of the limit.
+   *
+   * @throws IllegalArgumentException if the main runnable does not specify a
+   * valid instrumented class/method, or if the secondary method is not a method
+   * of the same class.
+   */
+  public static <M extends MainRunnable<T>, T> ExplorationResult interleaveBothSides(
+      RunnableFactory<M, T> factory, MethodInstrumentation secondaryMethod, int maxPairs,
+      int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    return doInterleaveBothSides(factory, secondaryMethod, maxPairs, parallelism);
+  }
+
+  private static <M extends MainRunnable<T>, T> ExplorationResult doInterleaveBothSides(
+      final RunnableFactory<M, T> factory, final MethodInstrumentation secondaryMethod,
+      int maxPairs, int numWorkers) {
+    if (maxPairs <= 0) {
+      throw new IllegalArgumentException("maxPairs must be positive");
+    }
+    M first = factory.createMain();
+    CallLoggerFactory logger = CallLoggerFactory.getFactory();
+    ClassInstrumentation instrClss = logger.getClassInstrumentation(first.getClassUnderTest());
+    final MethodInstrumentation mainMethod = getMainMethod(instrClss, first);
+    // Fails if the secondary method is not in the class under test.
+    instrClss.atMethodStart(secondaryMethod.getUnderlyingMethod());
+
+    final int numSecondaryLines = secondaryMethod.getNumLines();
+    final long numPairs = (long) mainMethod.getNumLines() * numSecondaryLines;
+    final int numToRun = (int) Math.min(numPairs, maxPairs);
+    final AtomicInteger nextPair = new AtomicInteger();
+    final AtomicInteger numRun = new AtomicInteger();
+    final PairFailure failure = new PairFailure();
+
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          int pair = nextPair.getAndIncrement();
+          if (pair >= numToRun || failure.isBefore(pair)) {
+            return;
+          }
+          // Spread the pairs evenly over the cross product of the lines.
+          long index = pair * numPairs / numToRun;
+          int mainLine = (int) (index / numSecondaryLines);
+          int secondaryLine = (int) (index % numSecondaryLines);
+          RunResult result =
+              runPair(factory, mainMethod, mainLine, secondaryMethod, secondaryLine);
+          numRun.incrementAndGet();
+          if (result.hadException()) {
+            Options.debugPrint("Failed with main line %d, secondary line %d\n", mainLine,
+                secondaryLine);
+            failure.record(pair, result);
+          }
+        }
+      }
+    };
+    ScheduleExplorer.runWorkers(worker, numWorkers);
+    int numSkipped = (int) (numPairs - numToRun);
+    RunResult failed = failure.getResult();
+    if (failed != null) {
+      return new ExplorationResult(failed, numRun.get(), numSkipped, false);
+    }
+    return new ExplorationResult(new RunResult(), numRun.get(), numSkipped, numSkipped == 0);
+  }
+
+  /** Runs a single pair of lines using new runnables from the factory. */
+  private static <M extends MainRunnable<T>, T> RunResult runPair(RunnableFactory<M, T> factory,
+      MethodInstrumentation mainMethod, int mainLine, MethodInstrumentation secondaryMethod,
+      int secondaryLine) {
+    M main = factory.createMain();
+    List<? extends SecondaryRunnable<T, M>> secondaries = factory.createSecondaries(main);
+    if (secondaries.size() != 1) {
+      throw new IllegalArgumentException("Must specify exactly one secondary runnable");
+    }
+    SecondaryRunnable<T, M> secondary = secondaries.get(0);
+    Throwable mainException = null;
+    Throwable secondaryException = null;
+    try {
+      main.initialize();
+    } catch (Throwable e) {
+      return new RunResult(e, null);
+    }
+    try {
+      secondary.initialize(main);
+    } catch (Throwable e) {
+      return new RunResult(null, e);
+    }
+    ObjectInstrumentationImpl<T> instr =
+        ObjectInstrumentationImpl.getObject(main.getMainObject());
+    SteppedRunResult result = instr.interleaveBothSides(main, mainMethod, mainLine, secondary,
+        secondaryMethod, secondaryLine);
+    if (result.hadException()) {
+      return result;
+    }
+    try {
+      main.terminate();
+    } catch (Throwable e) {
+      mainException = e;
+    }
+    try {
+      secondary.terminate();
+    } catch (Throwable e) {
+      secondaryException = e;
+    }
+    return new RunResult(mainException, secondaryException);
+  }
+
+  /**
+   * Records the failing pair of lines used by {@link #doInterleaveBothSides}.
+   * If several pairs fail, the first one is kept, so that the result does not
+   * depend on the order in which concurrent pairs finish.
+   */
+  private static class PairFailure {
+    private int pair = -1;
+    private RunResult result;
+
+    synchronized boolean isBefore(int other) {
+      return result != null && pair < other;
+    }
+
+    synchronized RunResult getResult() {
+      return result;
+    }
+
+    synchronized void record(int pair, RunResult result) {
+      if (this.result == null || pair < this.pair) {
+        this.pair = pair;
+        this.result = result;
+      }
+    }
+  }
+
   /**
    * Invokes two runnable instances, interleaving the execution. The main
    * runnable will be executed once for each CodePosition in the list, stopping
@@ -402,7 +1162,7 @@ public class InterleavedRunner {
         }
         if (!secondFinished) {
           try {
-            secondThread.finish();
+            secondThread.finish(TimeoutPhase.SECONDARY_COMPLETION);
           } catch (IllegalThreadStateException e) {
             return new RunResult(null, e);
           } catch (TestTimeoutException e) {
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks whether a concurrent {@link History} is linearizable with respect to
+ * a {@link SequentialModel}. A history is linearizable if each call can be
+ * given a single point in time between its invocation and its response, such
+ * that executing the calls one at a time in that order, using the model,
+ * produces the results that were recorded. Calls that have not responded may
+ * be placed anywhere after their invocation, or left out.
+ * <p>
+ * The checker uses the search described by Wing and Gong, "Testing and
+ * Verifying Concurrent Objects" (JPDC 1993), with the improvements described by
+ * Lowe, "Testing for Linearizability" (CCPE 2017). Calls are linearized in
+ * order of invocation where possible, and the checker backtracks when it
+ * reaches the response of a call that has not yet been linearized. The set of
+ * linearized calls and the resulting model state are remembered, so that the
+ * same configuration is never explored twice. If the model is a {@link
+ * PartitionedModel}, each partition is checked separately.
+ * <p>
+ * The checker is normally used at the end of a test run. For example, a
+ * {@link MainRunnable} used with the {@link InterleavedRunner} or a {@link
+ * ScheduleExplorer} can create a new History in {@link MainRunnable#initialize},
+ * record the calls made by each runnable, and call {@link #assertLinearizable}
+ * in {@link MainRunnable#terminate}. With the {@link AnnotatedTestRunner}, the
+ * History can be created in a {@link ThreadedBefore} method and checked in a
+ * {@link ThreadedVerification} method. With a {@link Scripter}, the scripted
+ * tasks record the calls, and the History is checked after {@link
+ * Scripter#execute} returns.
+ */
+public class LinearizabilityChecker {
+
+  private LinearizabilityChecker() {
+    // All methods are static
+  }
+
+  /**
+   * An entry in the list of invocations and responses. Each call has an
+   * invocation entry and a response entry, which are linked to each other.
+   */
+  private static class Entry {
+    final int id;
+    final History.Call call;
+    final long time;
+    final boolean invocation;
+    Entry match;
+    Entry prev;
+    Entry next;
+
+    Entry(int id, History.Call call, long time, boolean invocation) {
+      this.id = id;
+      this.call = call;
+      this.time = time;
+      this.invocation = invocation;
+    }
+
+    /** Removes this invocation, and its response, from the list. */
+    void lift() {
+      prev.next = next;
+      next.prev = prev;
+      match.prev.next = match.next;
+      if (match.next != null) {
+        match.next.prev = match.prev;
+      }
+    }
+
+    /** Restores this invocation, and its response, to the list. */
+    void unlift() {
+      match.prev.next = match;
+      if (match.next != null) {
+        match.next.prev = match;
+      }
+      prev.next = this;
+      next.prev = this;
+    }
+  }
+
+  /** A call that has been linearized, and the state before it. */
+  private static class Frame {
+    final Entry entry;
+    final Object state;
+
+    Frame(Entry entry, Object state) {
+      this.entry = entry;
+      this.state = state;
+    }
+  }
+
+  /** A set of linearized calls, and the resulting state. */
+  private static class Configuration {
+    final BitSet linearized;
+    final Object state;
+
+    Configuration(BitSet linearized, Object state) {
+      this.linearized = linearized;
+      this.state = state;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Configuration)) {
+        return false;
+      }
+      Configuration config = (Configuration) other;
+      return linearized.equals(config.linearized) &&
+          (state == null ? config.state == null : state.equals(config.state));
+    }
+
+    @Override
+    public int hashCode() {
+      return linearized.hashCode() * 31 + (state == null ? 0 : state.hashCode());
+    }
+  }
+
+  /** Checks whether the given history is linearizable. */
+  public static <S> LinearizabilityResult check(History history, SequentialModel<S> model) {
+    return check(history.getCalls(), model);
+  }
+
+  /**
+   * Checks whether the given calls are linearizable. The calls may be in any
+   * order.
+   */
+  public static <S> LinearizabilityResult check(List<History.Call> calls,
+      SequentialModel<S> model) {
+    for (List<History.Call> partition : partition(calls, model)) {
+      if (!isLinearizable(partition, model)) {
+        return new LinearizabilityResult(false, partition);
+      }
+    }
+    return new LinearizabilityResult(true, Collections.<History.Call>emptyList());
+  }
+
+  /**
+   * Checks that the given history is linearizable.
+   *
+   * @throws AssertionError if it is not. The message describes the calls that
+   *         could not be linearized.
+   */
+  public static <S> void assertLinearizable(History history, SequentialModel<S> model) {
+    LinearizabilityResult result = check(history, model);
+    if (!result.isLinearizable()) {
+      throw new AssertionError(result.toString());
+    }
+  }
+
+  /**
+   * Divides the calls into partitions, if the model is a {@link
+   * PartitionedModel}. Within each partition, the calls are sorted by
+   * invocation time.
+   */
+  private static List<List<History.Call>> partition(List<History.Call> calls,
+      SequentialModel<?> model) {
+    List<History.Call> sorted = new ArrayList<History.Call>(calls);
+    Collections.sort(sorted, new Comparator<History.Call>() {
+      @Override
+      public int compare(History.Call first, History.Call second) {
+        long difference = first.getInvocationTime() - second.getInvocationTime();
+        return difference < 0 ? -1 : (difference == 0 ? 0 : 1);
+      }
+    });
+    if (!(model instanceof PartitionedModel)) {
+      return Collections.singletonList(sorted);
+    }
+    PartitionedModel<?> partitioned = (PartitionedModel<?>) model;
+    Map<Object, List<History.Call>> partitions = new LinkedHashMap<Object, List<History.Call>>();
+    for (History.Call call : sorted) {
+      Object key = partitioned.getPartition(call);
+      List<History.Call> partition = partitions.get(key);
+      if (partition == null) {
+        partition = new ArrayList<History.Call>();
+        partitions.put(key, partition);
+      }
+      partition.add(call);
+    }
+    return new ArrayList<List<History.Call>>(partitions.values());
+  }
+
+  /**
+   * Builds a list of the invocations and responses of the given calls, sorted
+   * by time, and returns its head. Calls that have not responded are given a
+   * response at the end of the list.
+   */
+  private static Entry buildEntries(List<History.Call> calls) {
+    List<Entry> entries = new ArrayList<Entry>(calls.size() * 2);
+    List<Entry> pending = new ArrayList<Entry>();
+    for (int i = 0; i < calls.size(); i++) {
+      History.Call call = calls.get(i);
+      Entry invocation = new Entry(i, call, call.getInvocationTime(), true);
+      Entry response;
+      if (call.isComplete()) {
+        response = new Entry(i, call, call.getResponseTime(), false);
+        entries.add(response);
+      } else {
+        response = new Entry(i, call, Long.MAX_VALUE, false);
+        pending.add(response);
+      }
+      invocation.match = response;
+      response.match = invocation;
+      entries.add(invocation);
+    }
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry first, Entry second) {
+        return first.time < second.time ? -1 : (first.time == second.time ? 0 : 1);
+      }
+    });
+    entries.addAll(pending);
+    Entry head = new Entry(-1, null, Long.MIN_VALUE, false);
+    Entry last = head;
+    for (Entry entry : entries) {
+      last.next = entry;
+      entry.prev = last;
+      last = entry;
+    }
+    return head;
+  }
+
+  /**
+   * Searches for a linearization of the given calls. The search stops when
+   * every call that responded has been linearized. Calls that have not
+   * responded do not need to be linearized.
+   */
+  private static <S> boolean isLinearizable(List<History.Call> calls, SequentialModel<S> model) {
+    Entry head = buildEntries(calls);
+    int remaining = 0;
+    for (History.Call call : calls) {
+      if (call.isComplete()) {
+        remaining++;
+      }
+    }
+    Set<Configuration> seen = new HashSet<Configuration>();
+    List<Frame> stack = new ArrayList<Frame>();
+    BitSet linearized = new BitSet(calls.size());
+    S state = model.getInitialState();
+    Entry entry = head.next;
+    while (remaining > 0) {
+      if (entry.invocation) {
+        S next = model.apply(state, entry.call);
+        if (next != null) {
+          linearized.set(entry.id);
+          if (seen.add(new Configuration((BitSet) linearized.clone(), next))) {
+            stack.add(new Frame(entry, state));
+            state = next;
+            entry.lift();
+            if (entry.call.isComplete()) {
+              remaining--;
+            }
+            entry = head.next;
+            continue;
+          }
+          linearized.clear(entry.id);
+        }
+        entry = entry.next;
+      } else {
+        // We have reached the response of a call that has not been
+        // linearized, so the most recently linearized call must be undone.
+        if (stack.isEmpty()) {
+          return false;
+        }
+        Frame frame = stack.remove(stack.size() - 1);
+        @SuppressWarnings("unchecked")
+        S previous = (S) frame.state;
+        state = previous;
+        entry = frame.entry;
+        linearized.clear(entry.id);
+        entry.unlift();
+        if (entry.call.isComplete()) {
+          remaining++;
+        }
+        entry = entry.next;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents the result of checking a {@link History} with a {@link
+ * LinearizabilityChecker}. If the history is not linearizable, the result
+ * contains the calls that could not be linearized. When a {@link
+ * PartitionedModel} is used, these are the calls in the first partition that
+ * failed.
+ */
+public class LinearizabilityResult {
+  private final boolean linearizable;
+  private final List<History.Call> calls;
+
+  LinearizabilityResult(boolean linearizable, List<History.Call> calls) {
+    this.linearizable = linearizable;
+    this.calls = Collections.unmodifiableList(new ArrayList<History.Call>(calls));
+  }
+
+  /** Returns true if the history was linearizable. */
+  public boolean isLinearizable() {
+    return linearizable;
+  }
+
+  /**
+   * Gets the calls that could not be linearized, in the order in which they
+   * were invoked. Returns an empty list if the history was linearizable.
+   */
+  public List<History.Call> getCalls() {
+    return calls;
+  }
+
+  @Override
+  public String toString() {
+    if (linearizable) {
+      return "Linearizable";
+    }
+    StringBuilder result = new StringBuilder("Not linearizable:");
+    for (History.Call call : calls) {
+      result.append("\n  ").append(call);
+    }
+    return result.toString();
+  }
+}
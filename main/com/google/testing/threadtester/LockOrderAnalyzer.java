@@ -0,0 +1,327 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds potential deadlocks by analysing the order in which threads acquire
+ * monitors and {@link java.util.concurrent.locks.Lock Locks}, without having to
+ * run the schedule in which the deadlock occurs. The main and secondary
+ * runnables are run once, one after the other, so that they cannot deadlock.
+ * Every time that a thread acquires a monitor or lock while holding another
+ * one, the analyzer adds an edge to a lock-order graph. A cycle in the graph
+ * whose edges come from different threads means that the threads could
+ * deadlock if they were interleaved differently. This is the GoodLock
+ * algorithm. See Havelund, "Using Runtime Analysis to Guide Model Checking of
+ * Java Programs" (SPIN 2000).
+ * <p>
+ * Each edge also records all of the locks held by the thread when it made the
+ * acquisition. A cycle is not reported if two of its edges were made while
+ * holding the same lock, as that lock prevents the threads from reaching the
+ * deadlocking state at the same time. (See Bensalem and Havelund, "Dynamic
+ * Deadlock Analysis of Multi-Threaded Programs", 2005.)
+ * <p>
+ * Only acquisitions made in instrumented code are seen. This includes
+ * synchronized blocks and methods, and calls to {@link
+ * java.util.concurrent.locks.Lock#lock}. Calls to {@link
+ * java.util.concurrent.locks.Lock#tryLock} never block, so a lock acquired by
+ * tryLock is recorded as held, but does not add any edges to the graph.
+ */
+public class LockOrderAnalyzer {
+
+  /**
+   * An edge in the lock-order graph. Records that a thread acquired one lock
+   * while holding another.
+   */
+  private static class Edge {
+    final int thread;
+    final Object from;
+    final String fromPosition;
+    final Object to;
+    final String toPosition;
+
+    /** The locks held by the thread when it acquired the 'to' lock. */
+    final Set<Object> guards;
+
+    Edge(int thread, Object from, String fromPosition, Object to, String toPosition,
+        Set<Object> guards) {
+      this.thread = thread;
+      this.from = from;
+      this.fromPosition = fromPosition;
+      this.to = to;
+      this.toPosition = toPosition;
+      this.guards = guards;
+    }
+  }
+
+  /** A monitor or lock held by a thread. */
+  private static class HeldLock {
+    final Object lock;
+    final String position;
+    int count = 1;
+
+    HeldLock(Object lock, String position) {
+      this.lock = lock;
+      this.position = position;
+    }
+  }
+
+  /** Records the locks acquired by a single thread. */
+  private static class LockRecorder extends ProbeListenerImpl {
+    private final int thread;
+
+    /** The locks held, in the order in which they were acquired. */
+    private final List<HeldLock> held = new ArrayList<HeldLock>();
+
+    /** The positions of the monitors being acquired. */
+    private final List<String> pendingMonitors = new ArrayList<String>();
+
+    private String pendingLockPosition;
+    private boolean pendingTryLock;
+
+    /**
+     * The edges added by this thread, indexed by a key that identifies the
+     * locks and positions. Repeated acquisitions only add one edge.
+     */
+    private final Map<String, Edge> edges = new LinkedHashMap<String, Edge>();
+
+    LockRecorder(int thread) {
+      this.thread = thread;
+    }
+
+    @Override
+    public void monitorEnter(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      pendingMonitors.add(Operation.getLocation(object, line));
+    }
+
+    @Override
+    public void monitorAcquired(ObjectInstrumentationImpl<?> object, Object monitor) {
+      String position = pendingMonitors.remove(pendingMonitors.size() - 1);
+      acquire(monitor, position, true);
+    }
+
+    @Override
+    public void monitorExit(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      release(monitor);
+    }
+
+    @Override
+    public void lockEnter(ObjectInstrumentationImpl<?> object, Object lock, boolean tryLock,
+        int line) {
+      pendingLockPosition = Operation.getLocation(object, line);
+      pendingTryLock = tryLock;
+    }
+
+    @Override
+    public void lockAcquired(ObjectInstrumentationImpl<?> object, Object lock) {
+      acquire(lock, pendingLockPosition, !pendingTryLock);
+    }
+
+    @Override
+    public void lockExit(ObjectInstrumentationImpl<?> object, Object lock, int line) {
+      release(lock);
+    }
+
+    /**
+     * Records the acquisition of a lock. If the acquisition could block, adds
+     * an edge from each of the locks that are already held.
+     */
+    private void acquire(Object lock, String position, boolean canBlock) {
+      HeldLock existing = find(lock);
+      if (existing != null) {
+        existing.count++;
+        return;
+      }
+      if (canBlock && !held.isEmpty()) {
+        Set<Object> guards = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        for (HeldLock heldLock : held) {
+          guards.add(heldLock.lock);
+        }
+        for (HeldLock heldLock : held) {
+          String key = System.identityHashCode(heldLock.lock) + " " + heldLock.position + " " +
+              System.identityHashCode(lock) + " " + position;
+          if (!edges.containsKey(key)) {
+            edges.put(key,
+                new Edge(thread, heldLock.lock, heldLock.position, lock, position, guards));
+          }
+        }
+      }
+      held.add(new HeldLock(lock, position));
+    }
+
+    private void release(Object lock) {
+      HeldLock existing = find(lock);
+      if (existing != null && --existing.count == 0) {
+        held.remove(existing);
+      }
+    }
+
+    private HeldLock find(Object lock) {
+      for (HeldLock heldLock : held) {
+        if (heldLock.lock == lock) {
+          return heldLock;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Runs the given main and secondary runnables, and analyses the order in
+   * which they acquire locks.
+   *
+   * @return a LockOrderResult containing any exceptions thrown by the
+   *         runnables, and the potential deadlocks
+   */
+  public <M extends MainRunnable<T>, T> LockOrderResult analyze(
+      M main, SecondaryRunnable<T, M> secondary) {
+    return analyze(main, Collections.singletonList(secondary));
+  }
+
+  /**
+   * Runs the given main runnable and any number of secondary runnables, and
+   * analyses the order in which they acquire locks. The runnables are
+   * initialized, then run one after the other, starting with the main
+   * runnable, each in its own thread. If none of them throws an exception,
+   * they are then terminated. The analysis covers all of the locks acquired
+   * while the runnables are running.
+   *
+   * @return a LockOrderResult containing any exceptions thrown by the
+   *         runnables, and the potential deadlocks. If more than one secondary
+   *         runnable throws an exception, the result contains the first one.
+   */
+  public <M extends MainRunnable<T>, T> LockOrderResult analyze(
+      M main, List<? extends SecondaryRunnable<T, M>> secondaries) {
+    final List<Thread> threads = new ArrayList<Thread>();
+    final List<LockRecorder> recorders = new ArrayList<LockRecorder>();
+    RunResult result = SequentialRunner.run(main, secondaries, "LockOrderAnalyzer",
+        new SequentialRunner.ListenerFactory() {
+          @Override
+          public ProbeListener createListener(Thread thread, int index) {
+            LockRecorder recorder = new LockRecorder(index);
+            threads.add(thread);
+            recorders.add(recorder);
+            return recorder;
+          }
+        });
+    List<Edge> edges = new ArrayList<Edge>();
+    for (LockRecorder recorder : recorders) {
+      edges.addAll(recorder.edges.values());
+    }
+    return new LockOrderResult(result.getMainException(), result.getSecondaryException(),
+        findCycles(edges, threads));
+  }
+
+  /**
+   * Finds the cycles in the lock-order graph whose edges come from different
+   * threads, and were not made while holding a common lock. Each cycle is
+   * reported once, starting from its earliest edge.
+   */
+  private List<DeadlockException> findCycles(List<Edge> edges, List<Thread> threads) {
+    List<DeadlockException> result = new ArrayList<DeadlockException>();
+    Set<String> reported = new HashSet<String>();
+    for (int i = 0; i < edges.size(); i++) {
+      List<Edge> path = new ArrayList<Edge>();
+      path.add(edges.get(i));
+      findCycles(edges, i, path, threads, result, reported);
+    }
+    return result;
+  }
+
+  /**
+   * Extends the given path with edges that come after the start edge, and
+   * reports the paths that return to the start.
+   */
+  private void findCycles(List<Edge> edges, int start, List<Edge> path,
+      List<Thread> threads, List<DeadlockException> result, Set<String> reported) {
+    Edge last = path.get(path.size() - 1);
+    for (int i = start + 1; i < edges.size(); i++) {
+      Edge edge = edges.get(i);
+      if (edge.from != last.to || !canExtend(path, edge)) {
+        continue;
+      }
+      path.add(edge);
+      if (edge.to == path.get(0).from) {
+        String key = getKey(path);
+        if (reported.add(key)) {
+          result.add(createDeadlock(path, threads));
+        }
+      } else {
+        findCycles(edges, start, path, threads, result, reported);
+      }
+      path.remove(path.size() - 1);
+    }
+  }
+
+  /**
+   * Returns true if the edge can be added to the path. Each edge must come
+   * from a different thread, must not revisit a lock, and must not share a
+   * guard lock with any other edge.
+   */
+  private static boolean canExtend(List<Edge> path, Edge edge) {
+    for (Edge other : path) {
+      if (other.thread == edge.thread || (other != path.get(0) && other.from == edge.to)) {
+        return false;
+      }
+      for (Object guard : edge.guards) {
+        if (other.guards.contains(guard)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a key identifying the threads and positions in a cycle, so that
+   * the same potential deadlock is only reported once.
+   */
+  private static String getKey(List<Edge> path) {
+    StringBuilder key = new StringBuilder();
+    for (Edge edge : path) {
+      key.append(edge.thread).append(" ").append(edge.fromPosition).append(" ");
+      key.append(edge.toPosition).append(";");
+    }
+    return key.toString();
+  }
+
+  /**
+   * Creates a DeadlockException describing a cycle. Each thread in the cycle
+   * holds the 'from' lock of its edge, and waits for the 'to' lock, which is
+   * held by the thread of the next edge.
+   */
+  private static DeadlockException createDeadlock(List<Edge> path, List<Thread> threads) {
+    List<DeadlockException.BlockedThread> blocked =
+        new ArrayList<DeadlockException.BlockedThread>();
+    for (int i = 0; i < path.size(); i++) {
+      Edge edge = path.get(i);
+      Edge next = path.get((i + 1) % path.size());
+      blocked.add(new DeadlockException.BlockedThread(threads.get(edge.thread),
+          DeadlockDetector.describe(edge.to), edge.toPosition, threads.get(next.thread),
+          next.fromPosition));
+    }
+    return new DeadlockException("Potential deadlock", blocked);
+  }
+}
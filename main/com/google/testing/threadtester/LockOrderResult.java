@@ -0,0 +1,59 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents the result of running a {@link LockOrderAnalyzer}. As well as any
+ * exceptions thrown by the runnables, the result contains the potential
+ * deadlocks found by the analysis. Each potential deadlock is described by a
+ * {@link DeadlockException}, which lists the threads that could deadlock, the
+ * monitor or lock that each thread would wait for, and the positions at which
+ * the locks are acquired. The exceptions are not thrown, as the threads did
+ * not actually deadlock.
+ */
+public class LockOrderResult extends RunResult {
+  private final List<DeadlockException> potentialDeadlocks;
+
+  LockOrderResult(Throwable main, Throwable secondary,
+      List<DeadlockException> potentialDeadlocks) {
+    super(main, secondary);
+    this.potentialDeadlocks =
+        Collections.unmodifiableList(new ArrayList<DeadlockException>(potentialDeadlocks));
+  }
+
+  /** Returns true if the analysis found any potential deadlocks. */
+  public boolean hadPotentialDeadlock() {
+    return !potentialDeadlocks.isEmpty();
+  }
+
+  /**
+   * Gets the potential deadlocks. Each cycle in the lock order is only
+   * reported once.
+   */
+  public List<DeadlockException> getPotentialDeadlocks() {
+    return potentialDeadlocks;
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + ", potential deadlocks=" + potentialDeadlocks;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+/**
+ * The memory model simulated by a {@link ScheduleExplorer}. Under the weaker
+ * models, writes to non-volatile fields made by instrumented code are held in
+ * a store buffer for each thread, and only become visible to other threads
+ * when they are flushed to memory. A thread always sees its own buffered
+ * writes. A thread's buffer is flushed completely when the thread acquires or
+ * releases a monitor or a {@link java.util.concurrent.locks.Lock}, waits on a
+ * monitor, writes a volatile field, or calls a method that synchronizes with
+ * other threads, such as {@link Thread#start} or a method of a class in
+ * java.util.concurrent. Otherwise, each flush is a separate step, chosen by
+ * the explorer in the same way as the steps of the threads, so the explorer
+ * can find bugs that only occur when a write is delayed. The buffers of
+ * threads that have finished are flushed before the run ends.
+ * <p>
+ * Writes to static fields, and writes made by non-instrumented code, are
+ * never buffered. Reads made by non-instrumented code, including reads using
+ * reflection, go straight to memory, and so do not see the thread's own
+ * buffered writes. A thread that writes a field in instrumented code, and then
+ * reads it back in non-instrumented code, may therefore see the old value,
+ * which is not possible on real hardware. Fields that are shared with
+ * non-instrumented code should be read through instrumented code.
+ * <p>
+ * Weak memory models can only be simulated if the classes under test are
+ * instrumented with store buffers, by calling {@link
+ * BaseThreadedTestRunner#setStoreBuffers}. Without them, field accesses do not
+ * check a store buffer, and so cost much less.
+ */
+public enum MemoryModel {
+
+  /**
+   * Sequential consistency. Every write is visible to other threads
+   * immediately. This is the default.
+   */
+  SEQUENTIAL_CONSISTENCY,
+
+  /**
+   * Total store order, as provided by x86 processors. Each thread's writes
+   * become visible to other threads in the order in which they were made, but
+   * a thread may read a stale value of a field after making a write to
+   * another field.
+   */
+  TOTAL_STORE_ORDER,
+
+  /**
+   * Partial store order, as provided by some SPARC processors. Writes to the
+   * same field become visible in order, but writes to different fields may
+   * become visible in a different order. Each thread has {@link #PSO_QUEUES}
+   * queues of writes. The first fields that a thread writes are each given
+   * their own queue, and any further fields share the last queue, so writes
+   * to those fields are not reordered.
+   */
+  PARTIAL_STORE_ORDER;
+
+  /** The number of queues in each thread's store buffer under partial store order. */
+  static final int PSO_QUEUES = 4;
+}
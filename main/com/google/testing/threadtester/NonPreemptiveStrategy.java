@@ -0,0 +1,36 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.List;
+
+/**
+ * A {@link SchedulingStrategy} that never preempts the running thread. The
+ * current thread continues to run for as long as it is enabled. When it
+ * finishes or blocks, the enabled thread with the lowest number runs. Other
+ * strategies extend this class to provide their default behaviour.
+ */
+class NonPreemptiveStrategy implements SchedulingStrategy {
+
+  @Override
+  public int chooseThread(CooperativeScheduler scheduler, int current, List<Integer> enabled) {
+    if (enabled.contains(current)) {
+      return current;
+    }
+    return enabled.get(0);
+  }
+}
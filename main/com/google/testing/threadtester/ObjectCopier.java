@@ -0,0 +1,269 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisStd;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes deep copies of object graphs. Used to take a snapshot of a test
+ * fixture, so that an expensive fixture only needs to be built once, and can
+ * then be copied for each interleaving. See {@link
+ * InterleavedRunner#interleaveWithSnapshots} and {@link
+ * ThreadedBefore#snapshot}.
+ * <p>
+ * Copies are created using Objenesis, so no constructors are called, and the
+ * non-static fields of each copy are then set using reflection. The fields of
+ * each class are looked up once, and cached. (Generated copier classes cannot
+ * set the private fields of the copied classes, so reflection is used.)
+ * Immutable values, such as Strings and boxed primitives, and objects that
+ * belong to the runtime, such as threads and class loaders, are shared with
+ * the original rather than copied.
+ * <p>
+ * Copies of instrumented objects are registered with the {@link
+ * CallLoggerFactory} as new instrumented instances, in the same way as an
+ * object created by an instrumented constructor. Note that registration
+ * informs any {@link ObjectCreationListener}s.
+ * <p>
+ * Hash-based collections are copied field by field, and so their entries are
+ * in the buckets given by the hash codes of the original keys. A copied key
+ * that uses the default {@link Object#hashCode} has a different hash code, so
+ * once the graph has been copied, the copies of {@link HashMap}s, {@link
+ * Hashtable}s, {@link IdentityHashMap}s and {@link ConcurrentHashMap}s are
+ * rehashed. The JDK's hash-based sets are backed by one of these maps, and are
+ * rehashed along with it. Other hash-based collections are not rehashed, and
+ * should not hold keys that use the default hash code. A {@link WeakHashMap}
+ * cannot be copied, as its entries are weak references, which are shared.
+ * <p>
+ * A single ObjectCopier maps each original object onto a single copy, so
+ * several roots that share objects can be copied with the same copier, and
+ * the copies will share the same copied objects. An ObjectCopier is not
+ * thread-safe.
+ */
+class ObjectCopier {
+
+  private static final Objenesis objenesis = new ObjenesisStd(true);
+
+  /** The fields of each class that has been seen, including inherited fields. */
+  private static final Map<Class<?>, Field[]> fieldMap =
+      new ConcurrentHashMap<Class<?>, Field[]>();
+
+  /** Maps each original object onto its copy. */
+  private final Map<Object, Object> copies = new IdentityHashMap<Object, Object>();
+
+  /**
+   * Returns a deep copy of the given object. An object that has already been
+   * copied by this copier is not copied again.
+   *
+   * @throws IllegalArgumentException if an object in the graph cannot be
+   * copied.
+   */
+  @SuppressWarnings("unchecked")
+  <T> T copy(T root) {
+    LinkedList<Object> queue = new LinkedList<Object>();
+    List<Object> instrumented = new ArrayList<Object>();
+    List<Map<Object, Object>> hashed = new ArrayList<Map<Object, Object>>();
+    T result = (T) getCopy(root, queue);
+    try {
+      while (!queue.isEmpty()) {
+        Object original = queue.removeFirst();
+        Object copy = copies.get(original);
+        Class<?> clss = original.getClass();
+        if (clss.isArray()) {
+          copyArray(original, copy, queue);
+        } else if (copyFields(original, copy, queue)) {
+          instrumented.add(copy);
+        }
+        if (isHashed(copy)) {
+          hashed.add((Map<Object, Object>) copy);
+        }
+      }
+    } catch (IllegalAccessException e) {
+      throw new IllegalArgumentException("Cannot copy " + root, e);
+    }
+    // Register the copies once they are complete, so that any listeners see
+    // fully initialized objects.
+    for (Object copy : instrumented) {
+      setLoggers(copy);
+    }
+    // Rehash the maps found last first, as they may be the keys of maps found
+    // earlier.
+    for (int i = hashed.size() - 1; i >= 0; i--) {
+      rehash(hashed.get(i));
+    }
+    return result;
+  }
+
+  /** Returns true if the given copy is a map that must be rehashed. */
+  private static boolean isHashed(Object copy) {
+    return copy instanceof HashMap<?, ?> || copy instanceof Hashtable<?, ?> ||
+        copy instanceof IdentityHashMap<?, ?> || copy instanceof ConcurrentHashMap<?, ?>;
+  }
+
+  /**
+   * Rehashes a copied map. The keys and values are saved, and the map is
+   * cleared, so that the stale buckets are never searched. The entries are then
+   * put back in their original order.
+   */
+  private static void rehash(Map<Object, Object> map) {
+    List<Object> keys = new ArrayList<Object>(map.size());
+    List<Object> values = new ArrayList<Object>(map.size());
+    for (Map.Entry<Object, Object> entry : map.entrySet()) {
+      keys.add(entry.getKey());
+      values.add(entry.getValue());
+    }
+    map.clear();
+    for (int i = 0; i < keys.size(); i++) {
+      map.put(keys.get(i), values.get(i));
+    }
+  }
+
+  /**
+   * Returns the copy of the given value. Values that are shared are returned
+   * unchanged. Otherwise, if the value has not already been copied, a new
+   * empty instance is created and queued, so that its contents will be copied.
+   */
+  private Object getCopy(Object value, LinkedList<Object> queue) {
+    if (value == null || isShared(value)) {
+      return value;
+    }
+    Object copy = copies.get(value);
+    if (copy == null) {
+      Class<?> clss = value.getClass();
+      if (value instanceof WeakHashMap<?, ?>) {
+        throw new IllegalArgumentException("Cannot copy " + clss.getName() +
+            ", as its entries are shared weak references");
+      }
+      if (clss.isArray()) {
+        copy = Array.newInstance(clss.getComponentType(), Array.getLength(value));
+      } else {
+        try {
+          copy = objenesis.newInstance(clss);
+        } catch (RuntimeException e) {
+          throw new IllegalArgumentException("Cannot create a copy of " + clss.getName(), e);
+        }
+      }
+      copies.put(value, copy);
+      queue.add(value);
+    }
+    return copy;
+  }
+
+  private void copyArray(Object original, Object copy, LinkedList<Object> queue) {
+    int length = Array.getLength(original);
+    if (original.getClass().getComponentType().isPrimitive()) {
+      System.arraycopy(original, 0, copy, 0, length);
+    } else {
+      Object[] from = (Object[]) original;
+      Object[] to = (Object[]) copy;
+      for (int i = 0; i < length; i++) {
+        to[i] = getCopy(from[i], queue);
+      }
+    }
+  }
+
+  /**
+   * Copies the fields of an object. Fields added by the {@link
+   * TestInstrumenter} are not copied. Returns true if the object has any such
+   * fields.
+   */
+  private boolean copyFields(Object original, Object copy, LinkedList<Object> queue)
+      throws IllegalAccessException {
+    boolean instrumented = false;
+    for (Field field : getFields(original.getClass())) {
+      if (field.getName().startsWith("__")) {
+        instrumented = true;
+      } else if (field.getType().isPrimitive()) {
+        field.set(copy, field.get(original));
+      } else {
+        field.set(copy, getCopy(field.get(original), queue));
+      }
+    }
+    return instrumented;
+  }
+
+  /**
+   * Sets the {@link CallLogger} fields of a copied instrumented object. This
+   * registers the copy with the {@link CallLoggerFactory}.
+   */
+  private void setLoggers(Object copy) {
+    try {
+      for (Field field : getFields(copy.getClass())) {
+        if (field.getType() == CallLogger.class) {
+          field.set(copy, CallLoggerFactory.createLoggerForNewObject(copy));
+        }
+      }
+    } catch (IllegalAccessException e) {
+      throw new IllegalArgumentException("Cannot register copy of " + copy, e);
+    }
+  }
+
+  /**
+   * Returns true if the value is immutable, or is part of the runtime or of
+   * the test framework, and should be shared rather than copied.
+   */
+  private static boolean isShared(Object value) {
+    return value instanceof String || value instanceof Number && isImmutableNumber(value) ||
+        value instanceof Boolean || value instanceof Character || value instanceof Enum<?> ||
+        value instanceof Class<?> || value instanceof Thread || value instanceof ThreadGroup ||
+        value instanceof ClassLoader || value instanceof ThreadLocal<?> ||
+        value instanceof java.lang.ref.Reference<?> || value instanceof AccessibleObject ||
+        value instanceof CallLogger;
+  }
+
+  /** Returns true for the immutable subclasses of Number. (AtomicInteger is not.) */
+  private static boolean isImmutableNumber(Object value) {
+    return value instanceof Integer || value instanceof Long || value instanceof Short ||
+        value instanceof Byte || value instanceof Double || value instanceof Float ||
+        value.getClass() == BigInteger.class || value.getClass() == BigDecimal.class;
+  }
+
+  /** Gets the non-static fields of a class and its superclasses. */
+  private static Field[] getFields(Class<?> clss) {
+    Field[] fields = fieldMap.get(clss);
+    if (fields == null) {
+      List<Field> list = new ArrayList<Field>();
+      for (Class<?> c = clss; c != null && c != Object.class; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          if (!Modifier.isStatic(field.getModifiers())) {
+            field.setAccessible(true);
+            list.add(field);
+          }
+        }
+      }
+      fields = list.toArray(new Field[list.size()]);
+      fieldMap.put(clss, fields);
+    }
+    return fields;
+  }
+}
@@ -18,6 +18,8 @@ package com.google.testing.threadtester;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -42,6 +44,122 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
   private T baseObject;
   private ClassInstrumentation instrumentedClass;
 
+  /**
+   * Records a monitor or {@link java.util.concurrent.locks.Lock} that a thread
+   * holds, or is trying to acquire, and the position in the code at which it
+   * is acquired. Used to describe deadlocks.
+   */
+  static class LockRecord {
+    final Object lock;
+    private final ObjectInstrumentationImpl<?> object;
+    private final int line;
+
+    LockRecord(Object lock, ObjectInstrumentationImpl<?> object, int line) {
+      this.lock = lock;
+      this.object = object;
+      this.line = line;
+    }
+
+    /** Gets the position at which the lock is acquired. */
+    String getPosition() {
+      return Operation.getLocation(object, line);
+    }
+  }
+
+  /**
+   * A list of monitors or Locks, with the instrumented object and line at which
+   * each one is acquired. The probes for monitors and Locks are executed very
+   * frequently, so the list does not allocate a record for each entry, and
+   * positions are only formatted when the entries are copied into {@link
+   * LockRecord}s. Guarded by the ThreadInfo that contains it.
+   */
+  private static class LockList {
+    private Object[] locks = new Object[4];
+    private ObjectInstrumentationImpl<?>[] objects = new ObjectInstrumentationImpl<?>[4];
+    private int[] lines = new int[4];
+    private int size;
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    void add(Object lock, ObjectInstrumentationImpl<?> object, int line) {
+      if (size == locks.length) {
+        locks = Arrays.copyOf(locks, size * 2);
+        objects = Arrays.copyOf(objects, size * 2);
+        lines = Arrays.copyOf(lines, size * 2);
+      }
+      locks[size] = lock;
+      objects[size] = object;
+      lines[size] = line;
+      size++;
+    }
+
+    /**
+     * Removes the last entry, and adds it to the other list. Returns the
+     * entry's lock.
+     */
+    Object moveLast(LockList other) {
+      int last = size - 1;
+      Object lock = locks[last];
+      other.add(lock, objects[last], lines[last]);
+      remove(last);
+      return lock;
+    }
+
+    /** Removes all entries for the given lock, and adds them to the other list. */
+    void moveAll(Object lock, LockList other) {
+      for (int i = 0; i < size;) {
+        if (locks[i] == lock) {
+          other.add(lock, objects[i], lines[i]);
+          remove(i);
+        } else {
+          i++;
+        }
+      }
+    }
+
+    /** Adds all of the entries in the other list to this one. */
+    void addAll(LockList other) {
+      for (int i = 0; i < other.size; i++) {
+        add(other.locks[i], other.objects[i], other.lines[i]);
+      }
+    }
+
+    /** Removes the most recent entry for the given lock. */
+    void removeLast(Object lock) {
+      for (int i = size - 1; i >= 0; i--) {
+        if (locks[i] == lock) {
+          remove(i);
+          return;
+        }
+      }
+    }
+
+    void clear() {
+      Arrays.fill(locks, 0, size, null);
+      Arrays.fill(objects, 0, size, null);
+      size = 0;
+    }
+
+    private void remove(int index) {
+      int numMoved = size - index - 1;
+      System.arraycopy(locks, index + 1, locks, index, numMoved);
+      System.arraycopy(objects, index + 1, objects, index, numMoved);
+      System.arraycopy(lines, index + 1, lines, index, numMoved);
+      size--;
+      locks[size] = null;
+      objects[size] = null;
+    }
+
+    /** Adds a record for each entry to the given list. */
+    void addRecords(List<LockRecord> records) {
+      for (int i = 0; i < size; i++) {
+        records.add(new LockRecord(locks[i], objects[i], lines[i]));
+      }
+    }
+  }
+
   /** Maintains information about the state of a given thread */
   private static class ThreadInfo {
     /**
@@ -60,12 +178,69 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
      * The current set of active Breakpoints for this thread.
      */
     Set<InstrumentedCodeBreakpoint> breakPoints = new HashSet<InstrumentedCodeBreakpoint>();
+
+    /**
+     * The monitors that this thread is attempting to acquire. A monitor is
+     * pushed onto the end of the list in {@link #monitorEnter}, and removed in
+     * {@link #monitorAcquired}. Guarded by this ThreadInfo, rather than the
+     * {@link #threadMap}, as it is only read by other threads when describing
+     * a deadlock.
+     */
+    final LockList pendingMonitors = new LockList();
+
+    /**
+     * The Lock that this thread is attempting to acquire, or empty. Set in
+     * {@link #lockEnter}, and cleared in {@link #lockAcquired}. Guarded by this
+     * ThreadInfo.
+     */
+    final LockList pendingLock = new LockList();
+
+    /**
+     * The monitors and Locks held by this thread, in the order in which they
+     * were acquired. A monitor or Lock that is held more than once appears
+     * more than once. Guarded by this ThreadInfo.
+     */
+    final LockList heldLocks = new LockList();
+
+    /**
+     * The listener for probes in this thread, or null if there is none. This
+     * is set by the thread that registers the listener, and read by this
+     * thread without holding the lock on the {@link #threadMap}.
+     */
+    volatile ProbeListener listener;
   }
 
   /** Maps a Thread onto the related ThreadInfo object */
   private static final WeakHashMap<Thread, ThreadInfo> threadMap
     = new WeakHashMap<Thread, ThreadInfo>();
 
+  /**
+   * The ThreadInfo for the current thread. This is the same object as the one
+   * in the {@link #threadMap}, which is only locked when it is first looked
+   * up, so that the probes do not serialize the instrumented threads.
+   */
+  private static final ThreadLocal<ThreadInfo> currentInfo = new ThreadLocal<ThreadInfo>() {
+    @Override
+    protected ThreadInfo initialValue() {
+      synchronized (threadMap) {
+        return getThreadInfoTolerant(Thread.currentThread());
+      }
+    }
+  };
+
+  /**
+   * The number of threads that have a ProbeListener. Field access probes are
+   * executed very frequently, so we check this before looking up the listener
+   * for the current thread.
+   */
+  private static volatile int numListeners;
+
+  /**
+   * The time in milliseconds between checks on a thread that is expected to
+   * stop at a breakpoint.
+   */
+  private static final long POLL_TIME = 10;
+
   /**
    * Gets the ObjectInstrumentation representing the given base object. The test
    * environment must have been set up so that the base object's class has been
@@ -117,7 +292,76 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
     addBreakpoint(breakPoint.getThread(), breakPoint);
   }
 
-  private ThreadInfo getThreadInfoTolerant(Thread thread) {
+  /**
+   * Sets the {@link ProbeListener} for the given thread. The listener will be
+   * informed whenever the thread executes a probe in any instrumented object.
+   * Passing in a null listener removes any existing listener.
+   */
+  static void setProbeListener(Thread thread, ProbeListener listener) {
+    synchronized (threadMap) {
+      ThreadInfo info = threadMap.get(thread);
+      if (info == null) {
+        if (listener == null) {
+          return;
+        }
+        info = new ThreadInfo();
+        threadMap.put(thread, info);
+      }
+      if (info.listener == null && listener != null) {
+        numListeners++;
+      } else if (info.listener != null && listener == null) {
+        numListeners--;
+      }
+      info.listener = listener;
+    }
+  }
+
+  /** Gets the ProbeListener for the current thread, or null if there is none. */
+  private static ProbeListener getProbeListener() {
+    if (numListeners == 0) {
+      return null;
+    }
+    return currentInfo.get().listener;
+  }
+
+  /**
+   * Gets the monitors and Lock that the given thread may be trying to acquire.
+   * If the call to acquire a Lock failed with an exception, then it may still
+   * be recorded as pending.
+   */
+  static List<LockRecord> getPendingLocks(Thread thread) {
+    ThreadInfo info;
+    synchronized (threadMap) {
+      info = threadMap.get(thread);
+    }
+    if (info == null) {
+      return Collections.emptyList();
+    }
+    List<LockRecord> result = new ArrayList<LockRecord>();
+    synchronized (info) {
+      info.pendingMonitors.addRecords(result);
+      info.pendingLock.addRecords(result);
+    }
+    return result;
+  }
+
+  /** Gets the monitors and Locks held by the given thread. */
+  static List<LockRecord> getHeldLocks(Thread thread) {
+    ThreadInfo info;
+    synchronized (threadMap) {
+      info = threadMap.get(thread);
+    }
+    if (info == null) {
+      return Collections.emptyList();
+    }
+    List<LockRecord> result = new ArrayList<LockRecord>();
+    synchronized (info) {
+      info.heldLocks.addRecords(result);
+    }
+    return result;
+  }
+
+  private static ThreadInfo getThreadInfoTolerant(Thread thread) {
     ThreadInfo info = threadMap.get(thread);
     if (info == null) {
       info = new ThreadInfo();
@@ -206,11 +450,11 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
   }
 
   /**
-   * Tests two interleaved threads. The main Runnable is assumed to call the
+   * Tests interleaved threads. The main Runnable is assumed to call the
    * named method in the base object. The system will run the main Runnable,
    * stopping after lineCount executable lines. Once stopped, it will then
-   * invoke the secondary Runnable, and allow it to complete. It will then let
-   * the main runnable continue.
+   * invoke the secondary Runnables concurrently, and allow them to complete. It
+   * will then let the main runnable continue.
    * <p>
    * This method is normally called from an {@link InterleavedRunner}.
    *
@@ -222,8 +466,8 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
    *                          within the method. May be -1 if startPosition is
    *                          specified
    *
-   * @param secondary         the secondary runnable
-   * @param secondaryCanBlock if false, then throw an exception if the secondary
+   * @param secondaries       the secondary runnables
+   * @param secondaryCanBlock if false, then throw an exception if a secondary
    *                          is blocked when trying to run becasue of a
    *                          synchronized lock held by the main runnable
    * @param startPosition     if non-null, then the main runnable should run to
@@ -231,13 +475,19 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
    *                          the lineCount
    * @param startCount        the number of times the startPosition must be
    *                          hit before the secondary is allowed to run.
+   * @param deduplicator      if non-null, then the secondary is not run if the
+   *                          deduplicator has already seen the main runnable's
+   *                          position and state when it stops. The main
+   *                          runnable continues to completion.
    *
-   * @return                  the stepped run result
+   * @return                  the stepped run result. If more than one
+   *                          secondary throws an exception, the result
+   *                          contains the first one.
    */
   SteppedRunResult interleave(ThrowingRunnable main, MethodInstrumentation mainMethod,
-      int lineCount, ThrowingRunnable secondary, boolean secondaryCanBlock,
+      int lineCount, List<? extends ThrowingRunnable> secondaries, boolean secondaryCanBlock,
       CodePosition startPosition,
-      int startCount) {
+      int startCount, StateDeduplicator deduplicator) {
 
     List<LineInstrumentation> lines = mainMethod.getLines();
     int currLine = lines.get(0).getLineNumber();
@@ -263,9 +513,19 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
 
     String name = mainMethod.toString();
     TestThread mainThread = new TestThread(main, "Main Test Thread " + name);
-    TestThread secondThread = new TestThread(secondary, "Second Test Thread " + name);
+    List<TestThread> secondThreads = new ArrayList<TestThread>(secondaries.size());
+    for (ThrowingRunnable secondary : secondaries) {
+      String suffix = secondThreads.isEmpty() ? "" : " " + secondThreads.size();
+      secondThreads.add(new TestThread(secondary, "Second Test Thread " + name + suffix));
+    }
+    List<TestThread> mainOnly = Collections.singletonList(mainThread);
     boolean atEndOfMethod = false;
     Throwable mainException = null;
+    StateDeduplicator.OperationCounter counter = null;
+    if (deduplicator != null) {
+      counter = deduplicator.createCounter();
+      setProbeListener(mainThread, counter);
+    }
     try {
       InstrumentedCodeBreakpoint startBreakpoint;
 
@@ -305,17 +565,26 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
       currLine = getAndClearCurrentLineNumber(mainThread);
       Options.debugPrint("Reached line %d, atEnd %s\n", currLine, atEnd);
 
-      Options.debugPrint("Starting second thread\n");
-      secondThread.start();
+      if (deduplicator != null && !deduplicator.visit(counter, baseObject)) {
+        continueBreakpoint.resume();
+        mainThread.finish();
+        return new SteppedRunResult(mainThread.getException(), currLine, true);
+      }
+
+      Options.debugPrint("Starting %d second thread(s)\n", secondThreads.size());
+      for (TestThread secondThread : secondThreads) {
+        secondThread.start();
+      }
 
-      boolean secondFinished = new ThreadMonitor(secondThread, mainThread).waitForThread();
+      List<Thread> blocked = new ThreadMonitor(secondThreads, mainOnly).waitForThreads();
+      boolean secondFinished = blocked.isEmpty();
       Options.debugPrint("secondFinished = %s\n", secondFinished);
 
       if (!secondFinished && !secondaryCanBlock) {
-        throw new TestTimeoutException("Second thread blocked", secondThread);
+        throw new TestTimeoutException("Second thread blocked", blocked.get(0));
       }
-      // If the second thread didn't run because it was blocked, then step
-      // through the first thread, trying to run the second thread after each
+      // If a second thread didn't run because it was blocked, then step
+      // through the first thread, trying to run the blocked threads after each
       // line.
       if (!secondFinished) {
         if (stepper == null) {
@@ -323,7 +592,8 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
         }
         while (stepper.hasNext() && !secondFinished) {
           Options.debugPrint("  stepping - secondFinished = %s\n", secondFinished);
-          secondFinished = new ThreadMonitor(secondThread, mainThread).waitForThread();
+          blocked = new ThreadMonitor(blocked, mainOnly).waitForThreads();
+          secondFinished = blocked.isEmpty();
           stepper.step();
         }
       }
@@ -338,11 +608,11 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
       mainThread.finish();
 
       if (!secondFinished) {
-        secondFinished = new ThreadMonitor(secondThread, mainThread).waitForThread();
+        blocked = new ThreadMonitor(blocked, mainOnly).waitForThreads();
       }
-      if (!secondFinished) {
+      if (!blocked.isEmpty()) {
         throw new TestTimeoutException("Main thread has finished but second thread has not",
-            secondThread);
+            blocked.get(0));
       }
     } catch (TestTimeoutException e) {
       if (e.getThread() == mainThread) {
@@ -352,7 +622,8 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
         }
         return new SteppedRunResult(threadException, null, currLine);
       } else {
-        Throwable threadException = secondThread.getException();
+        Throwable threadException = e.getThread() instanceof TestThread ?
+            ((TestThread) e.getThread()).getException() : null;
         if (threadException == null) {
           threadException = e;
         }
@@ -360,6 +631,99 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
       }
     } catch (InterruptedException e) {
       mainException = e;
+    } finally {
+      if (counter != null) {
+        setProbeListener(mainThread, null);
+      }
+    }
+    if (mainException == null) {
+      mainException = mainThread.getException();
+    }
+    Throwable secondaryException = null;
+    for (TestThread secondThread : secondThreads) {
+      if (secondaryException == null) {
+        secondaryException = secondThread.getException();
+      }
+    }
+    return new SteppedRunResult(mainException, secondaryException, currLine);
+  }
+
+  /**
+   * Tests two interleaved threads, stopping both of them part way through. The
+   * main runnable is run until it reaches the given line of the main method. The
+   * secondary runnable is then run until it reaches the given line of the
+   * secondary method. The main runnable then continues to completion, followed
+   * by the secondary runnable. Both methods must be methods of the base
+   * object's class.
+   * <p>
+   * If either runnable is blocked by a monitor held by the other before it
+   * reaches its line, then it is allowed to continue once the monitor is
+   * released. Blocking on other kinds of lock results in a timeout.
+   * <p>
+   * This method is normally called from an {@link InterleavedRunner}.
+   *
+   * @param main               the main runnable
+   * @param mainMethod         the method invoked by the main runnable
+   * @param mainLineCount      the line in the main method where the main runnable
+   *                           should stop. The lines are numbered from 0 within
+   *                           the method
+   * @param secondary          the secondary runnable
+   * @param secondaryMethod    the method invoked by the secondary runnable
+   * @param secondaryLineCount the line in the secondary method where the
+   *                           secondary runnable should stop
+   *
+   * @return                   the stepped run result
+   */
+  SteppedRunResult interleaveBothSides(ThrowingRunnable main, MethodInstrumentation mainMethod,
+      int mainLineCount, ThrowingRunnable secondary, MethodInstrumentation secondaryMethod,
+      int secondaryLineCount) {
+    int mainLine = getTargetLine(mainMethod, mainLineCount);
+    int secondaryLine = getTargetLine(secondaryMethod, secondaryLineCount);
+    Options.debugPrint("interleave to line %d and line %d\n", mainLine, secondaryLine);
+
+    TestThread mainThread = new TestThread(main, "Main Test Thread " + mainMethod);
+    TestThread secondThread = new TestThread(secondary, "Second Test Thread " + secondaryMethod);
+    int currLine = mainLine;
+    Throwable mainException = null;
+    try {
+      InstrumentedCodeBreakpoint mainBreakpoint =
+          runToLine(mainThread, secondThread, mainMethod, mainLine);
+      if (mainBreakpoint != null) {
+        currLine = getAndClearCurrentLineNumber(mainThread);
+      }
+      InstrumentedCodeBreakpoint secondBreakpoint =
+          runToLine(secondThread, mainThread, secondaryMethod, secondaryLine);
+      Options.debugPrint("Main stopped %s, second stopped %s\n", mainBreakpoint != null,
+          secondBreakpoint != null);
+
+      // Let the main thread run to completion. If it is blocked by a monitor
+      // that the second thread is holding, then the second thread must
+      // continue first.
+      if (mainBreakpoint != null) {
+        mainBreakpoint.resume();
+      }
+      waitForBreakpoint(null, mainThread, secondThread);
+      if (mainThread.isAlive() && secondBreakpoint != null) {
+        secondBreakpoint.resume();
+        secondBreakpoint = null;
+      }
+      mainThread.finish();
+      if (secondBreakpoint != null) {
+        secondBreakpoint.resume();
+      }
+      secondThread.finish(TimeoutPhase.SECONDARY_COMPLETION);
+    } catch (TestTimeoutException e) {
+      if (e.getThread() == mainThread) {
+        Throwable threadException = mainThread.getException();
+        return new SteppedRunResult(threadException == null ? e : threadException, null,
+            currLine);
+      } else {
+        Throwable threadException = secondThread.getException();
+        return new SteppedRunResult(null, threadException == null ? e : threadException,
+            currLine);
+      }
+    } catch (InterruptedException e) {
+      mainException = e;
     }
     if (mainException == null) {
       mainException = mainThread.getException();
@@ -367,6 +731,94 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
     return new SteppedRunResult(mainException, secondThread.getException(), currLine);
   }
 
+  /** Gets the line number of the line with the given index in the given method. */
+  private static int getTargetLine(MethodInstrumentation method, int lineCount) {
+    List<LineInstrumentation> lines = method.getLines();
+    if (!(lineCount >= 0 && lineCount < lines.size())) {
+      throw new IllegalArgumentException("Invalid lineCount " + lineCount + " in " + method);
+    }
+    return lines.get(lineCount).getLineNumber();
+  }
+
+  /**
+   * Starts the given thread, and runs it until it reaches the given line of the
+   * given method, or the end of the method. Returns the breakpoint where the
+   * thread has stopped, or null if the thread finished without calling the
+   * method, or was blocked by a monitor held by the other thread.
+   */
+  private InstrumentedCodeBreakpoint runToLine(TestThread thread, Thread other,
+      MethodInstrumentation method, int targetLine)
+      throws InterruptedException, TestTimeoutException {
+    Method underlying = method.getUnderlyingMethod();
+    InstrumentedCodeBreakpoint startBreakpoint =
+        createBreakpointImpl(instrumentedClass.atMethodStart(underlying), thread);
+    thread.start();
+    if (!waitForBreakpoint(startBreakpoint, thread, other)) {
+      cancelBreakpoint(startBreakpoint);
+      return null;
+    }
+    MultiPositionBreakpoint lineBreakpoint = new MultiPositionBreakpoint(thread,
+        new LineCodePosition(targetLine), instrumentedClass.atMethodEnd(underlying));
+    addBreakpoint(thread, lineBreakpoint);
+    startBreakpoint.resume();
+    if (!waitForBreakpoint(lineBreakpoint, thread, other)) {
+      cancelBreakpoint(lineBreakpoint);
+      return null;
+    }
+    return lineBreakpoint;
+  }
+
+  /**
+   * Waits until the given thread stops at the given breakpoint, finishes, or
+   * is blocked by a monitor held by the other thread. Returns true if the thread
+   * stopped at the breakpoint. If the breakpoint is null, waits until the
+   * thread finishes or is blocked.
+   *
+   * @throws TestTimeoutException if none of these happen before the timeout
+   * @throws DeadlockException if the thread is deadlocked
+   */
+  private static boolean waitForBreakpoint(Breakpoint breakpoint, Thread thread, Thread other)
+      throws InterruptedException, TestTimeoutException {
+    TimeoutPhase phase =
+        breakpoint == null ? TimeoutPhase.MAIN_COMPLETION : TimeoutPhase.REACH_BREAKPOINT;
+    String key = breakpoint instanceof AbstractBreakpoint ?
+        ((AbstractBreakpoint) breakpoint).getTimeoutKey() : thread.getName();
+    long start = System.currentTimeMillis();
+    long endTime = start + AdaptiveTimeouts.timeout(phase, key);
+    while (System.currentTimeMillis() < endTime) {
+      if (breakpoint != null && breakpoint.isBlocked()) {
+        AdaptiveTimeouts.record(phase, key, System.currentTimeMillis() - start);
+        return true;
+      }
+      if (!thread.isAlive()) {
+        AdaptiveTimeouts.record(phase, key, System.currentTimeMillis() - start);
+        return false;
+      }
+      if (ThreadMonitor.getBlockerId(thread) == other.getId()) {
+        return false;
+      }
+      DeadlockDetector.checkIfBlocked(thread);
+      thread.join(POLL_TIME);
+    }
+    throw new TestTimeoutException("Thread did not stop", thread);
+  }
+
+  /**
+   * Removes a breakpoint that the thread has not reached. If the thread has
+   * already hit the breakpoint, then lets it continue.
+   */
+  private void cancelBreakpoint(InstrumentedCodeBreakpoint breakpoint)
+      throws TestTimeoutException {
+    synchronized (threadMap) {
+      ThreadInfo info = threadMap.get(breakpoint.getThread());
+      if (info != null && info.breakPoints.remove(breakpoint)) {
+        return;
+      }
+    }
+    breakpoint.await();
+    breakpoint.resume();
+  }
+
   /**
    * Checks to see if there is a Breakpoint set for the given thread and
    * position, and returns true if there is, and if the Breakpoint's count has
@@ -435,4 +887,217 @@ class ObjectInstrumentationImpl<T> implements CallLogger, ObjectInstrumentation<
     CodePosition position = instrumentedClass.afterCall(source, target);
     checkBreakpoint(Thread.currentThread(), position);
   }
+
+  @Override
+  public void monitorEnter(Object monitor, int line) {
+    Options.debugPrint("  monitor enter %s at %d in %s\n", describe(monitor), line,
+        Thread.currentThread());
+    ThreadInfo info = currentInfo.get();
+    synchronized (info) {
+      info.pendingMonitors.add(monitor, this, line);
+    }
+    ProbeListener listener = info.listener;
+    if (listener != null) {
+      listener.monitorEnter(this, monitor, line);
+    }
+  }
+
+  @Override
+  public void monitorAcquired() {
+    ThreadInfo info = currentInfo.get();
+    Object monitor;
+    synchronized (info) {
+      if (info.pendingMonitors.isEmpty()) {
+        throw new IllegalStateException("Acquired monitor without entering");
+      }
+      monitor = info.pendingMonitors.moveLast(info.heldLocks);
+    }
+    Options.debugPrint("  monitor acquired %s in %s\n", describe(monitor), Thread.currentThread());
+    ProbeListener listener = info.listener;
+    if (listener != null) {
+      listener.monitorAcquired(this, monitor);
+    }
+  }
+
+  @Override
+  public void monitorExit(Object monitor, int line) {
+    Options.debugPrint("  monitor exit %s at %d in %s\n", describe(monitor), line,
+        Thread.currentThread());
+    ThreadInfo info = currentInfo.get();
+    synchronized (info) {
+      info.heldLocks.removeLast(monitor);
+    }
+    ProbeListener listener = info.listener;
+    if (listener != null) {
+      listener.monitorExit(this, monitor, line);
+    }
+  }
+
+  @Override
+  public void fieldRead(Object owner, String field, int line) {
+    ProbeListener listener = getProbeListener();
+    if (listener != null) {
+      listener.fieldRead(this, owner, field, line);
+    }
+  }
+
+  @Override
+  public void fieldWrite(Object owner, String field, int line) {
+    ProbeListener listener = getProbeListener();
+    if (listener != null) {
+      listener.fieldWrite(this, owner, field, line);
+    }
+  }
+
+  @Override
+  public void volatileRead(Object owner, String field, int line) {
+    ProbeListener listener = getProbeListener();
+    if (listener != null) {
+      listener.volatileRead(this, owner, field, line);
+    }
+  }
+
+  @Override
+  public void volatileReadDone(Object owner, String field, int line) {
+    ProbeListener listener = getProbeListener();
+    if (listener != null) {
+      listener.volatileReadDone(this, owner, field, line);
+    }
+  }
+
+  @Override
+  public void volatileWrite(Object owner, String field, int line) {
+    ProbeListener listener = getProbeListener();
+    if (listener != null) {
+      listener.volatileWrite(this, owner, field, line);
+    }
+  }
+
+  @Override
+  public void monitorWait(Object monitor, long timeout, int nanos, int line)
+      throws InterruptedException {
+    Options.debugPrint("  monitor wait %s at %d in %s\n", describe(monitor), line,
+        Thread.currentThread());
+    // The monitor is released while waiting, and must be reacquired
+    // afterwards, so it is pending rather than held.
+    ThreadInfo info = currentInfo.get();
+    LockList released = new LockList();
+    synchronized (info) {
+      info.heldLocks.moveAll(monitor, released);
+      info.pendingMonitors.add(monitor, this, line);
+    }
+    try {
+      ProbeListener listener = info.listener;
+      if (listener == null || !listener.monitorWait(this, monitor, timeout, nanos, line)) {
+        monitor.wait(timeout, nanos);
+      }
+    } finally {
+      synchronized (info) {
+        info.pendingMonitors.removeLast(monitor);
+        info.heldLocks.addAll(released);
+      }
+    }
+  }
+
+  @Override
+  public void monitorNotify(Object monitor, boolean all, int line) {
+    Options.debugPrint("  monitor notify %s at %d in %s\n", describe(monitor), line,
+        Thread.currentThread());
+    ProbeListener listener = getProbeListener();
+    if (listener != null) {
+      listener.monitorNotify(this, monitor, all, line);
+    }
+  }
+
+  @Override
+  public void lockEnter(Object lock, boolean tryLock, int line) {
+    Options.debugPrint("  lock enter %s at %d in %s\n", describe(lock), line,
+        Thread.currentThread());
+    ThreadInfo info = currentInfo.get();
+    synchronized (info) {
+      // A call to tryLock never blocks, so it is not recorded as pending.
+      info.pendingLock.clear();
+      if (!tryLock) {
+        info.pendingLock.add(lock, this, line);
+      }
+    }
+    ProbeListener listener = info.listener;
+    if (listener != null) {
+      listener.lockEnter(this, lock, tryLock, line);
+    }
+  }
+
+  @Override
+  public void lockAcquired(Object lock, int line) {
+    Options.debugPrint("  lock acquired %s in %s\n", describe(lock), Thread.currentThread());
+    ThreadInfo info = currentInfo.get();
+    synchronized (info) {
+      info.pendingLock.clear();
+      info.heldLocks.add(lock, this, line);
+    }
+    ProbeListener listener = info.listener;
+    if (listener != null) {
+      listener.lockAcquired(this, lock);
+    }
+  }
+
+  @Override
+  public void lockExit(Object lock, int line) {
+    Options.debugPrint("  lock exit %s at %d in %s\n", describe(lock), line,
+        Thread.currentThread());
+    ThreadInfo info = currentInfo.get();
+    synchronized (info) {
+      info.heldLocks.removeLast(lock);
+    }
+    ProbeListener listener = info.listener;
+    if (listener != null) {
+      listener.lockExit(this, lock, line);
+    }
+  }
+
+  @Override
+  public void syncRelease(Object target, int line) {
+    ProbeListener listener = getProbeListener();
+    if (listener != null) {
+      listener.syncRelease(this, target, line);
+    }
+  }
+
+  @Override
+  public void syncAcquire(Object target, int line) {
+    ProbeListener listener = getProbeListener();
+    if (listener != null) {
+      listener.syncAcquire(this, target, line);
+    }
+  }
+
+  @Override
+  public void collectionAccess(Object collection, boolean write, int line) {
+    ProbeListener listener = getProbeListener();
+    if (listener != null) {
+      listener.collectionAccess(this, collection, write, line);
+    }
+  }
+
+  @Override
+  public boolean storeField(Object owner, String field, Object value, int line) {
+    ProbeListener listener = getProbeListener();
+    return listener != null && listener.storeField(this, owner, field, value, line);
+  }
+
+  @Override
+  public Object loadField(Object owner, String field, int line) {
+    ProbeListener listener = getProbeListener();
+    return listener == null ? NOT_BUFFERED : listener.loadField(this, owner, field, line);
+  }
+
+  /**
+   * Returns a description of a monitor object for debugging. We avoid calling
+   * the monitor's own toString() method, as the monitor may be an instrumented
+   * object.
+   */
+  private static String describe(Object monitor) {
+    return monitor.getClass().getSimpleName() + "@" +
+        Integer.toHexString(System.identityHashCode(monitor));
+  }
 }
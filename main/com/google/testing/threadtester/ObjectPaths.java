@@ -0,0 +1,100 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the shortest path of fields from a set of named roots to each object
+ * in the graph that they reach. For example, a map held in the field "users"
+ * of the root "main" has the path "main.users", and the third element of an
+ * array has a path ending in "[2]". The paths do not depend on the identity of
+ * the objects, so they can be used to match up the objects in two graphs with
+ * the same structure.
+ * <p>
+ * Fields are read using reflection, and are traversed in the same way as in
+ * the {@link StateHasher}. If the graph is larger than {@link
+ * StateHasher#MAX_OBJECTS}, then only the objects nearest the roots have paths.
+ */
+class ObjectPaths {
+
+  private final Map<Object, String> paths = new IdentityHashMap<Object, String>();
+
+  private final Map<Class<?>, List<Field>> fieldMap = new HashMap<Class<?>, List<Field>>();
+
+  private final LinkedList<Object> queue = new LinkedList<Object>();
+
+  /**
+   * Finds the paths to the objects reachable from the given roots. The roots
+   * are traversed breadth-first, in the order of the map's iterator.
+   */
+  ObjectPaths(Map<String, ?> roots) {
+    for (Map.Entry<String, ?> root : roots.entrySet()) {
+      add(root.getValue(), root.getKey());
+    }
+    while (!queue.isEmpty()) {
+      Object object = queue.removeFirst();
+      String path = paths.get(object);
+      Class<?> clss = object.getClass();
+      if (clss.isArray()) {
+        if (!clss.getComponentType().isPrimitive()) {
+          int length = Array.getLength(object);
+          for (int i = 0; i < length; i++) {
+            add(Array.get(object, i), path + "[" + i + "]");
+          }
+        }
+      } else {
+        List<Field> fields;
+        try {
+          fields = StateHasher.getFields(clss, fieldMap);
+        } catch (SecurityException e) {
+          // The object's contents will not be reached
+          continue;
+        }
+        for (Field field : fields) {
+          if (!field.getType().isPrimitive()) {
+            try {
+              add(field.get(object), path + "." + field.getName());
+            } catch (IllegalAccessException e) {
+              // The object will not be reached through this field
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /** Gets the path to the given object, or null if it was not reached. */
+  String getPath(Object object) {
+    return paths.get(object);
+  }
+
+  private void add(Object value, String path) {
+    if (value == null || StateHasher.isValue(value) || StateHasher.isOpaque(value) ||
+        paths.containsKey(value) || paths.size() >= StateHasher.MAX_OBJECTS) {
+      return;
+    }
+    paths.put(value, path);
+    queue.add(value);
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+/**
+ * Represents an operation that is visible to other threads, such as reading a
+ * field or acquiring a monitor. Operations are reported by the probes that the
+ * {@link TestInstrumenter} adds to instrumented classes. A {@link
+ * CooperativeScheduler} treats each operation as a point at which it may
+ * switch from one thread to another.
+ * <p>
+ * Two operations are dependent if executing them in a different order may
+ * produce a different result. This is the case if they access the same field
+ * of the same object and at least one of them is a write, if they acquire the
+ * same monitor or the same {@link java.util.concurrent.locks.Lock}, or if one
+ * of them releases a Lock that the other tries to acquire.
+ */
+class Operation {
+
+  /** The different kinds of operation. */
+  enum Kind {
+    /** The start of a thread. Not dependent on any other operation. */
+    START("start"),
+    /** A read of a field. */
+    READ("read"),
+    /** A write to a field. */
+    WRITE("write"),
+    /** An attempt to acquire a monitor. */
+    LOCK("lock"),
+    /**
+     * The return from {@link Object#wait}, which reacquires the monitor that was
+     * released by the wait.
+     */
+    WAIT("wait"),
+    /** A call to {@link java.util.concurrent.locks.Lock#lock}. */
+    ACQUIRE("acquire"),
+    /**
+     * A call to {@link java.util.concurrent.locks.Lock#tryLock}. Unlike {@link
+     * #ACQUIRE}, this never blocks.
+     */
+    TRY_ACQUIRE("tryacquire"),
+    /**
+     * A call to {@link java.util.concurrent.locks.Lock#unlock}. This is only
+     * dependent on {@link #TRY_ACQUIRE}, as an {@link #ACQUIRE} cannot take
+     * place until the lock is released.
+     */
+    RELEASE("release"),
+    /** The end of a thread. Never executed. */
+    END("end");
+
+    private final String name;
+
+    Kind(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /** The operation that begins every thread. */
+  static final Operation START = new Operation(Kind.START, null, null, null);
+
+  /** The operation that ends every thread. */
+  static final Operation END = new Operation(Kind.END, null, null, null);
+
+  private final Kind kind;
+  private final Object target;
+  private final String name;
+  private final String location;
+  private final String probe;
+
+  /**
+   * Creates a new Operation.
+   *
+   * @param kind the kind of operation
+   * @param target the object whose field is accessed, or whose monitor or
+   *        lock is acquired. Will be null for a static field.
+   * @param name the qualified name of the field accessed, or the name of the
+   *        monitor's or lock's class
+   * @param location the location in the code where the operation takes place
+   */
+  Operation(Kind kind, Object target, String name, String location) {
+    this.kind = kind;
+    this.target = target;
+    this.name = name;
+    this.location = location;
+    if (name == null) {
+      probe = kind.toString();
+    } else {
+      probe = kind + " " + name + " at " + location;
+    }
+  }
+
+  /** Creates a new Operation for a field access. */
+  static Operation fieldAccess(boolean write, ObjectInstrumentationImpl<?> object, Object owner,
+      String field, int line) {
+    return new Operation(write ? Kind.WRITE : Kind.READ, owner, field, getLocation(object, line));
+  }
+
+  /** Creates a new Operation for the acquisition of a monitor. */
+  static Operation lock(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+    return new Operation(Kind.LOCK, monitor, monitor.getClass().getName(),
+        getLocation(object, line));
+  }
+
+  /** Creates a new Operation for the return from a call to {@link Object#wait}. */
+  static Operation wait(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+    return new Operation(Kind.WAIT, monitor, monitor.getClass().getName(),
+        getLocation(object, line));
+  }
+
+  /**
+   * Creates a new Operation for a call to {@link
+   * java.util.concurrent.locks.Lock#lock} or {@link
+   * java.util.concurrent.locks.Lock#tryLock}.
+   */
+  static Operation acquire(ObjectInstrumentationImpl<?> object, Object lock, boolean tryLock,
+      int line) {
+    return new Operation(tryLock ? Kind.TRY_ACQUIRE : Kind.ACQUIRE, lock,
+        lock.getClass().getName(), getLocation(object, line));
+  }
+
+  /** Creates a new Operation for a call to {@link java.util.concurrent.locks.Lock#unlock}. */
+  static Operation release(ObjectInstrumentationImpl<?> object, Object lock, int line) {
+    return new Operation(Kind.RELEASE, lock, lock.getClass().getName(), getLocation(object, line));
+  }
+
+  /**
+   * Returns the location of a line in the given instrumented object. Note that
+   * this uses the class of the object, which may be a subclass of the class
+   * whose code is executing.
+   */
+  static String getLocation(ObjectInstrumentationImpl<?> object, int line) {
+    return object.getUnderlyingObject().getClass().getName() + ":" + line;
+  }
+
+  Kind getKind() {
+    return kind;
+  }
+
+  /**
+   * Gets the target of this operation. This is the object whose field is
+   * accessed, or whose monitor or lock is acquired.
+   */
+  Object getTarget() {
+    return target;
+  }
+
+  /** Gets the location of this operation, or null for START and END. */
+  String getLocation() {
+    return location;
+  }
+
+  /**
+   * Gets a description of this operation that does not depend on the identity
+   * of the target. Two operations executed at the same point in the code will
+   * have the same probe, even if they execute in different runs.
+   */
+  String getProbe() {
+    return probe;
+  }
+
+  /** Returns true if this operation reads or writes a field. */
+  boolean isFieldAccess() {
+    return kind == Kind.READ || kind == Kind.WRITE;
+  }
+
+  /** Returns true if this operation acquires a monitor. */
+  boolean isMonitorAcquisition() {
+    return kind == Kind.LOCK || kind == Kind.WAIT;
+  }
+
+  /** Returns true if this operation acquires, or tries to acquire, a Lock. */
+  boolean isLockAcquisition() {
+    return kind == Kind.ACQUIRE || kind == Kind.TRY_ACQUIRE;
+  }
+
+  /**
+   * Returns true if this operation is dependent on the other. Note that this
+   * compares the targets of the operations by identity, so it is only
+   * meaningful for two operations executed in the same run.
+   */
+  boolean isDependent(Operation other) {
+    if (isFieldAccess() && other.isFieldAccess()) {
+      return target == other.target && name.equals(other.name) &&
+          (kind == Kind.WRITE || other.kind == Kind.WRITE);
+    } else if (isMonitorAcquisition() && other.isMonitorAcquisition()) {
+      return target == other.target;
+    } else if (isLockAcquisition() && other.isLockAcquisition()) {
+      return target == other.target;
+    } else if ((kind == Kind.RELEASE && other.kind == Kind.TRY_ACQUIRE) ||
+        (kind == Kind.TRY_ACQUIRE && other.kind == Kind.RELEASE)) {
+      return target == other.target;
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return probe;
+  }
+}
@@ -18,6 +18,8 @@ package com.google.testing.threadtester;
 
 import java.util.HashSet;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -50,6 +52,9 @@ class Options {
   private static boolean debug = DEFAULT_DEBUG;
   private static MethodOption method_option = DEFAULT_METHOD_OPTION;
   private static Set<String> methodNames;
+  private static boolean adaptiveTimeouts;
+  private static Map<TimeoutPhase, Long> phaseTimeouts =
+      new EnumMap<TimeoutPhase, Long>(TimeoutPhase.class);
 
   private Options() {
     // Only static methods
@@ -121,6 +126,44 @@ class Options {
     timeout = newTimeout;
   }
 
+  /**
+   * Sets a fixed timeout for one phase. Note that this method is called by
+   * reflection in {@link BaseThreadedTestRunner}. Do not change the name
+   * without updating the reference.
+   *
+   * @param phaseVal the integer equivalent of a {@link TimeoutPhase}
+   * @see AdaptiveTimeouts
+   */
+  static void setPhaseTimeout(int phaseVal, long newTimeout) {
+    phaseTimeouts.put(TimeoutPhase.fromInt(phaseVal), newTimeout);
+  }
+
+  /**
+   * Gets the fixed timeout for the given phase, or null if none has been set.
+   */
+  static Long phaseTimeout(TimeoutPhase phase) {
+    return phaseTimeouts.get(phase);
+  }
+
+  /**
+   * Sets the adaptive timeouts flag. Note that this method is called by
+   * reflection in {@link BaseThreadedTestRunner}. Do not change the name
+   * without updating the reference.
+   *
+   * @see AdaptiveTimeouts
+   */
+  static void setAdaptiveTimeouts(boolean newAdaptiveTimeouts) {
+    adaptiveTimeouts = newAdaptiveTimeouts;
+  }
+
+  /**
+   * Returns true if timeouts are derived from the latencies recorded by
+   * {@link AdaptiveTimeouts}.
+   */
+  static boolean adaptiveTimeouts() {
+    return adaptiveTimeouts;
+  }
+
   /**
    * Sets the debug mode flag. Note that this method is called by reflection in {@link
    * BaseThreadedTestRunner}. Do not change the name without updating the
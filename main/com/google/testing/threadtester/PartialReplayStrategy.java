@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link SchedulingStrategy} that follows a subset of the context switches in
+ * a recorded {@link Schedule}. Unlike the {@link ReplayStrategy}, the switches
+ * do not have to be reached in order. Whenever the running thread reaches the
+ * probe and hit count of one of the switches, the strategy switches to the
+ * recorded thread, if it is enabled. Otherwise the strategy behaves like a
+ * {@link NonPreemptiveStrategy}. Any subset of a schedule's switches can
+ * therefore be run, which allows a schedule to be simplified by removing
+ * switches.
+ */
+class PartialReplayStrategy extends NonPreemptiveStrategy {
+
+  /** Maps the position of each switch onto the thread to switch to. */
+  private final Map<String, Integer> switches = new HashMap<String, Integer>();
+
+  /**
+   * Creates a new PartialReplayStrategy.
+   *
+   * @param schedule the recorded schedule
+   * @param indices the indices of the switches in the schedule to follow
+   */
+  PartialReplayStrategy(Schedule schedule, Collection<Integer> indices) {
+    List<Schedule.ContextSwitch> all = schedule.getSwitches();
+    for (Integer index : indices) {
+      Schedule.ContextSwitch contextSwitch = all.get(index);
+      String probe =
+          contextSwitch.getThread() < 0 ? null : schedule.getProbe(contextSwitch.getProbe());
+      switches.put(getKey(contextSwitch.getThread(), probe, contextSwitch.getHitCount()),
+          contextSwitch.getNextThread());
+    }
+  }
+
+  @Override
+  public int chooseThread(CooperativeScheduler scheduler, int current, List<Integer> enabled) {
+    String key;
+    if (current < 0) {
+      key = getKey(current, null, 0);
+    } else {
+      key = getKey(current, scheduler.getPendingOperation(current).getProbe(),
+          scheduler.getHitCount(current));
+    }
+    Integer next = switches.get(key);
+    if (next != null && enabled.contains(next)) {
+      return next;
+    }
+    return super.chooseThread(scheduler, current, enabled);
+  }
+
+  private static String getKey(int thread, String probe, int hitCount) {
+    return thread + ":" + hitCount + ":" + probe;
+  }
+}
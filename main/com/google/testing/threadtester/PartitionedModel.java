@@ -0,0 +1,38 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+/**
+ * A {@link SequentialModel} whose calls can be divided into independent
+ * partitions. For example, the calls to a map can be partitioned by key, if
+ * every call only uses a single key. A history is linearizable if the calls in
+ * each partition are linearizable on their own, so the {@link
+ * LinearizabilityChecker} checks each partition separately, starting from the
+ * initial state. This is much faster than checking the whole history. See
+ * Horn and Kroening, "Faster Linearizability Checking via P-Compositionality"
+ * (FORTE 2015).
+ *
+ * @param <S> the type of the state
+ */
+public interface PartitionedModel<S> extends SequentialModel<S> {
+
+  /**
+   * Gets the partition of the given call. Calls in the same partition must
+   * return equal keys.
+   */
+  Object getPartition(History.Call call);
+}
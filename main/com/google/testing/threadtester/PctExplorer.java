@@ -0,0 +1,185 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ScheduleExplorer} that runs a fixed number of randomized schedules,
+ * using Probabilistic Concurrency Testing. (See {@link PctStrategy}.) Rather
+ * than exploring every schedule, which may be too expensive for large methods,
+ * a PctExplorer spreads its effort over many cheap runs, each of which has a
+ * known probability of finding a bug of a given depth. The depth of a bug is
+ * the number of ordering constraints between the threads needed to make it
+ * appear. Most bugs have a depth of one or two.
+ * <p>
+ * The explorer first runs the threads once without preemption, to find the
+ * number of steps in a run. It then performs the randomized iterations. The
+ * schedule of iteration i is determined by a random number generator seeded
+ * with the value {@code seed + i}. If an iteration fails, its seed is
+ * available from {@link ExplorationResult#getSeed}. The failure can be
+ * reproduced by setting the explorer's seed to this value, and running a
+ * single iteration, provided that the threads behave deterministically.
+ * <p>
+ * If the runnables are created by a {@link RunnableFactory}, then iterations
+ * may be performed concurrently. See {@link #setParallelism}.
+ */
+public class PctExplorer extends ScheduleExplorer {
+
+  /** The default number of randomized iterations. */
+  public static final int DEFAULT_ITERATIONS = 100;
+
+  /** The default bug depth. */
+  public static final int DEFAULT_DEPTH = 2;
+
+  private long seed = new Random().nextLong();
+  private int iterations = DEFAULT_ITERATIONS;
+  private int depth = DEFAULT_DEPTH;
+  private int parallelism = 1;
+
+  /**
+   * Sets the seed used to generate the random schedules. By default, a random
+   * seed is chosen when the explorer is created.
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /** Gets the seed used to generate the random schedules. */
+  public long getSeed() {
+    return seed;
+  }
+
+  /** Sets the number of randomized iterations. */
+  public void setIterations(int iterations) {
+    if (iterations <= 0) {
+      throw new IllegalArgumentException("iterations must be positive");
+    }
+    this.iterations = iterations;
+  }
+
+  /** Gets the number of randomized iterations. */
+  public int getIterations() {
+    return iterations;
+  }
+
+  /**
+   * Sets the depth of the bugs being looked for. Each run will contain depth -
+   * 1 priority change points. Increasing the depth allows more complex bugs to
+   * be found, but reduces the probability of finding simpler ones.
+   */
+  public void setDepth(int depth) {
+    if (depth <= 0) {
+      throw new IllegalArgumentException("depth must be positive");
+    }
+    this.depth = depth;
+  }
+
+  /** Gets the depth of the bugs being looked for. */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Sets the maximum number of iterations that will be performed at the same
+   * time. This only applies if the runnables are created by a {@link
+   * RunnableFactory}. Otherwise, the iterations are always performed one after
+   * the other.
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    this.parallelism = parallelism;
+  }
+
+  /** Gets the maximum number of iterations that will be performed at the same time. */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  @Override
+  <M extends MainRunnable<T>, T> ExplorationResult doExplore(
+      final RunnableFactory<M, T> factory, boolean concurrent) {
+    CooperativeScheduler first = new CooperativeScheduler(new NonPreemptiveStrategy());
+    RunResult firstResult = runSchedule(factory, first);
+    if (firstResult.hadException()) {
+      return new ExplorationResult(firstResult, 1, 0, false);
+    }
+    final int numThreads = first.getNumThreads();
+    final int numSteps = Math.max(first.getNumSteps(), 1);
+    Options.debugPrint("PCT: %d threads, %d steps, seed %d\n", numThreads, numSteps, seed);
+
+    final AtomicInteger nextIteration = new AtomicInteger();
+    final AtomicInteger numRuns = new AtomicInteger();
+    final Failure failure = new Failure();
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        while (!failure.found()) {
+          int iteration = nextIteration.getAndIncrement();
+          if (iteration >= iterations) {
+            break;
+          }
+          long iterationSeed = seed + iteration;
+          PctStrategy strategy =
+              new PctStrategy(new Random(iterationSeed), numThreads, numSteps, depth);
+          RunResult result = runSchedule(factory, new CooperativeScheduler(strategy));
+          numRuns.incrementAndGet();
+          if (result.hadException()) {
+            Options.debugPrint("PCT: iteration %d failed, seed %d\n", iteration, iterationSeed);
+            failure.record(iteration, iterationSeed, result);
+          }
+        }
+      }
+    };
+
+    int numWorkers = concurrent ? Math.min(parallelism, iterations) : 1;
+    runWorkers(worker, numWorkers);
+    int numSchedules = numRuns.get() + 1;
+    if (failure.found()) {
+      ExplorationResult result = new ExplorationResult(failure.result, numSchedules, 0, false);
+      result.setSeed(failure.seed);
+      return result;
+    }
+    return new ExplorationResult(firstResult, numSchedules, 0, true);
+  }
+
+  /**
+   * Records the failing iteration. If several iterations fail, the one with the
+   * lowest number is kept, so that the result does not depend on the order in
+   * which concurrent iterations finish.
+   */
+  private static class Failure {
+    private int iteration = -1;
+    private long seed;
+    private RunResult result;
+
+    synchronized boolean found() {
+      return result != null;
+    }
+
+    synchronized void record(int iteration, long seed, RunResult result) {
+      if (this.result == null || iteration < this.iteration) {
+        this.iteration = iteration;
+        this.seed = seed;
+        this.result = result;
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A {@link SchedulingStrategy} that implements the randomized scheduler used by
+ * Probabilistic Concurrency Testing. See Burckhardt et al., "A Randomized
+ * Scheduler with Probabilistic Guarantees of Finding Bugs" (ASPLOS 2010).
+ * <p>
+ * Each thread is given a random initial priority, and the enabled thread with
+ * the highest priority always runs. In addition, depth - 1 steps are chosen at
+ * random as priority change points. When the execution reaches one of these
+ * steps, the priority of the thread that reached it is lowered below all of the
+ * initial priorities. A bug that needs d ordering constraints to manifest
+ * itself will be found with a probability of at least 1/(n * k^(d-1)), where n
+ * is the number of threads and k is the number of steps.
+ */
+class PctStrategy implements SchedulingStrategy {
+
+  private final int[] priorities;
+
+  /** Maps a step onto the new priority of the thread that reaches it. */
+  private final Map<Integer, Integer> changePoints = new HashMap<Integer, Integer>();
+
+  /**
+   * Creates a new PctStrategy.
+   *
+   * @param random the source of random numbers
+   * @param numThreads the number of threads being scheduled
+   * @param numSteps the expected number of steps in a run
+   * @param depth the depth of the bugs being looked for
+   */
+  PctStrategy(Random random, int numThreads, int numSteps, int depth) {
+    List<Integer> initial = new ArrayList<Integer>(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      initial.add(depth + i);
+    }
+    Collections.shuffle(initial, random);
+    priorities = new int[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      priorities[i] = initial.get(i);
+    }
+    int numChanges = Math.min(depth - 1, numSteps);
+    for (int i = 1; i <= numChanges; i++) {
+      int step = random.nextInt(numSteps) + 1;
+      while (changePoints.containsKey(step)) {
+        step = random.nextInt(numSteps) + 1;
+      }
+      changePoints.put(step, depth - i);
+    }
+  }
+
+  @Override
+  public int chooseThread(CooperativeScheduler scheduler, int current, List<Integer> enabled) {
+    Integer newPriority = changePoints.get(scheduler.getNumSteps());
+    if (newPriority != null && current >= 0) {
+      priorities[current] = newPriority;
+    }
+    int next = enabled.get(0);
+    for (Integer thread : enabled) {
+      if (priorities[thread] > priorities[next]) {
+        next = thread;
+      }
+    }
+    return next;
+  }
+}
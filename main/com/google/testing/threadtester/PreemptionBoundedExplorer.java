@@ -0,0 +1,298 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A {@link ScheduleExplorer} that runs every schedule with at most a given
+ * number of preemptions. A preemption is a context switch away from a thread
+ * that could have continued to run. Switches made because the running thread
+ * has finished, or is blocked on a monitor, are not preemptions. Most
+ * concurrency bugs can be found with only one or two preemptions, and the
+ * number of schedules grows rapidly with the bound. See Musuvathi and Qadeer,
+ * "Iterative Context Bounding for Systematic Testing of Multithreaded
+ * Programs" (PLDI 2007).
+ * <p>
+ * The schedules are run in order of their number of preemptions. All of the
+ * schedules with no preemptions are run first, then those with one preemption,
+ * and so on, up to the maximum. The number of schedules run at each level is
+ * available from {@link ExplorationResult#getSchedulesPerBound}. Exploration
+ * stops at the first failing schedule, which will therefore have the smallest
+ * number of preemptions needed to make the test fail.
+ * <p>
+ * Each schedule is run at most once. If the threads do not behave
+ * deterministically, then two different sequences of choices may produce the
+ * same schedule. Duplicates are detected, and are counted in {@link
+ * ExplorationResult#getNumPruned}. If the runnables are created by a {@link
+ * RunnableFactory}, then schedules may be run concurrently. See {@link
+ * #setParallelism}.
+ */
+public class PreemptionBoundedExplorer extends ScheduleExplorer {
+
+  /** The default maximum number of preemptions. */
+  public static final int DEFAULT_MAX_PREEMPTIONS = 2;
+
+  /** The default maximum number of schedules to explore. */
+  public static final int DEFAULT_MAX_SCHEDULES = 10000;
+
+  private int maxPreemptions = DEFAULT_MAX_PREEMPTIONS;
+  private int maxSchedules = DEFAULT_MAX_SCHEDULES;
+  private int parallelism = 1;
+
+  /**
+   * A queue of the schedules that remain to be run with a given number of
+   * preemptions. Each schedule is represented by the sequence of threads
+   * chosen at the start of the run. The queue is empty when it has no
+   * schedules, and no schedule is being run that may add more.
+   */
+  private static class WorkQueue {
+    private final LinkedList<List<Integer>> prefixes = new LinkedList<List<Integer>>();
+    private int active;
+    private boolean stopped;
+
+    synchronized void add(List<Integer> prefix) {
+      prefixes.add(prefix);
+      notifyAll();
+    }
+
+    /**
+     * Takes the next prefix from the queue, waiting if necessary. Returns null
+     * if there are no more prefixes, or the queue has been stopped. If a prefix
+     * is returned, then {@link #done} must be called when it has been run.
+     */
+    synchronized List<Integer> take() throws InterruptedException {
+      while (prefixes.isEmpty() && active > 0 && !stopped) {
+        wait();
+      }
+      if (prefixes.isEmpty() || stopped) {
+        return null;
+      }
+      active++;
+      return prefixes.removeFirst();
+    }
+
+    synchronized void done() {
+      active--;
+      notifyAll();
+    }
+
+    synchronized void stop() {
+      stopped = true;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Sets the maximum number of preemptions in a schedule. A bound of zero runs
+   * only the schedules in which each thread runs until it finishes or blocks.
+   */
+  public void setMaxPreemptions(int maxPreemptions) {
+    if (maxPreemptions < 0) {
+      throw new IllegalArgumentException("maxPreemptions must not be negative");
+    }
+    this.maxPreemptions = maxPreemptions;
+  }
+
+  /** Gets the maximum number of preemptions in a schedule. */
+  public int getMaxPreemptions() {
+    return maxPreemptions;
+  }
+
+  /**
+   * Sets the maximum number of schedules that will be explored. If the limit is
+   * reached, then the exploration stops, and the result will not be complete.
+   */
+  public void setMaxSchedules(int maxSchedules) {
+    if (maxSchedules <= 0) {
+      throw new IllegalArgumentException("maxSchedules must be positive");
+    }
+    this.maxSchedules = maxSchedules;
+  }
+
+  /** Gets the maximum number of schedules that will be explored. */
+  public int getMaxSchedules() {
+    return maxSchedules;
+  }
+
+  /**
+   * Sets the maximum number of schedules that will be run at the same time.
+   * This only applies if the runnables are created by a {@link
+   * RunnableFactory}. Otherwise, the schedules are always run one after the
+   * other.
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    this.parallelism = parallelism;
+  }
+
+  /** Gets the maximum number of schedules that will be run at the same time. */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  @Override
+  <M extends MainRunnable<T>, T> ExplorationResult doExplore(
+      final RunnableFactory<M, T> factory, boolean concurrent) {
+    final List<WorkQueue> queues = new ArrayList<WorkQueue>(maxPreemptions + 1);
+    for (int i = 0; i <= maxPreemptions; i++) {
+      queues.add(new WorkQueue());
+    }
+    queues.get(0).add(Collections.<Integer>emptyList());
+
+    final Set<List<Integer>> explored = new HashSet<List<Integer>>();
+    final int[] counts = new int[maxPreemptions + 1];
+    final int[] numPruned = new int[1];
+    final RunResult[] failure = new RunResult[1];
+    final boolean[] limitReached = new boolean[1];
+    int numWorkers = concurrent ? parallelism : 1;
+
+    int bound = 0;
+    for (; bound <= maxPreemptions && failure[0] == null && !limitReached[0]; bound++) {
+      final int level = bound;
+      final WorkQueue queue = queues.get(level);
+      Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+          while (true) {
+            List<Integer> prefix;
+            try {
+              prefix = queue.take();
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            if (prefix == null) {
+              return;
+            }
+            try {
+              synchronized (explored) {
+                if (counts[level] + sum(counts, level) >= maxSchedules) {
+                  limitReached[0] = true;
+                  queue.stop();
+                  return;
+                }
+                counts[level]++;
+              }
+              CooperativeScheduler scheduler =
+                  new CooperativeScheduler(new PrefixStrategy(prefix));
+              RunResult result = runSchedule(factory, scheduler);
+              List<CooperativeScheduler.Step> trace = scheduler.getTrace();
+              synchronized (explored) {
+                if (!explored.add(getThreads(trace))) {
+                  counts[level]--;
+                  numPruned[0]++;
+                  continue;
+                }
+                if (result.hadException()) {
+                  if (failure[0] == null) {
+                    failure[0] = result;
+                  }
+                  queue.stop();
+                  return;
+                }
+              }
+              addChildren(prefix.size(), trace, queues);
+            } finally {
+              queue.done();
+            }
+          }
+        }
+      };
+      runWorkers(worker, numWorkers);
+      Options.debugPrint("Preemption bound %d: %d schedules\n", level, counts[level]);
+    }
+
+    int numSchedules = sum(counts, counts.length);
+    List<Integer> schedulesPerBound = new ArrayList<Integer>(bound);
+    for (int i = 0; i < bound; i++) {
+      schedulesPerBound.add(counts[i]);
+    }
+    RunResult result = failure[0] != null ? failure[0] : new RunResult();
+    boolean complete = failure[0] == null && !limitReached[0];
+    ExplorationResult explorationResult =
+        new ExplorationResult(result, numSchedules, numPruned[0], complete);
+    explorationResult.setSchedulesPerBound(schedulesPerBound);
+    return explorationResult;
+  }
+
+  /**
+   * Adds the schedules that branch off a completed run to the queues. For each
+   * step after the given prefix, each enabled thread other than the one chosen
+   * could have been run instead. The alternative is added to the queue for its
+   * number of preemptions, if this is within the bound. Since alternatives are
+   * only added after the prefix that was followed, each sequence of choices is
+   * only added once.
+   */
+  private void addChildren(int prefixLength, List<CooperativeScheduler.Step> trace,
+      List<WorkQueue> queues) {
+    int preemptions = 0;
+    List<Integer> threads = new ArrayList<Integer>(trace.size());
+    for (int i = 0; i < trace.size(); i++) {
+      CooperativeScheduler.Step step = trace.get(i);
+      if (i >= prefixLength) {
+        for (Integer thread : step.enabled) {
+          if (thread == step.thread) {
+            continue;
+          }
+          int cost = preemptions + (isPreemption(step.current, thread, step.enabled) ? 1 : 0);
+          if (cost <= maxPreemptions) {
+            List<Integer> prefix = new ArrayList<Integer>(threads);
+            prefix.add(thread);
+            queues.get(cost).add(prefix);
+          }
+        }
+      }
+      if (isPreemption(step.current, step.thread, step.enabled)) {
+        preemptions++;
+      }
+      threads.add(step.thread);
+    }
+  }
+
+  /**
+   * Returns true if switching from the current thread to the next thread is a
+   * preemption, i.e. if the current thread could have continued.
+   */
+  private static boolean isPreemption(int current, int next, List<Integer> enabled) {
+    return current >= 0 && next != current && enabled.contains(current);
+  }
+
+  /** Returns the sequence of threads chosen in a trace. */
+  private static List<Integer> getThreads(List<CooperativeScheduler.Step> trace) {
+    List<Integer> threads = new ArrayList<Integer>(trace.size());
+    for (CooperativeScheduler.Step step : trace) {
+      threads.add(step.thread);
+    }
+    return threads;
+  }
+
+  /** Returns the sum of the first n elements of the array. */
+  private static int sum(int[] values, int n) {
+    int total = 0;
+    for (int i = 0; i < n; i++) {
+      total += values[i];
+    }
+    return total;
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.List;
+
+/**
+ * A {@link SchedulingStrategy} that runs a given sequence of threads, and then
+ * continues without preemption. Element i of the sequence is the thread that
+ * will be chosen at step i. Used by explorers that replay the start of an
+ * earlier run, and then try a different choice.
+ */
+class PrefixStrategy extends NonPreemptiveStrategy {
+  private final List<Integer> prefix;
+
+  PrefixStrategy(List<Integer> prefix) {
+    this.prefix = prefix;
+  }
+
+  @Override
+  public int chooseThread(CooperativeScheduler scheduler, int current, List<Integer> enabled) {
+    int step = scheduler.getNumSteps();
+    if (step < prefix.size()) {
+      int thread = prefix.get(step);
+      if (!enabled.contains(thread)) {
+        throw new IllegalStateException("Thread " + thread + " not enabled at step " + step +
+            ". Threads must be deterministic");
+      }
+      return thread;
+    }
+    return super.chooseThread(scheduler, current, enabled);
+  }
+}
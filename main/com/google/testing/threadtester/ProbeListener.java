@@ -0,0 +1,182 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+/**
+ * Receives notifications from the probes that the {@link TestInstrumenter}
+ * adds to instrumented classes. A ProbeListener is registered for a specific
+ * thread (see {@link ObjectInstrumentationImpl#setProbeListener}), and its
+ * methods are invoked in that thread, just before or after the corresponding
+ * operation is executed.
+ * <p>
+ * Implementations should be fast, and must not invoke instrumented code.
+ *
+ * @see ProbeListenerImpl
+ */
+interface ProbeListener {
+
+  /**
+   * Invoked before the current thread attempts to acquire the given
+   * monitor. The thread will block after this method returns if the monitor is
+   * held by another thread.
+   *
+   * @param object the instrumented object in which the monitor is acquired
+   * @param monitor the object whose monitor is being acquired
+   * @param line the line at which the monitor is acquired
+   */
+  void monitorEnter(ObjectInstrumentationImpl<?> object, Object monitor, int line);
+
+  /**
+   * Invoked after the current thread has acquired the given monitor.
+   */
+  void monitorAcquired(ObjectInstrumentationImpl<?> object, Object monitor);
+
+  /**
+   * Invoked before the current thread releases the given monitor. Note that the
+   * monitor is still held when this method is called.
+   */
+  void monitorExit(ObjectInstrumentationImpl<?> object, Object monitor, int line);
+
+  /**
+   * Invoked before the current thread reads a field.
+   *
+   * @param object the instrumented object whose code is reading the field
+   * @param owner the object containing the field, or null for a static field
+   * @param field the name of the field, qualified with its declaring class
+   * @param line the line at which the field is read
+   */
+  void fieldRead(ObjectInstrumentationImpl<?> object, Object owner, String field, int line);
+
+  /**
+   * Invoked before the current thread writes a field. The parameters are the
+   * same as for {@link #fieldRead}.
+   */
+  void fieldWrite(ObjectInstrumentationImpl<?> object, Object owner, String field, int line);
+
+  /**
+   * Invoked before the current thread reads a volatile field, instead of
+   * {@link #fieldRead}. The parameters are the same as for {@link #fieldRead}.
+   */
+  void volatileRead(ObjectInstrumentationImpl<?> object, Object owner, String field, int line);
+
+  /**
+   * Invoked after the current thread has read a volatile field. The
+   * parameters are the same as for {@link #fieldRead}.
+   */
+  void volatileReadDone(ObjectInstrumentationImpl<?> object, Object owner, String field,
+      int line);
+
+  /**
+   * Invoked before the current thread writes a volatile field, instead of
+   * {@link #fieldWrite}. The parameters are the same as for {@link
+   * #fieldRead}.
+   */
+  void volatileWrite(ObjectInstrumentationImpl<?> object, Object owner, String field, int line);
+
+  /**
+   * Invoked instead of {@link Object#wait(long, int)}. The current thread holds
+   * the given monitor. The listener may perform the wait itself, in which case
+   * it must release and reacquire the monitor in the same way as {@link
+   * Object#wait}.
+   *
+   * @param timeout the timeout passed to wait, or zero for no timeout
+   * @param nanos the additional nanoseconds passed to wait
+   * @return true if the listener performed the wait, or false if the caller
+   *         should invoke {@link Object#wait(long, int)}
+   */
+  boolean monitorWait(ObjectInstrumentationImpl<?> object, Object monitor, long timeout,
+      int nanos, int line) throws InterruptedException;
+
+  /**
+   * Invoked before the current thread calls {@link Object#notify} or {@link
+   * Object#notifyAll} on the given monitor.
+   *
+   * @param all true for notifyAll
+   */
+  void monitorNotify(ObjectInstrumentationImpl<?> object, Object monitor, boolean all, int line);
+
+  /**
+   * Invoked before the current thread calls {@link
+   * java.util.concurrent.locks.Lock#lock}, {@link
+   * java.util.concurrent.locks.Lock#lockInterruptibly} or {@link
+   * java.util.concurrent.locks.Lock#tryLock} on the given lock.
+   *
+   * @param tryLock true for tryLock
+   */
+  void lockEnter(ObjectInstrumentationImpl<?> object, Object lock, boolean tryLock, int line);
+
+  /** Invoked after the current thread has acquired the given lock. */
+  void lockAcquired(ObjectInstrumentationImpl<?> object, Object lock);
+
+  /**
+   * Invoked before the current thread calls {@link
+   * java.util.concurrent.locks.Lock#unlock} on the given lock. The lock may
+   * not be held by the current thread, in which case the call to unlock will
+   * fail.
+   */
+  void lockExit(ObjectInstrumentationImpl<?> object, Object lock, int line);
+
+  /**
+   * Invoked before the current thread starts the given thread, or calls an
+   * instance method of a java.util.concurrent class on the given target. The
+   * current thread's earlier actions are visible to any thread that later
+   * acquires the same target.
+   *
+   * @see CallLogger#syncRelease
+   */
+  void syncRelease(ObjectInstrumentationImpl<?> object, Object target, int line);
+
+  /**
+   * Invoked after the current thread has joined the given thread, or has
+   * called an instance method of a java.util.concurrent class on the given
+   * target. Note that a call to {@link Thread#join(long)} may return before
+   * the thread has finished.
+   *
+   * @see CallLogger#syncAcquire
+   */
+  void syncAcquire(ObjectInstrumentationImpl<?> object, Object target, int line);
+
+  /**
+   * Invoked before the current thread calls a method of a standard collection
+   * or map. The contents of the collection are treated as a single shared
+   * location, which the call either reads or writes.
+   *
+   * @param collection the collection or map
+   * @param write true if the method may modify the collection
+   * @see CallLogger#collectionAccess
+   */
+  void collectionAccess(ObjectInstrumentationImpl<?> object, Object collection, boolean write,
+      int line);
+
+  /**
+   * Invoked in place of a write to a non-volatile field. Returns true if the
+   * listener has buffered the value, in which case the field is not written.
+   *
+   * @see CallLogger#storeField
+   */
+  boolean storeField(ObjectInstrumentationImpl<?> object, Object owner, String field,
+      Object value, int line);
+
+  /**
+   * Invoked in place of a read of a non-volatile field. Returns the buffered
+   * value of the field, or {@link CallLogger#NOT_BUFFERED} if the field should
+   * be read as normal.
+   *
+   * @see CallLogger#loadField
+   */
+  Object loadField(ObjectInstrumentationImpl<?> object, Object owner, String field, int line);
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+/**
+ * Implementation of {@link ProbeListener} with empty methods. Provided as a
+ * convenience class, so that subclasses only need to implement the methods that
+ * they need.
+ */
+class ProbeListenerImpl implements ProbeListener {
+
+  @Override
+  public void monitorEnter(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+    // do nothing
+  }
+
+  @Override
+  public void monitorAcquired(ObjectInstrumentationImpl<?> object, Object monitor) {
+    // do nothing
+  }
+
+  @Override
+  public void monitorExit(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+    // do nothing
+  }
+
+  @Override
+  public void fieldRead(ObjectInstrumentationImpl<?> object, Object owner, String field,
+      int line) {
+    // do nothing
+  }
+
+  @Override
+  public void fieldWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+      int line) {
+    // do nothing
+  }
+
+  /** Invokes {@link #fieldRead}, so that volatile fields are treated like other fields. */
+  @Override
+  public void volatileRead(ObjectInstrumentationImpl<?> object, Object owner, String field,
+      int line) {
+    fieldRead(object, owner, field, line);
+  }
+
+  @Override
+  public void volatileReadDone(ObjectInstrumentationImpl<?> object, Object owner, String field,
+      int line) {
+    // do nothing
+  }
+
+  /** Invokes {@link #fieldWrite}, so that volatile fields are treated like other fields. */
+  @Override
+  public void volatileWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+      int line) {
+    fieldWrite(object, owner, field, line);
+  }
+
+  @Override
+  public boolean monitorWait(ObjectInstrumentationImpl<?> object, Object monitor, long timeout,
+      int nanos, int line) throws InterruptedException {
+    return false;
+  }
+
+  @Override
+  public void monitorNotify(ObjectInstrumentationImpl<?> object, Object monitor, boolean all,
+      int line) {
+    // do nothing
+  }
+
+  @Override
+  public void lockEnter(ObjectInstrumentationImpl<?> object, Object lock, boolean tryLock,
+      int line) {
+    // do nothing
+  }
+
+  @Override
+  public void lockAcquired(ObjectInstrumentationImpl<?> object, Object lock) {
+    // do nothing
+  }
+
+  @Override
+  public void lockExit(ObjectInstrumentationImpl<?> object, Object lock, int line) {
+    // do nothing
+  }
+
+  @Override
+  public void syncRelease(ObjectInstrumentationImpl<?> object, Object target, int line) {
+    // do nothing
+  }
+
+  @Override
+  public void syncAcquire(ObjectInstrumentationImpl<?> object, Object target, int line) {
+    // do nothing
+  }
+
+  @Override
+  public void collectionAccess(ObjectInstrumentationImpl<?> object, Object collection,
+      boolean write, int line) {
+    // do nothing
+  }
+
+  @Override
+  public boolean storeField(ObjectInstrumentationImpl<?> object, Object owner, String field,
+      Object value, int line) {
+    return false;
+  }
+
+  @Override
+  public Object loadField(ObjectInstrumentationImpl<?> object, Object owner, String field,
+      int line) {
+    return CallLogger.NOT_BUFFERED;
+  }
+}
@@ -0,0 +1,611 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds data races by running a set of threads once, and tracking the
+ * happens-before relation between their accesses to fields. Two accesses to
+ * the same field race if they are made by different threads, at least one of
+ * them is a write, and neither happens-before the other. Such races are
+ * reported even if the accesses did not actually overlap in the run, so a
+ * single run finds races that might otherwise need many interleavings to
+ * expose.
+ * <p>
+ * Happens-before is tracked using vector clocks. The detector uses the
+ * FastTrack algorithm, which records the last write to a field as a single
+ * epoch (a thread and its clock value), and only records a full vector clock
+ * for reads that are concurrent with each other. The detector only keeps
+ * state for fields that are actually accessed. See Flanagan and Freund,
+ * "FastTrack: Efficient and Precise Dynamic Race Detection" (PLDI 2009).
+ * <p>
+ * The main and secondary runnables are initialized, run at the same time in
+ * separate threads, and then terminated. The happens-before relation is
+ * derived from the following operations in instrumented code:
+ * <ul>
+ * <li>Releasing and later acquiring the same monitor or {@link
+ * java.util.concurrent.locks.Lock}, including the release and reacquisition
+ * of the monitor in {@link Object#wait}.
+ * <li>Writing and later reading the same volatile field.
+ * <li>Starting a thread, and joining a thread that has finished. Threads
+ * started by instrumented code are tracked as well as the main and secondary
+ * threads.
+ * <li>Calling instance methods of classes in java.util.concurrent and its
+ * subpackages, such as queues, latches and atomic variables. A call on a
+ * given object happens-after all earlier calls on the same object. This is
+ * more conservative than the documented memory-consistency effects of these
+ * classes, so it may hide some races, but it never reports a false one.
+ * </ul>
+ * Only fields accessed by instrumented code are checked, and operations in
+ * non-instrumented code do not create happens-before edges. Array elements are
+ * not checked. Accesses to volatile fields never race.
+ */
+public class RaceDetector {
+
+  /**
+   * The state of a thread being tracked by the detector. The clock is only
+   * changed by the thread itself.
+   */
+  private static class ThreadState {
+    final int id;
+    final Thread thread;
+    int[] clock;
+
+    /**
+     * The states of the fields that this thread has accessed, indexed by owner
+     * and field name. Only used by the thread itself, so that a field's state
+     * can be found without allocating a key or holding the detector's lock.
+     */
+    final Map<Object, Map<String, FieldState>> fields =
+        new IdentityHashMap<Object, Map<String, FieldState>>();
+
+    ThreadState(int id, Thread thread, int[] clock) {
+      this.id = id;
+      this.thread = thread;
+      this.clock = clock;
+    }
+
+    /** Gets the thread's own clock value. */
+    int epoch() {
+      return clock[id];
+    }
+  }
+
+  /** Identifies a field of a particular object. */
+  private static class FieldKey {
+    final Object owner;
+    final String field;
+
+    FieldKey(Object owner, String field) {
+      this.owner = owner;
+      this.field = field;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof FieldKey)) {
+        return false;
+      }
+      FieldKey other = (FieldKey) obj;
+      return owner == other.owner && field.equals(other.field);
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(owner) * 31 + field.hashCode();
+    }
+  }
+
+  /** Wraps an object so that it is compared by identity. */
+  private static class IdentityKey {
+    final Object target;
+
+    IdentityKey(Object target) {
+      this.target = target;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof IdentityKey && ((IdentityKey) obj).target == target;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(target);
+    }
+  }
+
+  /**
+   * The accesses made to a field. The last write, and the last read if there
+   * is only one concurrent read, are recorded as epochs. A clock value of zero
+   * means that there has been no access. If several threads have read the
+   * field concurrently, the reads are recorded in readClocks, which is
+   * otherwise null. Guarded by itself.
+   */
+  private static class FieldState {
+    final String name;
+
+    int writeThread;
+    int writeClock;
+    String writePosition;
+
+    int readThread;
+    int readClock;
+    String readPosition;
+
+    int[] readClocks;
+    String[] readPositions;
+
+    FieldState(String name) {
+      this.name = name;
+    }
+  }
+
+  /** Receives the probes made by one of the threads being tracked. */
+  private class RaceListener extends ProbeListenerImpl {
+    private final ThreadState state;
+
+    RaceListener(ThreadState state) {
+      this.state = state;
+    }
+
+    @Override
+    public void fieldRead(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      read(state, getFieldState(state, owner, field), object, line);
+    }
+
+    @Override
+    public void fieldWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      write(state, getFieldState(state, owner, field), object, line);
+    }
+
+    @Override
+    public void volatileRead(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      // The read synchronizes with the write that it sees, so the clocks are
+      // updated in volatileReadDone.
+    }
+
+    @Override
+    public void volatileReadDone(ObjectInstrumentationImpl<?> object, Object owner,
+        String field, int line) {
+      acquire(state, new FieldKey(owner, field));
+    }
+
+    @Override
+    public void volatileWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      release(state, new FieldKey(owner, field));
+    }
+
+    @Override
+    public void monitorAcquired(ObjectInstrumentationImpl<?> object, Object monitor) {
+      acquire(state, monitor);
+    }
+
+    @Override
+    public void monitorExit(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      release(state, monitor);
+    }
+
+    @Override
+    public boolean monitorWait(ObjectInstrumentationImpl<?> object, Object monitor,
+        long timeout, int nanos, int line) throws InterruptedException {
+      release(state, monitor);
+      try {
+        monitor.wait(timeout, nanos);
+      } finally {
+        acquire(state, monitor);
+      }
+      return true;
+    }
+
+    @Override
+    public void lockAcquired(ObjectInstrumentationImpl<?> object, Object lock) {
+      acquire(state, lock);
+    }
+
+    @Override
+    public void lockExit(ObjectInstrumentationImpl<?> object, Object lock, int line) {
+      release(state, lock);
+    }
+
+    @Override
+    public void syncRelease(ObjectInstrumentationImpl<?> object, Object target, int line) {
+      if (target instanceof Thread) {
+        fork(state, (Thread) target);
+      } else {
+        release(state, target);
+      }
+    }
+
+    @Override
+    public void syncAcquire(ObjectInstrumentationImpl<?> object, Object target, int line) {
+      if (target instanceof Thread) {
+        join(state, (Thread) target);
+      } else {
+        acquire(state, target);
+      }
+    }
+  }
+
+  /** The threads being tracked, indexed by id. */
+  private final List<ThreadState> threads = new ArrayList<ThreadState>();
+
+  /** Maps a Thread onto its state. */
+  private final Map<Thread, ThreadState> threadStates = new IdentityHashMap<Thread, ThreadState>();
+
+  /**
+   * The clocks of the synchronization objects that have been released. These
+   * are monitors, locks and java.util.concurrent objects, wrapped in
+   * IdentityKeys, and the FieldKeys of volatile fields.
+   */
+  private final Map<Object, int[]> syncClocks = new HashMap<Object, int[]>();
+
+  /**
+   * The state of the non-volatile fields that have been accessed. Each thread
+   * also caches the states of the fields that it has accessed, so this is
+   * only used when a thread first accesses a field.
+   */
+  private final Map<FieldKey, FieldState> fieldStates = new HashMap<FieldKey, FieldState>();
+
+  /** The races found so far. */
+  private final List<DataRace> races = new ArrayList<DataRace>();
+
+  /** Identifies the races that have been reported, so that each is only reported once. */
+  private final Set<String> reported = new HashSet<String>();
+
+  /**
+   * Runs the given main and secondary runnables, and reports any data races
+   * between them.
+   *
+   * @return a RaceResult containing any exceptions thrown by the runnables,
+   *         and the data races
+   */
+  public <M extends MainRunnable<T>, T> RaceResult detect(
+      M main, SecondaryRunnable<T, M> secondary) {
+    return detect(main, Collections.singletonList(secondary));
+  }
+
+  /**
+   * Runs the given main runnable and any number of secondary runnables, and
+   * reports any data races between them, or between the threads that they
+   * start. The runnables are initialized, run at the same time in separate
+   * threads, and then terminated if none of them threw an exception.
+   *
+   * @return a RaceResult containing any exceptions thrown by the runnables,
+   *         and the data races. If more than one secondary runnable throws an
+   *         exception, the result contains the first one.
+   */
+  public <M extends MainRunnable<T>, T> RaceResult detect(
+      M main, List<? extends SecondaryRunnable<T, M>> secondaries) {
+    if (secondaries.isEmpty()) {
+      throw new IllegalArgumentException("Must specify secondary runnable(s)");
+    }
+    List<DataRace> noRaces = Collections.emptyList();
+    try {
+      main.initialize();
+    } catch (Throwable e) {
+      return new RaceResult(e, null, noRaces);
+    }
+    for (SecondaryRunnable<T, M> secondary : secondaries) {
+      try {
+        secondary.initialize(main);
+      } catch (Throwable e) {
+        return new RaceResult(null, e, noRaces);
+      }
+    }
+    List<ThrowingRunnable> runnables = new ArrayList<ThrowingRunnable>(secondaries.size() + 1);
+    runnables.add(main);
+    runnables.addAll(secondaries);
+    List<TestThread> testThreads = new ArrayList<TestThread>();
+    synchronized (this) {
+      clear();
+      for (int i = 0; i < runnables.size(); i++) {
+        TestThread thread = new TestThread(runnables.get(i), "RaceDetector thread " + i);
+        testThreads.add(thread);
+        addThread(thread, new int[0]);
+      }
+    }
+    Throwable mainException = null;
+    Throwable secondaryException = null;
+    try {
+      for (TestThread thread : testThreads) {
+        thread.start();
+      }
+      for (int i = 0; i < testThreads.size(); i++) {
+        TestThread thread = testThreads.get(i);
+        Throwable exception;
+        try {
+          thread.finish(i == 0 ? TimeoutPhase.MAIN_COMPLETION : TimeoutPhase.SECONDARY_COMPLETION);
+          exception = thread.getException();
+        } catch (Exception e) {
+          exception = e;
+        }
+        if (i == 0) {
+          mainException = exception;
+        } else if (secondaryException == null) {
+          secondaryException = exception;
+        }
+      }
+    } finally {
+      synchronized (this) {
+        for (ThreadState state : threads) {
+          ObjectInstrumentationImpl.setProbeListener(state.thread, null);
+        }
+      }
+    }
+    if (mainException == null && secondaryException == null) {
+      try {
+        main.terminate();
+      } catch (Throwable e) {
+        mainException = e;
+      }
+      for (SecondaryRunnable<T, M> secondary : secondaries) {
+        try {
+          secondary.terminate();
+        } catch (Throwable e) {
+          if (secondaryException == null) {
+            secondaryException = e;
+          }
+        }
+      }
+    }
+    synchronized (this) {
+      RaceResult result = new RaceResult(mainException, secondaryException, races);
+      clear();
+      return result;
+    }
+  }
+
+  private void clear() {
+    threads.clear();
+    threadStates.clear();
+    syncClocks.clear();
+    fieldStates.clear();
+    races.clear();
+    reported.clear();
+  }
+
+  /**
+   * Starts tracking the given thread, with the given initial clock, and
+   * registers a listener for it.
+   */
+  private void addThread(Thread thread, int[] clock) {
+    int id = threads.size();
+    int[] threadClock = grow(clock, id + 1);
+    threadClock[id] = 1;
+    ThreadState state = new ThreadState(id, thread, threadClock);
+    threads.add(state);
+    threadStates.put(thread, state);
+    ObjectInstrumentationImpl.setProbeListener(thread, new RaceListener(state));
+  }
+
+  /**
+   * Invoked before a tracked thread starts another thread. The new thread's
+   * actions happen-after the current thread's earlier actions.
+   */
+  private synchronized void fork(ThreadState state, Thread child) {
+    if (child.getState() == Thread.State.NEW && !threadStates.containsKey(child)) {
+      addThread(child, state.clock);
+      increment(state);
+    }
+  }
+
+  /**
+   * Invoked after a tracked thread has joined another thread. If the other
+   * thread has finished, its actions happen-before the current thread's later
+   * actions.
+   */
+  private synchronized void join(ThreadState state, Thread other) {
+    ThreadState otherState = threadStates.get(other);
+    if (otherState != null && !other.isAlive()) {
+      state.clock = join(state.clock, otherState.clock);
+    }
+  }
+
+  /**
+   * Invoked when a thread releases a synchronization object. Later acquisitions
+   * of the object happen-after the thread's earlier actions.
+   */
+  private synchronized void release(ThreadState state, Object target) {
+    int[] clock = syncClocks.get(key(target));
+    syncClocks.put(key(target), clock == null ? state.clock.clone() : join(clock, state.clock));
+    increment(state);
+  }
+
+  /**
+   * Invoked when a thread acquires a synchronization object. The thread's later
+   * actions happen-after the actions that preceded earlier releases.
+   */
+  private synchronized void acquire(ThreadState state, Object target) {
+    int[] clock = syncClocks.get(key(target));
+    if (clock != null) {
+      state.clock = join(state.clock, clock);
+    }
+  }
+
+  /**
+   * Returns the key used for a synchronization object in syncClocks. The
+   * FieldKeys of volatile fields are compared by value, and other objects are
+   * compared by identity.
+   */
+  private static Object key(Object target) {
+    return target instanceof FieldKey ? target : new IdentityKey(target);
+  }
+
+  /**
+   * Checks a read of a field, and records it. A read in the same epoch as the
+   * thread's last read of the field is ignored without formatting its
+   * position, or holding the detector's lock.
+   */
+  private void read(ThreadState state, FieldState field, ObjectInstrumentationImpl<?> object,
+      int line) {
+    int id = state.id;
+    int epoch = state.epoch();
+    synchronized (field) {
+      if (field.readClocks == null) {
+        if (field.readThread == id && field.readClock == epoch) {
+          return;
+        }
+      } else if (get(field.readClocks, id) == epoch) {
+        return;
+      }
+      String position = Operation.getLocation(object, line);
+      if (field.writeClock > get(state.clock, field.writeThread)) {
+        report(field.name, field.writeThread, field.writePosition, true, id, position, false);
+      }
+      if (field.readClocks != null) {
+        setRead(field, id, epoch, position);
+      } else if (field.readClock == 0 || field.readClock <= get(state.clock, field.readThread)) {
+        field.readThread = id;
+        field.readClock = epoch;
+        field.readPosition = position;
+      } else {
+        // The earlier read is concurrent with this one, so both must be kept.
+        field.readClocks = new int[0];
+        field.readPositions = new String[0];
+        setRead(field, field.readThread, field.readClock, field.readPosition);
+        setRead(field, id, epoch, position);
+      }
+    }
+  }
+
+  /**
+   * Checks a write to a field, and records it. A write in the same epoch as the
+   * field's last write is ignored without formatting its position, or holding
+   * the detector's lock.
+   */
+  private void write(ThreadState state, FieldState field, ObjectInstrumentationImpl<?> object,
+      int line) {
+    int id = state.id;
+    int epoch = state.epoch();
+    synchronized (field) {
+      if (field.writeThread == id && field.writeClock == epoch) {
+        return;
+      }
+      String position = Operation.getLocation(object, line);
+      if (field.writeClock > get(state.clock, field.writeThread)) {
+        report(field.name, field.writeThread, field.writePosition, true, id, position, true);
+      }
+      if (field.readClocks != null) {
+        for (int i = 0; i < field.readClocks.length; i++) {
+          if (field.readClocks[i] > get(state.clock, i)) {
+            report(field.name, i, field.readPositions[i], false, id, position, true);
+          }
+        }
+        field.readClocks = null;
+        field.readPositions = null;
+        field.readClock = 0;
+      } else if (field.readClock > get(state.clock, field.readThread)) {
+        report(field.name, field.readThread, field.readPosition, false, id, position, true);
+      }
+      field.writeThread = id;
+      field.writeClock = epoch;
+      field.writePosition = position;
+    }
+  }
+
+  /**
+   * Gets the state of a field. The thread's own cache is checked first, and
+   * the shared map is only used when the thread first accesses the field.
+   */
+  private FieldState getFieldState(ThreadState state, Object owner, String name) {
+    Map<String, FieldState> ownerFields = state.fields.get(owner);
+    if (ownerFields == null) {
+      ownerFields = new HashMap<String, FieldState>();
+      state.fields.put(owner, ownerFields);
+    }
+    FieldState field = ownerFields.get(name);
+    if (field == null) {
+      synchronized (this) {
+        FieldKey key = new FieldKey(owner, name);
+        field = fieldStates.get(key);
+        if (field == null) {
+          field = new FieldState(name);
+          fieldStates.put(key, field);
+        }
+      }
+      ownerFields.put(name, field);
+    }
+    return field;
+  }
+
+  /** Records a read in a field's read vector clock. */
+  private static void setRead(FieldState field, int thread, int clock, String position) {
+    if (thread >= field.readClocks.length) {
+      field.readClocks = grow(field.readClocks, thread + 1);
+      String[] positions = new String[thread + 1];
+      System.arraycopy(field.readPositions, 0, positions, 0, field.readPositions.length);
+      field.readPositions = positions;
+    }
+    field.readClocks[thread] = clock;
+    field.readPositions[thread] = position;
+  }
+
+  /** Reports a race, unless the same race has already been reported. */
+  private synchronized void report(String field, int firstThread, String firstPosition,
+      boolean firstWrite, int secondThread, String secondPosition, boolean secondWrite) {
+    String key = field + " " + firstPosition + " " + firstWrite + " " + secondPosition + " " +
+        secondWrite;
+    if (reported.add(key)) {
+      DataRace race = new DataRace(field, threads.get(firstThread).thread, firstPosition,
+          firstWrite, threads.get(secondThread).thread, secondPosition, secondWrite);
+      Options.debugPrint("%s\n", race);
+      races.add(race);
+    }
+  }
+
+  /** Advances the thread's own clock, after it has released an object. */
+  private static void increment(ThreadState state) {
+    state.clock[state.id]++;
+  }
+
+  /**
+   * Returns an element of a vector clock. Clocks are only as long as the
+   * highest thread id that they have seen, so the missing elements are zero.
+   */
+  private static int get(int[] clock, int thread) {
+    return thread < clock.length ? clock[thread] : 0;
+  }
+
+  /** Returns a new clock containing the maximum of each element of the given clocks. */
+  private static int[] join(int[] clock, int[] other) {
+    int[] result = grow(clock, other.length);
+    for (int i = 0; i < other.length; i++) {
+      result[i] = Math.max(result[i], other[i]);
+    }
+    return result;
+  }
+
+  /** Returns a copy of the given clock, with at least the given length. */
+  private static int[] grow(int[] clock, int length) {
+    int[] result = new int[Math.max(length, clock.length)];
+    System.arraycopy(clock, 0, result, 0, clock.length);
+    return result;
+  }
+}
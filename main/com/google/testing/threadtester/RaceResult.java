@@ -0,0 +1,50 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents the result of running a {@link RaceDetector}. As well as any
+ * exceptions thrown by the runnables, the result contains the data races found
+ * in the run. Each race is only reported once for each pair of positions.
+ */
+public class RaceResult extends RunResult {
+  private final List<DataRace> races;
+
+  RaceResult(Throwable main, Throwable secondary, List<DataRace> races) {
+    super(main, secondary);
+    this.races = Collections.unmodifiableList(new ArrayList<DataRace>(races));
+  }
+
+  /** Returns true if the run contained any data races. */
+  public boolean hadRace() {
+    return !races.isEmpty();
+  }
+
+  /** Gets the data races, in the order in which they were found. */
+  public List<DataRace> getRaces() {
+    return races;
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + ", races=" + races;
+  }
+}
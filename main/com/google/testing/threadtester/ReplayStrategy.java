@@ -0,0 +1,71 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.List;
+
+/**
+ * A {@link SchedulingStrategy} that follows a recorded {@link Schedule}. The
+ * running thread continues until it reaches the probe and hit count of the
+ * next context switch in the schedule, and then the strategy switches to the
+ * recorded thread.
+ */
+class ReplayStrategy implements SchedulingStrategy {
+  private final Schedule schedule;
+  private final List<Schedule.ContextSwitch> switches;
+  private int nextSwitch;
+
+  ReplayStrategy(Schedule schedule) {
+    this.schedule = schedule;
+    this.switches = schedule.getSwitches();
+  }
+
+  @Override
+  public int chooseThread(CooperativeScheduler scheduler, int current, List<Integer> enabled) {
+    if (nextSwitch < switches.size()) {
+      Schedule.ContextSwitch contextSwitch = switches.get(nextSwitch);
+      if (matches(contextSwitch, scheduler, current)) {
+        nextSwitch++;
+        int next = contextSwitch.getNextThread();
+        if (!enabled.contains(next)) {
+          throw new IllegalStateException("Cannot switch to thread " + next +
+              " at switch " + nextSwitch + ". Enabled = " + enabled);
+        }
+        return next;
+      }
+    }
+    if (!enabled.contains(current)) {
+      throw new IllegalStateException("Thread " + current + " cannot continue at " +
+          scheduler.getPendingOperation(current) + ", but the schedule has no switch");
+    }
+    return current;
+  }
+
+  /** Returns true if the current thread has reached the given context switch. */
+  private boolean matches(Schedule.ContextSwitch contextSwitch, CooperativeScheduler scheduler,
+      int current) {
+    if (contextSwitch.getThread() != current) {
+      return false;
+    }
+    if (current < 0) {
+      return true;
+    }
+    return contextSwitch.getHitCount() == scheduler.getHitCount(current) &&
+        schedule.getProbe(contextSwitch.getProbe()).equals(
+            scheduler.getPendingOperation(current).getProbe());
+  }
+}
@@ -24,6 +24,7 @@ package com.google.testing.threadtester;
 public class RunResult {
   private final Throwable mainException;
   private final Throwable secondaryException;
+  private Schedule schedule;
 
   public RunResult(){
     this(null, null);
@@ -72,6 +73,22 @@ public class RunResult {
     return secondaryException;
   }
 
+  /**
+   * Gets the schedule that was followed when the runnables were executed, or
+   * null if the schedule was not recorded. Schedules are recorded by a {@link
+   * ScheduleExplorer}, and by the {@link InterleavedRunner} when an
+   * interleaving fails. A schedule recorded by a ScheduleExplorer is replayed
+   * using a {@link ScheduleReplayer}, and one recorded by the InterleavedRunner
+   * using {@link InterleavedRunner#replay}.
+   */
+  public Schedule getSchedule() {
+    return schedule;
+  }
+
+  void setSchedule(Schedule schedule) {
+    this.schedule = schedule;
+  }
+
   @Override
   public String toString() {
     return getClass().getSimpleName() + " main=" + mainException + ", second=" + secondaryException;
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.List;
+
+/**
+ * Creates the main and secondary runnables for a single run of a {@link
+ * ScheduleExplorer}. An explorer that uses a factory can perform several runs
+ * at the same time, since each run has its own runnables, and hence its own
+ * objects under test. The factory's methods may be called concurrently from
+ * different threads.
+ *
+ * @param <M> the type of the MainRunnable
+ * @param <T> the type under test
+ */
+public interface RunnableFactory<M extends MainRunnable<T>, T> {
+
+  /** Creates a new main runnable. */
+  public M createMain();
+
+  /**
+   * Creates the secondary runnables that will run alongside the given main
+   * runnable. The list must not be empty. Each secondary runnable will be
+   * initialized with the main runnable before the run starts.
+   */
+  public List<? extends SecondaryRunnable<T, M>> createSecondaries(M main);
+}
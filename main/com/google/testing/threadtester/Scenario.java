@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of short sequences of method calls, one for each thread, created by a
+ * {@link ScenarioGenerator}. Thread 0 is the main thread, and the secondary
+ * threads are numbered from 1. All of the calls are made on the same object.
+ */
+public class Scenario {
+
+  /** A call to a method of the object under test, with its arguments. */
+  public static class Invocation {
+    private final Method method;
+    private final Object[] arguments;
+
+    Invocation(Method method, Object[] arguments) {
+      this.method = method;
+      this.arguments = arguments;
+    }
+
+    /** Gets the method that is called. */
+    public Method getMethod() {
+      return method;
+    }
+
+    /** Gets the arguments passed to the method. */
+    public Object[] getArguments() {
+      return arguments.clone();
+    }
+
+    @Override
+    public String toString() {
+      String args = Arrays.toString(arguments);
+      return method.getName() + "(" + args.substring(1, args.length() - 1) + ")";
+    }
+  }
+
+  private final List<List<Invocation>> threads;
+
+  Scenario(List<List<Invocation>> threads) {
+    List<List<Invocation>> copy = new ArrayList<List<Invocation>>(threads.size());
+    for (List<Invocation> invocations : threads) {
+      copy.add(Collections.unmodifiableList(new ArrayList<Invocation>(invocations)));
+    }
+    this.threads = Collections.unmodifiableList(copy);
+  }
+
+  /** Gets the number of threads, including the main thread. */
+  public int getNumThreads() {
+    return threads.size();
+  }
+
+  /** Gets the calls made by the given thread, in order. */
+  public List<Invocation> getInvocations(int thread) {
+    return threads.get(thread);
+  }
+
+  /** Gets the total number of calls made by all of the threads. */
+  public int getNumInvocations() {
+    int count = 0;
+    for (List<Invocation> invocations : threads) {
+      count += invocations.size();
+    }
+    return count;
+  }
+
+  /**
+   * Gets the scenarios that are one step smaller than this one. Each has
+   * either one secondary thread removed, or one call removed. There is always
+   * at least one secondary thread, so a secondary thread is only removed, or
+   * left without any calls, if there are other secondary threads.
+   */
+  List<Scenario> getSmallerScenarios() {
+    List<Scenario> result = new ArrayList<Scenario>();
+    if (threads.size() > 2) {
+      for (int i = 1; i < threads.size(); i++) {
+        List<List<Invocation>> smaller = new ArrayList<List<Invocation>>(threads);
+        smaller.remove(i);
+        result.add(new Scenario(smaller));
+      }
+    }
+    for (int i = 0; i < threads.size(); i++) {
+      List<Invocation> invocations = threads.get(i);
+      if (i > 0 && invocations.size() == 1) {
+        // Removing the only call is the same as removing the thread.
+        continue;
+      }
+      for (int j = 0; j < invocations.size(); j++) {
+        List<Invocation> fewer = new ArrayList<Invocation>(invocations);
+        fewer.remove(j);
+        List<List<Invocation>> smaller = new ArrayList<List<Invocation>>(threads);
+        smaller.set(i, fewer);
+        result.add(new Scenario(smaller));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < threads.size(); i++) {
+      result.append(i == 0 ? "main" : "thread " + i).append(": ");
+      String calls = threads.get(i).toString();
+      result.append(calls.substring(1, calls.length() - 1)).append("\n");
+    }
+    return result.toString();
+  }
+}
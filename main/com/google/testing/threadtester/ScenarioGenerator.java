@@ -0,0 +1,480 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests a class by generating random {@link Scenario}s, in which several
+ * threads each make a short sequence of calls to the same object, and
+ * exploring the schedules of each scenario with a {@link ScheduleExplorer}.
+ * The calls are chosen from the public methods of the class, as reported by
+ * {@link ClassInstrumentation#getMethods}, so the class must be instrumented.
+ * Methods whose parameters have no {@link ArgumentGenerator} are not called.
+ * Generators are provided for int, long and boolean parameters.
+ * <p>
+ * After each run, the object is checked using an {@link Invariant}, and, if a
+ * {@link SequentialModel} is set, the calls made by the threads are checked
+ * for linearizability using a {@link LinearizabilityChecker}. The name of each
+ * {@link History.Call} is the name of the method. If there is no model, then
+ * an exception thrown by one of the calls causes the run to fail. If there is
+ * a model, then exceptions are recorded in the history, and the model decides
+ * whether they are correct.
+ * <p>
+ * Generation stops at the first scenario that fails. The scenario is then
+ * shrunk, by repeatedly removing threads and calls while it still fails, and
+ * the smallest failing scenario is returned in the {@link ScenarioResult}.
+ * <p>
+ * Scenario i is created by a random number generator seeded with {@code seed +
+ * i}. Scenarios may be explored concurrently. See {@link #setParallelism}. The
+ * explorer must be able to perform several explorations at the same time,
+ * which is true of the explorers in this package, and must not be changed
+ * while scenarios are being explored.
+ *
+ * @param <T> the type under test
+ */
+public class ScenarioGenerator<T> {
+
+  /** The default number of scenarios to generate. */
+  public static final int DEFAULT_SCENARIOS = 100;
+
+  /** The default number of threads in each scenario. */
+  public static final int DEFAULT_THREADS = 2;
+
+  /** The default maximum number of calls made by each thread. */
+  public static final int DEFAULT_MAX_CALLS = 3;
+
+  /** The default maximum number of schedules explored for each scenario. */
+  public static final int DEFAULT_MAX_SCHEDULES = 100;
+
+  /**
+   * Generates the arguments passed to the methods of the class under test.
+   *
+   * @param <A> the type of the argument
+   */
+  public interface ArgumentGenerator<A> {
+    /** Generates an argument, using the given random number generator. */
+    A generate(Random random);
+  }
+
+  /**
+   * Checks the state of the object under test after all of the threads in a
+   * scenario have finished.
+   *
+   * @param <T> the type under test
+   */
+  public interface Invariant<T> {
+    /**
+     * Checks the object, and throws an exception or an AssertionError if it is
+     * not in a valid state.
+     */
+    void check(T object) throws Exception;
+  }
+
+  private final Class<T> type;
+  private final Map<Class<?>, ArgumentGenerator<?>> argumentGenerators =
+      new HashMap<Class<?>, ArgumentGenerator<?>>();
+  private final Set<String> includedMethods = new HashSet<String>();
+  private final Set<String> excludedMethods = new HashSet<String>();
+  private Invariant<? super T> invariant;
+  private SequentialModel<?> model;
+  private ScheduleExplorer explorer;
+  private long seed = new Random().nextLong();
+  private int numScenarios = DEFAULT_SCENARIOS;
+  private int numThreads = DEFAULT_THREADS;
+  private int maxCalls = DEFAULT_MAX_CALLS;
+  private int parallelism = 1;
+
+  /** The main runnable for a scenario. Makes the calls of thread 0. */
+  private class ScenarioMain extends MainRunnableImpl<T> {
+    final Scenario scenario;
+    private T object;
+    private History history;
+
+    ScenarioMain(Scenario scenario) {
+      this.scenario = scenario;
+    }
+
+    @Override
+    public Class<T> getClassUnderTest() {
+      return type;
+    }
+
+    @Override
+    public void initialize() throws Exception {
+      object = type.newInstance();
+      history = new History();
+    }
+
+    @Override
+    public T getMainObject() {
+      return object;
+    }
+
+    @Override
+    public void run() throws Exception {
+      call(0);
+    }
+
+    @Override
+    public void terminate() throws Exception {
+      if (invariant != null) {
+        invariant.check(object);
+      }
+      if (model != null) {
+        LinearizabilityChecker.assertLinearizable(history, model);
+      }
+    }
+
+    /** Makes the calls of the given thread. */
+    void call(int thread) throws Exception {
+      for (Scenario.Invocation invocation : scenario.getInvocations(thread)) {
+        Object[] arguments = invocation.getArguments();
+        History.Call call = history.invoke(invocation.getMethod().getName(), arguments);
+        try {
+          history.respond(call, invocation.getMethod().invoke(object, arguments));
+        } catch (InvocationTargetException e) {
+          Throwable cause = e.getCause();
+          history.respondWithException(call, cause);
+          if (model == null) {
+            if (cause instanceof Exception) {
+              throw (Exception) cause;
+            }
+            throw (Error) cause;
+          }
+        }
+      }
+    }
+  }
+
+  /** A secondary runnable for a scenario. Makes the calls of one thread. */
+  private class ScenarioSecondary extends SecondaryRunnableImpl<T, ScenarioMain> {
+    private final int thread;
+    private ScenarioMain main;
+
+    ScenarioSecondary(int thread) {
+      this.thread = thread;
+    }
+
+    @Override
+    public void initialize(ScenarioMain main) {
+      this.main = main;
+    }
+
+    @Override
+    public void run() throws Exception {
+      main.call(thread);
+    }
+  }
+
+  /** Records the failing scenario with the lowest index. */
+  private static class Failure {
+    private int index = -1;
+    private Scenario scenario;
+    private RunResult result;
+
+    synchronized boolean found() {
+      return result != null;
+    }
+
+    synchronized void record(int index, Scenario scenario, RunResult result) {
+      if (this.result == null || index < this.index) {
+        this.index = index;
+        this.scenario = scenario;
+        this.result = result;
+      }
+    }
+  }
+
+  /**
+   * Creates a ScenarioGenerator for the given class. The class must have a
+   * public constructor with no arguments, which is used to create a new object
+   * for each run.
+   */
+  public ScenarioGenerator(Class<T> type) {
+    this.type = type;
+    DporExplorer dpor = new DporExplorer();
+    dpor.setMaxSchedules(DEFAULT_MAX_SCHEDULES);
+    this.explorer = dpor;
+    ArgumentGenerator<Integer> ints = new ArgumentGenerator<Integer>() {
+      @Override
+      public Integer generate(Random random) {
+        return random.nextInt(4);
+      }
+    };
+    ArgumentGenerator<Long> longs = new ArgumentGenerator<Long>() {
+      @Override
+      public Long generate(Random random) {
+        return (long) random.nextInt(4);
+      }
+    };
+    ArgumentGenerator<Boolean> booleans = new ArgumentGenerator<Boolean>() {
+      @Override
+      public Boolean generate(Random random) {
+        return random.nextBoolean();
+      }
+    };
+    setArgumentGenerator(int.class, ints);
+    setArgumentGenerator(Integer.class, ints);
+    setArgumentGenerator(long.class, longs);
+    setArgumentGenerator(Long.class, longs);
+    setArgumentGenerator(boolean.class, booleans);
+    setArgumentGenerator(Boolean.class, booleans);
+  }
+
+  /**
+   * Sets the generator used for parameters of the given type. The default
+   * generators for int and long choose small values, so that calls are likely
+   * to use the same values.
+   */
+  public <A> void setArgumentGenerator(Class<A> parameterType,
+      ArgumentGenerator<? extends A> generator) {
+    argumentGenerators.put(parameterType, generator);
+  }
+
+  /**
+   * Adds a method that may be called. If any methods are included, then only
+   * the included methods are called. Otherwise, all of the public methods may
+   * be called. Overloaded methods with the same name are all included.
+   */
+  public void includeMethod(String name) {
+    includedMethods.add(name);
+  }
+
+  /**
+   * Prevents a method from being called. Overloaded methods with the same name
+   * are all excluded.
+   */
+  public void excludeMethod(String name) {
+    excludedMethods.add(name);
+  }
+
+  /** Sets the invariant checked after each run, or null if there is none. */
+  public void setInvariant(Invariant<? super T> invariant) {
+    this.invariant = invariant;
+  }
+
+  /**
+   * Sets the model that the calls made in each run are checked against, or
+   * null if there is none.
+   */
+  public void setModel(SequentialModel<?> model) {
+    this.model = model;
+  }
+
+  /**
+   * Sets the explorer used to run each scenario. By default, this is a {@link
+   * DporExplorer} that explores at most {@link #DEFAULT_MAX_SCHEDULES}
+   * schedules.
+   */
+  public void setExplorer(ScheduleExplorer explorer) {
+    this.explorer = explorer;
+  }
+
+  /**
+   * Sets the seed used to create the scenarios. By default, a random seed is
+   * chosen when the generator is created. To repeat a failing scenario, set
+   * the seed to the one returned by {@link ScenarioResult#getSeed}.
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /** Gets the seed used to create the scenarios. */
+  public long getSeed() {
+    return seed;
+  }
+
+  /** Sets the number of scenarios that will be generated. */
+  public void setScenarios(int numScenarios) {
+    if (numScenarios <= 0) {
+      throw new IllegalArgumentException("numScenarios must be positive");
+    }
+    this.numScenarios = numScenarios;
+  }
+
+  /** Sets the number of threads in each scenario, including the main thread. */
+  public void setThreads(int numThreads) {
+    if (numThreads < 2) {
+      throw new IllegalArgumentException("numThreads must be at least 2");
+    }
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * Sets the maximum number of calls made by each thread. Each thread makes
+   * between one call and the maximum.
+   */
+  public void setMaxCalls(int maxCalls) {
+    if (maxCalls <= 0) {
+      throw new IllegalArgumentException("maxCalls must be positive");
+    }
+    this.maxCalls = maxCalls;
+  }
+
+  /** Sets the maximum number of scenarios that will be explored at the same time. */
+  public void setParallelism(int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Generates and explores the scenarios.
+   *
+   * @return a ScenarioResult containing the shrunk failing scenario, if any,
+   *         and the exceptions and schedule of its failing run.
+   * @throws IllegalArgumentException if there are no methods that can be
+   *         called.
+   */
+  public ScenarioResult generate() {
+    final List<Method> methods = getMethods();
+    final AtomicInteger nextScenario = new AtomicInteger();
+    final AtomicInteger numRuns = new AtomicInteger();
+    final Failure failure = new Failure();
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        while (!failure.found()) {
+          int index = nextScenario.getAndIncrement();
+          if (index >= numScenarios) {
+            break;
+          }
+          Scenario scenario = createScenario(methods, new Random(seed + index));
+          RunResult result = explore(scenario);
+          numRuns.incrementAndGet();
+          if (result.hadException()) {
+            Options.debugPrint("Scenario %d failed:\n%s", index, scenario);
+            failure.record(index, scenario, result);
+          }
+        }
+      }
+    };
+    ScheduleExplorer.runWorkers(worker, Math.min(parallelism, numScenarios));
+    if (!failure.found()) {
+      return new ScenarioResult(new RunResult(), null, null, numRuns.get(), null);
+    }
+
+    Scenario scenario = failure.scenario;
+    RunResult result = failure.result;
+    boolean shrunk = true;
+    while (shrunk) {
+      shrunk = false;
+      for (Scenario smaller : scenario.getSmallerScenarios()) {
+        RunResult smallerResult = explore(smaller);
+        if (smallerResult.hadException()) {
+          scenario = smaller;
+          result = smallerResult;
+          shrunk = true;
+          break;
+        }
+      }
+    }
+    Options.debugPrint("Shrunk scenario:\n%s", scenario);
+    return new ScenarioResult(result, scenario, failure.scenario, numRuns.get(),
+        seed + failure.index);
+  }
+
+  /**
+   * Gets the methods that may be called, sorted so that scenarios created with
+   * the same seed are the same.
+   */
+  private List<Method> getMethods() {
+    List<Method> methods = new ArrayList<Method>();
+    ClassInstrumentation instrumentation = Instrumentation.getClassInstrumentation(type);
+    for (MethodInstrumentation methodInstrumentation : instrumentation.getMethods()) {
+      Method method = methodInstrumentation.getUnderlyingMethod();
+      int modifiers = method.getModifiers();
+      if (!Modifier.isPublic(modifiers) || Modifier.isStatic(modifiers) || method.isSynthetic()) {
+        continue;
+      }
+      String name = method.getName();
+      if (excludedMethods.contains(name) ||
+          (!includedMethods.isEmpty() && !includedMethods.contains(name))) {
+        continue;
+      }
+      boolean canCall = true;
+      for (Class<?> parameterType : method.getParameterTypes()) {
+        canCall &= argumentGenerators.containsKey(parameterType);
+      }
+      if (canCall) {
+        methods.add(method);
+      }
+    }
+    if (methods.isEmpty()) {
+      throw new IllegalArgumentException("No methods to call in " + type.getName());
+    }
+    Collections.sort(methods, new Comparator<Method>() {
+      @Override
+      public int compare(Method first, Method second) {
+        return first.toString().compareTo(second.toString());
+      }
+    });
+    return methods;
+  }
+
+  private Scenario createScenario(List<Method> methods, Random random) {
+    List<List<Scenario.Invocation>> threads = new ArrayList<List<Scenario.Invocation>>();
+    for (int i = 0; i < numThreads; i++) {
+      List<Scenario.Invocation> invocations = new ArrayList<Scenario.Invocation>();
+      int numCalls = 1 + random.nextInt(maxCalls);
+      for (int j = 0; j < numCalls; j++) {
+        Method method = methods.get(random.nextInt(methods.size()));
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Object[] arguments = new Object[parameterTypes.length];
+        for (int k = 0; k < arguments.length; k++) {
+          arguments[k] = argumentGenerators.get(parameterTypes[k]).generate(random);
+        }
+        invocations.add(new Scenario.Invocation(method, arguments));
+      }
+      threads.add(invocations);
+    }
+    return new Scenario(threads);
+  }
+
+  /** Explores the schedules of the given scenario. */
+  private RunResult explore(final Scenario scenario) {
+    return explorer.explore(new RunnableFactory<ScenarioMain, T>() {
+      @Override
+      public ScenarioMain createMain() {
+        return new ScenarioMain(scenario);
+      }
+
+      @Override
+      public List<ScenarioSecondary> createSecondaries(ScenarioMain main) {
+        List<ScenarioSecondary> secondaries = new ArrayList<ScenarioSecondary>();
+        for (int i = 1; i < scenario.getNumThreads(); i++) {
+          secondaries.add(new ScenarioSecondary(i));
+        }
+        return secondaries;
+      }
+    });
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+/**
+ * Represents the result of running a {@link ScenarioGenerator}. If one of the
+ * generated scenarios failed, then the result contains the failing scenario
+ * after it has been shrunk, together with the exceptions and schedule of a
+ * failing run of the shrunk scenario.
+ */
+public class ScenarioResult extends RunResult {
+  private final Scenario scenario;
+  private final Scenario originalScenario;
+  private final int numScenarios;
+  private final Long seed;
+
+  ScenarioResult(RunResult result, Scenario scenario, Scenario originalScenario,
+      int numScenarios, Long seed) {
+    super(result.getMainException(), result.getSecondaryException());
+    setSchedule(result.getSchedule());
+    this.scenario = scenario;
+    this.originalScenario = originalScenario;
+    this.numScenarios = numScenarios;
+    this.seed = seed;
+  }
+
+  /**
+   * Gets the failing scenario, after it has been shrunk, or null if no
+   * scenario failed.
+   */
+  public Scenario getScenario() {
+    return scenario;
+  }
+
+  /**
+   * Gets the failing scenario as it was generated, or null if no scenario
+   * failed.
+   */
+  public Scenario getOriginalScenario() {
+    return originalScenario;
+  }
+
+  /**
+   * Gets the number of scenarios that were generated and explored. Does not
+   * include the scenarios explored while shrinking.
+   */
+  public int getNumScenarios() {
+    return numScenarios;
+  }
+
+  /**
+   * Gets the seed of the random number generator that created the failing
+   * scenario, or null if no scenario failed. See {@link
+   * ScenarioGenerator#setSeed}.
+   */
+  public Long getSeed() {
+    return seed;
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + ", scenario=" + scenario;
+  }
+}
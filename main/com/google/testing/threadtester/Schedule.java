@@ -0,0 +1,322 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the order in which a set of threads was executed by a {@link
+ * ScheduleExplorer} or an {@link InterleavedRunner}. A Schedule consists of a sequence of {@link
+ * ContextSwitch}es. Each context switch records the point at which one thread
+ * stopped running, and the thread that ran next. Between two context switches,
+ * the running thread continues for as long as it can.
+ * <p>
+ * Threads are identified by number. The main runnable is thread 0, and the
+ * secondary runnables are numbered from 1. The points at which a thread may be
+ * stopped are identified by probes. A probe describes an operation that is
+ * visible to other threads, such as a field access, together with its position
+ * in the code.
+ * <p>
+ * A Schedule can be written in a compact binary form, using {@link #writeTo}
+ * or {@link #save}, and read back using {@link #readFrom} or {@link #load}.
+ * The schedule of a failing run can then be replayed with a {@link
+ * ScheduleReplayer}, for example to reproduce a failure seen on another
+ * machine. Probes are identified by their position in the code, so a schedule
+ * can only be replayed against the same version of the code.
+ * <p>
+ * The InterleavedRunner stops the main runnable at a line, rather than at an
+ * operation, and its schedules have a single probe that names that line. They
+ * are replayed using {@link InterleavedRunner#replay}. Runs of a {@link
+ * Scripter} do not record a Schedule, as the scripts themselves determine the
+ * order in which the threads run.
+ */
+public class Schedule {
+
+  /** Identifies the binary format, and its version. */
+  private static final int MAGIC = 0x54575301;
+
+  /**
+   * Represents a switch from one thread to another.
+   */
+  public static class ContextSwitch {
+    private final int thread;
+    private final int probe;
+    private final int hitCount;
+    private final int nextThread;
+
+    ContextSwitch(int thread, int probe, int hitCount, int nextThread) {
+      this.thread = thread;
+      this.probe = probe;
+      this.hitCount = hitCount;
+      this.nextThread = nextThread;
+    }
+
+    /**
+     * Gets the thread that stopped running, or -1 if this switch started the
+     * first thread.
+     */
+    public int getThread() {
+      return thread;
+    }
+
+    /**
+     * Gets the id of the probe at which the thread stopped, or -1 if this
+     * switch started the first thread. See {@link Schedule#getProbe}.
+     */
+    public int getProbe() {
+      return probe;
+    }
+
+    /**
+     * Gets the number of times that the thread had reached the probe, including
+     * this time.
+     */
+    public int getHitCount() {
+      return hitCount;
+    }
+
+    /** Gets the thread that ran after the switch. */
+    public int getNextThread() {
+      return nextThread;
+    }
+  }
+
+  private final List<String> probes = new ArrayList<String>();
+  private final Map<String, Integer> probeIds = new HashMap<String, Integer>();
+  private final List<ContextSwitch> switches = new ArrayList<ContextSwitch>();
+
+  Schedule() {
+  }
+
+  /**
+   * Adds a new context switch to this schedule.
+   *
+   * @param thread the thread that stopped running, or -1 at the start
+   * @param probe the probe where the thread stopped, or null at the start
+   * @param hitCount the number of times the thread had reached the probe
+   * @param nextThread the thread that ran next
+   */
+  void addSwitch(int thread, String probe, int hitCount, int nextThread) {
+    int probeId = -1;
+    if (probe != null) {
+      Integer id = probeIds.get(probe);
+      if (id == null) {
+        id = probes.size();
+        probes.add(probe);
+        probeIds.put(probe, id);
+      }
+      probeId = id;
+    }
+    switches.add(new ContextSwitch(thread, probeId, hitCount, nextThread));
+  }
+
+  /** Gets the context switches in this schedule, in the order they occurred. */
+  public List<ContextSwitch> getSwitches() {
+    return Collections.unmodifiableList(switches);
+  }
+
+  /** Gets the description of the probe with the given id. */
+  public String getProbe(int probeId) {
+    return probes.get(probeId);
+  }
+
+  /** Gets the number of different probes referred to by this schedule. */
+  public int getNumProbes() {
+    return probes.size();
+  }
+
+  /**
+   * Describes this schedule as a list of steps, one for each context switch.
+   * Each step says where the running thread is paused, and how far the next
+   * thread runs before the following switch. For example, "pause thread 0 at
+   * write Foo.x at Foo:10, run thread 1 until read Foo.y at Foo:20 (hit 2)".
+   * Switches that happen because a thread has finished only describe the
+   * thread that runs next.
+   */
+  public List<String> describeSteps() {
+    List<String> steps = new ArrayList<String>(switches.size());
+    for (int i = 0; i < switches.size(); i++) {
+      ContextSwitch contextSwitch = switches.get(i);
+      StringBuilder step = new StringBuilder();
+      // There is no need to describe where a finished thread stopped
+      if (contextSwitch.thread >= 0 && !isEnd(contextSwitch)) {
+        step.append("pause thread ").append(contextSwitch.thread).append(" at ");
+        appendPosition(step, contextSwitch);
+        step.append(", ");
+      }
+      step.append("run thread ").append(contextSwitch.nextThread);
+      ContextSwitch stop = null;
+      for (int j = i + 1; j < switches.size() && stop == null; j++) {
+        if (switches.get(j).thread == contextSwitch.nextThread) {
+          stop = switches.get(j);
+        }
+      }
+      if (stop == null || isEnd(stop)) {
+        step.append(" to completion");
+      } else {
+        step.append(" until ");
+        appendPosition(step, stop);
+      }
+      steps.add(step.toString());
+    }
+    return steps;
+  }
+
+  private boolean isEnd(ContextSwitch contextSwitch) {
+    return probes.get(contextSwitch.probe).equals(Operation.END.getProbe());
+  }
+
+  private void appendPosition(StringBuilder builder, ContextSwitch contextSwitch) {
+    builder.append(probes.get(contextSwitch.probe));
+    if (contextSwitch.hitCount > 1) {
+      builder.append(" (hit ").append(contextSwitch.hitCount).append(")");
+    }
+  }
+
+  /**
+   * Writes this schedule to the given stream in binary form. The stream is not
+   * closed.
+   */
+  public void writeTo(OutputStream stream) throws IOException {
+    DataOutputStream out = new DataOutputStream(stream);
+    out.writeInt(MAGIC);
+    writeInt(out, probes.size());
+    for (String probe : probes) {
+      out.writeUTF(probe);
+    }
+    writeInt(out, switches.size());
+    for (ContextSwitch contextSwitch : switches) {
+      // The thread and probe are -1 for the first switch
+      writeInt(out, contextSwitch.thread + 1);
+      writeInt(out, contextSwitch.probe + 1);
+      writeInt(out, contextSwitch.hitCount);
+      writeInt(out, contextSwitch.nextThread);
+    }
+    out.flush();
+  }
+
+  /**
+   * Reads a schedule written by {@link #writeTo}. The stream is not closed.
+   *
+   * @throws IOException if the stream cannot be read, or does not contain a
+   *         valid schedule.
+   */
+  public static Schedule readFrom(InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(stream);
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a schedule, or unsupported version");
+    }
+    Schedule schedule = new Schedule();
+    int numProbes = readInt(in);
+    for (int i = 0; i < numProbes; i++) {
+      String probe = in.readUTF();
+      schedule.probeIds.put(probe, i);
+      schedule.probes.add(probe);
+    }
+    int numSwitches = readInt(in);
+    for (int i = 0; i < numSwitches; i++) {
+      int thread = readInt(in) - 1;
+      int probe = readInt(in) - 1;
+      int hitCount = readInt(in);
+      int nextThread = readInt(in);
+      if (probe >= numProbes || (probe < 0 && thread >= 0)) {
+        throw new IOException("Invalid probe id " + probe);
+      }
+      schedule.switches.add(new ContextSwitch(thread, probe, hitCount, nextThread));
+    }
+    return schedule;
+  }
+
+  /** Writes this schedule to the given file. See {@link #writeTo}. */
+  public void save(File file) throws IOException {
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+    try {
+      writeTo(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Reads a schedule from the given file. See {@link #readFrom}. */
+  public static Schedule load(File file) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      return readFrom(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes a non-negative integer using a variable number of bytes. Each byte
+   * holds seven bits of the value, and the top bit is set if more bytes
+   * follow. Most values in a schedule are small, and take a single byte.
+   */
+  private static void writeInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  /** Reads an integer written by {@link #writeInt}. */
+  private static int readInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          throw new IOException("Invalid value " + value);
+        }
+        return value;
+      }
+    }
+    throw new IOException("Invalid variable-length integer");
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder();
+    for (ContextSwitch contextSwitch : switches) {
+      if (contextSwitch.thread < 0) {
+        result.append("start thread ").append(contextSwitch.nextThread).append("\n");
+      } else {
+        result.append("thread ").append(contextSwitch.thread).append(" at ");
+        result.append(probes.get(contextSwitch.probe));
+        result.append(" (#").append(contextSwitch.hitCount).append(") -> thread ");
+        result.append(contextSwitch.nextThread).append("\n");
+      }
+    }
+    return result.toString();
+  }
+}
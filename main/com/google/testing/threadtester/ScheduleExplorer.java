@@ -0,0 +1,295 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Base class for classes that test a set of threads by running them under
+ * different schedules. Unlike the {@link InterleavedRunner}, which lets the
+ * secondary runnable run to completion while the main runnable is stopped, a
+ * ScheduleExplorer runs all of the threads one at a time, and may switch from
+ * one thread to another at any operation that is visible to the other threads:
+ * reading or writing a field, acquiring a monitor, returning from {@link
+ * Object#wait}, or acquiring a {@link java.util.concurrent.locks.Lock}. These
+ * operations are reported by the probes that the {@link TestInstrumenter} adds
+ * to instrumented classes, so the code being tested must be instrumented. Field
+ * accesses, monitors and locks in non-instrumented code are not seen, and other
+ * blocking operations, such as {@link
+ * java.util.concurrent.locks.Condition#await}, are not supported.
+ * <p>
+ * The main runnable is thread 0 in the {@link Schedule}s recorded by a
+ * ScheduleExplorer, and the secondary runnables are numbered from 1. For each
+ * schedule, the main and secondary runnables are initialized, run, and then
+ * terminated. Exploration stops at the first schedule that fails. The returned
+ * {@link ExplorationResult} contains the failing schedule.
+ * <p>
+ * Note that {@link SecondaryRunnable#canBlock} is ignored. Blocking is handled
+ * by the scheduler, which never runs a thread that would block on a monitor or
+ * a lock, or that is waiting to be notified.
+ * <p>
+ * By default, the threads are run with sequential consistency, so every write
+ * to a field is seen immediately by the other threads. A weaker {@link
+ * MemoryModel} can be simulated using {@link #setMemoryModel}. The flushing of
+ * each thread's store buffer is then explored along with the steps of the
+ * threads, so the explorer can find bugs caused by missing volatile
+ * declarations or synchronization, which would not show up on the machine
+ * running the test.
+ */
+public abstract class ScheduleExplorer {
+
+  /**
+   * Observes the threads of every run performed by an explorer. Used by
+   * analyses that collect information across all of the explored schedules.
+   * If the explorer performs runs concurrently, then the observer is invoked
+   * from several threads at once.
+   */
+  interface RunObserver {
+    /**
+     * Invoked before each run. Returns the factory that creates a listener to
+     * observe each thread in the run (see {@link
+     * CooperativeScheduler#setObservers}).
+     */
+    SequentialRunner.ListenerFactory startRun();
+
+    /**
+     * Invoked after each run, including runs that failed, with the factory
+     * returned by {@link #startRun}.
+     */
+    void finishRun(SequentialRunner.ListenerFactory observers);
+  }
+
+  private MemoryModel memoryModel = MemoryModel.SEQUENTIAL_CONSISTENCY;
+
+  private RunObserver runObserver;
+
+  ScheduleExplorer() {
+  }
+
+  /**
+   * Sets the memory model simulated when running the threads. The default is
+   * {@link MemoryModel#SEQUENTIAL_CONSISTENCY}. A weaker model can only be
+   * simulated if the classes were instrumented with store buffers. (See {@link
+   * BaseThreadedTestRunner#setStoreBuffers}.) Otherwise, exploring throws an
+   * IllegalStateException.
+   */
+  public void setMemoryModel(MemoryModel memoryModel) {
+    this.memoryModel = memoryModel;
+  }
+
+  /** Gets the memory model simulated when running the threads. */
+  public MemoryModel getMemoryModel() {
+    return memoryModel;
+  }
+
+  /** Sets the observer of each run, or null for none. */
+  void setRunObserver(RunObserver runObserver) {
+    this.runObserver = runObserver;
+  }
+
+  /**
+   * Explores the schedules of the given main and secondary runnables.
+   *
+   * @return an ExplorationResult containing the exceptions and schedule of any
+   *         failing run.
+   */
+  public <M extends MainRunnable<T>, T> ExplorationResult explore(
+      M main, SecondaryRunnable<T, M> secondary) {
+    List<SecondaryRunnable<T, M>> secondaries = new ArrayList<SecondaryRunnable<T, M>>();
+    secondaries.add(secondary);
+    return explore(main, secondaries);
+  }
+
+  /**
+   * Explores the schedules of the given main runnable and any number of
+   * secondary runnables. The secondary runnables are numbered from 1 in the
+   * order that they appear in the list. If more than one secondary runnable
+   * throws an exception, the result contains the first one.
+   * <p>
+   * The same runnables are used for every run, so the runs are always
+   * performed one after the other.
+   *
+   * @return an ExplorationResult containing the exceptions and schedule of any
+   *         failing run.
+   */
+  public <M extends MainRunnable<T>, T> ExplorationResult explore(
+      final M main, final List<? extends SecondaryRunnable<T, M>> secondaries) {
+    if (secondaries.isEmpty()) {
+      throw new IllegalArgumentException("Must specify secondary runnable(s)");
+    }
+    RunnableFactory<M, T> factory = new RunnableFactory<M, T>() {
+      @Override
+      public M createMain() {
+        return main;
+      }
+
+      @Override
+      public List<? extends SecondaryRunnable<T, M>> createSecondaries(M ignored) {
+        return secondaries;
+      }
+    };
+    return doExplore(factory, false);
+  }
+
+  /**
+   * Explores the schedules of the runnables created by the given factory. A
+   * new set of runnables is created for each run. Explorers that support
+   * concurrent runs may use the factory from several threads at once.
+   *
+   * @return an ExplorationResult containing the exceptions and schedule of any
+   *         failing run.
+   */
+  public <M extends MainRunnable<T>, T> ExplorationResult explore(RunnableFactory<M, T> factory) {
+    return doExplore(factory, true);
+  }
+
+  /**
+   * Performs the exploration. Subclasses will normally invoke {@link
+   * #runSchedule} repeatedly, with different strategies.
+   *
+   * @param factory creates the runnables for each run
+   * @param concurrent true if the factory creates new runnables each time, so
+   *        that runs can be performed concurrently
+   */
+  abstract <M extends MainRunnable<T>, T> ExplorationResult doExplore(
+      RunnableFactory<M, T> factory, boolean concurrent);
+
+  /**
+   * Creates the runnables using the given factory, initializes them, runs them
+   * using the given scheduler, and then terminates them. Returns a RunResult
+   * containing any exceptions, and the schedule that was followed.
+   *
+   * @throws IllegalStateException if the scheduler could not follow its
+   *         strategy.
+   */
+  <M extends MainRunnable<T>, T> RunResult runSchedule(RunnableFactory<M, T> factory,
+      CooperativeScheduler scheduler) {
+    M main = factory.createMain();
+    if (memoryModel != MemoryModel.SEQUENTIAL_CONSISTENCY &&
+        !TestInstrumenter.hasStoreBuffers(main.getClassUnderTest())) {
+      throw new IllegalStateException("Cannot simulate " + memoryModel + ", as " +
+          main.getClassUnderTest().getName() + " was not instrumented with store buffers");
+    }
+    List<? extends SecondaryRunnable<T, M>> secondaries = factory.createSecondaries(main);
+    if (secondaries.isEmpty()) {
+      throw new IllegalArgumentException("Must specify secondary runnable(s)");
+    }
+    try {
+      main.initialize();
+    } catch (Throwable e) {
+      return new RunResult(e, null);
+    }
+    for (SecondaryRunnable<T, M> secondary : secondaries) {
+      try {
+        secondary.initialize(main);
+      } catch (Throwable e) {
+        return new RunResult(null, e);
+      }
+    }
+    List<ThrowingRunnable> runnables = new ArrayList<ThrowingRunnable>(secondaries.size() + 1);
+    runnables.add(main);
+    runnables.addAll(secondaries);
+    scheduler.setMemoryModel(memoryModel);
+    RunObserver observer = runObserver;
+    SequentialRunner.ListenerFactory observers = null;
+    if (observer != null) {
+      observers = observer.startRun();
+      scheduler.setObservers(observers);
+    }
+    try {
+      scheduler.run(runnables, getClass().getSimpleName());
+    } catch (InterruptedException e) {
+      return new RunResult(e, null);
+    } finally {
+      if (observers != null) {
+        observer.finishRun(observers);
+      }
+    }
+    Throwable schedulerFailure = scheduler.getSchedulerFailure();
+    if (schedulerFailure != null) {
+      throw new IllegalStateException("Cannot follow schedule", schedulerFailure);
+    }
+    Throwable mainException = scheduler.getException(0);
+    Throwable secondaryException = null;
+    for (int i = 1; i < runnables.size() && secondaryException == null; i++) {
+      secondaryException = scheduler.getException(i);
+    }
+    if (mainException == null && secondaryException == null) {
+      try {
+        main.terminate();
+      } catch (Throwable e) {
+        mainException = e;
+      }
+      for (SecondaryRunnable<T, M> secondary : secondaries) {
+        try {
+          secondary.terminate();
+        } catch (Throwable e) {
+          if (secondaryException == null) {
+            secondaryException = e;
+          }
+        }
+      }
+    }
+    RunResult result = new RunResult(mainException, secondaryException);
+    result.setSchedule(scheduler.getSchedule());
+    if (result.hadException()) {
+      Options.debugPrint("Failing schedule:\n%s", scheduler.getSchedule());
+    }
+    return result;
+  }
+
+  /**
+   * Runs the given worker in the given number of threads, and waits for them
+   * all to finish. Any exception thrown by a worker is rethrown. If there is
+   * only one worker, it runs in the calling thread.
+   */
+  static void runWorkers(Runnable worker, int numWorkers) {
+    if (numWorkers == 1) {
+      worker.run();
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int i = 0; i < numWorkers; i++) {
+        futures.add(executor.submit(worker));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
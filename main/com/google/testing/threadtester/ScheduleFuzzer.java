@@ -0,0 +1,422 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ScheduleExplorer} that treats schedules as the inputs of a
+ * coverage-guided fuzzer. The explorer keeps a corpus of schedules. Each
+ * iteration picks a schedule from the corpus, mutates it by adding, removing
+ * or moving context switches, and runs the result. If the run covers a new
+ * interleaving pair, then its schedule is added to the corpus, so that later
+ * iterations can build on it. An interleaving pair is a switch from one
+ * thread at one probe to another thread at another probe, as seen in the
+ * stream of operations reported by the instrumented code.
+ * <p>
+ * The mutated schedules are run using a {@link PartialReplayStrategy}, so a
+ * switch that is not reached is ignored, and the threads run without
+ * preemption between the switches. The first schedule in the corpus is always
+ * the schedule without preemption.
+ * <p>
+ * If a corpus directory is set, then the schedules in it are loaded and run
+ * before fuzzing starts, and every schedule added to the corpus is saved there,
+ * including any failing schedule. This allows a corpus to be built up over
+ * several test runs. The directory should only be shared by tests of the same
+ * code, since the schedules refer to its probes.
+ * <p>
+ * The mutations made in iteration i are determined by a random number
+ * generator seeded with {@code seed + i}, and by the contents of the corpus.
+ * If the runnables are created by a {@link RunnableFactory}, then iterations
+ * may be performed concurrently. See {@link #setParallelism}. In that case the
+ * corpus depends on the order in which iterations finish, so runs are not
+ * repeatable.
+ */
+public class ScheduleFuzzer extends ScheduleExplorer {
+
+  /** The default number of fuzzing iterations. */
+  public static final int DEFAULT_ITERATIONS = 1000;
+
+  /** The suffix of the schedule files in the corpus directory. */
+  public static final String SCHEDULE_SUFFIX = ".schedule";
+
+  /** The maximum number of mutations applied to a schedule in one iteration. */
+  private static final int MAX_MUTATIONS = 3;
+
+  /** The maximum distance that a switch is moved, in hits of its probe. */
+  private static final int MAX_MOVE = 2;
+
+  private long seed = new Random().nextLong();
+  private int iterations = DEFAULT_ITERATIONS;
+  private int parallelism = 1;
+  private File corpusDirectory;
+
+  /**
+   * A schedule in the corpus, together with the points in its run where a
+   * switch could be added.
+   */
+  private static class Entry {
+    final Schedule schedule;
+    final List<SwitchPoint> points;
+
+    Entry(Schedule schedule, List<SwitchPoint> points) {
+      this.schedule = schedule;
+      this.points = points;
+    }
+  }
+
+  /**
+   * A step in a run where more than one thread was enabled. Identifies the
+   * position of the running thread in the way used by {@link Schedule}.
+   */
+  private static class SwitchPoint {
+    final int thread;
+    final String probe;
+    final int hitCount;
+    final List<Integer> alternatives;
+
+    SwitchPoint(int thread, String probe, int hitCount, List<Integer> alternatives) {
+      this.thread = thread;
+      this.probe = probe;
+      this.hitCount = hitCount;
+      this.alternatives = alternatives;
+    }
+  }
+
+  /**
+   * Sets the seed used to choose the mutations. By default, a random seed is
+   * chosen when the fuzzer is created.
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /** Gets the seed used to choose the mutations. */
+  public long getSeed() {
+    return seed;
+  }
+
+  /** Sets the number of fuzzing iterations. */
+  public void setIterations(int iterations) {
+    if (iterations <= 0) {
+      throw new IllegalArgumentException("iterations must be positive");
+    }
+    this.iterations = iterations;
+  }
+
+  /** Gets the number of fuzzing iterations. */
+  public int getIterations() {
+    return iterations;
+  }
+
+  /**
+   * Sets the maximum number of iterations that will be performed at the same
+   * time. This only applies if the runnables are created by a {@link
+   * RunnableFactory}. Otherwise, the iterations are always performed one after
+   * the other.
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    this.parallelism = parallelism;
+  }
+
+  /** Gets the maximum number of iterations that will be performed at the same time. */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Sets the directory where the corpus is kept between runs. The directory is
+   * created if it does not exist. If null, which is the default, the corpus is
+   * only kept in memory.
+   */
+  public void setCorpusDirectory(File corpusDirectory) {
+    this.corpusDirectory = corpusDirectory;
+  }
+
+  /** Gets the directory where the corpus is kept, or null if there is none. */
+  public File getCorpusDirectory() {
+    return corpusDirectory;
+  }
+
+  @Override
+  <M extends MainRunnable<T>, T> ExplorationResult doExplore(
+      final RunnableFactory<M, T> factory, boolean concurrent) {
+    final List<Entry> corpus = new ArrayList<Entry>();
+    final Set<String> coverage = new HashSet<String>();
+    int numSeeds = 0;
+
+    // Seed the corpus with the non-preemptive schedule, and with any saved
+    // schedules.
+    List<Schedule> seeds = new ArrayList<Schedule>();
+    seeds.add(new Schedule());
+    seeds.addAll(loadCorpus());
+    for (Schedule schedule : seeds) {
+      CooperativeScheduler scheduler = createScheduler(schedule);
+      RunResult result = runSchedule(factory, scheduler);
+      numSeeds++;
+      if (result.hadException()) {
+        return new ExplorationResult(result, numSeeds, 0, false);
+      }
+      List<CooperativeScheduler.Step> trace = scheduler.getTrace();
+      if (addCoverage(coverage, trace) || corpus.isEmpty()) {
+        corpus.add(new Entry(scheduler.getSchedule(), getSwitchPoints(trace)));
+      }
+    }
+    Options.debugPrint("Fuzzer: %d seeds, corpus %d, coverage %d\n", numSeeds, corpus.size(),
+        coverage.size());
+
+    final AtomicInteger nextIteration = new AtomicInteger();
+    final AtomicInteger numRuns = new AtomicInteger();
+    final Failure failure = new Failure();
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        while (!failure.found()) {
+          int iteration = nextIteration.getAndIncrement();
+          if (iteration >= iterations) {
+            break;
+          }
+          Random random = new Random(seed + iteration);
+          Entry parent;
+          synchronized (corpus) {
+            parent = corpus.get(random.nextInt(corpus.size()));
+          }
+          Schedule mutated = mutate(parent, random);
+          CooperativeScheduler scheduler = createScheduler(mutated);
+          RunResult result = runSchedule(factory, scheduler);
+          numRuns.incrementAndGet();
+          if (result.hadException()) {
+            Options.debugPrint("Fuzzer: iteration %d failed\n", iteration);
+            save(result.getSchedule());
+            failure.record(iteration, result);
+            continue;
+          }
+          List<CooperativeScheduler.Step> trace = scheduler.getTrace();
+          boolean isNew;
+          synchronized (coverage) {
+            isNew = addCoverage(coverage, trace);
+          }
+          if (isNew) {
+            Entry entry = new Entry(scheduler.getSchedule(), getSwitchPoints(trace));
+            synchronized (corpus) {
+              corpus.add(entry);
+            }
+            save(entry.schedule);
+          }
+        }
+      }
+    };
+
+    int numWorkers = concurrent ? Math.min(parallelism, iterations) : 1;
+    runWorkers(worker, numWorkers);
+    Options.debugPrint("Fuzzer: corpus %d, coverage %d\n", corpus.size(), coverage.size());
+    int numSchedules = numRuns.get() + numSeeds;
+    if (failure.found()) {
+      return new ExplorationResult(failure.result, numSchedules, 0, false);
+    }
+    return new ExplorationResult(new RunResult(), numSchedules, 0, true);
+  }
+
+  private static CooperativeScheduler createScheduler(Schedule schedule) {
+    List<Integer> indices = new ArrayList<Integer>();
+    for (int i = 0; i < schedule.getSwitches().size(); i++) {
+      indices.add(i);
+    }
+    return new CooperativeScheduler(new PartialReplayStrategy(schedule, indices));
+  }
+
+  /**
+   * Adds the interleaving pairs covered by the given trace to the coverage
+   * set. Returns true if any of them were new.
+   */
+  private static boolean addCoverage(Set<String> coverage, List<CooperativeScheduler.Step> trace) {
+    boolean added = false;
+    for (int i = 1; i < trace.size(); i++) {
+      CooperativeScheduler.Step previous = trace.get(i - 1);
+      CooperativeScheduler.Step step = trace.get(i);
+      if (previous.thread != step.thread) {
+        added |= coverage.add(previous.thread + ":" + previous.operation.getProbe() + " -> " +
+            step.thread + ":" + step.operation.getProbe());
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Finds the steps in the given trace where a different thread could have
+   * been chosen. The position of the running thread at a step is the probe of
+   * its next operation, and the number of times that the thread has reached
+   * that probe. (See {@link CooperativeScheduler#getHitCount}.)
+   */
+  private static List<SwitchPoint> getSwitchPoints(List<CooperativeScheduler.Step> trace) {
+    List<SwitchPoint> points = new ArrayList<SwitchPoint>();
+    for (int i = 0; i < trace.size(); i++) {
+      CooperativeScheduler.Step step = trace.get(i);
+      if (step.enabled.size() < 2) {
+        continue;
+      }
+      List<Integer> alternatives = new ArrayList<Integer>(step.enabled);
+      alternatives.remove(Integer.valueOf(step.thread));
+      if (step.current < 0) {
+        points.add(new SwitchPoint(-1, null, 0, alternatives));
+        continue;
+      }
+      String probe = null;
+      for (int j = i; j < trace.size() && probe == null; j++) {
+        if (trace.get(j).thread == step.current) {
+          probe = trace.get(j).operation.getProbe();
+        }
+      }
+      if (probe == null) {
+        continue;
+      }
+      int hitCount = 1;
+      for (int j = 0; j < i; j++) {
+        CooperativeScheduler.Step earlier = trace.get(j);
+        if (earlier.thread == step.current && probe.equals(earlier.operation.getProbe())) {
+          hitCount++;
+        }
+      }
+      points.add(new SwitchPoint(step.current, probe, hitCount, alternatives));
+    }
+    return points;
+  }
+
+  /**
+   * Returns a copy of the given entry's schedule with between one and {@link
+   * #MAX_MUTATIONS} mutations applied.
+   */
+  private static Schedule mutate(Entry entry, Random random) {
+    List<Schedule.ContextSwitch> switches =
+        new ArrayList<Schedule.ContextSwitch>(entry.schedule.getSwitches());
+    List<String> probes = new ArrayList<String>(switches.size());
+    for (Schedule.ContextSwitch contextSwitch : switches) {
+      probes.add(contextSwitch.getThread() < 0 ?
+          null : entry.schedule.getProbe(contextSwitch.getProbe()));
+    }
+    List<int[]> positions = new ArrayList<int[]>(switches.size());
+    for (Schedule.ContextSwitch contextSwitch : switches) {
+      positions.add(new int[] {contextSwitch.getThread(), contextSwitch.getHitCount(),
+          contextSwitch.getNextThread()});
+    }
+
+    int numMutations = 1 + random.nextInt(MAX_MUTATIONS);
+    for (int i = 0; i < numMutations; i++) {
+      int choice = random.nextInt(3);
+      if (choice == 0 && !entry.points.isEmpty()) {
+        // Add a switch at a point where another thread could have run.
+        SwitchPoint point = entry.points.get(random.nextInt(entry.points.size()));
+        int next = point.alternatives.get(random.nextInt(point.alternatives.size()));
+        int index = random.nextInt(positions.size() + 1);
+        positions.add(index, new int[] {point.thread, point.hitCount, next});
+        probes.add(index, point.probe);
+      } else if (choice == 1 && !positions.isEmpty()) {
+        // Remove a switch.
+        int index = random.nextInt(positions.size());
+        positions.remove(index);
+        probes.remove(index);
+      } else if (!positions.isEmpty()) {
+        // Move a switch to an earlier or later hit of the same probe.
+        int[] position = positions.get(random.nextInt(positions.size()));
+        if (position[0] >= 0) {
+          int delta = 1 + random.nextInt(MAX_MOVE);
+          position[1] = Math.max(1, random.nextBoolean() ? position[1] + delta :
+              position[1] - delta);
+        }
+      }
+    }
+
+    Schedule result = new Schedule();
+    for (int i = 0; i < positions.size(); i++) {
+      int[] position = positions.get(i);
+      result.addSwitch(position[0], probes.get(i), position[1], position[2]);
+    }
+    return result;
+  }
+
+  /** Loads the schedules in the corpus directory, in order of file name. */
+  private List<Schedule> loadCorpus() {
+    List<Schedule> schedules = new ArrayList<Schedule>();
+    if (corpusDirectory == null || !corpusDirectory.isDirectory()) {
+      return schedules;
+    }
+    File[] files = corpusDirectory.listFiles();
+    Arrays.sort(files);
+    for (File file : files) {
+      if (file.getName().endsWith(SCHEDULE_SUFFIX)) {
+        try {
+          schedules.add(Schedule.load(file));
+        } catch (IOException e) {
+          System.out.printf("WARNING - cannot read schedule %s: %s\n", file, e);
+        }
+      }
+    }
+    return schedules;
+  }
+
+  /**
+   * Saves a schedule in the corpus directory, if there is one. The file name
+   * is derived from the schedule, so saving the same schedule twice does not
+   * create a new file.
+   */
+  private void save(Schedule schedule) {
+    if (corpusDirectory == null) {
+      return;
+    }
+    if (!corpusDirectory.isDirectory() && !corpusDirectory.mkdirs() &&
+        !corpusDirectory.isDirectory()) {
+      throw new IllegalStateException("Cannot create corpus directory " + corpusDirectory);
+    }
+    String name = String.format("%08x%s", schedule.toString().hashCode(), SCHEDULE_SUFFIX);
+    try {
+      schedule.save(new File(corpusDirectory, name));
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot save schedule in " + corpusDirectory, e);
+    }
+  }
+
+  /**
+   * Records the failing iteration. If several iterations fail, the one with the
+   * lowest number is kept.
+   */
+  private static class Failure {
+    private int iteration = -1;
+    private RunResult result;
+
+    synchronized boolean found() {
+      return result != null;
+    }
+
+    synchronized void record(int iteration, RunResult result) {
+      if (this.result == null || iteration < this.iteration) {
+        this.iteration = iteration;
+        this.result = result;
+      }
+    }
+  }
+}
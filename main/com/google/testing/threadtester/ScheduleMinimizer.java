@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ScheduleExplorer} that simplifies a failing {@link Schedule}. A
+ * schedule found by a randomized or exhaustive search may contain many context
+ * switches, most of which have nothing to do with the failure. The minimizer
+ * uses delta debugging to find a smaller set of switches that still produces
+ * the same failure. See Zeller and Hildebrandt, "Simplifying and Isolating
+ * Failure-Inducing Input" (IEEE TSE 2002).
+ * <p>
+ * Each candidate is a subset of the original switches, and is run using a
+ * {@link PartialReplayStrategy}. Removing a switch lets the thread that was
+ * stopped continue to run. Removing a switch that stopped a thread together
+ * with the switch that resumed it merges the two periods in which the thread
+ * ran. A candidate fails in the same way as the original schedule if the main
+ * and secondary exceptions have the same classes.
+ * <p>
+ * The schedule in the returned {@link ExplorationResult} is the schedule that
+ * was actually followed by the smallest failing candidate, so it can be
+ * replayed by a {@link ScheduleReplayer}. Use {@link Schedule#describeSteps}
+ * to print it as a list of steps. The result is complete if the set of
+ * switches is minimal, so that removing any one of them makes the failure
+ * disappear. If the time budget runs out first, then the result contains the
+ * smallest failing schedule found so far, and is not complete. If the original
+ * schedule does not fail, the result has no exceptions.
+ * <p>
+ * If the runnables are created by a {@link RunnableFactory}, then the
+ * candidates at each stage are run concurrently. See {@link #setParallelism}.
+ */
+public class ScheduleMinimizer extends ScheduleExplorer {
+
+  /** The default time budget, in milliseconds. */
+  public static final long DEFAULT_TIME_BUDGET = 60000L;
+
+  private final Schedule schedule;
+  private long timeBudget = DEFAULT_TIME_BUDGET;
+  private int parallelism = 1;
+
+  /** Creates a new ScheduleMinimizer that minimizes the given failing schedule. */
+  public ScheduleMinimizer(Schedule schedule) {
+    if (schedule == null) {
+      throw new IllegalArgumentException("schedule cannot be null");
+    }
+    this.schedule = schedule;
+  }
+
+  /**
+   * Sets the maximum time to spend minimizing, in milliseconds. The candidate
+   * being run when the time runs out is allowed to finish.
+   */
+  public void setTimeBudget(long timeBudget) {
+    if (timeBudget <= 0) {
+      throw new IllegalArgumentException("timeBudget must be positive");
+    }
+    this.timeBudget = timeBudget;
+  }
+
+  /** Gets the maximum time to spend minimizing, in milliseconds. */
+  public long getTimeBudget() {
+    return timeBudget;
+  }
+
+  /**
+   * Sets the maximum number of candidates that will be run at the same time.
+   * This only applies if the runnables are created by a {@link
+   * RunnableFactory}. Otherwise, the candidates are always run one after the
+   * other.
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    this.parallelism = parallelism;
+  }
+
+  /** Gets the maximum number of candidates that will be run at the same time. */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  @Override
+  <M extends MainRunnable<T>, T> ExplorationResult doExplore(
+      final RunnableFactory<M, T> factory, boolean concurrent) {
+    long deadline = System.currentTimeMillis() + timeBudget;
+    List<Integer> current = new ArrayList<Integer>();
+    for (int i = 0; i < schedule.getSwitches().size(); i++) {
+      current.add(i);
+    }
+    RunResult best = runCandidate(factory, current);
+    int numSchedules = 1;
+    if (!best.hadException()) {
+      return new ExplorationResult(best, numSchedules, 0, true);
+    }
+    final Class<?> mainClass = getExceptionClass(best.getMainException());
+    final Class<?> secondaryClass = getExceptionClass(best.getSecondaryException());
+    int numWorkers = concurrent ? parallelism : 1;
+
+    int granularity = 2;
+    boolean complete = false;
+    while (true) {
+      if (System.currentTimeMillis() >= deadline) {
+        break;
+      }
+      if (current.isEmpty()) {
+        complete = true;
+        break;
+      }
+      // The candidates are the subsets, and then their complements. With two
+      // subsets, each is the complement of the other. With a single switch,
+      // the only candidate is the empty set.
+      int numChunks = Math.min(granularity, current.size());
+      final List<List<Integer>> candidates = new ArrayList<List<Integer>>();
+      List<List<Integer>> complements = new ArrayList<List<Integer>>();
+      for (int i = 0; i < numChunks; i++) {
+        int start = i * current.size() / numChunks;
+        int end = (i + 1) * current.size() / numChunks;
+        List<Integer> complement = new ArrayList<Integer>(current.subList(0, start));
+        complement.addAll(current.subList(end, current.size()));
+        if (numChunks > 1) {
+          candidates.add(new ArrayList<Integer>(current.subList(start, end)));
+        }
+        if (numChunks != 2) {
+          complements.add(complement);
+        }
+      }
+      final int numSubsets = candidates.size();
+      candidates.addAll(complements);
+
+      final RunResult[] results = new RunResult[candidates.size()];
+      final AtomicInteger nextCandidate = new AtomicInteger();
+      final AtomicInteger firstFailure = new AtomicInteger(candidates.size());
+      final AtomicInteger numRuns = new AtomicInteger();
+      Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+          while (true) {
+            int index = nextCandidate.getAndIncrement();
+            // Later candidates are not needed once an earlier one has failed
+            if (index >= candidates.size() || index > firstFailure.get()) {
+              return;
+            }
+            RunResult result = runCandidate(factory, candidates.get(index));
+            numRuns.incrementAndGet();
+            if (result.hadException() &&
+                getExceptionClass(result.getMainException()) == mainClass &&
+                getExceptionClass(result.getSecondaryException()) == secondaryClass) {
+              results[index] = result;
+              int first = firstFailure.get();
+              while (index < first && !firstFailure.compareAndSet(first, index)) {
+                first = firstFailure.get();
+              }
+            }
+          }
+        }
+      };
+      runWorkers(worker, Math.min(numWorkers, candidates.size()));
+      numSchedules += numRuns.get();
+
+      int failed = firstFailure.get();
+      if (failed < candidates.size()) {
+        current = candidates.get(failed);
+        best = results[failed];
+        granularity = failed < numSubsets ? 2 : Math.max(granularity - 1, 2);
+        Options.debugPrint("Minimizer: reduced to %d switches\n", current.size());
+      } else if (numChunks >= current.size()) {
+        // Removing any single switch makes the failure disappear.
+        complete = true;
+        break;
+      } else {
+        granularity = Math.min(granularity * 2, current.size());
+      }
+    }
+    return new ExplorationResult(best, numSchedules, 0, complete);
+  }
+
+  /** Runs the given subset of the switches in the schedule. */
+  private <M extends MainRunnable<T>, T> RunResult runCandidate(RunnableFactory<M, T> factory,
+      List<Integer> indices) {
+    CooperativeScheduler scheduler =
+        new CooperativeScheduler(new PartialReplayStrategy(schedule, indices));
+    return runSchedule(factory, scheduler);
+  }
+
+  private static Class<?> getExceptionClass(Throwable exception) {
+    return exception == null ? null : exception.getClass();
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+/**
+ * A {@link ScheduleExplorer} that runs a single, previously recorded {@link
+ * Schedule}. This can be used to reproduce a failure found by another
+ * explorer. For example, the failing schedule can be saved on a build machine
+ * using {@link Schedule#save}, and then loaded and replayed locally. Replaying
+ * a schedule costs the same as a single run of the threads.
+ * <p>
+ * The runnables must be the same as those used to record the schedule, and
+ * must behave deterministically. If the threads do not reach the recorded
+ * context switches, then the explorer throws an IllegalStateException.
+ * Schedules recorded by an {@link InterleavedRunner} are replayed using {@link
+ * InterleavedRunner#replay} instead.
+ */
+public class ScheduleReplayer extends ScheduleExplorer {
+  private final Schedule schedule;
+
+  /** Creates a new ScheduleReplayer that replays the given schedule. */
+  public ScheduleReplayer(Schedule schedule) {
+    if (schedule == null) {
+      throw new IllegalArgumentException("schedule cannot be null");
+    }
+    this.schedule = schedule;
+  }
+
+  /** Gets the schedule that will be replayed. */
+  public Schedule getSchedule() {
+    return schedule;
+  }
+
+  @Override
+  <M extends MainRunnable<T>, T> ExplorationResult doExplore(
+      RunnableFactory<M, T> factory, boolean concurrent) {
+    CooperativeScheduler scheduler = new CooperativeScheduler(new ReplayStrategy(schedule));
+    RunResult result = runSchedule(factory, scheduler);
+    return new ExplorationResult(result, 1, 0, true);
+  }
+}
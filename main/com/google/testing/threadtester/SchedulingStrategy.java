@@ -0,0 +1,42 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.List;
+
+/**
+ * Decides which thread a {@link CooperativeScheduler} should run next. The
+ * scheduler consults its strategy every time that the running thread reaches a
+ * scheduling point, and every time that a thread finishes.
+ */
+interface SchedulingStrategy {
+
+  /**
+   * Chooses the next thread to run.
+   *
+   * @param scheduler the scheduler making the choice. Can be used to find the
+   *        pending operation of each thread.
+   * @param current the thread that has reached the scheduling point, or -1 for
+   *        the first choice. If the current thread has finished, or
+   *        cannot continue, it will not be in the enabled list.
+   * @param enabled the threads that can run, in ascending order. Will never be
+   *        empty.
+   *
+   * @return the thread to run. Must be one of the enabled threads.
+   */
+  int chooseThread(CooperativeScheduler scheduler, int current, List<Integer> enabled);
+}
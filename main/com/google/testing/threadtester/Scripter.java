@@ -18,10 +18,13 @@ package com.google.testing.threadtester;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Runs a sequence of {@link Script}s. One Script is defined as the main
@@ -30,6 +33,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * one of the secondary scripts.  A Script consists of a sequence of one
  * or more {@link ScriptedTask}s. Each task typically performs an operation
  * on the object-under-test.
+ * <p>
+ * The scripts determine the order in which the threads run, so a Scripter
+ * does not record a {@link Schedule}. A scripted run is reproduced by
+ * executing the same scripts again.
  *
  * @param <T> the type of object-under-test being scripted.
  *
@@ -49,13 +56,25 @@ public class Scripter<T> {
   /** Set to true when this scripter has finished. */
   private volatile boolean finished;
 
-  /** Represents  */
-  private static class ReleaseEvent<T> {
+  /**
+   * Base class for the events that the Scripter responds to. Events are added
+   * to the {@link #eventQueue} by the script threads, and processed by the
+   * thread that calls {@link #execute}.
+   */
+  private abstract static class ScripterEvent {
     static AtomicInteger scount = new AtomicInteger(0);
 
     /** An id, used for diagnostics */
     final int count;
 
+    ScripterEvent() {
+      this.count = scount.incrementAndGet();
+    }
+  }
+
+  /** Represents the release of control from one Script to another. */
+  private static class ReleaseEvent<T> extends ScripterEvent {
+
     /**
      * The script that released control. Will be null when the first
      * script starts (becasue no-one released control to the first script)
@@ -72,17 +91,49 @@ public class Scripter<T> {
     ReleaseEvent(Script<T> fromScript, Script<T> toScript) {
       this.fromScript = fromScript;
       this.toScript = toScript;
-      this.count = scount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Indicates that a Script is about to block, because it is trying to acquire
+   * a monitor or a {@link java.util.concurrent.locks.Lock} that is held by
+   * another Script. These events are generated by the {@link MonitorTracker}.
+   */
+  private static class BlockedEvent<T> extends ScripterEvent {
+    /** The script that is about to block. */
+    final Script<T> blocked;
+
+    /** The script that holds the monitor. */
+    final Script<T> owner;
+
+    /** The monitor or Lock being acquired. */
+    final Object monitor;
+
+    BlockedEvent(Script<T> blocked, Script<T> owner, Object monitor) {
+      this.blocked = blocked;
+      this.owner = owner;
+      this.monitor = monitor;
     }
   }
 
   /**
    * Queue of events. Every time control is released from one script
    * to another, we add a a new event to the queue. When the sequence
-   * finishes, a final event with null values will be added.
+   * finishes, a final event with null values will be added. In addition, a
+   * {@link BlockedEvent} is added whenever a script is about to block on a
+   * monitor or Lock held by another script.
    */
-  private LinkedBlockingQueue<ReleaseEvent<T>> releaseQueue =
-      new LinkedBlockingQueue<ReleaseEvent<T>>();
+  private LinkedBlockingQueue<ScripterEvent> eventQueue =
+      new LinkedBlockingQueue<ScripterEvent>();
+
+  /**
+   * Maps a monitor or Lock onto the script that currently holds it, for all
+   * monitors and Locks acquired within instrumented code. Guarded by itself.
+   */
+  private final Map<Object, Script<T>> monitorOwners = new IdentityHashMap<Object, Script<T>>();
+
+  /** The number of times that each monitor in {@link #monitorOwners} is held. */
+  private final Map<Object, Integer> monitorCounts = new IdentityHashMap<Object, Integer>();
 
   /**
    * Creates a new Scripter that will run the given main script and
@@ -144,6 +195,7 @@ public class Scripter<T> {
       TestThread thread = new TestThread(runnable, "Script " + (i + 1));
       threads.add(thread);
       script.prepare(this, thread);
+      ObjectInstrumentationImpl.setProbeListener(thread, new MonitorTracker(script));
       thread.start();
     }
 
@@ -167,6 +219,7 @@ public class Scripter<T> {
     for (Script<T> script : scripts) {
       TestThread scriptThread = script.getThread();
       scriptThread.finish();
+      ObjectInstrumentationImpl.setProbeListener(scriptThread, null);
     }
 
     for (TestThread thread : threads) {
@@ -192,60 +245,238 @@ public class Scripter<T> {
 
   /**
    * Monitors an individual {@link ReleaseEvent}. Waits until a new release
-   * event has been added to the queue. While waiting, monitors the scripts
-   * in the current event to see if a script is blocking the script that it
-   * has just released control to. If so, then it steps the blocking script
-   * line by line until it releases the lock. Returns the next event in the
+   * event has been added to the queue. While waiting, responds to any {@link
+   * BlockedEvent} indicating that the script just released is blocked by the
+   * script that released it. If so, then it steps the blocking script line by
+   * line until it releases the lock. Returns the next release event in the
    * queue.
+   * <p>
+   * Blocking is detected by the probes in the instrumented code, so this
+   * method waits for the next event without polling. As a safety net for a
+   * script that blocks on a monitor acquired outside of instrumented code, for
+   * which no BlockedEvent is generated, the thread state is checked if no event
+   * has arrived within the {@link Options#timeout}.
    */
+  @SuppressWarnings("unchecked")
   private ReleaseEvent<T> monitorReleaseEvent(ReleaseEvent<T> event)
       throws InterruptedException, TestTimeoutException {
     boolean stepping = false;
     while (true) {
-      Options.debugPrint("Scripter: Waiting for next release\n");
-      ReleaseEvent<T> nextEvent = releaseQueue.poll(10, TimeUnit.MILLISECONDS);
-      if (nextEvent != null) {
+      Options.debugPrint("Scripter: Waiting for next event\n");
+      ScripterEvent nextEvent = eventQueue.poll(Options.timeout(), TimeUnit.MILLISECONDS);
+      if (nextEvent instanceof ReleaseEvent) {
+        ReleaseEvent<T> release = (ReleaseEvent<T>) nextEvent;
         Options.debugPrint("Scripter: Found a release (%d), stepping = %s, to = %s, from = %s\n",
-            nextEvent.count, stepping, nextEvent.toScript, event.fromScript);
+            release.count, stepping, release.toScript, event.fromScript);
         if (stepping) {
-          if (nextEvent.toScript != event.fromScript) {
+          if (release.toScript != event.fromScript) {
             Options.debugPrint("Scripter: to = %s, from = %s\n",
-                nextEvent.toScript, event.fromScript);
-             throw new IllegalStateException("Got release to " + nextEvent.toScript +
+                release.toScript, event.fromScript);
+             throw new IllegalStateException("Got release to " + release.toScript +
                  " while stepping through " + event.fromScript);
           }
           event.fromScript.finishStepping();
         }
-        return nextEvent;
-      }
-
-      // We have not found another release event on the queue. This means that
-      // the toScript is still running. Check to see if it is not blocked
-      // be the script that just released it.
-      if (isBlockedOnOther(event.fromScript, event.toScript)) {
+        return release;
+      } else if (nextEvent instanceof BlockedEvent) {
+        BlockedEvent<T> blockedEvent = (BlockedEvent<T>) nextEvent;
+        Options.debugPrint("Scripter: %s is blocking on monitor held by %s\n",
+            blockedEvent.blocked, blockedEvent.owner);
+        if (blockedEvent.blocked != event.toScript) {
+          // Only the script that has just been released is running, so
+          // no other script can be blocking.
+          throw new IllegalStateException("Script " + blockedEvent.blocked +
+              " blocked while not running");
+        }
+        if (blockedEvent.owner != event.fromScript) {
+          throw new IllegalStateException("Script " + event.toScript + " is blocked by " +
+              blockedEvent.owner);
+        }
         // Thread is blocked by the thread it released to. We need to step
         // through the fromScript thread until it releases the lock.
+        stepping = stepUntilReleased(event.fromScript, blockedEvent.monitor, stepping);
+      } else if (isBlockedOnOther(event.fromScript, event.toScript)) {
+        // We have not received an event within the timeout, and the toScript
+        // is blocked on a monitor that was not acquired in instrumented code.
         Options.debugPrint("Scripter: Thread is blocked by script that released us...\n");
-        boolean unblocked = false;
-        event.fromScript.startStepping();
-        while (releaseQueue.peek() == null && isBlockedOnOther(event.fromScript, event.toScript)) {
+        if (!stepping) {
+          event.fromScript.startStepping();
+          stepping = true;
+        }
+        while (eventQueue.peek() == null && isBlockedOnOther(event.fromScript, event.toScript)) {
           if (!event.fromScript.canStep()) {
             throw new IllegalStateException("Failed to unblock script " + event.fromScript);
           }
           Options.debugPrint("Scripter: Stepping...\n");
           event.fromScript.step();
-          stepping = true;
-          Options.debugPrint("Scripter: Stepped...\n");
         }
       }
     }
   }
 
+  /**
+   * Steps through the given script until it no longer holds the given monitor
+   * or Lock, or until another event is added to the queue. Returns true if the script is
+   * now being stepped.
+   *
+   * @param stepping true if the script is already being stepped
+   */
+  private boolean stepUntilReleased(Script<T> script, Object monitor, boolean stepping)
+      throws TestTimeoutException {
+    if (getOwner(monitor) != script) {
+      // Already released. This can happen if the monitor was released between
+      // the BlockedEvent being added and being processed.
+      return stepping;
+    }
+    if (!stepping) {
+      script.startStepping();
+    }
+    while (eventQueue.peek() == null && getOwner(monitor) == script) {
+      if (!script.canStep()) {
+        throw new IllegalStateException("Failed to unblock script " + script);
+      }
+      Options.debugPrint("Scripter: Stepping...\n");
+      script.step();
+      Options.debugPrint("Scripter: Stepped...\n");
+    }
+    return true;
+  }
+
+  /** Returns the script holding the given monitor or Lock, or null if there is none. */
+  private Script<T> getOwner(Object monitor) {
+    synchronized (monitorOwners) {
+      return monitorOwners.get(monitor);
+    }
+  }
+
+  /**
+   * Tracks the monitors and {@link java.util.concurrent.locks.Lock Locks}
+   * acquired by a script. One MonitorTracker is registered for each script's
+   * thread. When the script is about to acquire a monitor or Lock held by
+   * another script, a {@link BlockedEvent} is added to the event queue. This
+   * allows the Scripter to respond as soon as the script blocks, rather than
+   * having to poll the thread's state. A script that waits on a monitor does
+   * not own it until the wait returns. A call to tryLock never blocks, so it
+   * does not generate an event. The read lock of a {@link
+   * ReentrantReadWriteLock} may be held by more than one script, so it is not
+   * tracked.
+   */
+  private class MonitorTracker extends ProbeListenerImpl {
+    private final Script<T> script;
+
+    MonitorTracker(Script<T> script) {
+      this.script = script;
+    }
+
+    @Override
+    public void monitorEnter(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      checkBlocked(monitor);
+    }
+
+    @Override
+    public void monitorAcquired(ObjectInstrumentationImpl<?> object, Object monitor) {
+      acquired(monitor);
+    }
+
+    @Override
+    public void monitorExit(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      released(monitor);
+    }
+
+    @Override
+    public void lockEnter(ObjectInstrumentationImpl<?> object, Object lock, boolean tryLock,
+        int line) {
+      if (!tryLock && !(lock instanceof ReentrantReadWriteLock.ReadLock)) {
+        checkBlocked(lock);
+      }
+    }
+
+    @Override
+    public void lockAcquired(ObjectInstrumentationImpl<?> object, Object lock) {
+      if (!(lock instanceof ReentrantReadWriteLock.ReadLock)) {
+        acquired(lock);
+      }
+    }
+
+    @Override
+    public void lockExit(ObjectInstrumentationImpl<?> object, Object lock, int line) {
+      if (!(lock instanceof ReentrantReadWriteLock.ReadLock)) {
+        released(lock);
+      }
+    }
+
+    /**
+     * Adds a {@link BlockedEvent} if the given monitor or Lock is held by
+     * another script.
+     */
+    private void checkBlocked(Object lock) {
+      Script<T> owner = getOwner(lock);
+      if (owner != null && owner != script) {
+        try {
+          eventQueue.put(new BlockedEvent<T>(script, owner, lock));
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    private void acquired(Object lock) {
+      synchronized (monitorOwners) {
+        Integer count = monitorCounts.get(lock);
+        monitorOwners.put(lock, script);
+        monitorCounts.put(lock, count == null ? 1 : count + 1);
+      }
+    }
+
+    private void released(Object lock) {
+      synchronized (monitorOwners) {
+        if (monitorOwners.get(lock) != script) {
+          // A failed call to unlock
+          return;
+        }
+        Integer count = monitorCounts.get(lock);
+        if (count == null || count == 1) {
+          monitorOwners.remove(lock);
+          monitorCounts.remove(lock);
+        } else {
+          monitorCounts.put(lock, count - 1);
+        }
+      }
+    }
+
+    /**
+     * Performs the wait, releasing ownership of the monitor for its duration.
+     * The monitor is reacquired as many times as it was held before the wait.
+     */
+    @Override
+    public boolean monitorWait(ObjectInstrumentationImpl<?> object, Object monitor, long timeout,
+        int nanos, int line) throws InterruptedException {
+      Integer count = null;
+      synchronized (monitorOwners) {
+        if (monitorOwners.get(monitor) == script) {
+          monitorOwners.remove(monitor);
+          count = monitorCounts.remove(monitor);
+        }
+      }
+      try {
+        monitor.wait(timeout, nanos);
+      } finally {
+        if (count != null) {
+          synchronized (monitorOwners) {
+            monitorOwners.put(monitor, script);
+            monitorCounts.put(monitor, count);
+          }
+        }
+      }
+      return true;
+    }
+  }
+
   /**
    * Returns true if a script is blocked by another script due to a
-   * monitor lock. This is used to determine whether a script that
-   * has just released control to another script is causing that
-   * second script to block.
+   * monitor lock. This is used as a safety net, to determine whether a script
+   * that has just released control to another script is causing that
+   * second script to block outside of instrumented code.
    *
    * @param fromScript the script that has released control, and may be
    *        blocking. This will be null when the first script has started,
@@ -288,15 +519,17 @@ public class Scripter<T> {
     if (finished) {
       throw new IllegalStateException("Cannot release after a thread has finished");
     }
-    toScript.resume();
+    // Add the event before resuming the other script, so that the event is
+    // always processed before any BlockedEvent generated by that script.
     try {
       ReleaseEvent<T> evt = new ReleaseEvent<T>(fromScript, toScript);
       Options.debugPrint("Scripter: adding event %d to queue\n", evt.count);
 
-      releaseQueue.put(evt);
+      eventQueue.put(evt);
     } catch (InterruptedException e) {
       throw new RuntimeException(e);
     }
+    toScript.resume();
   }
 
   /**
@@ -306,7 +539,7 @@ public class Scripter<T> {
   void onFinished(Script<T> finishedScript) {
     System.out.printf("Finishing %s\n", finishedScript);
     try {
-      releaseQueue.put(new ReleaseEvent<T>(null, null));
+      eventQueue.put(new ReleaseEvent<T>(null, null));
     } catch (InterruptedException e) {
       throw new RuntimeException(e);
     }
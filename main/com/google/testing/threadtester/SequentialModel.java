@@ -0,0 +1,48 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+/**
+ * A sequential specification of an object, used by a {@link
+ * LinearizabilityChecker} to decide whether a concurrent {@link History} is
+ * linearizable. The model describes the abstract state of the object, and how
+ * each call changes the state and determines its result.
+ * <p>
+ * States must implement {@link Object#equals} and {@link Object#hashCode}, as
+ * the checker remembers the states that it has already explored. States
+ * should be immutable, or at least must not be modified by {@link #apply}.
+ *
+ * @param <S> the type of the state
+ * @see PartitionedModel
+ */
+public interface SequentialModel<S> {
+
+  /** Gets the state of a newly created object. */
+  S getInitialState();
+
+  /**
+   * Applies a call to a state. Returns the state after the call, or null if
+   * the call could not have produced its recorded result or exception in the
+   * given state. If the call has not responded (see {@link
+   * History.Call#isComplete}), then it may have taken effect with any result,
+   * and the model should return the state after the call.
+   *
+   * @param state the state before the call. This must not be modified.
+   * @param call the call
+   */
+  S apply(S state, History.Call call);
+}
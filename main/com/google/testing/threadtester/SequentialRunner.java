@@ -0,0 +1,132 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a main runnable and its secondary runnables one after the other, each
+ * in its own thread, with a {@link ProbeListener} that records what the thread
+ * does. Running the threads one at a time means that they cannot deadlock or
+ * interfere with each other, so this is used by analyses that predict the
+ * behaviour of other interleavings from a single run.
+ */
+class SequentialRunner {
+
+  /** Creates the listener for each of the threads. */
+  interface ListenerFactory {
+    /**
+     * Creates the listener for the given thread, which will run the runnable
+     * with the given index. The main runnable has index 0, and the secondary
+     * runnables are numbered from 1.
+     */
+    ProbeListener createListener(Thread thread, int index);
+  }
+
+  private SequentialRunner() {
+    // All methods are static
+  }
+
+  /**
+   * Initializes the runnables, runs them one at a time, starting with the main
+   * runnable, and terminates them if none of them threw an exception.
+   *
+   * @param name the prefix for the names of the threads
+   * @return a RunResult containing any exceptions thrown by the runnables. If
+   *         more than one secondary runnable throws an exception, the result
+   *         contains the first one.
+   */
+  static <M extends MainRunnable<T>, T> RunResult run(M main,
+      List<? extends SecondaryRunnable<T, M>> secondaries, String name,
+      ListenerFactory factory) {
+    return run(main, secondaries, name, factory, true);
+  }
+
+  /**
+   * Initializes the runnables, runs them one at a time, and terminates them if
+   * none of them threw an exception. If mainFirst is false, the secondary
+   * runnables are run first, followed by the main runnable. The indices passed
+   * to the factory do not depend on the order.
+   *
+   * @param name the prefix for the names of the threads
+   * @return a RunResult containing any exceptions thrown by the runnables. If
+   *         more than one secondary runnable throws an exception, the result
+   *         contains the first one.
+   */
+  static <M extends MainRunnable<T>, T> RunResult run(M main,
+      List<? extends SecondaryRunnable<T, M>> secondaries, String name,
+      ListenerFactory factory, boolean mainFirst) {
+    if (secondaries.isEmpty()) {
+      throw new IllegalArgumentException("Must specify secondary runnable(s)");
+    }
+    try {
+      main.initialize();
+    } catch (Throwable e) {
+      return new RunResult(e, null);
+    }
+    for (SecondaryRunnable<T, M> secondary : secondaries) {
+      try {
+        secondary.initialize(main);
+      } catch (Throwable e) {
+        return new RunResult(null, e);
+      }
+    }
+    List<ThrowingRunnable> runnables = new ArrayList<ThrowingRunnable>(secondaries.size() + 1);
+    runnables.add(main);
+    runnables.addAll(secondaries);
+    Throwable mainException = null;
+    Throwable secondaryException = null;
+    for (int n = 0; n < runnables.size(); n++) {
+      int i = mainFirst ? n : (n + 1) % runnables.size();
+      TestThread thread = new TestThread(runnables.get(i), name + " thread " + i);
+      ObjectInstrumentationImpl.setProbeListener(thread, factory.createListener(thread, i));
+      Throwable exception;
+      try {
+        thread.start();
+        thread.finish(i == 0 ? TimeoutPhase.MAIN_COMPLETION : TimeoutPhase.SECONDARY_COMPLETION);
+        exception = thread.getException();
+      } catch (Exception e) {
+        exception = e;
+      } finally {
+        ObjectInstrumentationImpl.setProbeListener(thread, null);
+      }
+      if (i == 0) {
+        mainException = exception;
+      } else if (secondaryException == null) {
+        secondaryException = exception;
+      }
+    }
+    if (mainException == null && secondaryException == null) {
+      try {
+        main.terminate();
+      } catch (Throwable e) {
+        mainException = e;
+      }
+      for (SecondaryRunnable<T, M> secondary : secondaries) {
+        try {
+          secondary.terminate();
+        } catch (Throwable e) {
+          if (secondaryException == null) {
+            secondaryException = e;
+          }
+        }
+      }
+    }
+    return new RunResult(mainException, secondaryException);
+  }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PushbackInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Runs a set of tests in several worker processes. Used by {@link
+ * BaseThreadedTestRunner} when the tests are sharded. See {@link
+ * BaseThreadedTestRunner#setShards}.
+ * <p>
+ * The coordinator enumerates the tasks that make up the tests (see {@link
+ * ShardedTestWrapper#getTasks}), and starts the worker processes. (See {@link
+ * ShardWorker}.) The coordinator talks to each worker through the worker's
+ * standard input and output, so no other process can send it objects. Each
+ * worker is sent one task at a time, and replies with the failure thrown by
+ * the task, or null. Tasks are handed out in order, as the workers become
+ * free. Once there are no more tasks, each worker is sent a null task, and
+ * exits. Anything that a worker prints is copied to the output of this
+ * process.
+ * <p>
+ * Workers are started with the same JVM options as this process, such as
+ * {@code -ea}, system properties and heap sizes, so that the tests behave in
+ * the same way as unsharded tests. The options that start a debugger agent
+ * are not passed on, as each agent would try to listen on the same port.
+ * <p>
+ * If a task fails, or a worker exits unexpectedly, no more tasks are handed
+ * out, and all of the workers are stopped. If several tasks have failed by
+ * then, the failure of the earliest task is reported.
+ */
+class ShardCoordinator {
+
+  /** The time in milliseconds that a worker process is given to start. */
+  static final int WORKER_START_TIMEOUT = 60000;
+
+  /** The task index used for failures when a worker starts. */
+  private static final int START_INDEX = -1;
+
+  /** The task index used for failures when a worker finishes. */
+  private static final int FINISH_INDEX = Integer.MAX_VALUE;
+
+  private final BaseThreadedTestRunner runner;
+  private final int numWorkers;
+  private final List<Process> processes = new ArrayList<Process>();
+
+  private List<String> tasks;
+
+  /** The index of the next task to be handed out. */
+  private int nextTask;
+
+  /** True once a failure has been found, and the workers are being stopped. */
+  private boolean stopped;
+
+  /** The first failing task, and its failure. */
+  private int failedTask;
+  private Throwable failure;
+
+  ShardCoordinator(BaseThreadedTestRunner runner, int numWorkers) {
+    this.runner = runner;
+    this.numWorkers = numWorkers;
+  }
+
+  /**
+   * Runs the given tests. Throws the failure of the earliest failing task, if
+   * any.
+   */
+  void runTests(String mainName, List<String> targets) {
+    tasks = runner.getTasks(mainName, targets);
+    int numProcesses = Math.max(1, Math.min(numWorkers, tasks.size()));
+    List<Thread> handlers = new ArrayList<Thread>(numProcesses);
+    Timer startTimer = new Timer("ShardStart", true);
+    try {
+      for (int i = 0; i < numProcesses && !isStopped(); i++) {
+        WorkerHandler handler = new WorkerHandler(startWorker(mainName, targets));
+        startTimer.schedule(handler.getStartTimeout(), WORKER_START_TIMEOUT);
+        Thread thread = new Thread(handler, "Shard" + i);
+        thread.start();
+        handlers.add(thread);
+      }
+    } catch (IOException e) {
+      fail(START_INDEX, new IllegalStateException("Cannot start worker processes", e));
+    } finally {
+      join(handlers);
+      startTimer.cancel();
+      stopWorkers();
+    }
+    Throwable failed = getFailure();
+    if (failed instanceof RuntimeException) {
+      throw (RuntimeException) failed;
+    } else if (failed instanceof Error) {
+      throw (Error) failed;
+    } else if (failed != null) {
+      throw new RuntimeException(failed);
+    }
+  }
+
+  private Process startWorker(String mainName, List<String> targets) throws IOException {
+    List<String> command = new ArrayList<String>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator +
+        "java");
+    for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (!isDebuggerOption(argument)) {
+        command.add(argument);
+      }
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(ShardWorker.class.getName());
+    command.add(runner.getClass().getName());
+    command.addAll(runner.getWorkerOptions());
+    command.add(mainName);
+    command.addAll(targets);
+    Process process = new ProcessBuilder(command).start();
+    synchronized (this) {
+      processes.add(process);
+    }
+    Thread output = new Thread(new OutputCopier(process.getErrorStream()), "ShardOutput");
+    output.setDaemon(true);
+    output.start();
+    return process;
+  }
+
+  /** Returns true if the given JVM option starts a debugger agent. */
+  private static boolean isDebuggerOption(String argument) {
+    return argument.startsWith("-agentlib:jdwp") || argument.startsWith("-Xrunjdwp") ||
+        argument.equals("-Xdebug");
+  }
+
+  /** Returns the index of the next task, or -1 if no more tasks should be run. */
+  private synchronized int getNextTask() {
+    if (stopped || nextTask >= tasks.size()) {
+      return -1;
+    }
+    return nextTask++;
+  }
+
+  /**
+   * Records the failure of a task, and stops the workers. Only the failure of
+   * the earliest task is kept.
+   */
+  private void fail(int task, Throwable taskFailure) {
+    synchronized (this) {
+      if (failure == null || task < failedTask) {
+        failedTask = task;
+        failure = taskFailure;
+      }
+      if (stopped) {
+        return;
+      }
+      stopped = true;
+    }
+    stopWorkers();
+  }
+
+  private synchronized Throwable getFailure() {
+    return failure;
+  }
+
+  private synchronized boolean isStopped() {
+    return stopped;
+  }
+
+  /** Waits for the workers to exit, or destroys them if a task has failed. */
+  private void stopWorkers() {
+    List<Process> toStop;
+    synchronized (this) {
+      toStop = new ArrayList<Process>(processes);
+    }
+    for (Process process : toStop) {
+      if (isStopped()) {
+        process.destroy();
+      } else {
+        try {
+          process.waitFor();
+        } catch (InterruptedException e) {
+          process.destroy();
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  private static void join(List<Thread> threads) {
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Reads a failure sent by a {@link ShardWorker}, or returns null
+   * if the task succeeded.
+   */
+  private static Throwable readFailure(ObjectInputStream in) throws IOException {
+    try {
+      byte[] bytes = (byte[]) in.readObject();
+      if (bytes == null) {
+        return null;
+      }
+      ObjectInputStream failureIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+      return (Throwable) failureIn.readObject();
+    } catch (ClassNotFoundException e) {
+      return new IllegalStateException("Cannot read failure from worker", e);
+    }
+  }
+
+  /**
+   * Skips any output that the worker's JVM printed before the worker started
+   * writing objects, such as the output of {@code -verbose}, and copies it to
+   * the output of this process.
+   */
+  private static InputStream skipToStreamHeader(InputStream in) throws IOException {
+    PushbackInputStream pushback = new PushbackInputStream(in, 2);
+    int previous = -1;
+    while (true) {
+      int next = pushback.read();
+      if (next < 0) {
+        if (previous >= 0) {
+          System.out.write(previous);
+        }
+        System.out.flush();
+        return pushback;
+      }
+      if (previous == 0xac && next == 0xed) {
+        pushback.unread(new byte[] {(byte) 0xac, (byte) 0xed});
+        System.out.flush();
+        return pushback;
+      }
+      if (previous >= 0) {
+        System.out.write(previous);
+      }
+      previous = next;
+    }
+  }
+
+  /**
+   * Describes how a worker process exited, or returns an empty string if it is
+   * still running.
+   */
+  private static String describeExit(Process process) {
+    try {
+      return " (exit value " + process.exitValue() + ")";
+    } catch (IllegalThreadStateException e) {
+      return "";
+    }
+  }
+
+  /** Hands out tasks to a single worker, and records its failures. */
+  private class WorkerHandler implements Runnable {
+    private final Process process;
+    private boolean started;
+
+    WorkerHandler(Process process) {
+      this.process = process;
+    }
+
+    /**
+     * Returns a task that destroys the worker if it has not started. This
+     * causes the handler to fail.
+     */
+    TimerTask getStartTimeout() {
+      return new TimerTask() {
+        @Override
+        public void run() {
+          synchronized (WorkerHandler.this) {
+            if (!started) {
+              process.destroy();
+            }
+          }
+        }
+      };
+    }
+
+    @Override
+    public void run() {
+      int task = START_INDEX;
+      try {
+        ObjectOutputStream out =
+            new ObjectOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        out.flush();
+        ObjectInputStream in = new ObjectInputStream(skipToStreamHeader(process.getInputStream()));
+        Throwable taskFailure = readFailure(in);
+        synchronized (this) {
+          started = true;
+        }
+        while (taskFailure == null) {
+          task = getNextTask();
+          if (task < 0) {
+            task = FINISH_INDEX;
+            out.writeObject(null);
+            out.flush();
+            taskFailure = readFailure(in);
+            break;
+          }
+          out.writeObject(tasks.get(task));
+          out.flush();
+          taskFailure = readFailure(in);
+        }
+        if (taskFailure != null) {
+          fail(task, taskFailure);
+        }
+      } catch (IOException e) {
+        if (!isStopped()) {
+          String name = task == START_INDEX ? "start" : task == FINISH_INDEX ? "finish" :
+              "task " + tasks.get(task);
+          fail(task, new IllegalStateException("Worker process failed during " + name +
+              describeExit(process), e));
+        }
+      } finally {
+        try {
+          process.getOutputStream().close();
+        } catch (IOException e) {
+          // Ignore. The process has exited.
+        }
+      }
+    }
+  }
+
+  /** Copies the output of a worker process to the output of this process. */
+  private static class OutputCopier implements Runnable {
+    private final InputStream in;
+
+    OutputCopier(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public void run() {
+      byte[] buffer = new byte[4096];
+      try {
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+          System.out.write(buffer, 0, count);
+        }
+        System.out.flush();
+      } catch (IOException e) {
+        // The process has exited.
+      }
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The main class of a worker process started by a {@link ShardCoordinator}.
+ * The worker loads the tests using a new instance of the test runner, and runs
+ * the tasks that it is sent until it is sent a null task. The failure of each
+ * task, or null, is sent back to the coordinator. The tasks are read from
+ * standard input, and the failures are written to standard output, so
+ * anything that the tests print to {@link System#out} is sent to standard
+ * error instead.
+ * <p>
+ * This class is made public in order to allow it to be run as a separate
+ * process, but it should not be used otherwise.
+ */
+public class ShardWorker {
+
+  /** The number of runner options. See {@link BaseThreadedTestRunner#getWorkerOptions}. */
+  private static final int NUM_OPTIONS = 7;
+
+  private ShardWorker() {
+    // Only static methods
+  }
+
+  /**
+   * Runs a worker. The arguments are the name of the test runner class, the
+   * runner options, the name of the test class, and the names of the classes
+   * to be instrumented.
+   */
+  public static void main(String[] args) throws Exception {
+    OutputStream coordinatorOut = new FileOutputStream(FileDescriptor.out);
+    System.setOut(System.err);
+    BaseThreadedTestRunner runner =
+        (BaseThreadedTestRunner) MethodCaller.newInstance(Class.forName(args[0]));
+    List<String> argList = Arrays.asList(args);
+    runner.setWorkerOptions(argList.subList(1, 1 + NUM_OPTIONS));
+    String mainName = args[1 + NUM_OPTIONS];
+    List<String> targets = new ArrayList<String>(argList.subList(2 + NUM_OPTIONS, args.length));
+
+    try {
+      runTasks(System.in, coordinatorOut, runner, mainName, targets);
+    } finally {
+      coordinatorOut.close();
+    }
+    // The tests may have left non-daemon threads running.
+    System.exit(0);
+  }
+
+  private static void runTasks(InputStream coordinatorIn, OutputStream coordinatorOut,
+      BaseThreadedTestRunner runner, String mainName, List<String> targets)
+      throws IOException, ClassNotFoundException {
+    ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(coordinatorOut));
+    out.flush();
+    ObjectInputStream in = new ObjectInputStream(coordinatorIn);
+    Object wrapper;
+    try {
+      wrapper = runner.startTasks(mainName, targets);
+    } catch (Throwable e) {
+      sendFailure(out, e);
+      return;
+    }
+    sendFailure(out, null);
+    Method runTask = MethodCaller.getDeclaredMethod(wrapper.getClass(), "runTask", String.class);
+    Method finishTasks = MethodCaller.getDeclaredMethod(wrapper.getClass(), "finishTasks");
+    while (true) {
+      String task = (String) in.readObject();
+      Throwable failure = null;
+      try {
+        if (task == null) {
+          MethodCaller.invoke(finishTasks, wrapper);
+        } else {
+          MethodCaller.invoke(runTask, wrapper, task);
+        }
+      } catch (Throwable e) {
+        failure = e;
+      }
+      sendFailure(out, failure);
+      if (task == null || failure != null) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Sends a failure to the coordinator, or null if there was no failure. The
+   * failure is serialized separately, so that a failure that cannot be
+   * serialized can be replaced by one that contains its stack trace.
+   */
+  private static void sendFailure(ObjectOutputStream out, Throwable failure) throws IOException {
+    byte[] bytes = null;
+    if (failure != null) {
+      try {
+        bytes = serialize(failure);
+      } catch (IOException e) {
+        StringWriter trace = new StringWriter();
+        failure.printStackTrace(new PrintWriter(trace));
+        bytes = serialize(new RuntimeException(trace.toString()));
+      }
+    }
+    out.writeObject(bytes);
+    out.flush();
+  }
+
+  private static byte[] serialize(Throwable failure) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(failure);
+    out.close();
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.List;
+
+/**
+ * A {@link BaseTestWrapper} whose tests can be split into independent tasks,
+ * so that they can be run by several worker processes. See {@link
+ * BaseThreadedTestRunner#setShards}.
+ * <p>
+ * Each task is identified by a String. The coordinating process calls {@link
+ * #getTasks} to enumerate the tasks. Each worker process then creates its own
+ * instance of the wrapper, calls {@link #startTasks} once, calls {@link
+ * #runTask} for each task that it is given, and finally calls {@link
+ * #finishTasks}.
+ */
+/*
+ * NOTE: these methods are invoked by reflection from BaseThreadedTestRunner and
+ * ShardWorker. Do not change the method names without updating them.
+ */
+interface ShardedTestWrapper extends BaseTestWrapper {
+
+  /**
+   * Gets the names of the tasks that make up the tests in the given test
+   * class. Running every task is equivalent to calling {@link
+   * BaseTestWrapper#runTests}. The names must not depend on the process in
+   * which they are computed.
+   */
+  List<String> getTasks(Class<?> testClass, List<String> instrumentedClasses) throws Exception;
+
+  /**
+   * Prepares to run the tasks for the given test class. Called once by each
+   * worker, before the first call to {@link #runTask}.
+   */
+  void startTasks(Class<?> testClass, List<String> instrumentedClasses) throws Exception;
+
+  /**
+   * Runs a single task. Throws an exception if the task fails.
+   *
+   * @param task one of the names returned by {@link #getTasks}
+   */
+  void runTask(String task) throws Exception;
+
+  /**
+   * Called once by each worker, after it has run its last task.
+   */
+  void finishTasks() throws Exception;
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.NotFoundException;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+/**
+ * Analyses the bytecode of a method to find the lines that may have an effect
+ * that is visible to other threads. Used by {@link InterleavedRunner} to avoid
+ * stopping the main thread at positions that are equivalent to each other.
+ * <p>
+ * Each line is classified by the kinds of {@link Access} made by its
+ * bytecodes. A line with no accesses only uses local variables. Stopping the
+ * main thread before such a line has the same effect as stopping it before the
+ * next line, provided that the next line can only be reached from the first
+ * one. Like the {@link CallChecker}, this class reads the original class files,
+ * and not the instrumented classes.
+ */
+class SharedAccessChecker {
+
+  /** The kinds of access that may be visible to another thread. */
+  enum Access {
+    /** Reads a field. */
+    FIELD_READ,
+    /** Writes a field. */
+    FIELD_WRITE,
+    /** Reads an element of an array. */
+    ARRAY_READ,
+    /** Writes an element of an array. */
+    ARRAY_WRITE,
+    /** Calls another method, which may access shared state. */
+    CALL,
+    /** Acquires or releases a monitor. */
+    LOCK
+  }
+
+  /** Describes the accesses made by the lines of a single method. */
+  static class MethodAccesses {
+    private final Map<Integer, Set<Access>> accesses = new HashMap<Integer, Set<Access>>();
+
+    /** Lines that contain an instruction that does not continue to the next one. */
+    private final Set<Integer> branchingLines = new HashSet<Integer>();
+
+    /** Lines that contain the target of a jump or an exception handler. */
+    private final Set<Integer> targetLines = new HashSet<Integer>();
+
+    /**
+     * Gets the accesses made by the given line. Returns an empty set for a
+     * line that only uses local variables, and null for a line that is not
+     * part of the method.
+     */
+    Set<Access> getAccesses(int line) {
+      return accesses.get(line);
+    }
+
+    /**
+     * Returns true if stopping before the given line may have a different
+     * effect from stopping before the previous line. This is the case unless
+     * the previous line only uses local variables, always continues to the
+     * given line, and is the only way of reaching it.
+     */
+    boolean isDistinct(int previousLine, int line) {
+      Set<Access> previous = accesses.get(previousLine);
+      return previous == null || !previous.isEmpty() || branchingLines.contains(previousLine) ||
+          targetLines.contains(line) || !accesses.containsKey(line);
+    }
+
+    private void add(int line, Access access) {
+      Set<Access> set = accesses.get(line);
+      if (set == null) {
+        set = EnumSet.noneOf(Access.class);
+        accesses.put(line, set);
+      }
+      if (access != null) {
+        set.add(access);
+      }
+    }
+  }
+
+  /**
+   * Analyses the given method.
+   *
+   * @throws IllegalArgumentException if the method's class file cannot be
+   *         read, or does not contain the method
+   */
+  MethodAccesses getAccesses(Method method) {
+    CtClass cl = null;
+    try {
+      cl = ClassPool.getDefault().get(method.getDeclaringClass().getName());
+      CtMethod ctMethod = findMethod(cl, method);
+      return analyse(ctMethod.getMethodInfo());
+    } catch (NotFoundException e) {
+      throw new IllegalArgumentException("Cannot find method " + method, e);
+    } catch (BadBytecode e) {
+      throw new IllegalArgumentException("Cannot analyse method " + method, e);
+    } finally {
+      if (cl != null) {
+        cl.detach();
+      }
+    }
+  }
+
+  /**
+   * Returns the indices of the lines of the given method where the {@link
+   * InterleavedRunner} needs to stop. The first line is always included. Each
+   * later line is included if stopping before it is distinct from stopping
+   * before the previous line. (See {@link MethodAccesses#isDistinct}.)
+   */
+  List<Integer> getDistinctLines(MethodInstrumentation method) {
+    MethodAccesses accesses = getAccesses(method.getUnderlyingMethod());
+    List<LineInstrumentation> lines = method.getLines();
+    List<Integer> result = new ArrayList<Integer>();
+    for (int i = 0; i < lines.size(); i++) {
+      if (i == 0 ||
+          accesses.isDistinct(lines.get(i - 1).getLineNumber(), lines.get(i).getLineNumber())) {
+        result.add(i);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the indices of all of the lines of the given method, ordered so
+   * that the lines where stopping is most likely to expose a bug come first.
+   * Lines that access fields or array elements come first, followed by lines
+   * that acquire or release a monitor, or are next to such a line, and then
+   * the remaining lines. All of the lines of a synchronized method are
+   * considered to be next to a monitor. Lines with the same priority are
+   * returned in order.
+   */
+  List<Integer> getPrioritizedLines(MethodInstrumentation method) {
+    Method underlying = method.getUnderlyingMethod();
+    MethodAccesses accesses = getAccesses(underlying);
+    boolean synchronizedMethod = Modifier.isSynchronized(underlying.getModifiers());
+    List<LineInstrumentation> lines = method.getLines();
+    List<Integer> shared = new ArrayList<Integer>();
+    List<Integer> nearLock = new ArrayList<Integer>();
+    List<Integer> others = new ArrayList<Integer>();
+    for (int i = 0; i < lines.size(); i++) {
+      Set<Access> lineAccesses = getAccesses(accesses, lines, i);
+      if (lineAccesses.contains(Access.FIELD_READ) || lineAccesses.contains(Access.FIELD_WRITE) ||
+          lineAccesses.contains(Access.ARRAY_READ) || lineAccesses.contains(Access.ARRAY_WRITE)) {
+        shared.add(i);
+      } else if (synchronizedMethod || lineAccesses.contains(Access.LOCK) ||
+          getAccesses(accesses, lines, i - 1).contains(Access.LOCK) ||
+          getAccesses(accesses, lines, i + 1).contains(Access.LOCK)) {
+        nearLock.add(i);
+      } else {
+        others.add(i);
+      }
+    }
+    List<Integer> result = new ArrayList<Integer>(lines.size());
+    result.addAll(shared);
+    result.addAll(nearLock);
+    result.addAll(others);
+    return result;
+  }
+
+  /**
+   * Gets the accesses made by the line with the given index. Returns an empty
+   * set if the index is out of range, or the line is not part of the method.
+   */
+  private static Set<Access> getAccesses(MethodAccesses accesses, List<LineInstrumentation> lines,
+      int index) {
+    Set<Access> result = null;
+    if (index >= 0 && index < lines.size()) {
+      result = accesses.getAccesses(lines.get(index).getLineNumber());
+    }
+    return result == null ? EnumSet.noneOf(Access.class) : result;
+  }
+
+  private MethodAccesses analyse(MethodInfo methodInfo) throws BadBytecode {
+    MethodAccesses result = new MethodAccesses();
+    CodeAttribute code = methodInfo.getCodeAttribute();
+    if (code == null) {
+      return result;
+    }
+    ExceptionTable exceptions = code.getExceptionTable();
+    for (int i = 0; i < exceptions.size(); i++) {
+      result.targetLines.add(methodInfo.getLineNumber(exceptions.handlerPc(i)));
+    }
+    CodeIterator iterator = code.iterator();
+    while (iterator.hasNext()) {
+      int index = iterator.next();
+      int op = iterator.byteAt(index);
+      int line = methodInfo.getLineNumber(index);
+      result.add(line, getAccess(op));
+      if (op >= Opcode.IFEQ && op <= Opcode.JSR || op == Opcode.IFNULL ||
+          op == Opcode.IFNONNULL) {
+        result.branchingLines.add(line);
+        result.targetLines.add(methodInfo.getLineNumber(index + iterator.s16bitAt(index + 1)));
+      } else if (op == Opcode.GOTO_W || op == Opcode.JSR_W) {
+        result.branchingLines.add(line);
+        result.targetLines.add(methodInfo.getLineNumber(index + iterator.s32bitAt(index + 1)));
+      } else if (op == Opcode.TABLESWITCH || op == Opcode.LOOKUPSWITCH) {
+        // Rather than decoding the jump table, assume that any line may be a
+        // target.
+        result.branchingLines.add(line);
+        for (int other : getLines(methodInfo, code)) {
+          result.targetLines.add(other);
+        }
+      } else if (op >= Opcode.IRETURN && op <= Opcode.RETURN || op == Opcode.ATHROW ||
+          op == Opcode.RET) {
+        result.branchingLines.add(line);
+      }
+    }
+    return result;
+  }
+
+  /** Gets the kind of access made by an opcode, or null if it only uses locals. */
+  private static Access getAccess(int op) {
+    switch (op) {
+      case Opcode.GETFIELD:
+      case Opcode.GETSTATIC:
+        return Access.FIELD_READ;
+      case Opcode.PUTFIELD:
+      case Opcode.PUTSTATIC:
+        return Access.FIELD_WRITE;
+      case Opcode.INVOKEVIRTUAL:
+      case Opcode.INVOKESPECIAL:
+      case Opcode.INVOKESTATIC:
+      case Opcode.INVOKEINTERFACE:
+      case Opcode.INVOKEDYNAMIC:
+        return Access.CALL;
+      case Opcode.MONITORENTER:
+      case Opcode.MONITOREXIT:
+        return Access.LOCK;
+      default:
+        if (op >= Opcode.IALOAD && op <= Opcode.SALOAD) {
+          return Access.ARRAY_READ;
+        } else if (op >= Opcode.IASTORE && op <= Opcode.SASTORE) {
+          return Access.ARRAY_WRITE;
+        }
+        return null;
+    }
+  }
+
+  private static Set<Integer> getLines(MethodInfo methodInfo, CodeAttribute code) {
+    Set<Integer> lines = new HashSet<Integer>();
+    for (int i = 0; i < code.getCodeLength(); i++) {
+      lines.add(methodInfo.getLineNumber(i));
+    }
+    return lines;
+  }
+
+  /**
+   * Finds the CtMethod corresponding to a Method. The parameter types are
+   * compared by name, since the Method may have been loaded by a different
+   * class loader.
+   */
+  private static CtMethod findMethod(CtClass cl, Method method) throws NotFoundException {
+    StringBuilder params = new StringBuilder("(");
+    for (Class<?> param : method.getParameterTypes()) {
+      params.append(getDescriptor(param));
+    }
+    params.append(")");
+    for (CtMethod ctMethod : cl.getDeclaredMethods()) {
+      if (ctMethod.getName().equals(method.getName()) &&
+          ctMethod.getSignature().startsWith(params.toString())) {
+        return ctMethod;
+      }
+    }
+    throw new NotFoundException(method.toString());
+  }
+
+  private static String getDescriptor(Class<?> type) {
+    if (type.isArray()) {
+      return type.getName().replace('.', '/');
+    } else if (!type.isPrimitive()) {
+      return "L" + type.getName().replace('.', '/') + ";";
+    } else if (type == boolean.class) {
+      return "Z";
+    } else if (type == long.class) {
+      return "J";
+    }
+    // The descriptors of the other primitive types are the upper-cased first
+    // letter of the type name.
+    return type.getName().substring(0, 1).toUpperCase();
+  }
+}
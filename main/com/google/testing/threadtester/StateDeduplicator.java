@@ -0,0 +1,100 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Detects interleavings that are equivalent to ones that have already been
+ * run. Used by {@link InterleavedRunner#interleaveDistinctStates}.
+ * <p>
+ * Each time that the main thread is paused, the deduplicator records its
+ * position and a hash of the state of the object under test. The position is
+ * the number of operations that are visible to other threads (field accesses,
+ * and monitor entries and exits) that the main thread has executed. Pausing
+ * the main thread at two different lines with no visible operation between
+ * them is equivalent, since the code between the lines can only affect local
+ * variables. The state hash detects changes made by code that is not
+ * instrumented, such as library classes, which do not report their field
+ * accesses. If the main thread reaches a position and state that has already
+ * been seen, then running the secondary thread will have the same result as
+ * before, and the interleaving can be skipped.
+ * <p>
+ * Note that reads performed by non-instrumented code are not seen. If the
+ * main thread only reads shared state in non-instrumented code, then two
+ * interleavings may be treated as equivalent when they are not.
+ */
+class StateDeduplicator {
+
+  /** Counts the visible operations executed by a single thread. */
+  static class OperationCounter extends ProbeListenerImpl {
+    private volatile int count;
+
+    @Override
+    public void monitorEnter(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      count++;
+    }
+
+    @Override
+    public void monitorExit(ObjectInstrumentationImpl<?> object, Object monitor, int line) {
+      count++;
+    }
+
+    @Override
+    public void fieldRead(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      count++;
+    }
+
+    @Override
+    public void fieldWrite(ObjectInstrumentationImpl<?> object, Object owner, String field,
+        int line) {
+      count++;
+    }
+
+    int getCount() {
+      return count;
+    }
+  }
+
+  private final StateHasher hasher = new StateHasher();
+  private final Set<String> explored = new HashSet<String>();
+
+  /** Creates a counter for the operations executed by the main thread. */
+  OperationCounter createCounter() {
+    return new OperationCounter();
+  }
+
+  /**
+   * Records that the main thread has paused. Returns true if the interleaving
+   * should be run, or false if it is equivalent to one that has already been
+   * run. If the state cannot be hashed, then the interleaving is always run.
+   *
+   * @param counter the counter for the main thread
+   * @param state the object under test
+   */
+  boolean visit(OperationCounter counter, Object state) {
+    Long hash = hasher.hash(state);
+    if (hash != null && !explored.add(counter.getCount() + ":" + hash)) {
+      Options.debugPrint("Pruned interleaving at position %d, hash %x\n", counter.getCount(),
+          hash);
+      return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes a structural hash of the graph of objects reachable from a root
+ * object. The hash depends on the classes of the objects, on the values of
+ * their primitive and String fields, and on the shape of the graph, but not on
+ * the identity of the objects. Two graphs that have the same structure and the
+ * same values will therefore have the same hash, even if they consist of
+ * different objects.
+ * <p>
+ * Fields are read using reflection. Static fields, and fields added by the
+ * {@link TestInstrumenter}, are ignored. Objects such as threads and class
+ * loaders are not traversed, and only contribute their class to the hash.
+ */
+class StateHasher {
+
+  /** The maximum number of objects that will be traversed. */
+  static final int MAX_OBJECTS = 10000;
+
+  private static final long PRIME = 0x100000001b3L;
+
+  /** The fields of each class that has been seen, including inherited fields. */
+  private final Map<Class<?>, List<Field>> fieldMap = new HashMap<Class<?>, List<Field>>();
+
+  /**
+   * Returns the hash of the graph of objects reachable from the given root, or
+   * null if the graph cannot be hashed. This happens if the graph is too large,
+   * or if a field cannot be read.
+   */
+  Long hash(Object root) {
+    Map<Object, Integer> ids = new IdentityHashMap<Object, Integer>();
+    LinkedList<Object> queue = new LinkedList<Object>();
+    long hash = 0xcbf29ce484222325L;
+    hash = hashReference(hash, root, ids, queue);
+    try {
+      while (!queue.isEmpty()) {
+        if (ids.size() > MAX_OBJECTS) {
+          return null;
+        }
+        Object object = queue.removeFirst();
+        Class<?> clss = object.getClass();
+        if (clss.isArray()) {
+          int length = Array.getLength(object);
+          hash = mix(hash, length);
+          boolean primitive = clss.getComponentType().isPrimitive();
+          for (int i = 0; i < length; i++) {
+            Object element = Array.get(object, i);
+            hash = primitive ? mix(hash, element.hashCode())
+                : hashReference(hash, element, ids, queue);
+          }
+        } else {
+          for (Field field : getFields(clss, fieldMap)) {
+            Object value = field.get(object);
+            hash = field.getType().isPrimitive() ? mix(hash, value.hashCode())
+                : hashReference(hash, value, ids, queue);
+          }
+        }
+      }
+    } catch (IllegalAccessException e) {
+      return null;
+    } catch (SecurityException e) {
+      return null;
+    }
+    return hash;
+  }
+
+  /**
+   * Adds a reference to the hash. Values such as Strings are hashed directly.
+   * An object that has already been seen is hashed using the order in which it
+   * was first reached. Otherwise the object is queued, so that its contents
+   * will be added to the hash.
+   */
+  private long hashReference(long hash, Object value, Map<Object, Integer> ids,
+      LinkedList<Object> queue) {
+    if (value == null) {
+      return mix(hash, 0);
+    }
+    Class<?> clss = value.getClass();
+    hash = mix(hash, clss.getName().hashCode());
+    if (isValue(value)) {
+      return mix(hash, value.hashCode());
+    }
+    if (isOpaque(value)) {
+      return hash;
+    }
+    Integer id = ids.get(value);
+    if (id != null) {
+      return mix(hash, id);
+    }
+    ids.put(value, ids.size() + 1);
+    queue.add(value);
+    return hash;
+  }
+
+  /** Returns true if the object's own hash code reflects its value. */
+  static boolean isValue(Object value) {
+    return value instanceof String || value instanceof Number || value instanceof Boolean ||
+        value instanceof Character || value instanceof Enum<?> || value instanceof Class<?>;
+  }
+
+  /** Returns true if the object is part of the runtime, and should not be traversed. */
+  static boolean isOpaque(Object value) {
+    return value instanceof Thread || value instanceof ClassLoader ||
+        value instanceof ThreadLocal<?> || value instanceof java.lang.ref.Reference<?>;
+  }
+
+  /**
+   * Gets the non-static fields of a class and its superclasses, other than
+   * those added by the TestInstrumenter. The fields are cached in the given map.
+   */
+  static List<Field> getFields(Class<?> clss, Map<Class<?>, List<Field>> fieldMap) {
+    List<Field> fields = fieldMap.get(clss);
+    if (fields == null) {
+      fields = new ArrayList<Field>();
+      for (Class<?> c = clss; c != null && c != Object.class; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          if (!Modifier.isStatic(field.getModifiers()) && !field.getName().startsWith("__")) {
+            field.setAccessible(true);
+            fields.add(field);
+          }
+        }
+      }
+      fieldMap.put(clss, fields);
+    }
+    return fields;
+  }
+
+  private static long mix(long hash, int value) {
+    return (hash ^ value) * PRIME;
+  }
+}
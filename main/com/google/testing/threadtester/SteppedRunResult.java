@@ -26,14 +26,30 @@ package com.google.testing.threadtester;
 class SteppedRunResult extends RunResult {
 
   private int lineNumber;
+  private boolean pruned;
 
   SteppedRunResult(Throwable main, Throwable secondary, int lineNumber){
     super(main, secondary);
     this.lineNumber = lineNumber;
   }
 
+  SteppedRunResult(Throwable main, int lineNumber, boolean pruned){
+    this(main, null, lineNumber);
+    this.pruned = pruned;
+  }
+
   /** Returns the last line number executed in the main runnable. */
   int getLineNumber() {
     return lineNumber;
   }
+
+  /**
+   * Returns true if the secondary runnable was not run, because the
+   * interleaving was equivalent to one that had already been run.
+   *
+   * @see StateDeduplicator
+   */
+  boolean wasPruned() {
+    return pruned;
+  }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the writes to non-volatile fields that a thread has made, but that are
+ * not yet visible to other threads. Used by a {@link CooperativeScheduler} to
+ * simulate a weak {@link MemoryModel}. Writes are flushed to memory by setting
+ * the fields using reflection.
+ * <p>
+ * The writes are divided into a fixed number of queues. Each field is assigned
+ * to a queue when the thread first writes it, in order, and the remaining
+ * fields share the last queue. Writes in the same queue are flushed in the
+ * order in which they were made, while writes in different queues may be
+ * flushed in any order. A buffer with a single queue models total store order.
+ * <p>
+ * The buffer is only checked by reads made in instrumented code. Reads made
+ * elsewhere see memory, even if the thread has a buffered write to the field.
+ * (See {@link MemoryModel}.)
+ */
+class StoreBuffer {
+
+  /** A buffered write. */
+  static class Store {
+    final Object owner;
+    final Field field;
+    final Object value;
+    final int queue;
+
+    /** The write, as an operation of the pseudo-thread that flushes it. */
+    final Operation operation;
+
+    Store(Object owner, Field field, Object value, int queue, Operation operation) {
+      this.owner = owner;
+      this.field = field;
+      this.value = value;
+      this.queue = queue;
+      this.operation = operation;
+    }
+
+    boolean isFor(Object owner, Field field) {
+      return this.owner == owner && this.field.equals(field);
+    }
+  }
+
+  private final int numQueues;
+
+  /** The buffered writes, oldest first. */
+  private final List<Store> stores = new ArrayList<Store>();
+
+  /** The owners and fields assigned to each queue except the last. */
+  private final List<Object> queueOwners = new ArrayList<Object>();
+  private final List<Field> queueFields = new ArrayList<Field>();
+
+  StoreBuffer(int numQueues) {
+    this.numQueues = numQueues;
+  }
+
+  int getNumQueues() {
+    return numQueues;
+  }
+
+  /** Adds a write to the buffer. */
+  void add(Object owner, Field field, Object value, Operation operation) {
+    stores.add(new Store(owner, field, value, getQueue(owner, field), operation));
+  }
+
+  /** Gets the queue of the given field, assigning one if necessary. */
+  private int getQueue(Object owner, Field field) {
+    for (int i = 0; i < queueOwners.size(); i++) {
+      if (queueOwners.get(i) == owner && queueFields.get(i).equals(field)) {
+        return i;
+      }
+    }
+    if (queueOwners.size() < numQueues - 1) {
+      queueOwners.add(owner);
+      queueFields.add(field);
+      return queueOwners.size() - 1;
+    }
+    return numQueues - 1;
+  }
+
+  /**
+   * Gets the most recent buffered value of the given field, or {@link
+   * CallLogger#NOT_BUFFERED} if there is none.
+   */
+  Object load(Object owner, Field field) {
+    for (int i = stores.size() - 1; i >= 0; i--) {
+      Store store = stores.get(i);
+      if (store.isFor(owner, field)) {
+        return store.value;
+      }
+    }
+    return CallLogger.NOT_BUFFERED;
+  }
+
+  boolean isEmpty() {
+    return stores.isEmpty();
+  }
+
+  /** Gets the oldest write in the given queue, or null if there is none. */
+  Store getOldest(int queue) {
+    for (Store store : stores) {
+      if (store.queue == queue) {
+        return store;
+      }
+    }
+    return null;
+  }
+
+  /** Removes the given write from the buffer, and writes it to memory. */
+  void flush(Store store) {
+    stores.remove(store);
+    try {
+      store.field.setAccessible(true);
+      store.field.set(store.owner, store.value);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Cannot write " + store.field, e);
+    }
+  }
+
+  /** Writes all of the buffered writes to memory, oldest first. */
+  void flushAll() {
+    while (!stores.isEmpty()) {
+      flush(stores.get(0));
+    }
+  }
+}
@@ -24,6 +24,7 @@ import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -40,9 +41,15 @@ import javassist.CtMethod;
 import javassist.CtNewMethod;
 import javassist.Modifier;
 import javassist.NotFoundException;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
 import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
 import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
 import javassist.expr.ExprEditor;
+import javassist.expr.FieldAccess;
 import javassist.expr.MethodCall;
 
 /**
@@ -139,8 +146,10 @@ public class TestInstrumenter implements Instrumenter, ClassFileTransformer {
    *  public int getValue() {
    *    __testLogger.start(__getMethod("getValue0"));
    *    __testLogger.atLine(17);
+   *    __testLogger.fieldRead(this, "SimpleInteger.value", 17);
+   *    int result = value;
    *    __testLogger.end(__getMethod("getValue0"));
-   *    return value;
+   *    return result;
    *  }
    *
    *  public int getAbsValue() {
@@ -151,13 +160,39 @@ public class TestInstrumenter implements Instrumenter, ClassFileTransformer {
    *  }
    *
    *  private synchronized int __synchronized_getAbsValue() {
+   *    __testLogger.monitorAcquired();
+   *    __testLogger.fieldRead(this, "SimpleInteger.value", 21);
    *    __testLogger.beginCall(__getMethod("getAbsValue0"),
    *        __getMethod("abs0"));
    *    int result = Math.abs(value);
    *    __testLogger.endCall(__getMethod("getAbsValue0"),
    *        __getMethod("abs0"));
+   *    __testLogger.monitorExit(this, 21);
    *    return result;
    *  }
+   *
+   * In the wrapper method, the call to __synchronized_getAbsValue() is
+   * preceded by a call to __testLogger.monitorEnter(this, 21). Synchronized blocks
+   * are handled in the same way, except that the calls to monitorEnter,
+   * monitorAcquired and monitorExit are added directly around the
+   * monitorenter and monitorexit bytecodes.
+   *
+   * Calls to Object.wait() are replaced by calls to __testLogger.monitorWait(),
+   * which normally just invokes wait(), but allows a scheduler to perform the
+   * wait itself. Calls to notify(), notifyAll(), and to the methods of
+   * java.util.concurrent.locks.Lock that acquire and release the lock, are
+   * preceded or followed by calls to monitorNotify(), lockEnter(),
+   * lockAcquired() and lockExit(), in the same way as synchronized blocks.
+   *
+   * Accesses to volatile fields call volatileRead() and volatileWrite()
+   * instead of fieldRead() and fieldWrite(), and reads also call
+   * volatileReadDone() once the value has been read. Calls to Thread.start()
+   * are preceded by a call to syncRelease(), and calls to Thread.join() are
+   * followed by a call to syncAcquire(). Calls to instance methods of classes
+   * in java.util.concurrent, other than those described above, are surrounded
+   * by calls to both. Calls to the instance methods of collections and maps in
+   * java.util and java.util.concurrent are preceded by a call to
+   * collectionAccess().
    */
 
   /**
@@ -172,6 +207,13 @@ public class TestInstrumenter implements Instrumenter, ClassFileTransformer {
    */
   static final String GET_INSTRUMENTATION = "__getInstrumentation";
 
+  /**
+   * The name of a static field that is added to classes whose non-volatile
+   * field accesses may be redirected to a store buffer. See {@link
+   * #setStoreBuffers}.
+   */
+  static final String STORE_BUFFERS = "__storeBuffers";
+
 
   // Names of new internal methods added to the instrumented class
 
@@ -209,9 +251,56 @@ public class TestInstrumenter implements Instrumenter, ClassFileTransformer {
   private static final String END_METHOD = "end";
   private static final String BEGIN_CALL = "beginCall";
   private static final String END_CALL = "endCall";
+  private static final String MONITOR_ENTER = "monitorEnter";
+  private static final String MONITOR_ACQUIRED = "monitorAcquired";
+  private static final String MONITOR_EXIT = "monitorExit";
+  private static final String FIELD_READ = "fieldRead";
+  private static final String FIELD_WRITE = "fieldWrite";
+
+  private static final String MONITOR_WAIT = "monitorWait";
+  private static final String MONITOR_NOTIFY = "monitorNotify";
+  private static final String LOCK_ENTER = "lockEnter";
+  private static final String LOCK_ACQUIRED = "lockAcquired";
+  private static final String LOCK_EXIT = "lockExit";
+  private static final String VOLATILE_READ = "volatileRead";
+  private static final String VOLATILE_READ_DONE = "volatileReadDone";
+  private static final String VOLATILE_WRITE = "volatileWrite";
+  private static final String SYNC_RELEASE = "syncRelease";
+  private static final String SYNC_ACQUIRE = "syncAcquire";
+  private static final String COLLECTION_ACCESS = "collectionAccess";
+  private static final String STORE_FIELD = "storeField";
+  private static final String LOAD_FIELD = "loadField";
+  private static final String NOT_BUFFERED = CallLogger.class.getName() + ".NOT_BUFFERED";
+
+  private static final String OBJECT_CLASS = Object.class.getName();
+  private static final String LOCK_CLASS = java.util.concurrent.locks.Lock.class.getName();
+  private static final String THREAD_CLASS = Thread.class.getName();
+  private static final String CONCURRENT_PACKAGE = "java.util.concurrent.";
+  private static final String UTIL_PACKAGE = "java.util.";
+  private static final String COLLECTION_CLASS = java.util.Collection.class.getName();
+  private static final String MAP_CLASS = java.util.Map.class.getName();
+
+  /**
+   * The names of the methods of collections and maps that do not modify the
+   * collection. Calls to other methods are assumed to be writes.
+   */
+  private static final Set<String> COLLECTION_READS = new HashSet<String>(Arrays.asList(
+      "ceiling", "ceilingEntry", "ceilingKey", "comparator", "contains", "containsAll",
+      "containsKey", "containsValue", "descendingIterator", "element", "entrySet", "equals",
+      "first", "firstEntry", "firstKey", "floor", "floorEntry", "floorKey", "get",
+      "getOrDefault", "hashCode", "headMap", "headSet", "higher", "higherEntry", "higherKey",
+      "indexOf", "isEmpty", "iterator", "keySet", "last", "lastEntry", "lastIndexOf", "lastKey",
+      "listIterator", "lower", "lowerEntry", "lowerKey", "peek", "peekFirst", "peekLast", "size",
+      "subList", "subMap", "subSet", "tailMap", "tailSet", "toArray", "toString", "values"));
+
+  private static final String MONITOR_DESCRIPTOR = "(Ljava/lang/Object;I)V";
+  private static final String NO_ARG_DESCRIPTOR = "()V";
 
   private Set<String> instrumentedClasses;
 
+  /** True if non-volatile field accesses may be redirected to a store buffer. */
+  private boolean storeBuffers;
+
   /**
    * Maps primitive type names into the primitive class. We need this becasue
    * we cannot use Class.forName("int") to yield int.class
@@ -428,6 +517,31 @@ public class TestInstrumenter implements Instrumenter, ClassFileTransformer {
     }
   }
 
+  /**
+   * Sets whether non-volatile field accesses may be redirected to a store
+   * buffer. (The default is false.) This must be true in order to simulate a
+   * weak {@link MemoryModel}. Each non-volatile write then calls {@link
+   * CallLogger#storeField}, passing the value as an Object, and each
+   * non-volatile read calls {@link CallLogger#loadField}, which slows down
+   * every field access in the instrumented classes.
+   */
+  public void setStoreBuffers(boolean storeBuffers) {
+    this.storeBuffers = storeBuffers;
+  }
+
+  /**
+   * Returns true if the given class was instrumented by a TestInstrumenter
+   * that redirects field accesses to store buffers.
+   */
+  static boolean hasStoreBuffers(Class<?> clss) {
+    try {
+      clss.getDeclaredField(STORE_BUFFERS);
+      return true;
+    } catch (NoSuchFieldException e) {
+      return false;
+    }
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public byte[] transform(ClassLoader loader, String className, Class clss,
@@ -469,6 +583,9 @@ public class TestInstrumenter implements Instrumenter, ClassFileTransformer {
 
       addDeclaration(cl);
       addGetMethod(cl);
+      if (storeBuffers) {
+        cl.addField(CtField.make("public static final boolean " + STORE_BUFFERS + " = true;", cl));
+      }
       for (CtConstructor constructor : cl.getDeclaredConstructors()) {
         processConstructor(constructor);
       }
@@ -779,7 +896,11 @@ public class TestInstrumenter implements Instrumenter, ClassFileTransformer {
               String methodReplacement;
               CtClass returnType = calledMethod.getReturnType();
               boolean isVoid = returnType == CtClass.voidType;
-              if (isVoid) {
+              String blockingReplacement =
+                  getBlockingCallReplacement(calledMethod, called.getLineNumber());
+              if (blockingReplacement != null) {
+                methodReplacement = blockingReplacement;
+              } else if (isVoid) {
                 methodReplacement = "{$proceed($$);}";
               } else {
                 methodReplacement = "{$_ = $proceed($$);}";
@@ -808,6 +929,53 @@ public class TestInstrumenter implements Instrumenter, ClassFileTransformer {
               throw new CannotCompileException(e);
             }
           }
+
+          @Override
+          public void edit(FieldAccess access) throws CannotCompileException {
+            String field = getFieldName(access);
+            if (field == null) {
+              return;
+            }
+            // Note that $0 is the object containing the field, or null if the
+            // field is static.
+            boolean isVolatile = isVolatile(access);
+            String loggerArgs = "($0, \"" + field + "\", " + access.getLineNumber() + ");";
+            StringBuilder replacement = new StringBuilder();
+            replacement.append("{").append(loggerName).append(".");
+            if (access.isReader()) {
+              replacement.append(isVolatile ? VOLATILE_READ : FIELD_READ);
+            } else {
+              replacement.append(isVolatile ? VOLATILE_WRITE : FIELD_WRITE);
+            }
+            replacement.append(loggerArgs).append("} ");
+            // If store buffers are enabled, non-volatile reads and writes may
+            // be redirected to a store buffer. (See CallLogger.storeField.)
+            boolean buffered = storeBuffers && !isVolatile;
+            String fieldArgs = "$0, \"" + field + "\", ";
+            if (access.isReader()) {
+              if (!buffered) {
+                replacement.append("{$_ = $proceed();}");
+                if (isVolatile) {
+                  replacement.append(" {").append(loggerName).append(".");
+                  replacement.append(VOLATILE_READ_DONE).append(loggerArgs).append("}");
+                }
+              } else {
+                replacement.append("{Object buffered = ").append(loggerName).append(".");
+                replacement.append(LOAD_FIELD).append("(").append(fieldArgs);
+                replacement.append(access.getLineNumber()).append(");");
+                replacement.append(" if (buffered == ").append(NOT_BUFFERED).append(")");
+                replacement.append(" {$_ = $proceed();} else {$_ = ($r) buffered;}}");
+              }
+            } else if (!buffered) {
+              replacement.append("{$proceed($$);}");
+            } else {
+              replacement.append("{if (!").append(loggerName).append(".").append(STORE_FIELD);
+              replacement.append("(").append(fieldArgs).append("($w) $1, ");
+              replacement.append(access.getLineNumber()).append(")) {$proceed($$);}}");
+            }
+            debugPrint("    Replacing field access with \"%s\"\n", replacement);
+            access.replace(replacement.toString());
+          }
         });
 
 
@@ -821,6 +989,8 @@ public class TestInstrumenter implements Instrumenter, ClassFileTransformer {
     // methods well be intrumented too...
     //
 
+    addMonitorLogging(clss, method);
+
     if (!isSynchronized) {
       method.insertBefore(getBeforeLogging(thisMethodId));
 
@@ -856,6 +1026,9 @@ public class TestInstrumenter implements Instrumenter, ClassFileTransformer {
     try {
       CtClass returnType = originalMethod.getReturnType();
       boolean isVoid = returnType == CtClass.voidType;
+      List<Integer> lines = methodMap.getLines(originalMethod);
+      int firstLine = lines.get(0);
+      int lastLine = lines.get(lines.size() - 1);
 
 
       int originalModifiers = originalMethod.getModifiers();
@@ -872,8 +1045,14 @@ public class TestInstrumenter implements Instrumenter, ClassFileTransformer {
       CtMethod wrapperMethod = CtNewMethod.copy(originalMethod, name, clss, null);
 
 
+      // The renamed method acquires the monitor. Log the acquisition at the
+      // start, and the release at the end, even if an exception is thrown.
+      originalMethod.insertBefore(getLoggerCall(MONITOR_ACQUIRED, ""));
+      originalMethod.insertAfter(getLoggerCall(MONITOR_EXIT, "$0, " + lastLine), true);
+
       wrapper.append(" {\n");
       wrapper.append(getBeforeLogging(thisMethodId));
+      wrapper.append(getLoggerCall(MONITOR_ENTER, "$0, " + firstLine));
       wrapper.append("\n  try {\n    ");
       if (!isVoid) {
         wrapper.append("return ");
@@ -892,6 +1071,201 @@ public class TestInstrumenter implements Instrumenter, ClassFileTransformer {
     }
   }
 
+  /**
+   * Returns the replacement for a call to {@link Object#wait}, {@link
+   * Object#notify}, {@link Object#notifyAll}, or one of the methods of {@link
+   * java.util.concurrent.locks.Lock} that acquires or releases the lock, or
+   * for a call to {@link Thread#start}, {@link Thread#join}, or an instance
+   * method of a class in java.util.concurrent. Returns null if the called
+   * method is not one of these. Calls to wait are replaced by calls to
+   * MONITOR_WAIT, which performs the wait. The other methods are still
+   * invoked, with logger calls before or after them.
+   */
+  private String getBlockingCallReplacement(CtMethod calledMethod, int line)
+      throws NotFoundException {
+    CtClass declaringClass = calledMethod.getDeclaringClass();
+    String name = calledMethod.getName();
+    String signature = calledMethod.getSignature();
+    if (declaringClass.getName().equals(OBJECT_CLASS)) {
+      if (name.equals("wait")) {
+        String args;
+        if (signature.equals(NO_ARG_DESCRIPTOR)) {
+          args = "$0, 0L, 0, ";
+        } else if (signature.equals("(J)V")) {
+          args = "$0, $1, 0, ";
+        } else {
+          args = "$0, $1, $2, ";
+        }
+        return "{" + getLoggerCall(MONITOR_WAIT, args + line) + "}";
+      } else if (name.equals("notify") || name.equals("notifyAll")) {
+        boolean all = name.equals("notifyAll");
+        return "{" + getLoggerCall(MONITOR_NOTIFY, "$0, " + all + ", " + line) +
+            "$proceed($$);}";
+      }
+    } else if (declaringClass.subtypeOf(declaringClass.getClassPool().get(LOCK_CLASS))) {
+      if ((name.equals("lock") || name.equals("lockInterruptibly")) &&
+          signature.equals(NO_ARG_DESCRIPTOR)) {
+        return "{" + getLoggerCall(LOCK_ENTER, "$0, false, " + line) + "$proceed($$);\n" +
+            getLoggerCall(LOCK_ACQUIRED, "$0, " + line) + "}";
+      } else if (name.equals("tryLock")) {
+        return "{" + getLoggerCall(LOCK_ENTER, "$0, true, " + line) + "$_ = $proceed($$);\n" +
+            "if ($_) {" + getLoggerCall(LOCK_ACQUIRED, "$0, " + line) + "}}";
+      } else if (name.equals("unlock") && signature.equals(NO_ARG_DESCRIPTOR)) {
+        return "{" + getLoggerCall(LOCK_EXIT, "$0, " + line) + "$proceed($$);}";
+      }
+    } else if (declaringClass.getName().equals(THREAD_CLASS)) {
+      if (name.equals("start") && signature.equals(NO_ARG_DESCRIPTOR)) {
+        return "{" + getLoggerCall(SYNC_RELEASE, "$0, " + line) + "$proceed($$);}";
+      } else if (name.equals("join")) {
+        return "{$proceed($$);\n" + getLoggerCall(SYNC_ACQUIRE, "$0, " + line) + "}";
+      }
+    }
+    if (Modifier.isStatic(calledMethod.getModifiers())) {
+      return null;
+    }
+    String call = calledMethod.getReturnType() == CtClass.voidType ?
+        "$proceed($$);\n" : "$_ = $proceed($$);\n";
+    String collectionCall = "";
+    if (isCollectionClass(declaringClass)) {
+      boolean write = !COLLECTION_READS.contains(name);
+      collectionCall = getLoggerCall(COLLECTION_ACCESS, "$0, " + write + ", " + line);
+    }
+    if (declaringClass.getName().startsWith(CONCURRENT_PACKAGE)) {
+      return "{" + collectionCall + getLoggerCall(SYNC_RELEASE, "$0, " + line) + call +
+          getLoggerCall(SYNC_ACQUIRE, "$0, " + line) + "}";
+    } else if (collectionCall.length() > 0) {
+      return "{" + collectionCall + call + "}";
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if the given class is a {@link java.util.Collection} or
+   * {@link java.util.Map} in java.util or java.util.concurrent.
+   */
+  private static boolean isCollectionClass(CtClass clss) throws NotFoundException {
+    String name = clss.getName();
+    String packageName = name.substring(0, name.lastIndexOf('.') + 1);
+    if (!packageName.equals(UTIL_PACKAGE) && !packageName.equals(CONCURRENT_PACKAGE)) {
+      return false;
+    }
+    ClassPool pool = clss.getClassPool();
+    return clss.subtypeOf(pool.get(COLLECTION_CLASS)) || clss.subtypeOf(pool.get(MAP_CLASS));
+  }
+
+  /**
+   * Returns the source code for a call to the named CallLogger method, with the
+   * given argument list.
+   */
+  private String getLoggerCall(String loggerMethod, String args) {
+    return loggerName + "." + loggerMethod + "(" + args + ");\n";
+  }
+
+  /**
+   * Adds calls to the CallLogger around the monitorenter and monitorexit
+   * instructions generated for synchronized blocks. Before a monitorenter, the
+   * monitor object is duplicated and passed to {@link CallLogger#monitorEnter}.
+   * After the monitorenter, {@link CallLogger#monitorAcquired} is called. (The
+   * monitor object is no longer on the stack at this point, so the CallLogger
+   * has to remember it.) Before a monitorexit, the monitor object is passed to
+   * {@link CallLogger#monitorExit}.
+   * <p>
+   * This has to be done at the bytecode level, as Javassist's ExprEditor does
+   * not handle synchronized blocks.
+   */
+  private void addMonitorLogging(CtClass clss, CtMethod method) throws CannotCompileException {
+    MethodInfo methodInfo = method.getMethodInfo();
+    CodeAttribute codeAttr = methodInfo.getCodeAttribute();
+    try {
+      // Find the monitor instructions first, and then insert the logging code
+      // working backwards, so that the positions that we found remain valid.
+      List<Integer> positions = new ArrayList<Integer>();
+      CodeIterator iterator = codeAttr.iterator();
+      while (iterator.hasNext()) {
+        int pos = iterator.next();
+        int opcode = iterator.byteAt(pos);
+        if (opcode == Opcode.MONITORENTER || opcode == Opcode.MONITOREXIT) {
+          positions.add(pos);
+        }
+      }
+      if (positions.isEmpty()) {
+        return;
+      }
+      String loggerType = "L" + LOGGER_CLASS.replace('.', '/') + ";";
+      iterator = codeAttr.iterator();
+      for (int i = positions.size() - 1; i >= 0; i--) {
+        int pos = positions.get(i);
+        if (iterator.byteAt(pos) == Opcode.MONITORENTER) {
+          Bytecode after = new Bytecode(methodInfo.getConstPool());
+          after.addAload(0);
+          after.addGetfield(clss, loggerName, loggerType);
+          after.addInvokeinterface(LOGGER_CLASS, MONITOR_ACQUIRED, NO_ARG_DESCRIPTOR, 1);
+          iterator.insert(pos + 1, after.get());
+          iterator.insert(pos, getMonitorCall(clss, methodInfo, loggerType, MONITOR_ENTER,
+              methodInfo.getLineNumber(pos)));
+        } else {
+          iterator.insert(pos, getMonitorCall(clss, methodInfo, loggerType, MONITOR_EXIT,
+              methodInfo.getLineNumber(pos)));
+        }
+        debugPrint("   Logging monitor at %d in %s\n", pos, method.getName());
+      }
+      codeAttr.setMaxStack(codeAttr.computeMaxStack());
+      methodInfo.rebuildStackMapIf6(clss.getClassPool(), clss.getClassFile());
+    } catch (BadBytecode e) {
+      throw new CannotCompileException(e);
+    }
+  }
+
+  /**
+   * Returns the bytecode that passes the monitor object on the top of the stack
+   * and the line number to the given CallLogger method, leaving the monitor
+   * object on the stack.
+   */
+  private byte[] getMonitorCall(CtClass clss, MethodInfo methodInfo, String loggerType,
+      String loggerMethod, int line) {
+    Bytecode code = new Bytecode(methodInfo.getConstPool());
+    code.addOpcode(Opcode.DUP);
+    code.addAload(0);
+    code.addGetfield(clss, loggerName, loggerType);
+    code.addOpcode(Opcode.SWAP);
+    code.addIconst(line);
+    code.addInvokeinterface(LOGGER_CLASS, loggerMethod, MONITOR_DESCRIPTOR, 3);
+    return code.get();
+  }
+
+  /**
+   * Returns the name of the field accessed by the given expression, qualified
+   * with the name of its declaring class, or null if the access should not be
+   * logged. We do not log accesses to final fields, as these cannot be
+   * modified after construction, or accesses to fields that have been added by
+   * the instrumentation.
+   */
+  private String getFieldName(FieldAccess access) throws CannotCompileException {
+    String name = access.getFieldName();
+    if (name.startsWith("__")) {
+      return null;
+    }
+    try {
+      CtField field = access.getField();
+      int modifiers = field.getModifiers();
+      if (Modifier.isFinal(modifiers) || (modifiers & AccessFlag.SYNTHETIC) != 0) {
+        return null;
+      }
+      return field.getDeclaringClass().getName() + "." + name;
+    } catch (NotFoundException e) {
+      throw new CannotCompileException(e);
+    }
+  }
+
+  /** Returns true if the field accessed by the given expression is volatile. */
+  private static boolean isVolatile(FieldAccess access) throws CannotCompileException {
+    try {
+      return Modifier.isVolatile(access.getField().getModifiers());
+    } catch (NotFoundException e) {
+      throw new CannotCompileException(e);
+    }
+  }
+
   private static void debugPrint(String format, Object... args) {
     if (DEBUG) {
       System.out.printf(format, args);
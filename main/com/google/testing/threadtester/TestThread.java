@@ -23,6 +23,12 @@ package com.google.testing.threadtester;
  * @author alasdair.mackintosh@gmail.com (Alasdair Mackintosh)
  */
 public class TestThread extends Thread {
+
+  /**
+   * The time in milliseconds between checks for deadlock while waiting for the
+   * thread to finish.
+   */
+  static final long DEADLOCK_CHECK_TIME = 50;
   private volatile Throwable threadException;
 
   private class ExceptionHandler implements UncaughtExceptionHandler {
@@ -90,10 +96,27 @@ public class TestThread extends Thread {
    * terminated by the specified time.
    */
   public void finish() throws InterruptedException, TestTimeoutException {
-    join(Options.timeout());
+    finish(TimeoutPhase.MAIN_COMPLETION);
+  }
+
+  /**
+   * Waits for this thread to finish, using the timeout for the given phase.
+   * See {@link AdaptiveTimeouts}. If the thread becomes deadlocked, throws a
+   * {@link DeadlockException} without waiting for the timeout.
+   */
+  void finish(TimeoutPhase phase) throws InterruptedException, TestTimeoutException {
+    long start = System.currentTimeMillis();
+    long endTime = start + AdaptiveTimeouts.timeout(phase, getName());
+    long remaining = endTime - start;
+    while (remaining > 0 && isAlive()) {
+      join(Math.min(remaining, DEADLOCK_CHECK_TIME));
+      DeadlockDetector.checkIfBlocked(this);
+      remaining = endTime - System.currentTimeMillis();
+    }
     if (getState() != State.TERMINATED) {
       throw new TestTimeoutException("State = " + getState(), this);
     }
+    AdaptiveTimeouts.record(phase, getName(), System.currentTimeMillis() - start);
   }
 
   /**
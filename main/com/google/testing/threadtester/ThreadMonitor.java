@@ -19,12 +19,20 @@ package com.google.testing.threadtester;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Utility class that monitors two threads, and waits for one of them to finish.
- * If it determines that the first thread will not finish because of a monitor
- * lock held by the second thread, it will return a status code to indicate that
- * fact.
+ * Utility class that monitors a set of threads, and waits for them to finish.
+ * If it determines that some of the threads will not finish because of monitor
+ * locks held by a second set of threads, it will return a status code to
+ * indicate that fact. A thread that is blocked by another thread in the first
+ * set is only considered blocked if that thread is itself blocked, so threads
+ * that are contending for the same lock are allowed to continue.
  *
  * @author alasdair.mackintosh@gmail.com (Alasdair Mackintosh)
  */
@@ -33,8 +41,11 @@ public class ThreadMonitor {
   private static final long MIN_NUM_TRIES = 5;
   private final long numTries;
 
-  private Thread toWait;
-  private Thread other;
+  /** The key used to record the time taken. See {@link AdaptiveTimeouts}. */
+  private final String key;
+
+  private List<Thread> toWait;
+  private List<Thread> others;
 
   private static ThreadMXBean threadBean;
   static {
@@ -49,9 +60,21 @@ public class ThreadMonitor {
    * first thread from completing.
    */
   public ThreadMonitor(Thread toWait, Thread other) {
-    this.toWait = toWait;
-    this.other = other;
-    this.numTries = Math.max(Options.timeout() / JOIN_TIME, MIN_NUM_TRIES);
+    this(Collections.singletonList(toWait), Collections.singletonList(other));
+  }
+
+  /**
+   * Creates a new ThreadMonitor for the given sets of threads.
+   * @param toWait the threads to wait for.
+   * @param others the other threads that may hold locks that will prevent the
+   * first threads from completing.
+   */
+  public ThreadMonitor(Collection<? extends Thread> toWait, Collection<? extends Thread> others) {
+    this.toWait = new ArrayList<Thread>(toWait);
+    this.others = new ArrayList<Thread>(others);
+    this.key = this.toWait.isEmpty() ? "" : this.toWait.get(0).getName();
+    long timeout = AdaptiveTimeouts.timeout(TimeoutPhase.SECONDARY_COMPLETION, key);
+    this.numTries = Math.max(timeout / JOIN_TIME, MIN_NUM_TRIES);
   }
 
   /**
@@ -84,7 +107,13 @@ public class ThreadMonitor {
     return blocker;
   }
 
-  private boolean isBlocked(Thread thread) {
+  /**
+   * Returns true if the given thread is blocked. The map contains the threads
+   * being waited for that have not yet finished, and is used to follow chains
+   * of blocked threads. The visited list prevents infinite recursion if the
+   * threads being waited for are deadlocked with each other.
+   */
+  private boolean isBlocked(Thread thread, Map<Long, Thread> waiting, List<Thread> visited) {
     boolean blocked = false;
     Thread.State state = thread.getState();
     if (state == Thread.State.BLOCKED || state == Thread.State.WAITING) {
@@ -99,15 +128,20 @@ public class ThreadMonitor {
       // beginning of waitForThread(), at the cost of some additional waiting
       // time. If isBlocked() proves flaky, this might be a workaround.
       blocked = true;
-      Options.debugPrint("Thread %s (%d) is %s, other = %s\n", thread, thread.getId(), state,
-          other.getState());
+      Options.debugPrint("Thread %s (%d) is %s\n", thread, thread.getId(), state);
       if (state == Thread.State.BLOCKED) {
         ThreadInfo info = threadBean.getThreadInfo(thread.getId());
         if (info != null) {
           long lockOwner = info.getLockOwnerId();
+          Thread owner = waiting.get(lockOwner);
           if (lockOwner == -1 || lockOwner == thread.getId()) {
             blocked = false;
-          } else if (lockOwner != other.getId()) {
+          } else if (owner != null) {
+            // Blocked by another thread that we are waiting for. This thread
+            // will continue when the owner does, unless the owner is blocked.
+            visited.add(thread);
+            blocked = visited.contains(owner) || isBlocked(owner, waiting, visited);
+          } else if (!isOther(lockOwner)) {
             System.out.printf("WARNING - %s blocked on %s\n", thread, info.getLockName());
           }
         }
@@ -116,6 +150,59 @@ public class ThreadMonitor {
     return blocked;
   }
 
+  private boolean isOther(long threadId) {
+    for (Thread other : others) {
+      if (other.getId() == threadId) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the threads being waited for that are still alive, and are
+   * blocked. The running list is set to the threads that are alive and are not
+   * blocked.
+   */
+  private List<Thread> getBlocked(List<Thread> running) {
+    Map<Long, Thread> waiting = new HashMap<Long, Thread>();
+    for (Thread thread : toWait) {
+      if (thread.isAlive()) {
+        waiting.put(thread.getId(), thread);
+      }
+    }
+    List<Thread> blocked = new ArrayList<Thread>();
+    running.clear();
+    for (Thread thread : waiting.values()) {
+      if (isBlocked(thread, waiting, new ArrayList<Thread>())) {
+        blocked.add(thread);
+      } else {
+        running.add(thread);
+      }
+    }
+    return blocked;
+  }
+
+  /**
+   * Throws a DeadlockException if any of the blocked threads are deadlocked. A
+   * thread that is blocked by one of the other threads is not normally
+   * deadlocked, as the other thread will continue when it is resumed.
+   */
+  private void checkForDeadlock(List<Thread> blocked) throws DeadlockException {
+    if (!blocked.isEmpty()) {
+      DeadlockDetector.check(blocked);
+    }
+  }
+
+  private boolean othersAlive() {
+    for (Thread other : others) {
+      if (other.isAlive()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Waits for the first thread to terminate. Returns true if it ran to
    * completion, and false because of a synchronized lock held by the second
@@ -123,26 +210,58 @@ public class ThreadMonitor {
    *
    * @throws TestTimeoutException if the thread was not blocked by the seond thread,
    * but still failed to finish.
+   * @throws DeadlockException if the thread is deadlocked.
    */
   public boolean waitForThread() throws InterruptedException, TestTimeoutException {
-    if (toWait.getState() == Thread.State.NEW) {
-      throw new IllegalThreadStateException("Cannot wait for non-started thread.");
+    return waitForThreads().isEmpty();
+  }
+
+  /**
+   * Waits for the first set of threads to terminate. Returns the threads that
+   * did not run to completion because of synchronized locks held by the second
+   * set of threads, or by other threads in the first set that are blocked. If
+   * all of the threads ran to completion, returns an empty list. The threads
+   * are not required to finish in any particular order.
+   *
+   * @throws TestTimeoutException if one of the threads was not blocked, but
+   * still failed to finish.
+   * @throws DeadlockException if one of the threads is deadlocked. This is
+   * checked whenever one of the threads is blocked.
+   */
+  public List<Thread> waitForThreads() throws InterruptedException, TestTimeoutException {
+    long start = System.currentTimeMillis();
+    List<Thread> blocked = doWaitForThreads();
+    if (blocked.isEmpty()) {
+      AdaptiveTimeouts.record(TimeoutPhase.SECONDARY_COMPLETION, key,
+          System.currentTimeMillis() - start);
+    }
+    return blocked;
+  }
+
+  private List<Thread> doWaitForThreads() throws InterruptedException, TestTimeoutException {
+    for (Thread thread : toWait) {
+      if (thread.getState() == Thread.State.NEW) {
+        throw new IllegalThreadStateException("Cannot wait for non-started thread.");
+      }
     }
-    if (other.isAlive()) {
-      if (isBlocked(toWait)) {
-        return false;
+    List<Thread> running = new ArrayList<Thread>();
+    if (othersAlive()) {
+      List<Thread> blocked = getBlocked(running);
+      checkForDeadlock(blocked);
+      if (running.isEmpty()) {
+        return blocked;
       }
     }
     for (int tries = 0; tries < numTries; tries++) {
-      toWait.join(JOIN_TIME);
-      if (!toWait.isAlive()) {
-        return true;
+      if (!running.isEmpty()) {
+        running.get(0).join(JOIN_TIME);
       }
-      Thread.State state = toWait.getState();
-      if (isBlocked(toWait)) {
-        return false;
+      List<Thread> blocked = getBlocked(running);
+      checkForDeadlock(blocked);
+      if (running.isEmpty()) {
+        return blocked;
       }
     }
-    throw new TestTimeoutException("Thread will not finish", toWait);
+    throw new TestTimeoutException("Thread will not finish", running.get(0));
   }
 }
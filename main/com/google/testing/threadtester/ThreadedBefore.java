@@ -33,4 +33,14 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
 public @interface ThreadedBefore {
+
+  /**
+   * If true, the ThreadedBefore method is only run once for each test case,
+   * before the first interleaving. The test object that it creates is then
+   * copied for each interleaving, along with the test class instance and any
+   * other objects that they refer to. This is useful when the test object is
+   * expensive to create. See {@link InterleavedRunner#interleaveWithSnapshots}
+   * for the restrictions on copied objects.
+   */
+  boolean snapshot() default false;
 }
@@ -23,7 +23,9 @@ import java.lang.annotation.Target;
 
 /**
  * An annotation that designates part of a test case that uses the {@link
- * AnnotatedTestRunner} framework to perform multithreaded tests.
+ * AnnotatedTestRunner} framework to perform multithreaded tests. A test case
+ * may have more than one ThreadedSecondary method, in which case the methods
+ * are run concurrently each time the ThreadedMain method is stopped.
  *
  * @author alasdair.mackintosh@gmail.com (Alasdair Mackintosh)
  */
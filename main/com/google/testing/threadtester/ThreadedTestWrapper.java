@@ -17,23 +17,70 @@
 package com.google.testing.threadtester;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Implementation of BaseTestWrapper designed for use with {@link
  * ThreadedTestRunner}. Runs all test methods annotated with the
- * {@link ThreadedTest} annotation defined in the main test class.
+ * {@link ThreadedTest} annotation defined in the main test class. When the
+ * tests are sharded, each test method is a separate task.
  *
  * @author alasdair.mackintosh@gmail.com (Alasdair Mackintosh)
  */
-public class ThreadedTestWrapper implements BaseTestWrapper {
+public class ThreadedTestWrapper implements ShardedTestWrapper {
+
+  private Object testObject;
+  private Method beforeMethod;
+  private Method afterMethod;
+  private String name;
+  private Class<?> testClass;
 
   @Override
   public void runTests(Class<?> testClass, List<String> instrumentedClasses) {
-    Object testObject = MethodCaller.newInstance(testClass);
-    Method beforeMethod = null;
-    Method afterMethod = null;
-    String name = testClass.getSimpleName();
+    for (Method method : getTestMethods(testClass)) {
+      runTest(method);
+    }
+  }
+
+  @Override
+  public List<String> getTasks(Class<?> testClass, List<String> instrumentedClasses) {
+    List<String> tasks = new ArrayList<String>();
+    for (Method method : getTestMethods(testClass)) {
+      tasks.add(method.getName());
+    }
+    return tasks;
+  }
+
+  @Override
+  public void startTasks(Class<?> testClass, List<String> instrumentedClasses) {
+    getTestMethods(testClass);
+  }
+
+  @Override
+  public void runTask(String task) {
+    try {
+      runTest(testClass.getMethod(task));
+    } catch (NoSuchMethodException e) {
+      throw new IllegalArgumentException("No test method " + task + " in " + testClass, e);
+    }
+  }
+
+  @Override
+  public void finishTasks() {
+    // Nothing to do
+  }
+
+  /**
+   * Creates an instance of the test class, finds its before and after methods,
+   * and returns the methods annotated with {@link ThreadedTest}.
+   */
+  private List<Method> getTestMethods(Class<?> testClass) {
+    this.testClass = testClass;
+    testObject = MethodCaller.newInstance(testClass);
+    beforeMethod = null;
+    afterMethod = null;
+    name = testClass.getSimpleName();
 
     Method[] methods = testClass.getMethods();
     for (Method method : methods) {
@@ -52,37 +99,41 @@ public class ThreadedTestWrapper implements BaseTestWrapper {
         afterMethod = method;
       }
     }
-    boolean foundMatch = false;
+    List<Method> testMethods = new ArrayList<Method>();
     for (Method method : methods) {
-      ThreadedTest annotation = method.getAnnotation(ThreadedTest.class);
-      if (annotation != null) {
-        foundMatch = true;
-
-        // Find the exception (if any) that we expect the test method to
-        // throw. Note that we can't have a null default for an annotation, so
-        // we have to use the NoException class to indicate that the expected
-        // exception is null.
-        Class<? extends Throwable> expectedThrown = annotation.expected();
-        if (expectedThrown == ThreadedTest.NoException.class) {
-          expectedThrown = null;
-        }
-        if (beforeMethod != null) {
-          Options.debugPrint("\nInvoking \"before\" method %s.%s\n", name, beforeMethod.getName());
-          MethodCaller.invoke(beforeMethod, testObject);
-        }
-
-        Options.debugPrint("\nInvoking test method %s.%s\n", name, method.getName());
-        MethodCaller.invokeAndThrow(method, testObject, expectedThrown);
-
-        if (afterMethod != null) {
-          Options.debugPrint("\nInvoking \"after\" method %s.%s\n", name, afterMethod.getName());
-          MethodCaller.invoke(afterMethod, testObject);
-        }
+      if (method.getAnnotation(ThreadedTest.class) != null) {
+        testMethods.add(method);
       }
     }
-    if (!foundMatch) {
+    if (testMethods.isEmpty()) {
       throw new IllegalArgumentException("No @ThreadedTest annotations in " + testClass);
     }
+    return testMethods;
   }
 
+  /** Runs a single test method, bracketed by the before and after methods. */
+  private void runTest(Method method) {
+    ThreadedTest annotation = method.getAnnotation(ThreadedTest.class);
+
+    // Find the exception (if any) that we expect the test method to
+    // throw. Note that we can't have a null default for an annotation, so
+    // we have to use the NoException class to indicate that the expected
+    // exception is null.
+    Class<? extends Throwable> expectedThrown = annotation.expected();
+    if (expectedThrown == ThreadedTest.NoException.class) {
+      expectedThrown = null;
+    }
+    if (beforeMethod != null) {
+      Options.debugPrint("\nInvoking \"before\" method %s.%s\n", name, beforeMethod.getName());
+      MethodCaller.invoke(beforeMethod, testObject);
+    }
+
+    Options.debugPrint("\nInvoking test method %s.%s\n", name, method.getName());
+    MethodCaller.invokeAndThrow(method, testObject, expectedThrown);
+
+    if (afterMethod != null) {
+      Options.debugPrint("\nInvoking \"after\" method %s.%s\n", name, afterMethod.getName());
+      MethodCaller.invoke(afterMethod, testObject);
+    }
+  }
 }
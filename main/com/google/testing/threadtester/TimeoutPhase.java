@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.testing.threadtester;
+
+/**
+ * Identifies the different kinds of wait performed while running a test. Each
+ * phase can be given its own timeout. See {@link
+ * BaseThreadedTestRunner#setTimeout(TimeoutPhase, long)}.
+ */
+public enum TimeoutPhase {
+  /**
+   * Waiting for a thread to reach a {@link Breakpoint}.
+   */
+  REACH_BREAKPOINT (0),
+
+  /**
+   * Waiting for a secondary thread to finish, or to be blocked by the main
+   * thread.
+   */
+  SECONDARY_COMPLETION (1),
+
+  /**
+   * Waiting for the main thread to finish, once it has been allowed to
+   * continue.
+   */
+  MAIN_COMPLETION (2);
+
+  public final int value;
+
+  TimeoutPhase(int v) {
+    this.value = v;
+  }
+
+  /**
+   * Creates a TimeoutPhase from its integer equivalent.
+   */
+  static TimeoutPhase fromInt(int v) {
+    for (TimeoutPhase phase : TimeoutPhase.values()) {
+      if (phase.value == v) {
+        return phase;
+      }
+    }
+    throw new IllegalArgumentException("Invalid value " + v);
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import com.google.testing.threadtester.CounterFactory.CounterMain;
+import com.google.testing.threadtester.CounterFactory.CounterSecondary;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the BaseThreadedTestRunner adaptive and per-phase timeouts are
+ * handled correctly. See {@link AdaptiveTimeouts}.
+ */
+public class AdaptiveTimeoutTest extends TestCase {
+
+  private static final long TIMEOUT = 5000;
+  private static final long MAIN_TIMEOUT = 2000;
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.setTimeout(TIMEOUT);
+    runner.setTimeout(TimeoutPhase.MAIN_COMPLETION, MAIN_TIMEOUT);
+    runner.setAdaptiveTimeouts(true);
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  public void testSetTimeout_notPositive() {
+    try {
+      runner.setTimeout(TimeoutPhase.REACH_BREAKPOINT, 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  /**
+   * Creates a main runnable that stalls, and so never reaches the method under
+   * test or the start breakpoint.
+   */
+  private static CounterMain stalledMain() {
+    return new CounterMain(true, 2) {
+      @Override
+      public void run() throws InterruptedException {
+        Thread.sleep(TIMEOUT);
+      }
+    };
+  }
+
+  @ThreadedTest
+  public void timeout_usesGlobalTimeoutUntilEnoughSamples() {
+    String key = "unused";
+    assertEquals(TIMEOUT, AdaptiveTimeouts.timeout(TimeoutPhase.REACH_BREAKPOINT, key));
+    for (int i = 1; i < AdaptiveTimeouts.MIN_SAMPLES; i++) {
+      AdaptiveTimeouts.record(TimeoutPhase.REACH_BREAKPOINT, key, 20);
+    }
+    assertEquals(TIMEOUT, AdaptiveTimeouts.timeout(TimeoutPhase.REACH_BREAKPOINT, key));
+    AdaptiveTimeouts.record(TimeoutPhase.REACH_BREAKPOINT, key, 20);
+    assertEquals(20 * AdaptiveTimeouts.FACTOR,
+        AdaptiveTimeouts.timeout(TimeoutPhase.REACH_BREAKPOINT, key));
+  }
+
+  @ThreadedTest
+  public void timeout_isClamped() {
+    String fast = "fast";
+    String slow = "slow";
+    for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) {
+      AdaptiveTimeouts.record(TimeoutPhase.SECONDARY_COMPLETION, fast, 0);
+      AdaptiveTimeouts.record(TimeoutPhase.SECONDARY_COMPLETION, slow, TIMEOUT);
+    }
+    assertEquals(AdaptiveTimeouts.FLOOR,
+        AdaptiveTimeouts.timeout(TimeoutPhase.SECONDARY_COMPLETION, fast));
+    assertEquals(TIMEOUT, AdaptiveTimeouts.timeout(TimeoutPhase.SECONDARY_COMPLETION, slow));
+  }
+
+  @ThreadedTest
+  public void timeout_phaseOverride() {
+    String key = "main";
+    for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) {
+      AdaptiveTimeouts.record(TimeoutPhase.MAIN_COMPLETION, key, 0);
+    }
+    assertEquals(MAIN_TIMEOUT, AdaptiveTimeouts.timeout(TimeoutPhase.MAIN_COMPLETION, key));
+  }
+
+  @ThreadedTest
+  public void stalledThread_failsBeforeGlobalTimeout() {
+    // Each run stops at the start of the method once for each line, so this
+    // records enough latencies for the start breakpoint.
+    for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) {
+      InterleavedRunner.interleave(new CounterMain(true, 2), new CounterSecondary(true))
+          .throwExceptionsIfAny();
+    }
+    long start = System.currentTimeMillis();
+    RunResult result = InterleavedRunner.interleave(stalledMain(), new CounterSecondary(true));
+    long elapsed = System.currentTimeMillis() - start;
+    assertTrue(result.hadException());
+    assertTrue("Took " + elapsed, elapsed < TIMEOUT / 2);
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+/**
+ * Verifies that a {@link History} recorded by the threads of an {@link
+ * AnnotatedTestRunner} can be checked in a {@link ThreadedVerification}
+ * method.
+ */
+public class AnnotatedLinearizabilityTest extends TestCase {
+
+  AnnotatedTestRunner runner = new AnnotatedTestRunner();
+  private History history;
+  private IdGenerator generator;
+
+  private static final SequentialModel<Integer> MODEL = new SequentialModel<Integer>() {
+    @Override
+    public Integer getInitialState() {
+      return 0;
+    }
+
+    @Override
+    public Integer apply(Integer state, History.Call call) {
+      if (call.isComplete() && !state.equals(call.getResult())) {
+        return null;
+      }
+      return state + 1;
+    }
+  };
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), IdGenerator.class);
+  }
+
+  @ThreadedBefore
+  public void before() {
+    history = new History();
+    generator = new IdGenerator();
+  }
+
+  @ThreadedMain
+  public void mainThread() {
+    // The calls are recorded explicitly, as the runner requires the main
+    // method to call the instrumented class directly.
+    History.Call call = history.invoke("nextIdSafe");
+    history.respond(call, generator.nextIdSafe());
+  }
+
+  @ThreadedSecondary
+  public void secondThread() {
+    History.Call call = history.invoke("nextIdSafe");
+    history.respond(call, generator.nextIdSafe());
+  }
+
+  @ThreadedVerification
+  public void verify() {
+    assertEquals(2, history.getCalls().size());
+    LinearizabilityChecker.assertLinearizable(history, MODEL);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+/**
+ * Verifies that an {@link AnnotatedTestRunner} runs several {@link
+ * ThreadedSecondary} methods with the same name concurrently.
+ */
+public class AnnotatedSecondariesTest extends TestCase {
+
+  AnnotatedTestRunner runner = new AnnotatedTestRunner();
+  private SimpleCounter counter;
+  private volatile int readCount;
+
+  private static int numVerifyCalls;
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  @ThreadedBefore
+  public void before() {
+    counter = new SimpleCounter();
+    readCount = -1;
+  }
+
+  @ThreadedMain
+  public void mainThread() {
+    counter.synchronizedIncrement();
+  }
+
+  @ThreadedSecondary
+  public void firstWriter() {
+    counter.synchronizedIncrement();
+  }
+
+  @ThreadedSecondary
+  public void secondWriter() {
+    counter.synchronizedIncrement();
+  }
+
+  @ThreadedSecondary
+  public void reader() {
+    readCount = counter.getCount();
+  }
+
+  @ThreadedVerification
+  public void verify() {
+    numVerifyCalls++;
+    assertEquals(3, counter.getCount());
+    assertTrue(readCount >= 0 && readCount <= 3);
+  }
+
+  @ThreadedAfterAll
+  public static void afterAll() {
+    // The main method is stopped once at each line.
+    int numLines = Instrumentation.getClassInstrumentation(SimpleCounter.class)
+        .getMethod("synchronizedIncrement").getNumLines();
+    assertEquals(numLines, numVerifyCalls);
+  }
+}
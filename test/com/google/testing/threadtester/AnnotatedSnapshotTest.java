@@ -0,0 +1,67 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+/**
+ * Verifies that an {@link AnnotatedTestRunner} only calls a {@link
+ * ThreadedBefore} method that takes a snapshot once, and copies the test
+ * object for each interleaving.
+ */
+public class AnnotatedSnapshotTest extends TestCase {
+
+  AnnotatedTestRunner runner = new AnnotatedTestRunner();
+  private SimpleCounter counter;
+
+  private static int numBeforeCalls;
+  private static int numVerifyCalls;
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  @ThreadedBefore(snapshot = true)
+  public void before() {
+    numBeforeCalls++;
+    counter = new SimpleCounter();
+    counter.increment();
+  }
+
+  @ThreadedMain
+  public void mainThread() {
+    counter.synchronizedIncrement();
+  }
+
+  @ThreadedSecondary
+  public void secondThread() {
+    counter.synchronizedIncrement();
+  }
+
+  @ThreadedVerification
+  public void verify() {
+    numVerifyCalls++;
+    assertEquals(3, counter.getCount());
+  }
+
+  @ThreadedAfterAll
+  public static void afterAll() {
+    assertEquals(1, numBeforeCalls);
+    int numLines = Instrumentation.getClassInstrumentation(SimpleCounter.class)
+        .getMethod("synchronizedIncrement").getNumLines();
+    assertEquals(numLines, numVerifyCalls);
+  }
+}
@@ -18,6 +18,7 @@ package com.google.testing.threadtester;
 
 import junit.framework.TestCase;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -141,12 +142,12 @@ public class AnnotatedTestWrapperTest extends TestCase {
     public void main() {
     }
 
-    @ThreadedSecondary(name = "Duplicate")
-    public void second() {
+    @ThreadedMain(name = "Duplicate")
+    public void secondMain() {
     }
 
     @ThreadedSecondary(name = "Duplicate")
-    public void secondSecond() {
+    public void second() {
     }
   }
 
@@ -221,11 +222,33 @@ public class AnnotatedTestWrapperTest extends TestCase {
     AnnotatedTestWrapper.TestCase testCase = cases.get(0);
     assertEquals(testClass.getDeclaredMethod("before"), testCase.before);
     assertEquals(testClass.getDeclaredMethod("main"), testCase.main);
-    assertEquals(testClass.getDeclaredMethod("secondary"), testCase.secondary);
+    assertEquals(Collections.singletonList(testClass.getDeclaredMethod("secondary")),
+        testCase.secondaries);
     assertEquals(testClass.getDeclaredMethod("verification"), testCase.verification);
     assertEquals(testClass.getDeclaredMethod("after"), testCase.after);
   }
 
+  static class ClassWithMultipleSecondaries extends ClassWithValidAnnotations {
+    @ThreadedSecondary(name = "testCase")
+    public void anotherSecondary() {
+    }
+  }
+
+  public void testGetTestCases_multipleSecondaries() throws Exception {
+    Class<ClassWithMultipleSecondaries> testClass = ClassWithMultipleSecondaries.class;
+    List<Class<?>> instrumentedClasses = new ArrayList<Class<?>>();
+    instrumentedClasses.add(InstrumentedTarget.class);
+    AnnotatedTestWrapper.TestCases cases = new AnnotatedTestWrapper().getTestCases(
+        testClass, instrumentedClasses);
+
+    // Both secondaries belong to the same test case, sorted by name.
+    assertEquals(1, cases.size());
+    List<Method> secondaries = cases.get(0).secondaries;
+    assertEquals(2, secondaries.size());
+    assertEquals("anotherSecondary", secondaries.get(0).getName());
+    assertEquals("secondary", secondaries.get(1).getName());
+  }
+
   static class ClassThatDoesNotCallInstrumentedClass extends ClassWithValidAnnotations {
     @Override
     @ThreadedMain(name = "testCase")
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import com.google.testing.threadtester.CounterFactory.CounterMain;
+import com.google.testing.threadtester.CounterFactory.CounterSecondary;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link AtomicityAnalyzer}, and {@link
+ * InterleavedRunner#interleaveAtAtomicityViolations}.
+ */
+public class AtomicityAnalyzerTest extends TestCase {
+
+  public void testThreadedTests() {
+    ThreadedTestRunner runner = new ThreadedTestRunner();
+    runner.runTests(getClass(), UserCache.class, SimpleCounter.class);
+  }
+
+  /** Main runnable that gets the user from a cache. */
+  private static class CacheMain extends MainRunnableImpl<UserCache> {
+    private final String method;
+    private UserCache cache;
+
+    CacheMain(String method) {
+      this.method = method;
+    }
+
+    @Override
+    public Class<UserCache> getClassUnderTest() {
+      return UserCache.class;
+    }
+
+    @Override
+    public String getMethodName() {
+      return method;
+    }
+
+    @Override
+    public void initialize() {
+      cache = new UserCache();
+    }
+
+    @Override
+    public UserCache getMainObject() {
+      return cache;
+    }
+
+    @Override
+    public void run() throws Exception {
+      UserCache.class.getMethod(method).invoke(cache);
+    }
+
+    @Override
+    public void terminate() {
+      assertEquals("Created", 1, cache.getCreated());
+    }
+  }
+
+  /**
+   * Secondary runnable that calls the named method, or the same method as the
+   * main runnable.
+   */
+  private static class CacheSecondary extends SecondaryRunnableImpl<UserCache, CacheMain> {
+    private final String method;
+    private CacheMain main;
+
+    CacheSecondary() {
+      this(null);
+    }
+
+    CacheSecondary(String method) {
+      this.method = method;
+    }
+
+    @Override
+    public void initialize(CacheMain main) {
+      this.main = main;
+    }
+
+    @Override
+    public void run() throws Exception {
+      String name = method == null ? main.getMethodName() : method;
+      UserCache.class.getDeclaredMethod(name).invoke(main.getMainObject());
+    }
+  }
+
+  @ThreadedTest
+  public void checkThenAct_isViolation() {
+    AtomicityResult result =
+        new AtomicityAnalyzer().analyze(new CacheMain("getUser"), new CacheSecondary());
+    assertFalse(result.toString(), result.hadException());
+    assertTrue(result.toString(), result.hadViolation());
+    boolean found = false;
+    for (AtomicityViolation violation : result.getViolations()) {
+      if (violation.getLocation().equals("java.util.HashMap") &&
+          violation.getPattern().equals("RWW") && violation.threadIndex == 0) {
+        assertTrue(violation.toString(),
+            violation.getFirstPosition().startsWith(UserCache.class.getName() + ":"));
+        assertTrue(violation.getFirstPosition(), violation.firstLine < violation.secondLine);
+        assertNotSame(violation.getThread(), violation.getRemoteThread());
+        found = true;
+      }
+    }
+    assertTrue(result.toString(), found);
+  }
+
+  @ThreadedTest
+  public void synchronizedCheckThenAct_isNotViolation() {
+    AtomicityResult result = new AtomicityAnalyzer().analyze(
+        new CacheMain("getUserSynchronized"), new CacheSecondary());
+    assertFalse(result.toString(), result.hadException());
+    assertFalse(result.toString(), result.hadViolation());
+  }
+
+  @ThreadedTest
+  public void differentCollectionsOfSameClass_isNotViolation() {
+    // The secondary writes to a different HashMap, in both runs, so the main
+    // runnable's check-then-act on the users map cannot be interleaved.
+    AtomicityResult result =
+        new AtomicityAnalyzer().analyze(new CacheMain("getUser"), new CacheSecondary("addRole"));
+    assertFalse(result.toString(), result.hadException());
+    assertFalse(result.toString(), result.hadViolation());
+  }
+
+  @ThreadedTest
+  public void readThenWrite_isViolation() {
+    AtomicityResult result = new AtomicityAnalyzer().analyze(
+        new CounterMain("increment", 2), new CounterSecondary("increment"));
+    assertFalse(result.toString(), result.hadException());
+    assertTrue(result.toString(), result.hadViolation());
+    for (AtomicityViolation violation : result.getViolations()) {
+      assertEquals(SimpleCounter.class.getName() + ".count", violation.getLocation());
+    }
+  }
+
+  @ThreadedTest
+  public void readThenWriteInBlock_isNotViolation() {
+    AtomicityResult result = new AtomicityAnalyzer().analyze(
+        new CounterMain("incrementInBlock", 2), new CounterSecondary("incrementInBlock"));
+    assertFalse(result.toString(), result.hadViolation());
+  }
+
+  @ThreadedTest
+  public void interleavedRunner_stopsBetweenViolatingAccesses() {
+    ExplorationResult result = InterleavedRunner.interleaveAtAtomicityViolations(
+        new CacheMain("getUser"), new CacheSecondary());
+    assertTrue(result.toString(), result.hadException());
+    assertTrue(result.toString(), result.getNumSchedules() > 0);
+  }
+
+  @ThreadedTest
+  public void interleavedRunner_noViolations() {
+    ExplorationResult result = InterleavedRunner.interleaveAtAtomicityViolations(
+        new CacheMain("getUserSynchronized"), new CacheSecondary());
+    assertFalse(result.toString(), result.hadException());
+    assertEquals(0, result.getNumSchedules());
+  }
+}
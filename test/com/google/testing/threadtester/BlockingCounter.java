@@ -0,0 +1,97 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counter class that uses wait and notify, and a {@link Lock}. Used to test
+ * the handling of blocking operations by the {@link ScheduleExplorer}s.
+ */
+public class BlockingCounter {
+
+  private final Lock lock = new ReentrantLock();
+
+  private int count;
+
+  private boolean ready;
+
+  /** Waits until the counter is ready. */
+  public synchronized void awaitReady() throws InterruptedException {
+    while (!ready) {
+      wait();
+    }
+  }
+
+  /**
+   * Waits until the counter is ready, or until the timeout expires. Returns
+   * true if the counter is ready.
+   */
+  public synchronized boolean awaitReady(long timeout) throws InterruptedException {
+    if (!ready) {
+      wait(timeout);
+    }
+    return ready;
+  }
+
+  /** Makes the counter ready, and wakes all waiting threads. */
+  public synchronized void setReady() {
+    ready = true;
+    notifyAll();
+  }
+
+  /**
+   * Makes the counter ready, and wakes a single waiting thread. Any other
+   * waiting threads will wait forever.
+   */
+  public synchronized void setReadyAndNotifyOne() {
+    ready = true;
+    notify();
+  }
+
+  /** Increments the count while holding the lock. */
+  public void lockedIncrement() {
+    lock.lock();
+    try {
+      int current = count;
+      count = current + 1;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Increments the count if the lock is available. Returns true if the count
+   * was incremented.
+   */
+  public boolean tryIncrement() {
+    if (lock.tryLock()) {
+      try {
+        int current = count;
+        count = current + 1;
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+    return false;
+  }
+
+  public int getCount() {
+    return count;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link InterleavedRunner#interleaveWithinBudget}.
+ */
+public class BudgetedInterleavingTest extends TestCase {
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  /** Main runnable that adds to a counter, and checks the final count. */
+  private static class AddMain extends MainRunnableImpl<SimpleCounter> {
+    private SimpleCounter counter;
+
+    @Override
+    public Class<SimpleCounter> getClassUnderTest() {
+      return SimpleCounter.class;
+    }
+
+    @Override
+    public String getMethodName() {
+      return "add";
+    }
+
+    @Override
+    public void initialize() {
+      counter = new SimpleCounter();
+    }
+
+    @Override
+    public SimpleCounter getMainObject() {
+      return counter;
+    }
+
+    @Override
+    public void run() {
+      counter.add(3);
+    }
+
+    @Override
+    public void terminate() {
+      assertEquals(4, counter.getCount());
+    }
+  }
+
+  /** Secondary runnable that increments the counter, after an optional delay. */
+  private static class IncrementSecondary
+      extends SecondaryRunnableImpl<SimpleCounter, AddMain> {
+    private final long delay;
+    private SimpleCounter counter;
+
+    IncrementSecondary(long delay) {
+      this.delay = delay;
+    }
+
+    @Override
+    public void initialize(AddMain main) {
+      counter = main.getMainObject();
+    }
+
+    @Override
+    public void run() throws Exception {
+      Thread.sleep(delay);
+      counter.synchronizedIncrement();
+    }
+  }
+
+  @ThreadedTest
+  public void largeBudget_coversAllLines() {
+    ExplorationResult result = InterleavedRunner.interleaveWithinBudget(
+        new AddMain(), new IncrementSecondary(0), 60000);
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    assertEquals(4, result.getTotalSchedules());
+    assertEquals(4, result.getNumSchedules());
+    assertEquals(1.0, result.getCoverage());
+  }
+
+  @ThreadedTest
+  public void smallBudget_stopsEarly() {
+    // Each interleaving takes longer than the budget, so only the line with
+    // the highest priority is tried.
+    ExplorationResult result = InterleavedRunner.interleaveWithinBudget(
+        new AddMain(), new IncrementSecondary(50), 1);
+    result.throwExceptionsIfAny();
+    assertFalse(result.isComplete());
+    assertEquals(4, result.getTotalSchedules());
+    assertEquals(1, result.getNumSchedules());
+    assertEquals(0.25, result.getCoverage());
+  }
+}
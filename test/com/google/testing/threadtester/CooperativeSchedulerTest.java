@@ -0,0 +1,195 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the handling of wait, notify and {@link java.util.concurrent.locks.Lock
+ * Locks} by the {@link CooperativeScheduler}, using a {@link DporExplorer}.
+ */
+public class CooperativeSchedulerTest extends TestCase {
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), BlockingCounter.class);
+  }
+
+  /** Main runnable that creates a counter, and checks the final count. */
+  private abstract static class CounterMain extends MainRunnableImpl<BlockingCounter> {
+    protected BlockingCounter counter;
+    private final int expected;
+
+    CounterMain(int expected) {
+      this.expected = expected;
+    }
+
+    @Override
+    public Class<BlockingCounter> getClassUnderTest() {
+      return BlockingCounter.class;
+    }
+
+    @Override
+    public void initialize() {
+      counter = new BlockingCounter();
+    }
+
+    @Override
+    public BlockingCounter getMainObject() {
+      return counter;
+    }
+
+    @Override
+    public void terminate() {
+      assertEquals(expected, counter.getCount());
+    }
+  }
+
+  private abstract static class CounterSecondary
+      extends SecondaryRunnableImpl<BlockingCounter, CounterMain> {
+    protected BlockingCounter counter;
+
+    @Override
+    public void initialize(CounterMain main) {
+      counter = main.getMainObject();
+    }
+  }
+
+  private static CounterMain awaitReady() {
+    return new CounterMain(0) {
+      @Override
+      public void run() throws Exception {
+        counter.awaitReady();
+      }
+    };
+  }
+
+  private static CounterSecondary secondaryAwaitReady() {
+    return new CounterSecondary() {
+      @Override
+      public void run() throws Exception {
+        counter.awaitReady();
+      }
+    };
+  }
+
+  private static CounterSecondary lockedIncrement() {
+    return new CounterSecondary() {
+      @Override
+      public void run() {
+        counter.lockedIncrement();
+      }
+    };
+  }
+
+  @ThreadedTest
+  public void waitAndNotify_succeeds() {
+    CounterSecondary secondary = new CounterSecondary() {
+      @Override
+      public void run() {
+        counter.setReady();
+      }
+    };
+    ExplorationResult result = new DporExplorer().explore(awaitReady(), secondary);
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    // Either the main thread waits before the secondary makes the counter
+    // ready, or it finds that the counter is already ready.
+    assertEquals(2, result.getNumSchedules());
+  }
+
+  @ThreadedTest
+  public void notifyOne_deadlocks() {
+    List<CounterSecondary> secondaries = new ArrayList<CounterSecondary>();
+    secondaries.add(secondaryAwaitReady());
+    secondaries.add(new CounterSecondary() {
+      @Override
+      public void run() {
+        counter.setReadyAndNotifyOne();
+      }
+    });
+    ExplorationResult result = new DporExplorer().explore(awaitReady(), secondaries);
+    assertTrue(result.hadException());
+    Throwable failure = result.getMainException();
+    if (failure == null) {
+      failure = result.getSecondaryException();
+    }
+    assertTrue(failure.getMessage(), failure.getMessage().startsWith("Deadlock"));
+    assertTrue(failure.getMessage(), failure.getMessage().contains("notification"));
+  }
+
+  @ThreadedTest
+  public void timedWait_doesNotDeadlock() {
+    CounterMain main = new CounterMain(1) {
+      @Override
+      public void run() throws Exception {
+        counter.awaitReady(10000);
+      }
+    };
+    long start = System.currentTimeMillis();
+    ExplorationResult result = new DporExplorer().explore(main, lockedIncrement());
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    // The scheduler does not wait for the timeout to expire.
+    assertTrue(System.currentTimeMillis() - start < 10000);
+  }
+
+  @ThreadedTest
+  public void lockedIncrement_succeeds() {
+    CounterMain main = new CounterMain(2) {
+      @Override
+      public void run() {
+        counter.lockedIncrement();
+      }
+    };
+    ExplorationResult result = new DporExplorer().explore(main, lockedIncrement());
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    // Either thread can acquire the lock first.
+    assertEquals(2, result.getNumSchedules());
+  }
+
+  @ThreadedTest
+  public void failedTryLock_found() {
+    CounterMain main = new CounterMain(2) {
+      @Override
+      public void run() {
+        counter.tryIncrement();
+      }
+    };
+    ExplorationResult result = new DporExplorer().explore(main, lockedIncrement());
+    assertTrue(result.hadException());
+    assertNotNull(result.getMainException());
+  }
+
+  @ThreadedTest
+  public void waitWithoutScheduler() throws Exception {
+    final BlockingCounter counter = new BlockingCounter();
+    TestThread waiter = new TestThread(new ThrowingRunnable() {
+      @Override
+      public void run() throws Exception {
+        counter.awaitReady();
+      }
+    }, "waiter");
+    waiter.start();
+    counter.setReady();
+    waiter.finish();
+    waiter.throwExceptionsIfAny();
+  }
+}
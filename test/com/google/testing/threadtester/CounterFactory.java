@@ -0,0 +1,131 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import static junit.framework.TestCase.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates runnables that increment a {@link SimpleCounter}, for testing
+ * {@link ScheduleExplorer}s. The main runnable and each secondary runnable
+ * increment the counter once, and the main runnable checks the final count.
+ * The runnables may also be created individually, to call any no-argument
+ * method of the counter.
+ */
+class CounterFactory implements RunnableFactory<CounterFactory.CounterMain, SimpleCounter> {
+  private final boolean synchronize;
+  private final int numSecondaries;
+
+  CounterFactory(boolean synchronize, int numSecondaries) {
+    this.synchronize = synchronize;
+    this.numSecondaries = numSecondaries;
+  }
+
+  @Override
+  public CounterMain createMain() {
+    return new CounterMain(synchronize, numSecondaries + 1);
+  }
+
+  @Override
+  public List<CounterSecondary> createSecondaries(CounterMain main) {
+    List<CounterSecondary> secondaries = new ArrayList<CounterSecondary>();
+    for (int i = 0; i < numSecondaries; i++) {
+      secondaries.add(new CounterSecondary(synchronize));
+    }
+    return secondaries;
+  }
+
+  /**
+   * Main runnable that calls the named method of a counter once, and checks
+   * the final count.
+   */
+  static class CounterMain extends MainRunnableImpl<SimpleCounter> {
+    private final String methodName;
+    private final int expected;
+    SimpleCounter counter;
+    int numRuns;
+
+    CounterMain(boolean synchronize, int expected) {
+      this(getIncrementMethod(synchronize), expected);
+    }
+
+    CounterMain(String methodName, int expected) {
+      this.methodName = methodName;
+      this.expected = expected;
+    }
+
+    @Override
+    public Class<SimpleCounter> getClassUnderTest() {
+      return SimpleCounter.class;
+    }
+
+    @Override
+    public String getMethodName() {
+      return methodName;
+    }
+
+    @Override
+    public void initialize() {
+      counter = new SimpleCounter();
+    }
+
+    @Override
+    public SimpleCounter getMainObject() {
+      return counter;
+    }
+
+    @Override
+    public void run() throws Exception {
+      SimpleCounter.class.getMethod(methodName).invoke(counter);
+    }
+
+    @Override
+    public void terminate() {
+      numRuns++;
+      assertEquals("Lost update", expected, counter.getCount());
+    }
+  }
+
+  /** Secondary runnable that calls the named method of the main runnable's counter once. */
+  static class CounterSecondary extends SecondaryRunnableImpl<SimpleCounter, CounterMain> {
+    private final String methodName;
+    private SimpleCounter counter;
+
+    CounterSecondary(boolean synchronize) {
+      this(getIncrementMethod(synchronize));
+    }
+
+    CounterSecondary(String methodName) {
+      this.methodName = methodName;
+    }
+
+    @Override
+    public void initialize(CounterMain main) {
+      counter = main.getMainObject();
+    }
+
+    @Override
+    public void run() throws Exception {
+      SimpleCounter.class.getMethod(methodName).invoke(counter);
+    }
+  }
+
+  private static String getIncrementMethod(boolean synchronize) {
+    return synchronize ? "synchronizedIncrement" : "increment";
+  }
+}
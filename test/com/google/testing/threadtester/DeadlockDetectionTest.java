@@ -0,0 +1,158 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+import junit.framework.TestCase;
+
+/**
+ * Tests that deadlocks are reported immediately, with a {@link
+ * DeadlockException}, rather than after a timeout.
+ */
+public class DeadlockDetectionTest extends TestCase {
+
+  /** Deadlocked runs should fail long before this timeout. */
+  private static final long TIMEOUT = 20000;
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.setTimeout(TIMEOUT);
+    runner.runTests(getClass(), TwoLockCounter.class);
+  }
+
+  /** Main runnable that invokes one of the counter's methods. */
+  private static class CounterMain extends MainRunnableImpl<TwoLockCounter> {
+    private final boolean useLocks;
+    private TwoLockCounter counter;
+
+    CounterMain(boolean useLocks) {
+      this.useLocks = useLocks;
+    }
+
+    @Override
+    public Class<TwoLockCounter> getClassUnderTest() {
+      return TwoLockCounter.class;
+    }
+
+    @Override
+    public String getMethodName() {
+      return useLocks ? "lockFirstSecond" : "incrementFirstSecond";
+    }
+
+    @Override
+    public void initialize() {
+      counter = new TwoLockCounter();
+    }
+
+    @Override
+    public TwoLockCounter getMainObject() {
+      return counter;
+    }
+
+    @Override
+    public void run() {
+      if (useLocks) {
+        counter.lockFirstSecond();
+      } else {
+        counter.incrementFirstSecond();
+      }
+    }
+  }
+
+  /**
+   * Secondary runnable that invokes the method that acquires the locks in the
+   * opposite order.
+   */
+  private static class CounterSecondary
+      extends SecondaryRunnableImpl<TwoLockCounter, CounterMain> {
+    private final boolean useLocks;
+    private TwoLockCounter counter;
+
+    CounterSecondary(boolean useLocks) {
+      this.useLocks = useLocks;
+    }
+
+    @Override
+    public void initialize(CounterMain main) {
+      counter = main.getMainObject();
+    }
+
+    @Override
+    public void run() {
+      if (useLocks) {
+        counter.lockSecondFirst();
+      } else {
+        counter.incrementSecondFirst();
+      }
+    }
+
+    @Override
+    public boolean canBlock() {
+      return true;
+    }
+  }
+
+  private static DeadlockException getDeadlock(RunResult result) {
+    assertTrue(result.hadException());
+    Throwable exception = result.getMainException();
+    if (!(exception instanceof DeadlockException)) {
+      exception = result.getSecondaryException();
+    }
+    assertTrue("Exception = " + exception, exception instanceof DeadlockException);
+    return (DeadlockException) exception;
+  }
+
+  private static void checkDeadlock(DeadlockException deadlock) {
+    assertEquals(2, deadlock.getBlockedThreads().size());
+    for (DeadlockException.BlockedThread blocked : deadlock.getBlockedThreads()) {
+      assertNotNull(blocked.getOwner());
+      assertTrue(deadlock.getThreads().contains(blocked.getOwner()));
+      assertTrue(blocked.toString(),
+          blocked.getPosition().startsWith(TwoLockCounter.class.getName() + ":"));
+      assertTrue(blocked.toString(),
+          blocked.getOwnerPosition().startsWith(TwoLockCounter.class.getName() + ":"));
+      assertFalse(blocked.getPosition().equals(blocked.getOwnerPosition()));
+    }
+  }
+
+  @ThreadedTest
+  public void interleavedMonitors_failsImmediately() {
+    long start = System.currentTimeMillis();
+    RunResult result = InterleavedRunner.interleave(new CounterMain(false),
+        new CounterSecondary(false));
+    long elapsed = System.currentTimeMillis() - start;
+    checkDeadlock(getDeadlock(result));
+    assertTrue("Took " + elapsed, elapsed < TIMEOUT / 2);
+  }
+
+  @ThreadedTest
+  public void interleavedLocks_failsImmediately() {
+    long start = System.currentTimeMillis();
+    RunResult result = InterleavedRunner.interleave(new CounterMain(true),
+        new CounterSecondary(true));
+    long elapsed = System.currentTimeMillis() - start;
+    checkDeadlock(getDeadlock(result));
+    assertTrue("Took " + elapsed, elapsed < TIMEOUT / 2);
+  }
+
+  @ThreadedTest
+  public void explorer_reportsDeadlock() {
+    ExplorationResult result = new DporExplorer().explore(new CounterMain(false),
+        new CounterSecondary(false));
+    DeadlockException deadlock = getDeadlock(result);
+    assertTrue(deadlock.getMessage(), deadlock.getMessage().startsWith("Deadlock"));
+    checkDeadlock(deadlock);
+  }
+}
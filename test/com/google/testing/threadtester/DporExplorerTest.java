@@ -0,0 +1,204 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link DporExplorer}.
+ */
+public class DporExplorerTest extends TestCase {
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  /** Main runnable that creates a counter, and checks the final count. */
+  private abstract static class CounterMain extends MainRunnableImpl<SimpleCounter> {
+    protected SimpleCounter counter;
+    private final int expected;
+
+    CounterMain(int expected) {
+      this.expected = expected;
+    }
+
+    @Override
+    public Class<SimpleCounter> getClassUnderTest() {
+      return SimpleCounter.class;
+    }
+
+    @Override
+    public void initialize() {
+      counter = new SimpleCounter();
+    }
+
+    @Override
+    public SimpleCounter getMainObject() {
+      return counter;
+    }
+
+    @Override
+    public void terminate() {
+      assertEquals(expected, counter.getCount() + counter.getOther());
+    }
+  }
+
+  private abstract static class CounterSecondary
+      extends SecondaryRunnableImpl<SimpleCounter, CounterMain> {
+    protected SimpleCounter counter;
+
+    @Override
+    public void initialize(CounterMain main) {
+      counter = main.getMainObject();
+    }
+  }
+
+  private static CounterMain increment(int expected) {
+    return new CounterMain(expected) {
+      @Override
+      public void run() {
+        counter.increment();
+      }
+    };
+  }
+
+  private static CounterSecondary secondaryIncrement() {
+    return new CounterSecondary() {
+      @Override
+      public void run() {
+        counter.increment();
+      }
+    };
+  }
+
+  private static CounterSecondary synchronizedIncrement() {
+    return new CounterSecondary() {
+      @Override
+      public void run() {
+        counter.synchronizedIncrement();
+      }
+    };
+  }
+
+  @ThreadedTest
+  public void unsafeIncrement_fails() {
+    ExplorationResult result = new DporExplorer().explore(increment(2), secondaryIncrement());
+    assertTrue(result.hadException());
+    assertNotNull(result.getMainException());
+    assertFalse(result.isComplete());
+
+    // The first schedule runs the threads one after the other. DPOR
+    // detects that the secondary's read could have happened before the main
+    // thread's write, and runs that schedule next.
+    assertEquals(2, result.getNumSchedules());
+    Schedule schedule = result.getSchedule();
+    assertNotNull(schedule);
+    List<Schedule.ContextSwitch> switches = schedule.getSwitches();
+    assertEquals(3, switches.size());
+    Schedule.ContextSwitch preemption = switches.get(1);
+    assertEquals(0, preemption.getThread());
+    assertEquals(1, preemption.getNextThread());
+    assertEquals(1, preemption.getHitCount());
+    assertTrue(schedule.getProbe(preemption.getProbe()),
+        schedule.getProbe(preemption.getProbe()).startsWith("write"));
+  }
+
+  @ThreadedTest
+  public void synchronizedIncrement_succeeds() {
+    CounterMain main = new CounterMain(2) {
+      @Override
+      public void run() {
+        counter.incrementInBlock();
+      }
+    };
+    ExplorationResult result = new DporExplorer().explore(main, synchronizedIncrement());
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    assertNull(result.getSchedule());
+    // Either thread can acquire the monitor first.
+    assertEquals(2, result.getNumSchedules());
+  }
+
+  @ThreadedTest
+  public void independentFields_singleSchedule() {
+    CounterSecondary secondary = new CounterSecondary() {
+      @Override
+      public void run() {
+        counter.incrementOther();
+      }
+    };
+    ExplorationResult result = new DporExplorer().explore(increment(2), secondary);
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    assertEquals(1, result.getNumSchedules());
+    assertTrue(result.getNumPruned() > 0);
+  }
+
+  @ThreadedTest
+  public void maxSchedules_stopsExploration() {
+    DporExplorer explorer = new DporExplorer();
+    explorer.setMaxSchedules(1);
+    ExplorationResult result = explorer.explore(increment(2), secondaryIncrement());
+    assertFalse(result.hadException());
+    assertFalse(result.isComplete());
+    assertEquals(1, result.getNumSchedules());
+  }
+
+  @ThreadedTest
+  public void multipleSecondaries() {
+    CounterMain main = new CounterMain(3) {
+      @Override
+      public void run() {
+        counter.synchronizedIncrement();
+      }
+    };
+    List<CounterSecondary> secondaries = new ArrayList<CounterSecondary>();
+    secondaries.add(synchronizedIncrement());
+    secondaries.add(synchronizedIncrement());
+    ExplorationResult result = new DporExplorer().explore(main, secondaries);
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    // Each of the 3! orders of acquiring the monitor.
+    assertEquals(6, result.getNumSchedules());
+  }
+
+  @ThreadedTest
+  public void multipleSecondaries_unsafeIncrementFails() {
+    List<CounterSecondary> secondaries = new ArrayList<CounterSecondary>();
+    secondaries.add(synchronizedIncrement());
+    secondaries.add(secondaryIncrement());
+    ExplorationResult result = new DporExplorer().explore(increment(3), secondaries);
+    assertTrue(result.hadException());
+    assertNotNull(result.getSchedule());
+  }
+
+  @ThreadedTest
+  public void weakMemoryModel_withoutStoreBuffers_fails() {
+    ScheduleExplorer explorer = new DporExplorer();
+    explorer.setMemoryModel(MemoryModel.TOTAL_STORE_ORDER);
+    try {
+      explorer.explore(new CounterFactory(false, 1));
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+}
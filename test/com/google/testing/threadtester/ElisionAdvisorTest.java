@@ -0,0 +1,174 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Tests the {@link ElisionAdvisor}.
+ */
+public class ElisionAdvisorTest extends TestCase {
+
+  public void testThreadedTests() {
+    ThreadedTestRunner runner = new ThreadedTestRunner();
+    runner.runTests(getClass(), Statistics.class);
+  }
+
+  /** Main runnable that calls methods of a Statistics. */
+  private static class StatisticsMain extends MainRunnableImpl<Statistics> {
+    private final String[] methods;
+    private Statistics statistics;
+
+    StatisticsMain(String... methods) {
+      this.methods = methods;
+    }
+
+    @Override
+    public Class<Statistics> getClassUnderTest() {
+      return Statistics.class;
+    }
+
+    @Override
+    public void initialize() {
+      statistics = new Statistics();
+    }
+
+    @Override
+    public Statistics getMainObject() {
+      return statistics;
+    }
+
+    @Override
+    public void run() throws Exception {
+      for (String method : methods) {
+        Statistics.class.getMethod(method).invoke(statistics);
+      }
+    }
+  }
+
+  /**
+   * Secondary runnable that calls a method of the main runnable's object, or
+   * of its own object.
+   */
+  private static class StatisticsSecondary
+      extends SecondaryRunnableImpl<Statistics, StatisticsMain> {
+    private final String method;
+    private final boolean own;
+    private Statistics statistics;
+
+    StatisticsSecondary(String method) {
+      this(method, false);
+    }
+
+    StatisticsSecondary(String method, boolean own) {
+      this.method = method;
+      this.own = own;
+    }
+
+    @Override
+    public void initialize(StatisticsMain main) {
+      statistics = own ? new Statistics() : main.getMainObject();
+    }
+
+    @Override
+    public void run() throws Exception {
+      Statistics.class.getMethod(method).invoke(statistics);
+    }
+  }
+
+  private ElisionResult advise(StatisticsMain main, String secondary) {
+    return advise(main, new StatisticsSecondary(secondary));
+  }
+
+  private ElisionResult advise(StatisticsMain main, StatisticsSecondary secondary) {
+    ElisionResult result = new ElisionAdvisor().advise(main, secondary);
+    assertFalse(result.toString(), result.hadException());
+    assertTrue(result.toString(), result.getExplorationResult().isComplete());
+    return result;
+  }
+
+  @ThreadedTest
+  public void unsharedVolatile_isReported() {
+    ElisionResult result = advise(new StatisticsMain("close", "isClosed", "hit"), "hit");
+    List<ElisionCandidate> volatiles =
+        result.getCandidates(ElisionCandidate.Kind.UNSHARED_VOLATILE);
+    assertEquals(result.toString(), 1, volatiles.size());
+    ElisionCandidate candidate = volatiles.get(0);
+    assertEquals(Statistics.class.getName() + ".closed", candidate.getName());
+    int numSchedules = result.getExplorationResult().getNumSchedules();
+    assertEquals(2 * numSchedules, candidate.getCount());
+    assertEquals(candidate.toString(), 2, candidate.getPositions().size());
+    for (String position : candidate.getPositions()) {
+      assertTrue(position, position.startsWith(Statistics.class.getName() + ":"));
+    }
+  }
+
+  @ThreadedTest
+  public void sharedSynchronizedMethod_isNotReported() {
+    ElisionResult result = advise(new StatisticsMain("add"), "add");
+    assertFalse(result.toString(), result.hadCandidates());
+  }
+
+  @ThreadedTest
+  public void uncontendedMonitor_isReported() {
+    ElisionResult result = advise(new StatisticsMain("addLocal", "addLocal"), "isClosed");
+    List<ElisionCandidate> locks = result.getCandidates(ElisionCandidate.Kind.UNCONTENDED_LOCK);
+    assertEquals(result.toString(), 1, locks.size());
+    assertEquals(Object.class.getName(), locks.get(0).getName());
+    int numSchedules = result.getExplorationResult().getNumSchedules();
+    assertEquals(2 * numSchedules, locks.get(0).getCount());
+    assertEquals(1, locks.get(0).getPositions().size());
+
+    // The local total is only used by the main thread.
+    List<ElisionCandidate> sections =
+        result.getCandidates(ElisionCandidate.Kind.UNSHARED_CRITICAL_SECTION);
+    assertEquals(result.toString(), 1, sections.size());
+    assertEquals(locks.get(0).getPositions(), sections.get(0).getPositions());
+  }
+
+  @ThreadedTest
+  public void uncontendedLock_isReported() {
+    ElisionResult result = advise(new StatisticsMain("addLocked"), "isClosed");
+    List<ElisionCandidate> locks = result.getCandidates(ElisionCandidate.Kind.UNCONTENDED_LOCK);
+    assertEquals(result.toString(), 1, locks.size());
+    assertTrue(locks.get(0).getName(), locks.get(0).getName().contains("ReentrantLock"));
+  }
+
+  @ThreadedTest
+  public void contendedLock_isNotReported() {
+    ElisionResult result = advise(new StatisticsMain("addLocked"), "addLocked");
+    assertTrue(result.toString(),
+        result.getCandidates(ElisionCandidate.Kind.UNCONTENDED_LOCK).isEmpty());
+    assertTrue(result.toString(),
+        result.getCandidates(ElisionCandidate.Kind.UNSHARED_CRITICAL_SECTION).isEmpty());
+  }
+
+  @ThreadedTest
+  public void contendedSectionWithoutSharedState_isReported() {
+    ElisionResult result =
+        advise(new StatisticsMain("addOwn"), new StatisticsSecondary("addOwn", true));
+    assertTrue(result.toString(),
+        result.getCandidates(ElisionCandidate.Kind.UNCONTENDED_LOCK).isEmpty());
+    List<ElisionCandidate> sections =
+        result.getCandidates(ElisionCandidate.Kind.UNSHARED_CRITICAL_SECTION);
+    assertEquals(result.toString(), 1, sections.size());
+    assertEquals(Object.class.getName(), sections.get(0).getName());
+    assertEquals(2 * result.getExplorationResult().getNumSchedules(),
+        sections.get(0).getCount());
+  }
+}
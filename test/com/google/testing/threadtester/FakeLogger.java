@@ -32,7 +32,23 @@ public class FakeLogger implements CallLogger {
     END,
     BEGIN_CALL,
     END_CALL,
-    AT_LINE
+    AT_LINE,
+    MONITOR_ENTER,
+    MONITOR_ACQUIRED,
+    MONITOR_EXIT,
+    FIELD_READ,
+    FIELD_WRITE,
+    MONITOR_WAIT,
+    MONITOR_NOTIFY,
+    LOCK_ENTER,
+    LOCK_ACQUIRED,
+    LOCK_EXIT,
+    VOLATILE_READ,
+    VOLATILE_READ_DONE,
+    VOLATILE_WRITE,
+    SYNC_RELEASE,
+    SYNC_ACQUIRE,
+    COLLECTION_ACCESS
   }
 
   class Record {
@@ -40,6 +56,8 @@ public class FakeLogger implements CallLogger {
     Method caller;
     Method called;
     int line;
+    Object monitor;
+    String field;
 
     Record(Type type, Method main) {
       this.type = type;
@@ -57,6 +75,21 @@ public class FakeLogger implements CallLogger {
       this.type = Type.AT_LINE;
       this.line = line;
     }
+
+    Record(Type type, Object monitor) {
+      this.type = type;
+      this.monitor = monitor;
+    }
+
+    Record(Type type, Object monitor, int line) {
+      this(type, monitor);
+      this.line = line;
+    }
+
+    Record(Type type, Object owner, String field, int line) {
+      this(type, owner, line);
+      this.field = field;
+    }
   }
 
   private List<Record> records = new ArrayList<Record>();
@@ -84,4 +117,78 @@ public class FakeLogger implements CallLogger {
   public void atLine(int line) {
     records.add(new Record(line));
   }
+
+  public void monitorEnter(Object monitor, int line) {
+    records.add(new Record(Type.MONITOR_ENTER, monitor, line));
+  }
+
+  public void monitorAcquired() {
+    records.add(new Record(Type.MONITOR_ACQUIRED, (Object) null));
+  }
+
+  public void monitorExit(Object monitor, int line) {
+    records.add(new Record(Type.MONITOR_EXIT, monitor, line));
+  }
+
+  public void fieldRead(Object owner, String field, int line) {
+    records.add(new Record(Type.FIELD_READ, owner, field, line));
+  }
+
+  public void fieldWrite(Object owner, String field, int line) {
+    records.add(new Record(Type.FIELD_WRITE, owner, field, line));
+  }
+
+  public void monitorWait(Object monitor, long timeout, int nanos, int line)
+      throws InterruptedException {
+    records.add(new Record(Type.MONITOR_WAIT, monitor, line));
+    monitor.wait(timeout, nanos);
+  }
+
+  public void monitorNotify(Object monitor, boolean all, int line) {
+    records.add(new Record(Type.MONITOR_NOTIFY, monitor, line));
+  }
+
+  public void lockEnter(Object lock, boolean tryLock, int line) {
+    records.add(new Record(Type.LOCK_ENTER, lock, line));
+  }
+
+  public void lockAcquired(Object lock, int line) {
+    records.add(new Record(Type.LOCK_ACQUIRED, lock, line));
+  }
+
+  public void lockExit(Object lock, int line) {
+    records.add(new Record(Type.LOCK_EXIT, lock, line));
+  }
+
+  public void volatileRead(Object owner, String field, int line) {
+    records.add(new Record(Type.VOLATILE_READ, owner, field, line));
+  }
+
+  public void volatileReadDone(Object owner, String field, int line) {
+    records.add(new Record(Type.VOLATILE_READ_DONE, owner, field, line));
+  }
+
+  public void volatileWrite(Object owner, String field, int line) {
+    records.add(new Record(Type.VOLATILE_WRITE, owner, field, line));
+  }
+
+  public void syncRelease(Object target, int line) {
+    records.add(new Record(Type.SYNC_RELEASE, target, line));
+  }
+
+  public void syncAcquire(Object target, int line) {
+    records.add(new Record(Type.SYNC_ACQUIRE, target, line));
+  }
+
+  public void collectionAccess(Object collection, boolean write, int line) {
+    records.add(new Record(Type.COLLECTION_ACCESS, collection, line));
+  }
+
+  public boolean storeField(Object owner, String field, Object value, int line) {
+    return false;
+  }
+
+  public Object loadField(Object owner, String field, int line) {
+    return NOT_BUFFERED;
+  }
 }
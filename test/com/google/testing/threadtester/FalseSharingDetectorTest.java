@@ -0,0 +1,137 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link FalseSharingDetector}.
+ */
+public class FalseSharingDetectorTest extends TestCase {
+
+  public void testThreadedTests() {
+    ThreadedTestRunner runner = new ThreadedTestRunner();
+    runner.runTests(getClass(), SharedCounters.class);
+  }
+
+  /** Main runnable that calls a method of a SharedCounters a number of times. */
+  private static class CounterMain extends MainRunnableImpl<SharedCounters> {
+    private final String method;
+    private final int times;
+    private SharedCounters counters;
+
+    CounterMain(String method, int times) {
+      this.method = method;
+      this.times = times;
+    }
+
+    @Override
+    public Class<SharedCounters> getClassUnderTest() {
+      return SharedCounters.class;
+    }
+
+    @Override
+    public void initialize() {
+      counters = new SharedCounters();
+    }
+
+    @Override
+    public SharedCounters getMainObject() {
+      return counters;
+    }
+
+    @Override
+    public void run() throws Exception {
+      for (int i = 0; i < times; i++) {
+        SharedCounters.class.getMethod(method).invoke(counters);
+      }
+    }
+  }
+
+  /** Secondary runnable that calls a method of the main runnable's object. */
+  private static class CounterSecondary
+      extends SecondaryRunnableImpl<SharedCounters, CounterMain> {
+    private final String method;
+    private CounterMain main;
+
+    CounterSecondary(String method) {
+      this.method = method;
+    }
+
+    @Override
+    public void initialize(CounterMain main) {
+      this.main = main;
+    }
+
+    @Override
+    public void run() throws Exception {
+      SharedCounters.class.getMethod(method).invoke(main.getMainObject());
+    }
+  }
+
+  @ThreadedTest
+  public void adjacentFields_areReported() {
+    FalseSharingResult result = new FalseSharingDetector().detect(
+        new CounterMain("incrementFirst", 3), new CounterSecondary("incrementSecond"));
+    assertFalse(result.toString(), result.hadException());
+    assertEquals(result.toString(), 1, result.getFalseSharing().size());
+    FalseSharing sharing = result.getFalseSharing().get(0);
+    assertTrue(sharing.toString(), sharing.getProbability() >= 0.5);
+    assertTrue(sharing.getSecondOffset() - sharing.getFirstOffset() < 64);
+    if (sharing.getFirstField().getName().equals("first")) {
+      assertEquals(3, sharing.getFirstWrites());
+      assertEquals(1, sharing.getSecondWrites());
+    } else {
+      assertEquals("second", sharing.getFirstField().getName());
+      assertEquals(1, sharing.getFirstWrites());
+      assertEquals(3, sharing.getSecondWrites());
+    }
+  }
+
+  @ThreadedTest
+  public void paddedFields_areNotReported() {
+    FalseSharingResult result = new FalseSharingDetector().detect(
+        new CounterMain("incrementFirst", 1), new CounterSecondary("incrementPadded"));
+    assertFalse(result.toString(), result.hadException());
+    assertFalse(result.toString(), result.hadFalseSharing());
+  }
+
+  @ThreadedTest
+  public void sameField_isNotReported() {
+    // Writes to the same field are true sharing, not false sharing.
+    FalseSharingResult result = new FalseSharingDetector().detect(
+        new CounterMain("incrementFirst", 1), new CounterSecondary("incrementFirst"));
+    assertFalse(result.toString(), result.hadFalseSharing());
+  }
+
+  @ThreadedTest
+  public void sameThread_isNotReported() {
+    FalseSharingResult result = new FalseSharingDetector().detect(
+        new CounterMain("incrementFirstAndPadded", 1), new CounterSecondary("getTotal"));
+    assertFalse(result.toString(), result.hadFalseSharing());
+  }
+
+  @ThreadedTest
+  public void smallerCacheLine_reducesProbability() {
+    FalseSharingDetector detector = new FalseSharingDetector();
+    detector.setCacheLineSize(16);
+    detector.setMinProbability(0.01);
+    FalseSharingResult result = detector.detect(
+        new CounterMain("incrementFirst", 1), new CounterSecondary("incrementSecond"));
+    assertEquals(result.toString(), 1, result.getFalseSharing().size());
+    assertEquals(0.5, result.getFalseSharing().get(0).getProbability(), 0.001);
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+/**
+ * Generates sequential ids, using both thread-safe and unsafe methods. Used to
+ * test the {@link LinearizabilityChecker}.
+ */
+public class IdGenerator implements IdSource {
+
+  private int next;
+
+  /** Gets the next id. Not thread-safe, as two threads may get the same id. */
+  @Override
+  public int nextId() {
+    int id = next;
+    next = id + 1;
+    return id;
+  }
+
+  /** Gets the next id while holding this object's monitor. */
+  @Override
+  public synchronized int nextIdSafe() {
+    int id = next;
+    next = id + 1;
+    return id;
+  }
+}
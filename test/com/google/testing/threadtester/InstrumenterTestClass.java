@@ -59,4 +59,21 @@ public class InstrumenterTestClass {
 
   public void overloaded(String s) {
   }
+
+  public final Object lock = new Object();
+
+  private int value;
+
+  public void synchronizedBlock() {
+    synchronized (lock) {
+      intArg(null);
+    }
+  }
+
+  public synchronized void synchronizedMethod() {
+  }
+
+  public void incrementValue() {
+    value = value + 1;
+  }
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Tests the {@link LinearizabilityChecker} and {@link History}.
+ */
+public class LinearizabilityCheckerTest extends TestCase {
+
+  public void testThreadedTests() {
+    ThreadedTestRunner runner = new ThreadedTestRunner();
+    runner.runTests(getClass(), IdGenerator.class);
+  }
+
+  /** Model of a FIFO queue, supporting offer and poll. */
+  private static class QueueModel implements SequentialModel<List<Integer>> {
+    @Override
+    public List<Integer> getInitialState() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public List<Integer> apply(List<Integer> state, History.Call call) {
+      List<Integer> next = new ArrayList<Integer>(state);
+      if (call.getMethod().equals("offer")) {
+        next.add((Integer) call.getArgument(0));
+        return !call.isComplete() || Boolean.TRUE.equals(call.getResult()) ? next : null;
+      }
+      Integer head = next.isEmpty() ? null : next.remove(0);
+      if (!call.isComplete()) {
+        return next;
+      }
+      Object result = call.getResult();
+      return head == null ? (result == null ? next : null) : (head.equals(result) ? next : null);
+    }
+  }
+
+  /**
+   * Model of a map from strings to positive integers, supporting put and get.
+   * Calls are partitioned by key, so the state is the value of a single key,
+   * or zero if there is no value.
+   */
+  private static class MapModel implements PartitionedModel<Integer> {
+    @Override
+    public Integer getInitialState() {
+      return 0;
+    }
+
+    @Override
+    public Integer apply(Integer state, History.Call call) {
+      Integer result = (Integer) call.getResult();
+      boolean matches = !call.isComplete() || (state == 0 ? result == null : state.equals(result));
+      if (!matches) {
+        return null;
+      }
+      return call.getMethod().equals("put") ? (Integer) call.getArgument(1) : state;
+    }
+
+    @Override
+    public Object getPartition(History.Call call) {
+      return call.getArgument(0);
+    }
+  }
+
+  /** Model of an {@link IdGenerator}. The state is the next id. */
+  private static class IdModel implements SequentialModel<Integer> {
+    @Override
+    public Integer getInitialState() {
+      return 0;
+    }
+
+    @Override
+    public Integer apply(Integer state, History.Call call) {
+      if (call.isComplete() && !state.equals(call.getResult())) {
+        return null;
+      }
+      return state + 1;
+    }
+  }
+
+  /** Creates a queue whose calls are recorded in the given history. */
+  @SuppressWarnings("unchecked")
+  private static Queue<Integer> recordQueue(History history) {
+    return history.record(Queue.class, new LinkedList<Integer>());
+  }
+
+  public void testSequentialHistory_isLinearizable() {
+    History history = new History();
+    Queue<Integer> queue = recordQueue(history);
+    queue.offer(1);
+    queue.offer(2);
+    assertEquals(Integer.valueOf(1), queue.poll());
+    assertEquals(Integer.valueOf(2), queue.poll());
+    assertNull(queue.poll());
+    List<History.Call> calls = history.getCalls();
+    assertEquals(5, calls.size());
+    assertEquals("offer", calls.get(0).getMethod());
+    assertEquals(Boolean.TRUE, calls.get(0).getResult());
+    assertTrue(calls.get(0).precedes(calls.get(1)));
+    assertTrue(LinearizabilityChecker.check(history, new QueueModel()).isLinearizable());
+  }
+
+  public void testOverlappingCalls_areReordered() {
+    History history = new History();
+    History.Call poll = history.invoke("poll");
+    History.Call offer = history.invoke("offer", 1);
+    history.respond(offer, true);
+    history.respond(poll, 1);
+    assertFalse(offer.precedes(poll));
+    assertTrue(LinearizabilityChecker.check(history, new QueueModel()).isLinearizable());
+  }
+
+  public void testStaleRead_isNotLinearizable() {
+    History history = new History();
+    History.Call offer = history.invoke("offer", 1);
+    history.respond(offer, true);
+    History.Call poll = history.invoke("poll");
+    history.respond(poll, null);
+    LinearizabilityResult result = LinearizabilityChecker.check(history, new QueueModel());
+    assertFalse(result.isLinearizable());
+    assertEquals(2, result.getCalls().size());
+    try {
+      LinearizabilityChecker.assertLinearizable(history, new QueueModel());
+      fail("Should have thrown AssertionError");
+    } catch (AssertionError e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("poll() [3, 4] returned null"));
+    }
+  }
+
+  public void testWrongOrder_isNotLinearizable() {
+    History history = new History();
+    History.Call first = history.invoke("offer", 1);
+    History.Call second = history.invoke("offer", 2);
+    history.respond(first, true);
+    history.respond(second, true);
+    History.Call poll1 = history.invoke("poll");
+    history.respond(poll1, 2);
+    History.Call poll2 = history.invoke("poll");
+    history.respond(poll2, 2);
+    assertFalse(LinearizabilityChecker.check(history, new QueueModel()).isLinearizable());
+  }
+
+  public void testPendingCall_mayTakeEffect() {
+    History history = new History();
+    history.invoke("offer", 1);
+    History.Call poll = history.invoke("poll");
+    history.respond(poll, 1);
+    assertTrue(LinearizabilityChecker.check(history, new QueueModel()).isLinearizable());
+  }
+
+  public void testPendingCall_mayNotTakeEffect() {
+    History history = new History();
+    history.invoke("offer", 1);
+    History.Call poll = history.invoke("poll");
+    history.respond(poll, null);
+    assertTrue(LinearizabilityChecker.check(history, new QueueModel()).isLinearizable());
+
+    History.Call wrong = history.invoke("poll");
+    history.respond(wrong, 2);
+    assertFalse(LinearizabilityChecker.check(history, new QueueModel()).isLinearizable());
+  }
+
+  public void testException_isRecorded() {
+    History history = new History();
+    Queue<Integer> queue = recordQueue(history);
+    try {
+      queue.remove();
+      fail("Should have thrown NoSuchElementException");
+    } catch (java.util.NoSuchElementException e) {
+      // Expected
+    }
+    History.Call call = history.getCalls().get(0);
+    assertTrue(call.isComplete());
+    assertNull(call.getResult());
+    assertTrue(call.getException() instanceof java.util.NoSuchElementException);
+  }
+
+  public void testPartitions_areCheckedSeparately() {
+    History history = new History();
+    History.Call putA = history.invoke("put", "a", 1);
+    History.Call putB = history.invoke("put", "b", 2);
+    history.respond(putA, null);
+    history.respond(putB, null);
+    History.Call getA = history.invoke("get", "a");
+    history.respond(getA, 1);
+    History.Call getB = history.invoke("get", "b");
+    history.respond(getB, 1);
+    LinearizabilityResult result = LinearizabilityChecker.check(history, new MapModel());
+    assertFalse(result.isLinearizable());
+    assertEquals(2, result.getCalls().size());
+    assertSame(putB, result.getCalls().get(0));
+    assertSame(getB, result.getCalls().get(1));
+  }
+
+  public void testManyOverlappingCalls_areChecked() {
+    // All of the calls overlap, and the ids are returned in reverse order.
+    // Without memoization, the search would try every order of the calls.
+    int numCalls = 40;
+    History history = new History();
+    List<History.Call> calls = new ArrayList<History.Call>();
+    for (int i = 0; i < numCalls; i++) {
+      calls.add(history.invoke("nextId"));
+    }
+    for (int i = 0; i < numCalls; i++) {
+      history.respond(calls.get(i), numCalls - 1 - i);
+    }
+    assertTrue(LinearizabilityChecker.check(history, new IdModel()).isLinearizable());
+
+    History.Call duplicate = history.invoke("nextId");
+    history.respond(duplicate, 0);
+    assertFalse(LinearizabilityChecker.check(history, new IdModel()).isLinearizable());
+  }
+
+  /**
+   * Main runnable that gets an id, recording the calls made by the main and
+   * secondary runnables in a history, and checks that the history is
+   * linearizable.
+   */
+  private static class IdMain extends MainRunnableImpl<IdGenerator> {
+    private final String method;
+    private IdGenerator generator;
+    History history;
+    IdSource source;
+
+    IdMain(String method) {
+      this.method = method;
+    }
+
+    @Override
+    public Class<IdGenerator> getClassUnderTest() {
+      return IdGenerator.class;
+    }
+
+    @Override
+    public String getMethodName() {
+      return method;
+    }
+
+    @Override
+    public void initialize() {
+      generator = new IdGenerator();
+      history = new History();
+      source = history.record(IdSource.class, generator);
+    }
+
+    @Override
+    public IdGenerator getMainObject() {
+      return generator;
+    }
+
+    @Override
+    public void run() throws Exception {
+      IdSource.class.getMethod(method).invoke(source);
+    }
+
+    @Override
+    public void terminate() {
+      LinearizabilityChecker.assertLinearizable(history, new IdModel());
+    }
+  }
+
+  /** Secondary runnable that calls the same method as the main runnable. */
+  private static class IdSecondary extends SecondaryRunnableImpl<IdGenerator, IdMain> {
+    private IdMain main;
+
+    @Override
+    public void initialize(IdMain main) {
+      this.main = main;
+    }
+
+    @Override
+    public void run() throws Exception {
+      IdSource.class.getMethod(main.getMethodName()).invoke(main.source);
+    }
+  }
+
+  @ThreadedTest
+  public void unsafeIds_areNotLinearizable() {
+    RunResult result = InterleavedRunner.interleave(new IdMain("nextId"), new IdSecondary());
+    assertTrue(result.hadException());
+    Throwable exception = result.getMainException();
+    assertTrue(String.valueOf(exception), exception instanceof AssertionError);
+    assertTrue(exception.getMessage(), exception.getMessage().startsWith("Not linearizable"));
+  }
+
+  @ThreadedTest
+  public void safeIds_areLinearizable() {
+    RunResult result = InterleavedRunner.interleave(new IdMain("nextIdSafe"), new IdSecondary());
+    result.throwExceptionsIfAny();
+  }
+
+  @ThreadedTest
+  public void unsafeIds_failExploration() {
+    ExplorationResult result = new DporExplorer().explore(new IdMain("nextId"), new IdSecondary());
+    assertTrue(result.hadException());
+    assertTrue(result.getMainException() instanceof AssertionError);
+  }
+}
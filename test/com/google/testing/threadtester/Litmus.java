@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+/**
+ * Litmus tests for weak memory models, in which two threads communicate using
+ * non-volatile fields. Used to test the simulation of {@link MemoryModel}s.
+ */
+public class Litmus {
+
+  private int x;
+  private int y;
+  private int firstResult = -1;
+  private int secondResult = -1;
+
+  private int data;
+  private boolean ready;
+  private volatile boolean volatileReady;
+  private int seen = -1;
+
+  /** Writes x, then reads y. Run at the same time as {@link #storeY}. */
+  public void storeX() {
+    x = 1;
+    firstResult = y;
+  }
+
+  /** Writes y, then reads x. Run at the same time as {@link #storeX}. */
+  public void storeY() {
+    y = 1;
+    secondResult = x;
+  }
+
+  /**
+   * Returns true if each thread read the initial value of the other thread's
+   * field, which is not possible with sequential consistency.
+   */
+  public boolean bothReadZero() {
+    return firstResult == 0 && secondResult == 0;
+  }
+
+  /** Writes x, then reads it back. The thread must see its own write. */
+  public void storeAndLoadX() {
+    x = 1;
+    firstResult = x;
+  }
+
+  /**
+   * Writes x, then reads it back using reflection. The read is not made by
+   * instrumented code, so it does not see a write held in a store buffer.
+   */
+  public void storeAndLoadXReflectively() throws Exception {
+    x = 1;
+    firstResult = Litmus.class.getDeclaredField("x").getInt(this);
+  }
+
+  public int getFirstResult() {
+    return firstResult;
+  }
+
+  /** Publishes the data using a non-volatile flag. */
+  public void publish() {
+    data = 42;
+    ready = true;
+  }
+
+  /** Reads the data if the non-volatile flag is set. */
+  public void consume() {
+    if (ready) {
+      seen = data;
+    }
+  }
+
+  /** Publishes the data using a volatile flag. */
+  public void publishVolatile() {
+    data = 42;
+    volatileReady = true;
+  }
+
+  /** Reads the data if the volatile flag is set. */
+  public void consumeVolatile() {
+    if (volatileReady) {
+      seen = data;
+    }
+  }
+
+  /** Publishes the data while holding this object's monitor. */
+  public synchronized void publishSynchronized() {
+    data = 42;
+    ready = true;
+  }
+
+  /** Reads the data while holding this object's monitor. */
+  public synchronized void consumeSynchronized() {
+    if (ready) {
+      seen = data;
+    }
+  }
+
+  /** Returns the data seen by the consumer, or -1 if it was not ready. */
+  public int getSeen() {
+    return seen;
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link LockOrderAnalyzer}.
+ */
+public class LockOrderAnalyzerTest extends TestCase {
+
+  public void testThreadedTests() {
+    ThreadedTestRunner runner = new ThreadedTestRunner();
+    runner.runTests(getClass(), TwoLockCounter.class);
+  }
+
+  /** The methods invoked by the main and secondary runnables. */
+  private enum Methods {
+    MONITORS("incrementFirstSecond", "incrementSecondFirst"),
+    LOCKS("lockFirstSecond", "lockSecondFirst"),
+    GUARDED("guardedFirstSecond", "guardedSecondFirst"),
+    SYNCHRONIZED_METHOD("incrementThisFirst", "incrementFirstThis"),
+    SAME_ORDER("incrementFirstSecond", "incrementFirstSecond");
+
+    final String main;
+    final String secondary;
+
+    Methods(String main, String secondary) {
+      this.main = main;
+      this.secondary = secondary;
+    }
+  }
+
+  private static void invoke(TwoLockCounter counter, String method) throws Exception {
+    TwoLockCounter.class.getMethod(method).invoke(counter);
+  }
+
+  /** Main runnable that invokes one of the counter's methods. */
+  private static class CounterMain extends MainRunnableImpl<TwoLockCounter> {
+    final Methods methods;
+    private TwoLockCounter counter;
+
+    CounterMain(Methods methods) {
+      this.methods = methods;
+    }
+
+    @Override
+    public Class<TwoLockCounter> getClassUnderTest() {
+      return TwoLockCounter.class;
+    }
+
+    @Override
+    public String getMethodName() {
+      return methods.main;
+    }
+
+    @Override
+    public void initialize() {
+      counter = new TwoLockCounter();
+    }
+
+    @Override
+    public TwoLockCounter getMainObject() {
+      return counter;
+    }
+
+    @Override
+    public void run() throws Exception {
+      invoke(counter, methods.main);
+    }
+  }
+
+  /** Secondary runnable that invokes another of the counter's methods. */
+  private static class CounterSecondary
+      extends SecondaryRunnableImpl<TwoLockCounter, CounterMain> {
+    private CounterMain main;
+
+    @Override
+    public void initialize(CounterMain main) {
+      this.main = main;
+    }
+
+    @Override
+    public void run() throws Exception {
+      invoke(main.getMainObject(), main.methods.secondary);
+    }
+
+    @Override
+    public void terminate() {
+      assertEquals(2, main.getMainObject().getCount());
+    }
+  }
+
+  private static LockOrderResult analyze(Methods methods) {
+    LockOrderResult result =
+        new LockOrderAnalyzer().analyze(new CounterMain(methods), new CounterSecondary());
+    assertFalse("Exception = " + result.getMainException() + ", " +
+        result.getSecondaryException(), result.hadException());
+    return result;
+  }
+
+  private static void checkCycle(LockOrderResult result, String lockClass) {
+    assertTrue(result.hadPotentialDeadlock());
+    assertEquals(result.toString(), 1, result.getPotentialDeadlocks().size());
+    DeadlockException deadlock = result.getPotentialDeadlocks().get(0);
+    assertTrue(deadlock.getMessage(), deadlock.getMessage().startsWith("Potential deadlock"));
+    assertEquals(2, deadlock.getBlockedThreads().size());
+    for (DeadlockException.BlockedThread blocked : deadlock.getBlockedThreads()) {
+      assertTrue(blocked.toString(), blocked.getLock().startsWith(lockClass + "@"));
+      assertNotSame(blocked.getThread(), blocked.getOwner());
+      assertTrue(blocked.toString(),
+          blocked.getPosition().startsWith(TwoLockCounter.class.getName() + ":"));
+      assertTrue(blocked.toString(),
+          blocked.getOwnerPosition().startsWith(TwoLockCounter.class.getName() + ":"));
+    }
+  }
+
+  @ThreadedTest
+  public void monitorsInOppositeOrders_reportsCycle() {
+    checkCycle(analyze(Methods.MONITORS), Object.class.getName());
+  }
+
+  @ThreadedTest
+  public void locksInOppositeOrders_reportsCycle() {
+    checkCycle(analyze(Methods.LOCKS), "java.util.concurrent.locks.ReentrantLock");
+  }
+
+  @ThreadedTest
+  public void synchronizedMethod_reportsCycle() {
+    LockOrderResult result = analyze(Methods.SYNCHRONIZED_METHOD);
+    assertTrue(result.hadPotentialDeadlock());
+    assertEquals(result.toString(), 1, result.getPotentialDeadlocks().size());
+  }
+
+  @ThreadedTest
+  public void guardedByCommonMonitor_reportsNoCycle() {
+    assertFalse(analyze(Methods.GUARDED).hadPotentialDeadlock());
+  }
+
+  @ThreadedTest
+  public void sameOrder_reportsNoCycle() {
+    assertFalse(analyze(Methods.SAME_ORDER).hadPotentialDeadlock());
+  }
+}
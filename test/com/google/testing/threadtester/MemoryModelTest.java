@@ -0,0 +1,181 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the simulation of weak {@link MemoryModel}s by a {@link
+ * ScheduleExplorer}.
+ */
+public class MemoryModelTest extends TestCase {
+
+  public void testThreadedTests() {
+    ThreadedTestRunner runner = new ThreadedTestRunner();
+    runner.setStoreBuffers(true);
+    runner.runTests(getClass(), Litmus.class);
+  }
+
+  /** Main runnable that calls one method of a Litmus, and checks the result. */
+  private static class LitmusMain extends MainRunnableImpl<Litmus> {
+    private final String method;
+    private Litmus litmus;
+
+    LitmusMain(String method) {
+      this.method = method;
+    }
+
+    @Override
+    public Class<Litmus> getClassUnderTest() {
+      return Litmus.class;
+    }
+
+    @Override
+    public void initialize() {
+      litmus = new Litmus();
+    }
+
+    @Override
+    public Litmus getMainObject() {
+      return litmus;
+    }
+
+    @Override
+    public void run() throws Exception {
+      Litmus.class.getMethod(method).invoke(litmus);
+    }
+
+    @Override
+    public void terminate() {
+      assertFalse("Both read zero", litmus.bothReadZero());
+      int seen = litmus.getSeen();
+      assertTrue("Saw " + seen, seen == -1 || seen == 42);
+    }
+  }
+
+  /** Secondary runnable that calls another method of the main runnable's Litmus. */
+  private static class LitmusSecondary extends SecondaryRunnableImpl<Litmus, LitmusMain> {
+    private final String method;
+    private LitmusMain main;
+
+    LitmusSecondary(String method) {
+      this.method = method;
+    }
+
+    @Override
+    public void initialize(LitmusMain main) {
+      this.main = main;
+    }
+
+    @Override
+    public void run() throws Exception {
+      Litmus.class.getMethod(method).invoke(main.getMainObject());
+    }
+  }
+
+  private static ExplorationResult explore(MemoryModel model, String first, String second) {
+    ScheduleExplorer explorer = new DporExplorer();
+    explorer.setMemoryModel(model);
+    return explorer.explore(new LitmusMain(first), new LitmusSecondary(second));
+  }
+
+  @ThreadedTest
+  public void storeBuffering_isNotSeenWithSequentialConsistency() {
+    ExplorationResult result =
+        explore(MemoryModel.SEQUENTIAL_CONSISTENCY, "storeX", "storeY");
+    assertFalse(result.toString(), result.hadException());
+    assertTrue(result.isComplete());
+  }
+
+  @ThreadedTest
+  public void storeBuffering_isSeenWithTotalStoreOrder() {
+    ExplorationResult result = explore(MemoryModel.TOTAL_STORE_ORDER, "storeX", "storeY");
+    assertTrue(result.toString(), result.hadException());
+    assertTrue(result.getMainException() instanceof AssertionError);
+  }
+
+  @ThreadedTest
+  public void ownWrites_areSeen() {
+    ScheduleExplorer explorer = new DporExplorer();
+    explorer.setMemoryModel(MemoryModel.PARTIAL_STORE_ORDER);
+    ExplorationResult result = explorer.explore(new LitmusMain("storeAndLoadX") {
+      @Override
+      public void terminate() {
+        assertEquals(1, getMainObject().getFirstResult());
+      }
+    }, new LitmusSecondary("getFirstResult"));
+    assertFalse(result.toString(), result.hadException());
+  }
+
+  /**
+   * Documents a limitation of the simulation. A read made using reflection
+   * does not check the store buffer, so it does not see the thread's own write.
+   */
+  @ThreadedTest
+  public void ownWrites_areNotSeenByNonInstrumentedReads() {
+    ScheduleExplorer explorer = new DporExplorer();
+    explorer.setMemoryModel(MemoryModel.TOTAL_STORE_ORDER);
+    ExplorationResult result = explorer.explore(new LitmusMain("storeAndLoadXReflectively") {
+      @Override
+      public void terminate() {
+        assertEquals(0, getMainObject().getFirstResult());
+      }
+    }, new LitmusSecondary("getFirstResult"));
+    assertFalse(result.toString(), result.hadException());
+    assertTrue(result.isComplete());
+  }
+
+  @ThreadedTest
+  public void messagePassing_isSafeWithTotalStoreOrder() {
+    ExplorationResult result = explore(MemoryModel.TOTAL_STORE_ORDER, "publish", "consume");
+    assertFalse(result.toString(), result.hadException());
+    assertTrue(result.isComplete());
+  }
+
+  @ThreadedTest
+  public void messagePassing_failsWithPartialStoreOrder() {
+    ExplorationResult result = explore(MemoryModel.PARTIAL_STORE_ORDER, "publish", "consume");
+    assertTrue(result.toString(), result.hadException());
+    assertTrue(result.getMainException().getMessage().startsWith("Saw 0"));
+    assertNotNull(result.getSchedule());
+  }
+
+  @ThreadedTest
+  public void volatileFlag_isSafeWithPartialStoreOrder() {
+    ExplorationResult result =
+        explore(MemoryModel.PARTIAL_STORE_ORDER, "publishVolatile", "consumeVolatile");
+    assertFalse(result.toString(), result.hadException());
+    assertTrue(result.isComplete());
+  }
+
+  @ThreadedTest
+  public void synchronizedMethods_areSafeWithPartialStoreOrder() {
+    ExplorationResult result =
+        explore(MemoryModel.PARTIAL_STORE_ORDER, "publishSynchronized", "consumeSynchronized");
+    assertFalse(result.toString(), result.hadException());
+    assertTrue(result.isComplete());
+  }
+
+  @ThreadedTest
+  public void failingSchedule_canBeReplayed() {
+    ExplorationResult result = explore(MemoryModel.TOTAL_STORE_ORDER, "storeX", "storeY");
+    assertTrue(result.hadException());
+    ScheduleReplayer replayer = new ScheduleReplayer(result.getSchedule());
+    replayer.setMemoryModel(MemoryModel.TOTAL_STORE_ORDER);
+    RunResult replayed = replayer.explore(new LitmusMain("storeX"), new LitmusSecondary("storeY"));
+    assertTrue(replayed.hadException());
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import com.google.testing.threadtester.CounterFactory.CounterMain;
+import com.google.testing.threadtester.CounterFactory.CounterSecondary;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link InterleavedRunner#interleave(MainRunnable, List)} with more
+ * than one secondary runnable.
+ */
+public class MultipleSecondariesTest extends TestCase {
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  /** Creates secondary runnables that each call synchronizedIncrement once. */
+  private static List<CounterSecondary> secondaries(int count) {
+    List<CounterSecondary> secondaries = new ArrayList<CounterSecondary>();
+    for (int i = 0; i < count; i++) {
+      secondaries.add(new CounterSecondary(true));
+    }
+    return secondaries;
+  }
+
+  @ThreadedTest
+  public void synchronizedIncrements_succeed() throws Exception {
+    // The secondaries block each other, and while the main runnable is inside
+    // synchronizedIncrement, they are blocked by the main runnable.
+    CounterMain main = new CounterMain("synchronizedIncrement", 4);
+    RunResult result = InterleavedRunner.interleave(main, secondaries(3));
+    result.throwExceptionsIfAny();
+    int numLines = Instrumentation.getClassInstrumentation(SimpleCounter.class)
+        .getMethod("synchronizedIncrement").getNumLines();
+    assertEquals(numLines, main.numRuns);
+  }
+
+  @ThreadedTest
+  public void unsafeIncrement_fails() {
+    RunResult result =
+        InterleavedRunner.interleave(new CounterMain("increment", 3), secondaries(2));
+    assertTrue(result.hadException());
+    assertNotNull(result.getMainException());
+  }
+
+  @ThreadedTest
+  public void noSecondaries_throws() {
+    try {
+      InterleavedRunner.interleave(new CounterMain("increment", 1), secondaries(0));
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+}
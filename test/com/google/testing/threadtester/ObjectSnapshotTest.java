@@ -0,0 +1,236 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Tests for {@link ObjectCopier} and {@link
+ * InterleavedRunner#interleaveWithSnapshots}.
+ */
+public class ObjectSnapshotTest extends TestCase {
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  /** The count of the snapshot counter. */
+  private static final int INITIAL_COUNT = 5;
+
+  /**
+   * Main runnable whose counter is created once, and then copied. Records the
+   * number of times that it is initialized and terminated.
+   */
+  private static class SnapshotMain extends MainRunnableImpl<SimpleCounter>
+      implements CopyableMainRunnable<SimpleCounter> {
+    private SimpleCounter counter;
+    int numInitializeCalls;
+    int numTerminateCalls;
+
+    @Override
+    public Class<SimpleCounter> getClassUnderTest() {
+      return SimpleCounter.class;
+    }
+
+    @Override
+    public String getMethodName() {
+      return "synchronizedIncrement";
+    }
+
+    @Override
+    public void initialize() {
+      numInitializeCalls++;
+      counter = new SimpleCounter();
+      for (int i = 0; i < INITIAL_COUNT; i++) {
+        counter.increment();
+      }
+    }
+
+    @Override
+    public SimpleCounter getMainObject() {
+      return counter;
+    }
+
+    @Override
+    public void setMainObject(SimpleCounter counter) {
+      this.counter = counter;
+    }
+
+    @Override
+    public void run() {
+      counter.synchronizedIncrement();
+    }
+
+    @Override
+    public void terminate() {
+      numTerminateCalls++;
+      assertEquals(INITIAL_COUNT + 2, counter.getCount());
+    }
+  }
+
+  private static class SnapshotSecondary
+      extends SecondaryRunnableImpl<SimpleCounter, SnapshotMain> {
+    private final boolean safe;
+    private SimpleCounter counter;
+
+    SnapshotSecondary(boolean safe) {
+      this.safe = safe;
+    }
+
+    @Override
+    public void initialize(SnapshotMain main) {
+      counter = main.getMainObject();
+    }
+
+    @Override
+    public void run() {
+      if (safe) {
+        counter.synchronizedIncrement();
+      } else {
+        counter.increment();
+      }
+    }
+  }
+
+  @ThreadedTest
+  public void copy_createsRegisteredCopy() {
+    SimpleCounter counter = new SimpleCounter();
+    counter.increment();
+    counter.incrementOther();
+    SimpleCounter copy = new ObjectCopier().copy(counter);
+    assertNotSame(counter, copy);
+    assertEquals(1, copy.getCount());
+    assertEquals(1, copy.getOther());
+
+    copy.increment();
+    assertEquals(2, copy.getCount());
+    assertEquals(1, counter.getCount());
+
+    ObjectInstrumentationImpl<SimpleCounter> instr = ObjectInstrumentationImpl.getObject(copy);
+    assertSame(copy, instr.getUnderlyingObject());
+    assertNotSame(ObjectInstrumentationImpl.getObject(counter), instr);
+  }
+
+  @ThreadedTest
+  public void copy_preservesSharing() {
+    SimpleCounter counter = new SimpleCounter();
+    String name = "counter";
+    List<Object> list = new ArrayList<Object>();
+    list.add(counter);
+    list.add(counter);
+    list.add(name);
+    list.add(new int[] {1, 2});
+
+    List<Object> copy = new ObjectCopier().copy(list);
+    assertNotSame(list, copy);
+    assertEquals(4, copy.size());
+    assertNotSame(counter, copy.get(0));
+    assertSame(copy.get(0), copy.get(1));
+    assertSame(name, copy.get(2));
+    int[] array = (int[]) copy.get(3);
+    assertNotSame(list.get(3), array);
+    assertEquals(2, array[1]);
+  }
+
+  @ThreadedTest
+  public void copy_sameCopierReusesCopies() {
+    SimpleCounter counter = new SimpleCounter();
+    ObjectCopier copier = new ObjectCopier();
+    Object[] first = copier.copy(new Object[] {counter});
+    Object[] second = copier.copy(new Object[] {counter});
+    assertSame(first[0], second[0]);
+  }
+
+  @ThreadedTest
+  public void copy_rehashesMapsWithIdentityKeys() {
+    // SimpleCounter uses the default hashCode, so a copy has a different hash
+    SimpleCounter key = new SimpleCounter();
+    Map<Object, String> hashMap = new HashMap<Object, String>();
+    hashMap.put(key, "hash");
+    Map<Object, String> identityMap = new IdentityHashMap<Object, String>();
+    identityMap.put(key, "identity");
+    Set<Object> set = new LinkedHashSet<Object>();
+    set.add("first");
+    set.add(key);
+
+    Object[] copy = new ObjectCopier().copy(new Object[] {key, hashMap, identityMap, set});
+    Object copiedKey = copy[0];
+    assertNotSame(key, copiedKey);
+    Map<?, ?> copiedHashMap = (Map<?, ?>) copy[1];
+    assertEquals("hash", copiedHashMap.get(copiedKey));
+    assertNull(copiedHashMap.get(key));
+    Map<?, ?> copiedIdentityMap = (Map<?, ?>) copy[2];
+    assertEquals("identity", copiedIdentityMap.get(copiedKey));
+    assertNull(copiedIdentityMap.get(key));
+    Set<?> copiedSet = (Set<?>) copy[3];
+    assertTrue(copiedSet.contains(copiedKey));
+    assertEquals(Arrays.asList("first", copiedKey), new ArrayList<Object>(copiedSet));
+    assertEquals("hash", hashMap.get(key));
+  }
+
+  @ThreadedTest
+  public void copy_weakHashMapFails() {
+    Map<Object, String> map = new WeakHashMap<Object, String>();
+    try {
+      new ObjectCopier().copy(map);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  @ThreadedTest
+  public void interleaveWithSnapshots_initializesOnce() {
+    SnapshotMain main = new SnapshotMain();
+    RunResult result = InterleavedRunner.interleaveWithSnapshots(main, new SnapshotSecondary(true));
+    result.throwExceptionsIfAny();
+    assertEquals(1, main.numInitializeCalls);
+    int numLines = Instrumentation.getClassInstrumentation(SimpleCounter.class)
+        .getMethod("synchronizedIncrement").getNumLines();
+    assertEquals(numLines, main.numTerminateCalls);
+  }
+
+  @ThreadedTest
+  public void interleaveWithSnapshots_unsafeIncrementFails() {
+    SnapshotMain main = new SnapshotMain() {
+      @Override
+      public String getMethodName() {
+        return "increment";
+      }
+
+      @Override
+      public void run() {
+        getMainObject().increment();
+      }
+    };
+    RunResult result =
+        InterleavedRunner.interleaveWithSnapshots(main, new SnapshotSecondary(false));
+    assertTrue(result.hadException());
+    assertEquals(1, main.numInitializeCalls);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link PctExplorer}.
+ */
+public class PctExplorerTest extends TestCase {
+
+  private static final long SEED = 12345L;
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  @ThreadedTest
+  public void unsafeIncrement_fails() {
+    PctExplorer explorer = new PctExplorer();
+    explorer.setSeed(SEED);
+    ExplorationResult result = explorer.explore(
+        new CounterFactory.CounterMain(false, 2), new CounterFactory.CounterSecondary(false));
+    assertTrue(result.hadException());
+    assertFalse(result.isComplete());
+    assertNotNull(result.getSchedule());
+    Long seed = result.getSeed();
+    assertNotNull(seed);
+    assertTrue(seed >= SEED && seed < SEED + explorer.getIterations());
+
+    // A single iteration with the reported seed reproduces the failure.
+    PctExplorer replay = new PctExplorer();
+    replay.setSeed(seed);
+    replay.setIterations(1);
+    result = replay.explore(
+        new CounterFactory.CounterMain(false, 2), new CounterFactory.CounterSecondary(false));
+    assertTrue(result.hadException());
+    assertEquals(seed, result.getSeed());
+    assertEquals(2, result.getNumSchedules());
+  }
+
+  @ThreadedTest
+  public void synchronizedIncrement_runsAllIterations() {
+    PctExplorer explorer = new PctExplorer();
+    explorer.setSeed(SEED);
+    explorer.setIterations(20);
+    explorer.setDepth(3);
+    ExplorationResult result = explorer.explore(new CounterFactory(true, 2));
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    assertNull(result.getSeed());
+    // The initial run without preemption, plus the randomized iterations.
+    assertEquals(21, result.getNumSchedules());
+  }
+
+  @ThreadedTest
+  public void parallelIterations() {
+    PctExplorer explorer = new PctExplorer();
+    explorer.setSeed(SEED);
+    explorer.setParallelism(4);
+    explorer.setIterations(40);
+    ExplorationResult result = explorer.explore(new CounterFactory(true, 1));
+    result.throwExceptionsIfAny();
+    assertEquals(41, result.getNumSchedules());
+
+    result = explorer.explore(new CounterFactory(false, 2));
+    assertTrue(result.hadException());
+    assertNotNull(result.getSeed());
+  }
+
+  @ThreadedTest
+  public void invalidSettings() {
+    PctExplorer explorer = new PctExplorer();
+    try {
+      explorer.setIterations(0);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    try {
+      explorer.setDepth(0);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    try {
+      explorer.setParallelism(0);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+}
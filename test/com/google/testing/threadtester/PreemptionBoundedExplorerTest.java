@@ -0,0 +1,90 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link PreemptionBoundedExplorer}.
+ */
+public class PreemptionBoundedExplorerTest extends TestCase {
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  @ThreadedTest
+  public void unsafeIncrement_failsWithOnePreemption() {
+    ExplorationResult result = new PreemptionBoundedExplorer().explore(
+        new CounterFactory.CounterMain(false, 2), new CounterFactory.CounterSecondary(false));
+    assertTrue(result.hadException());
+    assertFalse(result.isComplete());
+    // Either thread can run first without preemption. The first schedule with
+    // one preemption stops the main thread between its read and its write.
+    assertEquals(Arrays.asList(2, 1), result.getSchedulesPerBound());
+    assertEquals(3, result.getNumSchedules());
+    assertNotNull(result.getSchedule());
+  }
+
+  @ThreadedTest
+  public void unsafeIncrement_passesWithNoPreemptions() {
+    PreemptionBoundedExplorer explorer = new PreemptionBoundedExplorer();
+    explorer.setMaxPreemptions(0);
+    ExplorationResult result = explorer.explore(new CounterFactory(false, 1));
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    assertEquals(Arrays.asList(2), result.getSchedulesPerBound());
+  }
+
+  @ThreadedTest
+  public void synchronizedIncrement_succeeds() {
+    ExplorationResult result = new PreemptionBoundedExplorer().explore(
+        new CounterFactory(true, 2));
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    // A thread cannot be preempted while it holds the monitor, so only the
+    // 3! orders of acquiring it are possible.
+    assertEquals(Arrays.asList(6, 0, 0), result.getSchedulesPerBound());
+    assertEquals(0, result.getNumPruned());
+  }
+
+  @ThreadedTest
+  public void parallelWorkers() {
+    PreemptionBoundedExplorer sequential = new PreemptionBoundedExplorer();
+    ExplorationResult expected = sequential.explore(new CounterFactory(false, 2));
+
+    PreemptionBoundedExplorer parallel = new PreemptionBoundedExplorer();
+    parallel.setParallelism(4);
+    ExplorationResult result = parallel.explore(new CounterFactory(false, 2));
+    assertTrue(result.hadException());
+    assertEquals(expected.getSchedulesPerBound().size(), result.getSchedulesPerBound().size());
+    assertEquals(expected.getSchedulesPerBound().get(0), result.getSchedulesPerBound().get(0));
+  }
+
+  @ThreadedTest
+  public void maxSchedules_stopsExploration() {
+    PreemptionBoundedExplorer explorer = new PreemptionBoundedExplorer();
+    explorer.setMaxSchedules(1);
+    ExplorationResult result = explorer.explore(new CounterFactory(false, 1));
+    assertFalse(result.hadException());
+    assertFalse(result.isComplete());
+    assertEquals(1, result.getNumSchedules());
+  }
+}
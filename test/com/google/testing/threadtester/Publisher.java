@@ -0,0 +1,92 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Class that publishes a value to other threads, both safely and unsafely.
+ * Used to test the {@link RaceDetector}.
+ */
+public class Publisher implements Runnable {
+
+  private final CountDownLatch latch = new CountDownLatch(1);
+
+  private int data;
+
+  private volatile boolean ready;
+
+  /** Sets the data in a thread started by {@link #computeInThread}. */
+  public void run() {
+    data = 42;
+  }
+
+  /** Sets the data. Not thread-safe. */
+  public void publish() {
+    data = 1;
+  }
+
+  /** Gets the data. Not thread-safe. */
+  public int getData() {
+    return data;
+  }
+
+  /** Sets the data, and then sets a volatile flag. */
+  public void publishVolatile() {
+    data = 1;
+    ready = true;
+  }
+
+  /** Waits until the volatile flag has been set, and then gets the data. */
+  public int readVolatile() {
+    while (!ready) {
+      Thread.yield();
+    }
+    return data;
+  }
+
+  /** Sets the data, and then counts down a latch. */
+  public void publishWithLatch() {
+    data = 1;
+    latch.countDown();
+  }
+
+  /** Waits for the latch, and then gets the data. */
+  public int readWithLatch() throws InterruptedException {
+    latch.await();
+    return data;
+  }
+
+  /** Sets the data in a new thread, joins the thread, and then gets the data. */
+  public int computeInThread() throws InterruptedException {
+    Thread thread = new Thread(this);
+    thread.start();
+    thread.join();
+    return data;
+  }
+
+  /**
+   * Sets the data in a new thread, and gets the data without waiting for the
+   * thread to finish. Not thread-safe.
+   */
+  public int computeInThreadWithoutJoin() throws InterruptedException {
+    Thread thread = new Thread(this);
+    thread.start();
+    int result = data;
+    thread.join();
+    return result;
+  }
+}
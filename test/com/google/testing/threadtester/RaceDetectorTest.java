@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link RaceDetector}.
+ */
+public class RaceDetectorTest extends TestCase {
+
+  public void testThreadedTests() {
+    ThreadedTestRunner runner = new ThreadedTestRunner();
+    runner.runTests(getClass(), Publisher.class, SimpleCounter.class, BlockingCounter.class);
+  }
+
+  /** Main runnable that invokes a method of a target object. */
+  private static class TargetMain extends MainRunnableImpl<Object> {
+    private final Object target;
+    private final String method;
+
+    TargetMain(Object target, String method) {
+      this.target = target;
+      this.method = method;
+    }
+
+    @Override
+    public Class<Object> getClassUnderTest() {
+      return Object.class;
+    }
+
+    @Override
+    public Object getMainObject() {
+      return target;
+    }
+
+    @Override
+    public void run() throws Exception {
+      target.getClass().getMethod(method).invoke(target);
+    }
+  }
+
+  /** Secondary runnable that invokes a method of the main runnable's target. */
+  private static class TargetSecondary extends SecondaryRunnableImpl<Object, TargetMain> {
+    private final String method;
+    private Object target;
+
+    TargetSecondary(String method) {
+      this.method = method;
+    }
+
+    @Override
+    public void initialize(TargetMain main) {
+      target = main.getMainObject();
+    }
+
+    @Override
+    public void run() throws Exception {
+      target.getClass().getMethod(method).invoke(target);
+    }
+  }
+
+  private static RaceResult detect(Object target, String mainMethod, String secondaryMethod) {
+    RaceResult result = new RaceDetector().detect(new TargetMain(target, mainMethod),
+        new TargetSecondary(secondaryMethod));
+    assertFalse(result.toString(), result.hadException());
+    return result;
+  }
+
+  private static void checkRace(RaceResult result, Class<?> targetClass, String field) {
+    assertTrue(result.toString(), result.hadRace());
+    for (DataRace race : result.getRaces()) {
+      assertEquals(race.toString(), targetClass.getName() + "." + field, race.getField());
+      assertTrue(race.toString(), race.isFirstWrite() || race.isSecondWrite());
+      assertNotSame(race.getFirstThread(), race.getSecondThread());
+      assertTrue(race.toString(), race.getFirstPosition().startsWith(targetClass.getName() + ":"));
+      assertTrue(race.toString(),
+          race.getSecondPosition().startsWith(targetClass.getName() + ":"));
+    }
+  }
+
+  @ThreadedTest
+  public void unsynchronizedIncrements_race() {
+    checkRace(detect(new SimpleCounter(), "increment", "increment"), SimpleCounter.class,
+        "count");
+  }
+
+  @ThreadedTest
+  public void unsafePublication_races() {
+    checkRace(detect(new Publisher(), "publish", "getData"), Publisher.class, "data");
+  }
+
+  @ThreadedTest
+  public void synchronizedIncrements_doNotRace() {
+    RaceResult result = detect(new SimpleCounter(), "synchronizedIncrement", "incrementInBlock");
+    assertFalse(result.toString(), result.hadRace());
+  }
+
+  @ThreadedTest
+  public void lockedIncrements_doNotRace() {
+    RaceResult result = detect(new BlockingCounter(), "lockedIncrement", "lockedIncrement");
+    assertFalse(result.toString(), result.hadRace());
+  }
+
+  @ThreadedTest
+  public void waitAndNotify_doNotRace() {
+    RaceResult result = detect(new BlockingCounter(), "setReady", "awaitReady");
+    assertFalse(result.toString(), result.hadRace());
+  }
+
+  @ThreadedTest
+  public void volatilePublication_doesNotRace() {
+    RaceResult result = detect(new Publisher(), "publishVolatile", "readVolatile");
+    assertFalse(result.toString(), result.hadRace());
+  }
+
+  @ThreadedTest
+  public void latchPublication_doesNotRace() {
+    RaceResult result = detect(new Publisher(), "publishWithLatch", "readWithLatch");
+    assertFalse(result.toString(), result.hadRace());
+  }
+
+  @ThreadedTest
+  public void joinedThread_doesNotRace() {
+    RaceResult result = detect(new Publisher(), "computeInThread", "hashCode");
+    assertFalse(result.toString(), result.hadRace());
+  }
+
+  @ThreadedTest
+  public void unjoinedThread_races() {
+    checkRace(detect(new Publisher(), "computeInThreadWithoutJoin", "hashCode"), Publisher.class,
+        "data");
+  }
+}
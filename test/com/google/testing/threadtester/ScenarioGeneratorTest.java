@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the {@link ScenarioGenerator}.
+ */
+public class ScenarioGeneratorTest extends TestCase {
+
+  public void testThreadedTests() {
+    ThreadedTestRunner runner = new ThreadedTestRunner();
+    runner.runTests(getClass(), UserCache.class, SimpleCounter.class);
+  }
+
+  /**
+   * Model of a {@link SimpleCounter}. The state is a list containing the count
+   * and the other count.
+   */
+  private static class CounterModel implements SequentialModel<List<Integer>> {
+    @Override
+    public List<Integer> getInitialState() {
+      return Arrays.asList(0, 0);
+    }
+
+    @Override
+    public List<Integer> apply(List<Integer> state, History.Call call) {
+      int count = state.get(0);
+      int other = state.get(1);
+      String method = call.getMethod();
+      if (method.equals("getCount")) {
+        return !call.isComplete() || call.getResult().equals(count) ? state : null;
+      } else if (method.equals("getOther")) {
+        return !call.isComplete() || call.getResult().equals(other) ? state : null;
+      } else if (method.equals("incrementOther")) {
+        return Arrays.asList(count, other + 1);
+      } else if (method.equals("add")) {
+        return Arrays.asList(count + (Integer) call.getArgument(0), other);
+      }
+      return Arrays.asList(count + 1, other);
+    }
+  }
+
+  @ThreadedTest
+  public void invariant_findsAndShrinksFailure() {
+    ScenarioGenerator<UserCache> generator = new ScenarioGenerator<UserCache>(UserCache.class);
+    generator.setSeed(1);
+    generator.setThreads(3);
+    generator.setInvariant(new ScenarioGenerator.Invariant<UserCache>() {
+      @Override
+      public void check(UserCache cache) {
+        assertTrue("Created twice", cache.getCreated() <= 1);
+      }
+    });
+    ScenarioResult result = generator.generate();
+    assertTrue(result.toString(), result.hadException());
+    assertTrue(result.getMainException() instanceof AssertionError);
+    assertNotNull(result.getSchedule());
+
+    // Two calls are needed to create the user twice, and at least one of them
+    // must be the unsynchronized method.
+    Scenario scenario = result.getScenario();
+    assertEquals(scenario.toString(), 2, scenario.getNumThreads());
+    assertEquals(scenario.toString(), 2, scenario.getNumInvocations());
+    assertTrue(scenario.toString(), scenario.toString().contains("getUser()"));
+    assertTrue(result.getOriginalScenario().getNumInvocations() >= 2);
+
+    // The failing scenario can be repeated from its seed.
+    generator.setSeed(result.getSeed());
+    generator.setScenarios(1);
+    ScenarioResult repeated = generator.generate();
+    assertTrue(repeated.hadException());
+    assertEquals(result.getOriginalScenario().toString(),
+        repeated.getOriginalScenario().toString());
+  }
+
+  @ThreadedTest
+  public void model_findsLostUpdate() {
+    ScenarioGenerator<SimpleCounter> generator =
+        new ScenarioGenerator<SimpleCounter>(SimpleCounter.class);
+    generator.setSeed(1);
+    generator.includeMethod("increment");
+    generator.includeMethod("getCount");
+    generator.setModel(new CounterModel());
+    ScenarioResult result = generator.generate();
+    assertTrue(result.toString(), result.hadException());
+    assertTrue(result.getMainException() instanceof AssertionError);
+    String scenario = result.getScenario().toString();
+    assertEquals(scenario, 3, result.getScenario().getNumInvocations());
+    assertTrue(scenario, scenario.contains("getCount()"));
+  }
+
+  @ThreadedTest
+  public void model_safeMethodsPass() {
+    ScenarioGenerator<SimpleCounter> generator =
+        new ScenarioGenerator<SimpleCounter>(SimpleCounter.class);
+    generator.setSeed(1);
+    generator.setScenarios(20);
+    generator.setParallelism(4);
+    generator.setThreads(3);
+    generator.excludeMethod("increment");
+    generator.excludeMethod("incrementInOneLine");
+    generator.excludeMethod("add");
+    generator.excludeMethod("incrementOther");
+    generator.setModel(new CounterModel());
+    ScenarioResult result = generator.generate();
+    assertFalse(result.toString(), result.hadException());
+    assertEquals(20, result.getNumScenarios());
+    assertNull(result.getScenario());
+  }
+
+  @ThreadedTest
+  public void noMethods_throwsException() {
+    ScenarioGenerator<SimpleCounter> generator =
+        new ScenarioGenerator<SimpleCounter>(SimpleCounter.class);
+    generator.includeMethod("noSuchMethod");
+    try {
+      generator.generate();
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Tests for {@link ScheduleFuzzer}.
+ */
+public class ScheduleFuzzerTest extends TestCase {
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  private static File createCorpusDirectory() throws Exception {
+    File dir = File.createTempFile("corpus", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    return dir;
+  }
+
+  private static int countSchedules(File dir) {
+    return dir.list().length;
+  }
+
+  private static void delete(File dir) {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private static ScheduleFuzzer createFuzzer(int iterations) {
+    ScheduleFuzzer fuzzer = new ScheduleFuzzer();
+    fuzzer.setSeed(1);
+    fuzzer.setIterations(iterations);
+    return fuzzer;
+  }
+
+  @ThreadedTest
+  public void unsafeIncrement_fails() {
+    ExplorationResult result = createFuzzer(200).explore(new CounterFactory(false, 1));
+    assertTrue(result.hadException());
+    assertNotNull(result.getMainException());
+    assertNotNull(result.getSchedule());
+    assertFalse(result.isComplete());
+  }
+
+  @ThreadedTest
+  public void synchronizedIncrement_succeeds() {
+    ExplorationResult result = createFuzzer(50).explore(new CounterFactory(true, 2));
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    // The non-preemptive schedule, followed by the iterations.
+    assertEquals(51, result.getNumSchedules());
+  }
+
+  @ThreadedTest
+  public void parallelWorkers_findFailure() {
+    ScheduleFuzzer fuzzer = createFuzzer(200);
+    fuzzer.setParallelism(4);
+    ExplorationResult result = fuzzer.explore(new CounterFactory(false, 2));
+    assertTrue(result.hadException());
+  }
+
+  @ThreadedTest
+  public void corpus_persistsBetweenRuns() throws Exception {
+    File dir = createCorpusDirectory();
+    try {
+      ScheduleFuzzer fuzzer = createFuzzer(50);
+      fuzzer.setCorpusDirectory(dir);
+      fuzzer.explore(new CounterFactory(true, 2)).throwExceptionsIfAny();
+      int numSaved = countSchedules(dir);
+      assertTrue(numSaved > 0);
+
+      // The saved schedules are run before the first iteration.
+      ScheduleFuzzer next = createFuzzer(1);
+      next.setCorpusDirectory(dir);
+      ExplorationResult result = next.explore(new CounterFactory(true, 2));
+      result.throwExceptionsIfAny();
+      assertEquals(numSaved + 2, result.getNumSchedules());
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @ThreadedTest
+  public void corpus_keepsFailingSchedule() throws Exception {
+    File dir = createCorpusDirectory();
+    try {
+      ScheduleFuzzer fuzzer = createFuzzer(200);
+      fuzzer.setCorpusDirectory(dir);
+      assertTrue(fuzzer.explore(new CounterFactory(false, 1)).hadException());
+
+      // The failure is found again while loading the corpus.
+      ScheduleFuzzer next = createFuzzer(1);
+      next.setCorpusDirectory(dir);
+      next.setSeed(2);
+      ExplorationResult result = next.explore(new CounterFactory(false, 1));
+      assertTrue(result.hadException());
+      assertTrue(result.getNumSchedules() <= countSchedules(dir) + 1);
+    } finally {
+      delete(dir);
+    }
+  }
+}
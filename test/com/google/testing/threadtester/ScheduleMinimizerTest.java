@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Tests for {@link ScheduleMinimizer}.
+ */
+public class ScheduleMinimizerTest extends TestCase {
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  /**
+   * Returns the number of preemptions in a schedule, i.e. the switches made
+   * from a thread that had not finished. All of the switches in these tests
+   * are made at field accesses, so none of the threads are blocked.
+   */
+  private int getNumPreemptions(Schedule schedule) {
+    int preemptions = 0;
+    for (Schedule.ContextSwitch contextSwitch : schedule.getSwitches()) {
+      if (contextSwitch.getThread() >= 0 &&
+          !schedule.getProbe(contextSwitch.getProbe()).equals(Operation.END.getProbe())) {
+        preemptions++;
+      }
+    }
+    return preemptions;
+  }
+
+  private Schedule findFailingSchedule(CounterFactory factory) {
+    PctExplorer explorer = new PctExplorer();
+    explorer.setSeed(1234L);
+    explorer.setDepth(4);
+    ExplorationResult result = explorer.explore(factory);
+    assertTrue(result.hadException());
+    return result.getSchedule();
+  }
+
+  @ThreadedTest
+  public void minimizeSinglePreemption() {
+    ExplorationResult found = new DporExplorer().explore(new CounterFactory(false, 1));
+    ScheduleMinimizer minimizer = new ScheduleMinimizer(found.getSchedule());
+    ExplorationResult result = minimizer.explore(new CounterFactory(false, 1));
+    assertTrue(result.hadException());
+    assertTrue(result.isComplete());
+    Schedule minimal = result.getSchedule();
+    assertEquals(1, getNumPreemptions(minimal));
+
+    List<String> steps = minimal.describeSteps();
+    assertEquals(3, steps.size());
+    assertTrue(steps.get(0), steps.get(0).startsWith("run thread 0 until write"));
+    assertTrue(steps.get(1), steps.get(1).startsWith("pause thread 0 at write"));
+    assertTrue(steps.get(1), steps.get(1).endsWith("run thread 1 to completion"));
+    assertEquals("run thread 0 to completion", steps.get(2));
+  }
+
+  @ThreadedTest
+  public void minimizeRandomSchedule() {
+    Schedule schedule = findFailingSchedule(new CounterFactory(false, 2));
+    ExplorationResult result =
+        new ScheduleMinimizer(schedule).explore(new CounterFactory(false, 2));
+    assertTrue(result.hadException());
+    assertTrue(result.isComplete());
+    Schedule minimal = result.getSchedule();
+    assertTrue(getNumPreemptions(minimal) >= 1);
+    assertTrue(getNumPreemptions(minimal) <= getNumPreemptions(schedule));
+
+    // The minimized schedule can be replayed exactly.
+    result = new ScheduleReplayer(minimal).explore(new CounterFactory(false, 2));
+    assertTrue(result.hadException());
+  }
+
+  @ThreadedTest
+  public void parallelCandidates() {
+    Schedule schedule = findFailingSchedule(new CounterFactory(false, 2));
+    ScheduleMinimizer sequential = new ScheduleMinimizer(schedule);
+    Schedule expected = sequential.explore(new CounterFactory(false, 2)).getSchedule();
+
+    ScheduleMinimizer parallel = new ScheduleMinimizer(schedule);
+    parallel.setParallelism(4);
+    ExplorationResult result = parallel.explore(new CounterFactory(false, 2));
+    assertTrue(result.isComplete());
+    // Candidates are chosen in the same order, however they are run.
+    assertEquals(expected.toString(), result.getSchedule().toString());
+  }
+
+  @ThreadedTest
+  public void passingSchedule_notMinimized() {
+    // Run the secondary thread to completion, and then the main thread.
+    Schedule schedule = new Schedule();
+    schedule.addSwitch(-1, null, 0, 1);
+    ExplorationResult result = new ScheduleMinimizer(schedule).explore(
+        new CounterFactory(false, 1));
+    assertFalse(result.hadException());
+    assertEquals(1, result.getNumSchedules());
+  }
+}
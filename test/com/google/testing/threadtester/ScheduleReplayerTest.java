@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Tests for {@link ScheduleReplayer}.
+ */
+public class ScheduleReplayerTest extends TestCase {
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  /** Returns a copy of the given schedule, read back from its binary form. */
+  private Schedule copy(Schedule schedule) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    schedule.writeTo(out);
+    return Schedule.readFrom(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  /** Finds a failing schedule, and returns a copy read back from its binary form. */
+  private Schedule findFailingSchedule() throws Exception {
+    ExplorationResult result = new DporExplorer().explore(new CounterFactory(false, 1));
+    assertTrue(result.hadException());
+    return copy(result.getSchedule());
+  }
+
+  @ThreadedTest
+  public void replayFailingSchedule() throws Exception {
+    Schedule schedule = findFailingSchedule();
+    for (int i = 0; i < 3; i++) {
+      ExplorationResult result = new ScheduleReplayer(schedule).explore(
+          new CounterFactory(false, 1));
+      assertTrue(result.hadException());
+      assertEquals(1, result.getNumSchedules());
+      assertEquals(schedule.toString(), result.getSchedule().toString());
+    }
+  }
+
+  @ThreadedTest
+  public void replayPassingSchedule() throws Exception {
+    // Run the secondary thread to completion, and then the main thread.
+    Schedule schedule = new Schedule();
+    schedule.addSwitch(-1, null, 0, 1);
+    schedule.addSwitch(1, Operation.END.getProbe(), 1, 0);
+    ExplorationResult result = new ScheduleReplayer(schedule).explore(
+        new CounterFactory(false, 1));
+    result.throwExceptionsIfAny();
+  }
+
+  @ThreadedTest
+  public void replayInterleavedRunnerSchedule() throws Exception {
+    CounterFactory factory = new CounterFactory(false, 1);
+    CounterFactory.CounterMain main = factory.createMain();
+    RunResult result = InterleavedRunner.interleave(main, factory.createSecondaries(main));
+    assertTrue(result.hadException());
+    Schedule schedule = copy(result.getSchedule());
+    assertEquals(2, schedule.getNumProbes());
+    assertTrue(schedule.getProbe(0), schedule.getProbe(0).startsWith(
+        "line " + SimpleCounter.class.getName() + ":"));
+    for (int i = 0; i < 3; i++) {
+      main = factory.createMain();
+      RunResult replayed = InterleavedRunner.replay(main, factory.createSecondaries(main),
+          schedule);
+      assertTrue(replayed.hadException());
+      assertEquals(1, main.numRuns);
+      assertEquals(schedule.toString(), replayed.getSchedule().toString());
+    }
+  }
+
+  @ThreadedTest
+  public void replayInterleavedRunnerScheduleInDifferentMethod_fails() throws Exception {
+    CounterFactory factory = new CounterFactory(false, 1);
+    CounterFactory.CounterMain main = factory.createMain();
+    Schedule schedule =
+        InterleavedRunner.interleave(main, factory.createSecondaries(main)).getSchedule();
+    factory = new CounterFactory(true, 1);
+    main = factory.createMain();
+    try {
+      InterleavedRunner.replay(main, factory.createSecondaries(main), schedule);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+
+  @ThreadedTest
+  public void replayExplorerScheduleInInterleavedRunner_fails() throws Exception {
+    Schedule schedule = findFailingSchedule();
+    CounterFactory factory = new CounterFactory(false, 1);
+    CounterFactory.CounterMain main = factory.createMain();
+    try {
+      InterleavedRunner.replay(main, factory.createSecondaries(main), schedule);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  @ThreadedTest
+  public void replayDifferentCode_fails() throws Exception {
+    Schedule schedule = findFailingSchedule();
+    try {
+      new ScheduleReplayer(schedule).explore(new CounterFactory(true, 1));
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Tests for {@link Schedule}.
+ */
+public class ScheduleTest extends TestCase {
+
+  private Schedule createSchedule() {
+    Schedule schedule = new Schedule();
+    schedule.addSwitch(-1, null, 0, 1);
+    schedule.addSwitch(1, "write Foo.x at Foo:10", 1, 0);
+    schedule.addSwitch(0, "read Foo.x at Foo:20", 300, 1);
+    schedule.addSwitch(1, "write Foo.x at Foo:10", 2, 2);
+    schedule.addSwitch(2, "end", 1, 0);
+    return schedule;
+  }
+
+  private void assertSameSchedule(Schedule expected, Schedule actual) {
+    assertEquals(expected.getNumProbes(), actual.getNumProbes());
+    List<Schedule.ContextSwitch> expectedSwitches = expected.getSwitches();
+    List<Schedule.ContextSwitch> actualSwitches = actual.getSwitches();
+    assertEquals(expectedSwitches.size(), actualSwitches.size());
+    for (int i = 0; i < expectedSwitches.size(); i++) {
+      Schedule.ContextSwitch e = expectedSwitches.get(i);
+      Schedule.ContextSwitch a = actualSwitches.get(i);
+      assertEquals(e.getThread(), a.getThread());
+      assertEquals(e.getProbe(), a.getProbe());
+      assertEquals(e.getHitCount(), a.getHitCount());
+      assertEquals(e.getNextThread(), a.getNextThread());
+    }
+    assertEquals(expected.toString(), actual.toString());
+  }
+
+  public void testProbesAreShared() {
+    Schedule schedule = createSchedule();
+    assertEquals(3, schedule.getNumProbes());
+    List<Schedule.ContextSwitch> switches = schedule.getSwitches();
+    assertEquals(-1, switches.get(0).getProbe());
+    assertEquals(switches.get(1).getProbe(), switches.get(3).getProbe());
+    assertEquals("read Foo.x at Foo:20", schedule.getProbe(switches.get(2).getProbe()));
+  }
+
+  public void testDescribeSteps() {
+    List<String> steps = createSchedule().describeSteps();
+    assertEquals(5, steps.size());
+    assertEquals("run thread 1 until write Foo.x at Foo:10", steps.get(0));
+    assertEquals("pause thread 1 at write Foo.x at Foo:10, " +
+        "run thread 0 until read Foo.x at Foo:20 (hit 300)", steps.get(1));
+    assertEquals("pause thread 0 at read Foo.x at Foo:20 (hit 300), " +
+        "run thread 1 until write Foo.x at Foo:10 (hit 2)", steps.get(2));
+    assertEquals("pause thread 1 at write Foo.x at Foo:10 (hit 2), " +
+        "run thread 2 to completion", steps.get(3));
+    assertEquals("run thread 0 to completion", steps.get(4));
+  }
+
+  public void testWriteAndRead() throws Exception {
+    Schedule schedule = createSchedule();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    schedule.writeTo(out);
+    Schedule copy = Schedule.readFrom(new ByteArrayInputStream(out.toByteArray()));
+    assertSameSchedule(schedule, copy);
+  }
+
+  public void testFormatIsCompact() throws Exception {
+    Schedule schedule = new Schedule();
+    schedule.addSwitch(-1, null, 0, 0);
+    for (int i = 1; i <= 100; i++) {
+      schedule.addSwitch(i % 2, "probe", i, (i + 1) % 2);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    schedule.writeTo(out);
+    // Header, one probe, and four bytes for each switch
+    assertEquals(4 + 1 + 7 + 1 + 101 * 4, out.size());
+  }
+
+  public void testSaveAndLoad() throws Exception {
+    Schedule schedule = createSchedule();
+    File file = File.createTempFile("schedule", ".bin");
+    try {
+      schedule.save(file);
+      assertSameSchedule(schedule, Schedule.load(file));
+    } finally {
+      file.delete();
+    }
+  }
+
+  public void testReadInvalidData() throws Exception {
+    try {
+      Schedule.readFrom(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5}));
+      fail("Expected IOException");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+}
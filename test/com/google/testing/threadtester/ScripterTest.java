@@ -225,4 +225,89 @@ public class ScripterTest extends TestCase {
     assertEquals("Script 1 7", sequence.get(14));
     assertEquals("Script 1 8", sequence.get(15));
   }
+
+  @ThreadedTest
+  public void runScriptWithWaitAndNotify() throws Exception {
+    final SimpleClass3 testObject = new SimpleClass3();
+
+    final Script<SimpleClass3> main = new Script<SimpleClass3>(testObject);
+    final Script<SimpleClass3> second = new Script<SimpleClass3>(main);
+
+    final SimpleClass3 control = main.object();
+    final SimpleClass4 target = main.createTarget(SimpleClass4.class);
+
+    // Release to the second script while holding the monitor, just before
+    // waiting. The second script blocks until the main script waits, and then
+    // notifies it.
+    main.in(control.awaitReady("")).afterCalling(target.method1()).releaseTo(second);
+
+    main.addTask(new ScriptedTask<SimpleClass3>() {
+      @Override
+      public void execute() throws Exception {
+        testObject.awaitReady("Script 1 ");
+      }
+    });
+
+    second.addTask(new ScriptedTask<SimpleClass3>() {
+      @Override
+      public void execute() {
+        testObject.setReady("Script 2 ");
+        releaseTo(main);
+      }
+    });
+
+    new Scripter<SimpleClass3>(main, second).execute();
+
+    List<String> sequence = testObject.getSequence();
+    assertEquals(3, sequence.size());
+    assertEquals("Script 1 1", sequence.get(0));
+    assertEquals("Script 2 1", sequence.get(1));
+    assertEquals("Script 1 2", sequence.get(2));
+  }
+
+  @ThreadedTest
+  public void runScriptWithLock() throws Exception {
+    final SimpleClass3 testObject = new SimpleClass3();
+
+    final Script<SimpleClass3> main = new Script<SimpleClass3>(testObject);
+    final Script<SimpleClass3> second = new Script<SimpleClass3>(main);
+
+    final SimpleClass3 control = main.object();
+    final SimpleClass4 target = main.createTarget(SimpleClass4.class);
+
+    // Release to the second script while holding the lock. The second script
+    // blocks, so the main script is stepped until it releases the lock.
+    main.in(control.mainMethodWithLock("")).afterCalling(target.method1()).releaseTo(second);
+
+    main.addTask(new ScriptedTask<SimpleClass3>() {
+      @Override
+      public void execute() {
+        testObject.mainMethodWithLock("Script 1 ");
+      }
+    });
+
+    second.addTask(new ScriptedTask<SimpleClass3>() {
+      @Override
+      public void execute() {
+        testObject.mainMethodWithLock("Script 2 ");
+        releaseTo(main);
+      }
+    });
+
+    long start = System.currentTimeMillis();
+    new Scripter<SimpleClass3>(main, second).execute();
+    // The lock probes report the blocked script, so the Scripter does not
+    // have to wait for its timeout before checking the thread state.
+    long elapsed = System.currentTimeMillis() - start;
+    assertTrue("Took " + elapsed, elapsed < Options.timeout());
+
+    List<String> sequence = testObject.getSequence();
+    assertEquals(6, sequence.size());
+    assertEquals("Script 1 1", sequence.get(0));
+    assertEquals("Script 2 1", sequence.get(1));
+    assertEquals("Script 1 2", sequence.get(2));
+    assertEquals("Script 2 2", sequence.get(3));
+    assertEquals("Script 2 3", sequence.get(4));
+    assertEquals("Script 1 3", sequence.get(5));
+  }
 }
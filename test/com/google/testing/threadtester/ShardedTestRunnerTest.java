@@ -0,0 +1,173 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import com.google.testing.threadtester.CounterFactory.CounterMain;
+import com.google.testing.threadtester.CounterFactory.CounterSecondary;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests running threaded and annotated tests in several worker processes. See
+ * {@link BaseThreadedTestRunner#setShards}.
+ */
+public class ShardedTestRunnerTest extends TestCase {
+
+  private static final List<String> TARGETS =
+      Collections.singletonList(SimpleCounter.class.getName());
+
+  /** Threaded tests that all pass. */
+  public static class PassingThreadedTests {
+    @ThreadedTest
+    public void first() {
+      assertTrue(new ThreadedTestRunner().inThreadedTest());
+    }
+
+    @ThreadedTest
+    public void second() {
+      RunResult result =
+          InterleavedRunner.interleave(new CounterMain(true, 2), new CounterSecondary(true));
+      result.throwExceptionsIfAny();
+    }
+
+    @ThreadedTest
+    public void third() {
+      assertEquals(1, Instrumentation.getClassInstrumentation(SimpleCounter.class)
+          .getMethod("getCount").getNumLines());
+    }
+  }
+
+  /** Threaded tests where one test fails. */
+  public static class FailingThreadedTests {
+    @ThreadedTest
+    public void passes() {
+    }
+
+    @ThreadedTest
+    public void fails() {
+      RunResult result =
+          InterleavedRunner.interleave(new CounterMain(false, 2), new CounterSecondary(false));
+      result.throwExceptionsIfAny();
+    }
+  }
+
+  /** Annotated tests that increment a counter in the main and secondary threads. */
+  public static class AnnotatedCounterTests {
+    protected SimpleCounter counter;
+
+    @ThreadedBefore
+    public void before() {
+      counter = new SimpleCounter();
+    }
+
+    @ThreadedMain
+    public void mainThread() {
+      counter.synchronizedIncrement();
+    }
+
+    @ThreadedSecondary
+    public void secondaryThread() {
+      counter.synchronizedIncrement();
+    }
+
+    @ThreadedVerification
+    public void verify() {
+      assertEquals(2, counter.getCount());
+    }
+  }
+
+  /** Annotated tests that fail, because the counter is not incremented safely. */
+  public static class UnsafeAnnotatedCounterTests extends AnnotatedCounterTests {
+    @ThreadedMain(name = "unsafe")
+    public void unsafeMainThread() {
+      counter.increment();
+    }
+
+    @ThreadedSecondary(name = "unsafe")
+    public void unsafeSecondaryThread() {
+      counter.increment();
+    }
+
+    @ThreadedVerification(name = "unsafe")
+    public void verifyUnsafe() {
+      assertEquals("Lost update", 2, counter.getCount());
+    }
+  }
+
+  public void testThreadedTests_allPass() {
+    ThreadedTestRunner runner = new ThreadedTestRunner();
+    assertEquals(3, runner.getTasks(PassingThreadedTests.class.getName(), TARGETS).size());
+    runner.setShards(2);
+    runner.runTests(PassingThreadedTests.class, SimpleCounter.class);
+  }
+
+  public void testThreadedTests_failureIsReported() {
+    ThreadedTestRunner runner = new ThreadedTestRunner();
+    runner.setShards(2);
+    try {
+      runner.runTests(FailingThreadedTests.class, SimpleCounter.class);
+      fail();
+    } catch (RuntimeException e) {
+      assertLostUpdate(e);
+    }
+  }
+
+  public void testAnnotatedTests_allPass() {
+    AnnotatedTestRunner runner = new AnnotatedTestRunner();
+    List<String> tasks = runner.getTasks(AnnotatedCounterTests.class.getName(), TARGETS);
+    // There is a task for each line of synchronizedIncrement().
+    assertEquals(3, tasks.size());
+    for (int i = 0; i < tasks.size(); i++) {
+      assertTrue(tasks.get(i), tasks.get(i).endsWith("synchronizedIncrement() " + i));
+    }
+    runner.setShards(2);
+    runner.runTests(AnnotatedCounterTests.class, SimpleCounter.class);
+  }
+
+  public void testAnnotatedTests_failureIsReported() {
+    AnnotatedTestRunner runner = new AnnotatedTestRunner();
+    runner.setShards(3);
+    try {
+      runner.runTests(UnsafeAnnotatedCounterTests.class, SimpleCounter.class);
+      fail();
+    } catch (RuntimeException e) {
+      assertLostUpdate(e);
+    }
+  }
+
+  public void testSetShards_notPositive() {
+    try {
+      new AnnotatedTestRunner().setShards(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  /** Verifies that the exception was caused by a lost update. */
+  private static void assertLostUpdate(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof AssertionFailedError && cause.getMessage().startsWith("Lost update")) {
+        return;
+      }
+    }
+    throw new AssertionError(e);
+  }
+}
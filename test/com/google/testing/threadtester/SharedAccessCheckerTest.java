@@ -0,0 +1,135 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Tests for {@link SharedAccessChecker}.
+ */
+public class SharedAccessCheckerTest extends TestCase {
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  private MethodInstrumentation getMethod(String name) throws Exception {
+    ClassInstrumentation clss = Instrumentation.getClassInstrumentation(SimpleCounter.class);
+    return clss.getMethod(name);
+  }
+
+  @ThreadedTest
+  public void classifyLines() throws Exception {
+    MethodInstrumentation method = getMethod("add");
+    SharedAccessChecker.MethodAccesses accesses =
+        new SharedAccessChecker().getAccesses(method.getUnderlyingMethod());
+    List<LineInstrumentation> lines = method.getLines();
+    assertEquals(4, lines.size());
+    assertTrue(accesses.getAccesses(lines.get(0).getLineNumber()).isEmpty());
+    assertTrue(accesses.getAccesses(lines.get(1).getLineNumber()).isEmpty());
+    assertEquals(EnumSet.of(SharedAccessChecker.Access.FIELD_READ,
+        SharedAccessChecker.Access.FIELD_WRITE),
+        accesses.getAccesses(lines.get(2).getLineNumber()));
+  }
+
+  @ThreadedTest
+  public void classifyLocks() throws Exception {
+    MethodInstrumentation method = getMethod("incrementInBlock");
+    SharedAccessChecker.MethodAccesses accesses =
+        new SharedAccessChecker().getAccesses(method.getUnderlyingMethod());
+    int firstLine = method.getLines().get(0).getLineNumber();
+    assertTrue(accesses.getAccesses(firstLine).contains(SharedAccessChecker.Access.LOCK));
+  }
+
+  @ThreadedTest
+  public void distinctLines() throws Exception {
+    SharedAccessChecker checker = new SharedAccessChecker();
+    assertEquals(Arrays.asList(0, 3), checker.getDistinctLines(getMethod("add")));
+    assertEquals(Arrays.asList(0, 1, 2), checker.getDistinctLines(getMethod("increment")));
+  }
+
+  @ThreadedTest
+  public void prioritizedLines() throws Exception {
+    SharedAccessChecker checker = new SharedAccessChecker();
+    // The line that updates the count comes first.
+    assertEquals(Arrays.asList(2, 0, 1, 3), checker.getPrioritizedLines(getMethod("add")));
+    // The lines inside the synchronized block come first, followed by the
+    // lines that enter and leave the block.
+    assertEquals(Arrays.asList(1, 2, 0, 3, 4),
+        checker.getPrioritizedLines(getMethod("incrementInBlock")));
+  }
+
+  @ThreadedTest
+  public void interleaveAtSharedAccesses() {
+    MainRunnableImpl<SimpleCounter> main = new MainRunnableImpl<SimpleCounter>() {
+      private SimpleCounter counter;
+
+      @Override
+      public Class<SimpleCounter> getClassUnderTest() {
+        return SimpleCounter.class;
+      }
+
+      @Override
+      public String getMethodName() {
+        return "add";
+      }
+
+      @Override
+      public void initialize() {
+        counter = new SimpleCounter();
+      }
+
+      @Override
+      public SimpleCounter getMainObject() {
+        return counter;
+      }
+
+      @Override
+      public void run() {
+        counter.add(3);
+      }
+
+      @Override
+      public void terminate() {
+        assertEquals(4, counter.getCount());
+      }
+    };
+    SecondaryRunnableImpl<SimpleCounter, MainRunnableImpl<SimpleCounter>> secondary =
+        new SecondaryRunnableImpl<SimpleCounter, MainRunnableImpl<SimpleCounter>>() {
+      private SimpleCounter counter;
+
+      @Override
+      public void initialize(MainRunnableImpl<SimpleCounter> main) {
+        counter = main.getMainObject();
+      }
+
+      @Override
+      public void run() {
+        counter.increment();
+      }
+    };
+    ExplorationResult result = InterleavedRunner.interleaveAtSharedAccesses(main, secondary);
+    result.throwExceptionsIfAny();
+    assertEquals(2, result.getNumSchedules());
+    assertEquals(2, result.getNumPruned());
+  }
+}
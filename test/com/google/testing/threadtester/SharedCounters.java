@@ -0,0 +1,55 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+/**
+ * Counters that are updated by different threads, some of which are padded to
+ * avoid false sharing. Used to test the {@link FalseSharingDetector}.
+ */
+public class SharedCounters {
+
+  private long first;
+
+  private long second;
+
+  // Padding, to keep the padded count in a different cache line from the
+  // other counts.
+  private long p1, p2, p3, p4, p5, p6, p7, p8;
+
+  private long padded;
+
+  public void incrementFirst() {
+    first++;
+  }
+
+  public void incrementSecond() {
+    second++;
+  }
+
+  public void incrementPadded() {
+    padded++;
+  }
+
+  /** Increments the first count and the padded count. */
+  public void incrementFirstAndPadded() {
+    first++;
+    padded++;
+  }
+
+  public long getTotal() {
+    return first + second + padded;
+  }
+}
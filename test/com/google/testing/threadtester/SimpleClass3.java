@@ -18,6 +18,8 @@ package com.google.testing.threadtester;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Simple class used by ScripterTest.
@@ -28,6 +30,8 @@ public class SimpleClass3 {
 
   private List<String> sequence = new ArrayList<String>();
   SimpleClass4 second;
+  private boolean ready;
+  private final Lock lock = new ReentrantLock();
 
   SimpleClass3() {
     second = new SimpleClass4();
@@ -80,6 +84,36 @@ public class SimpleClass3 {
   }
 
 
+  synchronized int awaitReady(String arg) throws InterruptedException {
+    sequence.add(arg + 1);
+    while (!ready) {
+      second.method1();
+      wait();
+    }
+    sequence.add(arg + 2);
+    return 0;
+  }
+
+  synchronized int setReady(String arg) {
+    sequence.add(arg + 1);
+    ready = true;
+    notifyAll();
+    return 0;
+  }
+
+  int mainMethodWithLock(String arg) {
+    sequence.add(arg + 1);
+    lock.lock();
+    try {
+      second.method1();
+      sequence.add(arg + 2);
+    } finally {
+      lock.unlock();
+    }
+    sequence.add(arg + 3);
+    return 0;
+  }
+
   int secondMethod(String arg) {
     sequence.add(arg + 5);
     second.method1();
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+/**
+ * Simple counter class, containing both thread-safe and unsafe methods. Used to
+ * test the {@link ScheduleExplorer}s.
+ */
+public class SimpleCounter {
+
+  private int count;
+
+  private int other;
+
+  /** Increments the count. Not thread-safe. */
+  public void increment() {
+    int current = count;
+    count = current + 1;
+  }
+
+  /**
+   * Increments the count in a single line. Not thread-safe, but another thread
+   * can only interrupt it between lines if it is stopped part way through its
+   * own method.
+   */
+  public void incrementInOneLine() {
+    count = count + 1;
+  }
+
+  /** Increments the count while holding this object's monitor. */
+  public synchronized void synchronizedIncrement() {
+    int current = count;
+    count = current + 1;
+  }
+
+  /** Increments the count in a synchronized block. */
+  public void incrementInBlock() {
+    synchronized (this) {
+      int current = count;
+      count = current + 1;
+    }
+  }
+
+  /**
+   * Adds the given amount to the count. Not thread-safe. The first two lines
+   * only use local variables.
+   */
+  public void add(int amount) {
+    int delta = amount * 2;
+    delta = delta / 2;
+    count = count + delta;
+  }
+
+  /** Increments the other count. Not thread-safe. */
+  public void incrementOther() {
+    int current = other;
+    other = current + 1;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public int getOther() {
+    return other;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import com.google.testing.threadtester.CounterFactory.CounterMain;
+import com.google.testing.threadtester.CounterFactory.CounterSecondary;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link InterleavedRunner#interleaveDistinctStates}.
+ */
+public class StateDeduplicationTest extends TestCase {
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class);
+  }
+
+  @ThreadedTest
+  public void localLines_pruned() {
+    CounterMain main = new CounterMain("add", 4) {
+      @Override
+      public void run() {
+        counter.add(3);
+      }
+    };
+    ExplorationResult result =
+        InterleavedRunner.interleaveDistinctStates(main, new CounterSecondary("increment"));
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    // Stopping before each of the first three lines is equivalent, since the
+    // main thread has not accessed any fields. Only the first of these, and
+    // the stop at the end of the method, are run.
+    assertEquals(2, result.getNumSchedules());
+    assertEquals(2, result.getNumPruned());
+  }
+
+  @ThreadedTest
+  public void unsafeIncrement_stillFails() {
+    ExplorationResult result = InterleavedRunner.interleaveDistinctStates(
+        new CounterMain("increment", 2), new CounterSecondary("increment"));
+    assertTrue(result.hadException());
+    assertFalse(result.isComplete());
+    assertEquals(0, result.getNumPruned());
+  }
+
+  @ThreadedTest
+  public void stateHash_dependsOnValues() {
+    StateHasher hasher = new StateHasher();
+    SimpleCounter first = new SimpleCounter();
+    SimpleCounter second = new SimpleCounter();
+    assertEquals(hasher.hash(first), hasher.hash(second));
+    second.increment();
+    assertFalse(hasher.hash(first).equals(hasher.hash(second)));
+    first.increment();
+    assertEquals(hasher.hash(first), hasher.hash(second));
+  }
+
+  @ThreadedTest
+  public void stateHash_dependsOnShape() {
+    StateHasher hasher = new StateHasher();
+    List<Object> same = new ArrayList<Object>();
+    List<Object> different = new ArrayList<Object>();
+    List<Object> a = new ArrayList<Object>();
+    List<Object> b = new ArrayList<Object>();
+    same.add(a);
+    same.add(a);
+    different.add(a);
+    different.add(b);
+    assertFalse(hasher.hash(same).equals(hasher.hash(different)));
+    List<Object> cyclic = new ArrayList<Object>();
+    cyclic.add(cyclic);
+    assertNotNull(hasher.hash(cyclic));
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects statistics, using more synchronization than it needs. Used to test
+ * the {@link ElisionAdvisor}.
+ */
+public class Statistics {
+
+  /** A monitor shared by all instances. */
+  private static final Object SHARED_LOCK = new Object();
+
+  private volatile boolean closed;
+
+  private volatile int hits;
+
+  private int total;
+
+  private int localTotal;
+
+  private int ownTotal;
+
+  private final Object localLock = new Object();
+
+  private final Lock lock = new ReentrantLock();
+
+  public void close() {
+    closed = true;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /** Counts a hit. Not thread-safe. */
+  public void hit() {
+    hits = hits + 1;
+  }
+
+  /** Adds one to the total, which is shared by all threads. */
+  public synchronized void add() {
+    total = total + 1;
+  }
+
+  /**
+   * Adds one to the local total, while holding a monitor that no other method
+   * uses.
+   */
+  public void addLocal() {
+    synchronized (localLock) {
+      localTotal = localTotal + 1;
+    }
+  }
+
+  /** Adds one to the total while holding a Lock. */
+  public void addLocked() {
+    lock.lock();
+    try {
+      total = total + 1;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds one to this object's own total, while holding a monitor shared by all
+   * instances. If each thread has its own instance, the monitor is contended,
+   * but does not protect anything.
+   */
+  public void addOwn() {
+    synchronized (SHARED_LOCK) {
+      ownTotal = ownTotal + 1;
+    }
+  }
+
+  public synchronized int getTotal() {
+    return total;
+  }
+}
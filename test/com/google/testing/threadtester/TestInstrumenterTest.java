@@ -19,6 +19,7 @@ import junit.framework.TestCase;
 
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -220,4 +221,70 @@ public class TestInstrumenterTest extends TestCase {
     assertEquals(FakeLogger.Type.END, records.get(8).type);
     assertEquals(overloadedSublass, records.get(8).caller);
   }
+
+  @ThreadedTest
+  public void synchronizedBlock() throws Exception {
+    InstrumenterTestClass tc = new InstrumenterTestClass();
+    FakeLogger logger = FakeLoggerFactory.getLogger(tc);
+    tc.synchronizedBlock();
+
+    List<FakeLogger.Record> records = getMonitorRecords(logger);
+    assertEquals(3, records.size());
+    assertEquals(FakeLogger.Type.MONITOR_ENTER, records.get(0).type);
+    assertSame(tc.lock, records.get(0).monitor);
+    assertEquals(FakeLogger.Type.MONITOR_ACQUIRED, records.get(1).type);
+    assertEquals(FakeLogger.Type.MONITOR_EXIT, records.get(2).type);
+    assertSame(tc.lock, records.get(2).monitor);
+  }
+
+  @ThreadedTest
+  public void synchronizedMethod() throws Exception {
+    InstrumenterTestClass tc = new InstrumenterTestClass();
+    FakeLogger logger = FakeLoggerFactory.getLogger(tc);
+    tc.synchronizedMethod();
+
+    List<FakeLogger.Record> records = getMonitorRecords(logger);
+    assertEquals(3, records.size());
+    assertEquals(FakeLogger.Type.MONITOR_ENTER, records.get(0).type);
+    assertSame(tc, records.get(0).monitor);
+    assertEquals(FakeLogger.Type.MONITOR_ACQUIRED, records.get(1).type);
+    assertEquals(FakeLogger.Type.MONITOR_EXIT, records.get(2).type);
+    assertSame(tc, records.get(2).monitor);
+  }
+
+  @ThreadedTest
+  public void fieldAccess() throws Exception {
+    InstrumenterTestClass tc = new InstrumenterTestClass();
+    FakeLogger logger = FakeLoggerFactory.getLogger(tc);
+    tc.incrementValue();
+
+    String field = InstrumenterTestClass.class.getName() + ".value";
+    List<FakeLogger.Record> records = new ArrayList<FakeLogger.Record>();
+    for (FakeLogger.Record record : logger.getRecords()) {
+      if (record.type == FakeLogger.Type.FIELD_READ ||
+          record.type == FakeLogger.Type.FIELD_WRITE) {
+        records.add(record);
+      }
+    }
+    assertEquals(2, records.size());
+    assertEquals(FakeLogger.Type.FIELD_READ, records.get(0).type);
+    assertEquals(field, records.get(0).field);
+    assertSame(tc, records.get(0).monitor);
+    assertEquals(FakeLogger.Type.FIELD_WRITE, records.get(1).type);
+    assertEquals(field, records.get(1).field);
+    assertSame(tc, records.get(1).monitor);
+    assertEquals(records.get(0).line, records.get(1).line);
+  }
+
+  private List<FakeLogger.Record> getMonitorRecords(FakeLogger logger) {
+    List<FakeLogger.Record> result = new ArrayList<FakeLogger.Record>();
+    for (FakeLogger.Record record : logger.getRecords()) {
+      if (record.type == FakeLogger.Type.MONITOR_ENTER ||
+          record.type == FakeLogger.Type.MONITOR_ACQUIRED ||
+          record.type == FakeLogger.Type.MONITOR_EXIT) {
+        result.add(record);
+      }
+    }
+    return result;
+  }
 }
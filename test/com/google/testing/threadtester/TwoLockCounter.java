@@ -0,0 +1,122 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counter class that is protected by two monitors and by two {@link Lock}s.
+ * Methods that acquire them in opposite orders can deadlock. Used to test
+ * deadlock detection.
+ */
+public class TwoLockCounter {
+
+  private final Object first = new Object();
+
+  private final Object second = new Object();
+
+  private final Lock firstLock = new ReentrantLock();
+
+  private final Lock secondLock = new ReentrantLock();
+
+  private int count;
+
+  /** Increments the count while holding the first and then the second monitor. */
+  public void incrementFirstSecond() {
+    synchronized (first) {
+      synchronized (second) {
+        count++;
+      }
+    }
+  }
+
+  /** Increments the count while holding the second and then the first monitor. */
+  public void incrementSecondFirst() {
+    synchronized (second) {
+      synchronized (first) {
+        count++;
+      }
+    }
+  }
+
+  /** Increments the count while holding the first and then the second Lock. */
+  public void lockFirstSecond() {
+    firstLock.lock();
+    try {
+      secondLock.lock();
+      try {
+        count++;
+      } finally {
+        secondLock.unlock();
+      }
+    } finally {
+      firstLock.unlock();
+    }
+  }
+
+  /** Increments the count while holding the second and then the first Lock. */
+  public void lockSecondFirst() {
+    secondLock.lock();
+    try {
+      firstLock.lock();
+      try {
+        count++;
+      } finally {
+        firstLock.unlock();
+      }
+    } finally {
+      secondLock.unlock();
+    }
+  }
+
+  /**
+   * Increments the count while holding this object's monitor, and then the
+   * first and second monitors. The outer monitor prevents a deadlock with
+   * {@link #guardedSecondFirst}.
+   */
+  public synchronized void guardedFirstSecond() {
+    incrementFirstSecond();
+  }
+
+  /**
+   * Increments the count while holding this object's monitor, and then the
+   * second and first monitors.
+   */
+  public synchronized void guardedSecondFirst() {
+    incrementSecondFirst();
+  }
+
+  /** Increments the count while holding this object's monitor and then the first monitor. */
+  public synchronized void incrementThisFirst() {
+    synchronized (first) {
+      count++;
+    }
+  }
+
+  /** Increments the count while holding the first monitor and then this object's monitor. */
+  public void incrementFirstThis() {
+    synchronized (first) {
+      synchronized (this) {
+        count++;
+      }
+    }
+  }
+
+  public int getCount() {
+    return count;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import com.google.testing.threadtester.CounterFactory.CounterMain;
+import com.google.testing.threadtester.CounterFactory.CounterSecondary;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests {@link InterleavedRunner#interleaveBothSides}.
+ */
+public class TwoSidedInterleavingTest extends TestCase {
+
+  ThreadedTestRunner runner = new ThreadedTestRunner();
+
+  public void testThreadedTests() {
+    runner.runTests(getClass(), SimpleCounter.class, SimpleClass.class);
+  }
+
+  private static MethodInstrumentation getMethod(String name) throws Exception {
+    return Instrumentation.getClassInstrumentation(SimpleCounter.class).getMethod(name);
+  }
+
+  private static int countPairs(String mainMethod, String secondaryMethod) throws Exception {
+    return getMethod(mainMethod).getNumLines() * getMethod(secondaryMethod).getNumLines();
+  }
+
+  @ThreadedTest
+  public void unsafeIncrement_onlyFailsWithBothSides() throws Exception {
+    // The main method is a single line, so stopping the main runnable alone
+    // never lets the secondary run between its read and its write.
+    RunResult oneSided = InterleavedRunner.interleave(
+        new CounterMain("incrementInOneLine", 2), new CounterSecondary("increment"));
+    oneSided.throwExceptionsIfAny();
+
+    ExplorationResult result = InterleavedRunner.interleaveBothSides(
+        new CounterMain("incrementInOneLine", 2), new CounterSecondary("increment"),
+        getMethod("increment"), 100);
+    assertTrue(result.hadException());
+    assertNotNull(result.getMainException());
+    assertFalse(result.isComplete());
+  }
+
+  @ThreadedTest
+  public void synchronizedIncrement_succeeds() throws Exception {
+    ExplorationResult result = InterleavedRunner.interleaveBothSides(
+        new CounterMain("synchronizedIncrement", 2), new CounterSecondary("synchronizedIncrement"),
+        getMethod("synchronizedIncrement"), 100);
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+    assertEquals(countPairs("synchronizedIncrement", "synchronizedIncrement"),
+        result.getNumSchedules());
+    assertEquals(0, result.getNumPruned());
+  }
+
+  @ThreadedTest
+  public void mainBlockedBySecondary_succeeds() throws Exception {
+    // When the secondary stops inside its synchronized method, the main
+    // runnable blocks on entering the synchronized block, and the secondary
+    // must be allowed to finish first.
+    ExplorationResult result = InterleavedRunner.interleaveBothSides(
+        new CounterMain("incrementInBlock", 2), new CounterSecondary("synchronizedIncrement"),
+        getMethod("synchronizedIncrement"), 100);
+    result.throwExceptionsIfAny();
+    assertTrue(result.isComplete());
+  }
+
+  @ThreadedTest
+  public void maxPairs_limitsPairs() throws Exception {
+    ExplorationResult result = InterleavedRunner.interleaveBothSides(
+        new CounterMain("synchronizedIncrement", 2), new CounterSecondary("synchronizedIncrement"),
+        getMethod("synchronizedIncrement"), 2);
+    result.throwExceptionsIfAny();
+    assertFalse(result.isComplete());
+    assertEquals(2, result.getNumSchedules());
+    assertEquals(countPairs("synchronizedIncrement", "synchronizedIncrement") - 2,
+        result.getNumPruned());
+  }
+
+  @ThreadedTest
+  public void factory_runsPairsConcurrently() throws Exception {
+    RunnableFactory<CounterMain, SimpleCounter> factory =
+        new RunnableFactory<CounterMain, SimpleCounter>() {
+      @Override
+      public CounterMain createMain() {
+        return new CounterMain("incrementInOneLine", 2);
+      }
+
+      @Override
+      public List<CounterSecondary> createSecondaries(CounterMain main) {
+        return Collections.singletonList(new CounterSecondary("increment"));
+      }
+    };
+    ExplorationResult result =
+        InterleavedRunner.interleaveBothSides(factory, getMethod("increment"), 100, 4);
+    assertTrue(result.hadException());
+    assertFalse(result.isComplete());
+  }
+
+  @ThreadedTest
+  public void secondaryMethodInOtherClass_throws() throws Exception {
+    MethodInstrumentation other =
+        Instrumentation.getClassInstrumentation(SimpleClass.class).getMethods().iterator().next();
+    try {
+      InterleavedRunner.interleaveBothSides(new CounterMain("increment", 2),
+          new CounterSecondary("increment"), other, 100);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2009 Weaver authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.testing.threadtester;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache that creates users on demand, using a check-then-act sequence on a
+ * map. Used to test the {@link AtomicityAnalyzer}.
+ */
+public class UserCache {
+
+  private static final String KEY = "user";
+
+  private final Map<String, Integer> users = new HashMap<String, Integer>();
+
+  private final Map<String, Integer> roles = new HashMap<String, Integer>();
+
+  private int created;
+
+  /**
+   * Gets the user, creating it if it does not exist. Not thread-safe, as two
+   * threads may both create the user.
+   */
+  public Integer getUser() {
+    Integer user = users.get(KEY);
+    if (user == null) {
+      user = createUser();
+      users.put(KEY, user);
+    }
+    return user;
+  }
+
+  /** Gets the user, creating it if it does not exist, while holding this object's monitor. */
+  public synchronized Integer getUserSynchronized() {
+    return getUser();
+  }
+
+  /**
+   * Adds a role. Uses a different map to the users. Not public, so that it is
+   * not called by the scenarios in the ScenarioGeneratorTest.
+   */
+  void addRole() {
+    roles.put(KEY, roles.size());
+  }
+
+  private synchronized Integer createUser() {
+    return ++created;
+  }
+
+  /** Gets the number of times that the user has been created. */
+  public synchronized int getCreated() {
+    return created;
+  }
+}